@@ -0,0 +1,85 @@
+package org.miles2run.core.cache;
+
+import org.miles2run.core.repositories.redis.TimelineRepository;
+import org.miles2run.core.utils.EnvUtils;
+import org.miles2run.domain.kv_aggregates.TimelineAggregate;
+
+import javax.annotation.PostConstruct;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Keeps the first page of every community run timeline in memory for a few seconds. During an event most participants
+ * open the same run page, so concurrent requests for a page that is not cached wait for a single Redis read instead of
+ * issuing one each.
+ */
+@ApplicationScoped
+public class CommunityRunTimelineCache {
+
+    static final int DEFAULT_TTL_SECONDS = 5;
+    static final int MAX_PAGES = 1000;
+
+    private final ConcurrentMap<String, CachedPage> pages = new ConcurrentHashMap<>();
+
+    @Inject
+    TimelineRepository timelineRepository;
+
+    long ttlInMillis;
+
+    @PostConstruct
+    public void postConstruct() {
+        this.ttlInMillis = EnvUtils.intValue("COMMUNITY_RUN_TIMELINE_CACHE_SECONDS", DEFAULT_TTL_SECONDS) * 1000L;
+    }
+
+    public TimelineAggregate firstPage(final String slug, final int count) {
+        if (ttlInMillis <= 0) {
+            return timelineRepository.communityRunTimeline(slug, null, null, 0, count);
+        }
+        final long now = System.currentTimeMillis();
+        if (pages.size() >= MAX_PAGES) {
+            pages.values().removeIf(page -> page.isExpired(now));
+        }
+        String key = slug + ":" + count;
+        CachedPage page = pages.compute(key, (k, cached) -> cached == null || cached.isExpired(now) ? new CachedPage(slug, count, now + ttlInMillis) : cached);
+        try {
+            return page.get();
+        } catch (RuntimeException e) {
+            pages.remove(key, page);
+            throw e;
+        }
+    }
+
+    private class CachedPage {
+
+        private final FutureTask<TimelineAggregate> task;
+        private final long expiresAt;
+
+        CachedPage(String slug, int count, long expiresAt) {
+            this.task = new FutureTask<>(() -> timelineRepository.communityRunTimeline(slug, null, null, 0, count));
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+
+        /**
+         * Only the first caller runs the read, the others wait for its result and get its exception when it fails.
+         */
+        TimelineAggregate get() {
+            task.run();
+            try {
+                return task.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while reading community run timeline", e);
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new IllegalStateException("Unable to read community run timeline", e.getCause());
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package org.miles2run.core.fanout;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters describing the follower fan-out pipeline. Lag is measured from the moment an activity is queued till the
+ * moment the last follower chunk has been written to Redis.
+ */
+public class FanoutMetrics {
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+    private final AtomicLong followersDelivered = new AtomicLong();
+    private final AtomicLong dormantFollowersSkipped = new AtomicLong();
+    private final AtomicLong chunksWritten = new AtomicLong();
+    private final AtomicLong totalLagInMillis = new AtomicLong();
+    private final AtomicLong maxLagInMillis = new AtomicLong();
+    private final AtomicLong lastLagInMillis = new AtomicLong();
+
+    void submitted() {
+        submitted.incrementAndGet();
+    }
+
+    void callerRuns() {
+        callerRuns.incrementAndGet();
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+    }
+
+    void chunkWritten(int followers) {
+        chunksWritten.incrementAndGet();
+        followersDelivered.addAndGet(followers);
+    }
+
+    void dormantFollowersSkipped(long followers) {
+        dormantFollowersSkipped.addAndGet(followers);
+    }
+
+    void completed(long lagInMillis) {
+        completed.incrementAndGet();
+        totalLagInMillis.addAndGet(lagInMillis);
+        lastLagInMillis.set(lagInMillis);
+        long currentMax;
+        do {
+            currentMax = maxLagInMillis.get();
+        } while (lagInMillis > currentMax && !maxLagInMillis.compareAndSet(currentMax, lagInMillis));
+    }
+
+    public Map<String, Object> snapshot(int queueDepth, int activeWorkers) {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        long completedCount = completed.get();
+        snapshot.put("queueDepth", queueDepth);
+        snapshot.put("activeWorkers", activeWorkers);
+        snapshot.put("submitted", submitted.get());
+        snapshot.put("completed", completedCount);
+        snapshot.put("failed", failed.get());
+        snapshot.put("callerRuns", callerRuns.get());
+        snapshot.put("chunksWritten", chunksWritten.get());
+        snapshot.put("followersDelivered", followersDelivered.get());
+        snapshot.put("dormantFollowersSkipped", dormantFollowersSkipped.get());
+        snapshot.put("lastLagInMillis", lastLagInMillis.get());
+        snapshot.put("maxLagInMillis", maxLagInMillis.get());
+        snapshot.put("averageLagInMillis", completedCount == 0 ? 0.0d : (double) totalLagInMillis.get() / completedCount);
+        return snapshot;
+    }
+}
@@ -0,0 +1,286 @@
+package org.miles2run.core.fanout;
+
+import org.miles2run.core.repositories.mongo.UserProfileRepository;
+import org.miles2run.core.repositories.redis.JedisExecution;
+import org.miles2run.core.repositories.redis.JedisOperation;
+import org.miles2run.core.repositories.redis.JedisShardedOperation;
+import org.miles2run.core.repositories.redis.JedisShards;
+import org.miles2run.core.repositories.redis.RedisKeyNames;
+import org.miles2run.core.repositories.redis.RedisScript;
+import org.miles2run.core.repositories.redis.TimelineRepository;
+import org.miles2run.core.utils.EnvUtils;
+import org.miles2run.domain.documents.UserProfile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Tuple;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Pushes a newly posted activity into the home timeline of every follower of its author.
+ * <p>
+ * Activities are queued on a bounded worker pool so that the HTTP request posting the activity returns as soon as the
+ * author's own timelines are updated. Followers are written in fixed size chunks, one pipeline per chunk. When the
+ * queue is full the posting thread runs the fan-out itself, which throttles producers instead of dropping activities.
+ * <p>
+ * When FANOUT_FOLLOWER_THRESHOLD is set, authors with more followers than the threshold are not pushed. They are
+ * recorded in {@link RedisKeyNames#HEAVY_ACCOUNTS_SET} instead and their activities are merged into the home timeline
+ * of their followers at read time. When such an author falls back under the threshold, the recent activities of its
+ * profile timeline are copied into the home timelines of its followers before it leaves the set, so that the
+ * activities posted while it was pulled stay visible.
+ * <p>
+ * When HOME_TIMELINE_TTL_SECONDS is set, home timelines expire unless they are read within the TTL. Fan-out skips
+ * followers whose home timeline has expired and {@link TimelineRepository} rebuilds it when its owner comes back.
+ */
+@ApplicationScoped
+public class FollowerFanoutService {
+
+    static final int DEFAULT_WORKERS = 4;
+    static final int DEFAULT_QUEUE_CAPACITY = 1000;
+    static final int DEFAULT_CHUNK_SIZE = 500;
+
+    private static final RedisScript FANOUT_SCRIPT = RedisScript.fromResource("lua/fanout_home_timelines.lua");
+
+    private final Logger logger = LoggerFactory.getLogger(FollowerFanoutService.class);
+    private final FanoutMetrics metrics = new FanoutMetrics();
+
+    @Inject
+    JedisExecution jedisExecution;
+    @Inject
+    UserProfileRepository userProfileRepository;
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
+    private ThreadPoolExecutor executor;
+    int chunkSize;
+    int followerThreshold;
+    int homeTimelineTtl;
+
+    static <T> List<List<T>> chunks(List<T> items, int chunkSize) {
+        if (items.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<List<T>> chunks = new ArrayList<>();
+        for (int start = 0; start < items.size(); start += chunkSize) {
+            chunks.add(items.subList(start, Math.min(start + chunkSize, items.size())));
+        }
+        return chunks;
+    }
+
+    @PostConstruct
+    public void postConstruct() {
+        int workers = EnvUtils.intValue("FANOUT_WORKERS", DEFAULT_WORKERS);
+        int queueCapacity = EnvUtils.intValue("FANOUT_QUEUE_CAPACITY", DEFAULT_QUEUE_CAPACITY);
+        this.chunkSize = EnvUtils.intValue("FANOUT_CHUNK_SIZE", DEFAULT_CHUNK_SIZE);
+        this.followerThreshold = EnvUtils.intValue("FANOUT_FOLLOWER_THRESHOLD", 0);
+        this.homeTimelineTtl = EnvUtils.intValue("HOME_TIMELINE_TTL_SECONDS", 0);
+        start(workers, queueCapacity);
+        logger.info("Follower fan-out started with {} workers, queue capacity {}, chunk size {}, follower threshold {} and home timeline TTL {}", workers, queueCapacity, chunkSize, followerThreshold, homeTimelineTtl);
+    }
+
+    /**
+     * Starts the worker pool. A delivery that does not fit in the queue runs on the thread submitting it.
+     */
+    void start(int workers, int queueCapacity) {
+        ThreadFactory factory = threadFactory == null ? Executors.defaultThreadFactory() : threadFactory;
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), factory, (task, pool) -> {
+            metrics.callerRuns();
+            if (!pool.isShutdown()) {
+                task.run();
+            }
+        });
+    }
+
+    @PreDestroy
+    public void preDestroy() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                logger.warn("Follower fan-out did not finish in time, {} activities were not delivered", executor.getQueue().size());
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Queues an activity for delivery to the home timelines of the author's followers.
+     *
+     * @param username   author of the activity
+     * @param activityId activity to deliver
+     * @param posted     score of the activity in the timelines
+     */
+    public void fanout(final String username, final String activityId, final long posted) {
+        final long queuedAt = System.currentTimeMillis();
+        metrics.submitted();
+        executor.execute(() -> deliver(username, activityId, posted, queuedAt));
+    }
+
+    void deliver(String username, String activityId, long posted, long queuedAt) {
+        try {
+            UserProfile userProfile = userProfileRepository.find(username);
+            List<String> followers = userProfile == null ? Collections.<String>emptyList() : userProfile.getFollowers();
+            List<Tuple> activities = Collections.singletonList(new Tuple(activityId, (double) posted));
+            boolean wasHeavyAccount = false;
+            if (isHybridEnabled()) {
+                if (isHeavyAccount(followers.size())) {
+                    addHeavyAccount(username);
+                    logger.info("{} has {} followers, activity {} will be pulled at read time", username, followers.size(), activityId);
+                    metrics.completed(System.currentTimeMillis() - queuedAt);
+                    return;
+                }
+                wasHeavyAccount = isMarkedHeavyAccount(username);
+                if (wasHeavyAccount) {
+                    activities = recentActivities(username);
+                    logger.info("{} is no longer a heavy account, copying {} activities to the home timelines of its followers", username, activities.size());
+                }
+            }
+            logger.info("Delivering activity {} to {} followers of {}", activityId, followers.size(), username);
+            for (List<String> chunk : chunks(followers, chunkSize)) {
+                long delivered = writeChunk(chunk, activities);
+                metrics.chunkWritten((int) delivered);
+                metrics.dormantFollowersSkipped(chunk.size() - delivered);
+            }
+            if (wasHeavyAccount) {
+                removeHeavyAccount(username);
+            }
+            metrics.completed(System.currentTimeMillis() - queuedAt);
+        } catch (RuntimeException e) {
+            metrics.failed();
+            logger.error(String.format("Unable to deliver activity %s of %s to followers", activityId, username), e);
+        }
+    }
+
+    private void addHeavyAccount(final String username) {
+        jedisExecution.execute(new JedisOperation<Long>() {
+            @Override
+            public Long perform(Jedis jedis) {
+                return jedis.sadd(RedisKeyNames.HEAVY_ACCOUNTS_SET, username);
+            }
+        });
+    }
+
+    private boolean isMarkedHeavyAccount(final String username) {
+        return jedisExecution.execute(new JedisOperation<Boolean>() {
+            @Override
+            public Boolean perform(Jedis jedis) {
+                return jedis.sismember(RedisKeyNames.HEAVY_ACCOUNTS_SET, username);
+            }
+        });
+    }
+
+    /**
+     * The account stays in the set until its activities have been copied, readers keep pulling them until then.
+     */
+    private void removeHeavyAccount(final String username) {
+        jedisExecution.execute(new JedisOperation<Long>() {
+            @Override
+            public Long perform(Jedis jedis) {
+                return jedis.srem(RedisKeyNames.HEAVY_ACCOUNTS_SET, username);
+            }
+        });
+    }
+
+    private List<Tuple> recentActivities(final String username) {
+        final String profileTimelineKey = String.format(RedisKeyNames.PROFILE_S_TIMELINE, username);
+        Set<Tuple> activities = jedisExecution.execute(profileTimelineKey, new JedisOperation<Set<Tuple>>() {
+            @Override
+            public Set<Tuple> perform(Jedis jedis) {
+                return jedis.zrevrangeWithScores(profileTimelineKey, 0, TimelineRepository.TIMELINE_SIZE - 1);
+            }
+        });
+        return activities == null ? Collections.<Tuple>emptyList() : new ArrayList<>(activities);
+    }
+
+    /**
+     * @return true when authors above the follower threshold are pulled into home timelines instead of pushed.
+     */
+    public boolean isHybridEnabled() {
+        return followerThreshold > 0;
+    }
+
+    /**
+     * @return true when an author with the given number of followers is pulled into home timelines instead of pushed.
+     */
+    public boolean isHeavyAccount(int followerCount) {
+        return isHybridEnabled() && followerCount > followerThreshold;
+    }
+
+    /**
+     * @return true when home timelines expire and are rebuilt on demand for users who come back.
+     */
+    public boolean isLazyHomeTimelines() {
+        return homeTimelineTtl > 0;
+    }
+
+    public int getHomeTimelineTtl() {
+        return homeTimelineTtl;
+    }
+
+    private long writeChunk(final List<String> followers, final List<Tuple> activities) {
+        if (isLazyHomeTimelines()) {
+            return writeChunkToMaterializedTimelines(followers, activities);
+        }
+        jedisExecution.executeOnShards(new JedisShardedOperation<Void>() {
+            @Override
+            public Void perform(JedisShards shards) {
+                for (String follower : followers) {
+                    String homeTimelineKey = String.format(RedisKeyNames.HOME_S_TIMELINE, follower);
+                    Pipeline pipeline = shards.pipeline(homeTimelineKey);
+                    for (Tuple activity : activities) {
+                        pipeline.zadd(homeTimelineKey, activity.getScore(), activity.getElement());
+                    }
+                    pipeline.zremrangeByRank(homeTimelineKey, 0, -(TimelineRepository.TIMELINE_SIZE + 1));
+                }
+                shards.sync();
+                return null;
+            }
+        });
+        return followers.size();
+    }
+
+    /**
+     * Checking and writing every home timeline in one script keeps an expired timeline from being recreated with a
+     * single activity. On sharded Redis the script runs once per shard with the timelines it holds, each next to its
+     * marker, which shares its hash tag.
+     */
+    private long writeChunkToMaterializedTimelines(final List<String> followers, final List<Tuple> activities) {
+        final List<String> keys = new ArrayList<>();
+        for (String follower : followers) {
+            keys.add(String.format(RedisKeyNames.HOME_S_TIMELINE, follower));
+            keys.add(String.format(RedisKeyNames.HOME_S_TIMELINE_MATERIALIZED, follower));
+        }
+        final List<String> args = new ArrayList<>();
+        args.add(String.valueOf(TimelineRepository.TIMELINE_SIZE));
+        for (Tuple activity : activities) {
+            args.add(String.valueOf((long) activity.getScore()));
+            args.add(activity.getElement());
+        }
+        Long delivered = jedisExecution.executeOnShards(new JedisShardedOperation<Long>() {
+            @Override
+            public Long perform(JedisShards shards) {
+                long delivered = 0;
+                for (Map.Entry<Jedis, List<String>> partition : shards.partition(keys).entrySet()) {
+                    delivered += (Long) FANOUT_SCRIPT.execute(partition.getKey(), partition.getValue(), args);
+                }
+                return delivered;
+            }
+        });
+        return delivered == null ? 0 : delivered;
+    }
+
+    public Map<String, Object> metrics() {
+        return metrics.snapshot(executor.getQueue().size(), executor.getActiveCount());
+    }
+}
@@ -1,15 +1,39 @@
 package org.miles2run.core.producers;
 
 import org.apache.commons.pool.impl.GenericObjectPool;
+import org.miles2run.core.repositories.redis.HashTags;
+import org.miles2run.core.repositories.redis.JedisReplicas;
+import org.miles2run.core.repositories.redis.PoolGauges;
+import org.miles2run.core.utils.EnvUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.util.Hashing;
+import redis.clients.util.Sharded;
 
 import javax.annotation.PreDestroy;
 import javax.enterprise.context.ApplicationScoped;
+import javax.enterprise.inject.Disposes;
 import javax.enterprise.inject.Produces;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
 
+/**
+ * Redis connection pools. Commands time out after REDIS_TIMEOUT_MILLIS, 2000 by default, and a request waits at most
+ * REDIS_BORROW_TIMEOUT_MILLIS, 500 by default, for a connection of an exhausted pool instead of opening more, so a
+ * stalled Redis fails requests quickly rather than piling up threads and connections.
+ * <p>
+ * Every pool holds at most REDIS_POOL_MAX_ACTIVE connections, 128 by default, keeping between REDIS_POOL_MIN_IDLE and
+ * REDIS_POOL_MAX_IDLE idle, 10 and 20 by default. Connections are validated on borrow, on return and while idle unless
+ * REDIS_POOL_TEST_ON_BORROW, REDIS_POOL_TEST_ON_RETURN or REDIS_POOL_TEST_WHILE_IDLE is false; each validation is a
+ * PING round trip. A sharded connection is validated by pinging every shard, so one failing shard would fail every
+ * borrow; sharded connections are therefore only validated while idle unless validation on borrow or return is
+ * enabled explicitly, and a failing shard is left to its circuit breaker. The pools expose their active and idle connections through {@link PoolGauges}.
+ */
 @ApplicationScoped
 public class JedisProducer {
 
@@ -17,29 +41,164 @@ public class JedisProducer {
 
     @PreDestroy
     public void close() {
-        jedisPool().destroy();
+        JedisPool jedisPool = jedisPool();
+        if (jedisPool != null) {
+            jedisPool.destroy();
+        }
     }
 
+    /**
+     * @return the pool, or null when Redis is sharded.
+     */
     @Produces
     public JedisPool jedisPool() {
-        JedisPoolConfig poolConfig = new JedisPoolConfig();
-        poolConfig.setMaxActive(128);
-        poolConfig.setMaxIdle(20);
-        poolConfig.setTestWhileIdle(true);
-        poolConfig.setTestOnBorrow(true);
-        poolConfig.setTestWhileIdle(true);
-        poolConfig.setTestOnReturn(true);
-        poolConfig.setMinIdle(10);
-        poolConfig.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_GROW);
+        if (HashTags.isSharded()) {
+            return null;
+        }
+        JedisPoolConfig poolConfig = poolConfig(false);
         String host = System.getenv("REDIS_DB_HOST");
         if (host == null) {
             System.out.print("Localhost Redis Configuration");
-            return new JedisPool(poolConfig, "localhost");
+            return new GaugedJedisPool(poolConfig, "localhost", 6379, timeout(), null);
         }
         int port = Integer.valueOf(System.getenv("REDIS_DB_PORT"));
         String password = System.getenv("REDIS_DB_PASSWORD");
         logger.info("Redis configuration : Host {} Port {} Password {}", host, port, password);
-        JedisPool jedisPool = new JedisPool(poolConfig, host, port, 2000, password);
+        JedisPool jedisPool = new GaugedJedisPool(poolConfig, host, port, timeout(), password);
         return jedisPool;
     }
+
+    /**
+     * Pool of connections to every shard listed in REDIS_SHARDS, comma separated host:port pairs sharing the password
+     * in REDIS_DB_PASSWORD. Keys are placed on the shards with consistent hashing of their hash tag and the position of
+     * the shards in the list. Appending a shard still moves part of the keys to it, and any other change to the list
+     * moves more, so the keys are copied onto their new shards with the shard migration job before the application
+     * takes traffic, as when REDIS_SHARDS is first set.
+     *
+     * @see org.miles2run.core.rebuild.ShardMigrationService
+     *
+     * @return the pool, or null when Redis is not sharded.
+     */
+    @Produces
+    public ShardedJedisPool shardedJedisPool() {
+        String shards = EnvUtils.stringValue("REDIS_SHARDS", null);
+        if (shards == null) {
+            return null;
+        }
+        logger.info("Redis shards : {}", shards);
+        return new GaugedShardedJedisPool(poolConfig(true), shardInfos(shards, System.getenv("REDIS_DB_PASSWORD")), Hashing.MURMUR_HASH, Sharded.DEFAULT_KEY_TAG_PATTERN);
+    }
+
+    public void closeShardedPool(@Disposes ShardedJedisPool shardedJedisPool) {
+        if (shardedJedisPool != null) {
+            shardedJedisPool.destroy();
+        }
+    }
+
+    /**
+     * Replicas of the Redis master listed in REDIS_REPLICAS, comma separated host:port pairs sharing the password in
+     * REDIS_DB_PASSWORD. Replicas are not used when Redis is sharded.
+     *
+     * @return the replicas, none when REDIS_REPLICAS is not set.
+     */
+    @Produces
+    public JedisReplicas jedisReplicas() {
+        String replicas = EnvUtils.stringValue("REDIS_REPLICAS", null);
+        List<JedisPool> pools = new ArrayList<>();
+        if (replicas != null && HashTags.isSharded()) {
+            logger.warn("REDIS_REPLICAS is ignored when REDIS_SHARDS is set");
+        } else if (replicas != null) {
+            logger.info("Redis replicas : {}", replicas);
+            String password = System.getenv("REDIS_DB_PASSWORD");
+            for (String replica : replicas.split(",")) {
+                String[] hostAndPort = hostAndPort(replica);
+                pools.add(new GaugedJedisPool(poolConfig(false), hostAndPort[0], port(hostAndPort), timeout(), password));
+            }
+        }
+        return new JedisReplicas(pools, EnvUtils.longValue("REDIS_REPLICA_MAX_LAG_BYTES", 65536), EnvUtils.longValue("REDIS_REPLICA_CHECK_MILLIS", 1000));
+    }
+
+    public void closeReplicas(@Disposes JedisReplicas jedisReplicas) {
+        jedisReplicas.destroy();
+    }
+
+    static List<JedisShardInfo> shardInfos(String shards, String password) {
+        List<JedisShardInfo> shardInfos = new ArrayList<>();
+        for (String shard : shards.split(",")) {
+            String[] hostAndPort = hostAndPort(shard);
+            JedisShardInfo shardInfo = new JedisShardInfo(hostAndPort[0], port(hostAndPort), timeout());
+            shardInfo.setPassword(password);
+            shardInfos.add(shardInfo);
+        }
+        return shardInfos;
+    }
+
+    private static String[] hostAndPort(String server) {
+        return server.trim().split(":");
+    }
+
+    private static int port(String[] hostAndPort) {
+        return hostAndPort.length > 1 ? Integer.valueOf(hostAndPort[1]) : 6379;
+    }
+
+    private JedisPoolConfig poolConfig(boolean sharded) {
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxActive(EnvUtils.intValue("REDIS_POOL_MAX_ACTIVE", 128));
+        poolConfig.setMaxIdle(EnvUtils.intValue("REDIS_POOL_MAX_IDLE", 20));
+        poolConfig.setMinIdle(EnvUtils.intValue("REDIS_POOL_MIN_IDLE", 10));
+        poolConfig.setTestOnBorrow(EnvUtils.booleanValue("REDIS_POOL_TEST_ON_BORROW", !sharded));
+        poolConfig.setTestOnReturn(EnvUtils.booleanValue("REDIS_POOL_TEST_ON_RETURN", !sharded));
+        poolConfig.setTestWhileIdle(EnvUtils.booleanValue("REDIS_POOL_TEST_WHILE_IDLE", true));
+        poolConfig.setWhenExhaustedAction(GenericObjectPool.WHEN_EXHAUSTED_BLOCK);
+        poolConfig.setMaxWait(EnvUtils.longValue("REDIS_BORROW_TIMEOUT_MILLIS", 500));
+        return poolConfig;
+    }
+
+    private static int timeout() {
+        return EnvUtils.intValue("REDIS_TIMEOUT_MILLIS", 2000);
+    }
+
+    static class GaugedJedisPool extends JedisPool implements PoolGauges {
+
+        GaugedJedisPool(JedisPoolConfig poolConfig, String host, int port, int timeout, String password) {
+            super(poolConfig, host, port, timeout, password);
+        }
+
+        @Override
+        public int getNumActive() {
+            return internalPool.getNumActive();
+        }
+
+        @Override
+        public int getNumIdle() {
+            return internalPool.getNumIdle();
+        }
+
+        @Override
+        public int getMaxActive() {
+            return internalPool.getMaxActive();
+        }
+    }
+
+    static class GaugedShardedJedisPool extends ShardedJedisPool implements PoolGauges {
+
+        GaugedShardedJedisPool(JedisPoolConfig poolConfig, List<JedisShardInfo> shards, Hashing algo, Pattern keyTagPattern) {
+            super(poolConfig, shards, algo, keyTagPattern);
+        }
+
+        @Override
+        public int getNumActive() {
+            return internalPool.getNumActive();
+        }
+
+        @Override
+        public int getNumIdle() {
+            return internalPool.getNumIdle();
+        }
+
+        @Override
+        public int getMaxActive() {
+            return internalPool.getMaxActive();
+        }
+    }
 }
@@ -0,0 +1,29 @@
+package org.miles2run.core.rebuild;
+
+import javax.batch.api.AbstractBatchlet;
+import javax.batch.api.BatchProperty;
+import javax.enterprise.context.Dependent;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Runs {@link ActivityCompactionService} as the single step of the activity-compaction batch job.
+ */
+@Named("activityCompactionBatchlet")
+@Dependent
+public class ActivityCompactionBatchlet extends AbstractBatchlet {
+
+    public static final String JOB_NAME = "activity-compaction";
+
+    @Inject
+    private ActivityCompactionService activityCompactionService;
+    @Inject
+    @BatchProperty
+    private String resume;
+
+    @Override
+    public String process() throws Exception {
+        activityCompactionService.compact(Boolean.parseBoolean(resume));
+        return "COMPLETED";
+    }
+}
@@ -0,0 +1,239 @@
+package org.miles2run.core.rebuild;
+
+import org.miles2run.core.repositories.jpa.ActivityRepository;
+import org.miles2run.core.repositories.jpa.ProfileRepository;
+import org.miles2run.core.repositories.redis.ActivityCodec;
+import org.miles2run.core.repositories.redis.HashTags;
+import org.miles2run.core.repositories.redis.JedisExecution;
+import org.miles2run.core.repositories.redis.JedisOperation;
+import org.miles2run.core.repositories.redis.RedisKeyNames;
+import org.miles2run.core.repositories.redis.RedisScript;
+import org.miles2run.core.utils.EnvUtils;
+import org.miles2run.domain.entities.Profile;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rewrites the activity hashes stored one text field per property in the compact binary encoding of
+ * {@link ActivityCodec}.
+ * <p>
+ * Activity ids are walked from the activity table in batches of REBUILD_BATCH_SIZE. Each batch is read with one
+ * pipeline and rewritten with one script, which leaves alone activities that were already rewritten in the compact
+ * encoding after they were read. The last id of every batch is checkpointed in
+ * {@link RedisKeyNames#ACTIVITY_COMPACTION_CHECKPOINT} so an interrupted migration resumes where it stopped. It should
+ * be run once ACTIVITY_COMPACT_ENCODING is enabled, otherwise new activities keep being written as text.
+ */
+@ApplicationScoped
+public class ActivityCompactionService {
+
+    private static final RedisScript COMPACT_SCRIPT = RedisScript.fromResource("lua/compact_activities.lua");
+
+    private final Logger logger = LoggerFactory.getLogger(ActivityCompactionService.class);
+
+    @Inject
+    ActivityRepository activityRepository;
+    @Inject
+    ProfileRepository profileRepository;
+    @Inject
+    JedisExecution jedisExecution;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong activitiesCompacted = new AtomicLong();
+    private final AtomicLong activitiesSkipped = new AtomicLong();
+    private volatile String phase = "idle";
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+
+    /**
+     * Builds the keys and arguments of the compaction script for the text activity hashes of a batch. Hashes that are
+     * missing, already compact or lack a field of the compact encoding are left out. The user hashes are written with
+     * the fullname and picture of the current profile of the author, as an activity hash keeps those of the day it was
+     * posted.
+     *
+     * @param profiles current profiles of the authors by username.
+     * @return the number of activities that could not be converted
+     */
+    static int compactionArgs(List<Long> activityIds, List<Map<String, String>> hashes, Map<String, Profile> profiles, List<byte[]> keys, List<byte[]> args) {
+        int skipped = 0;
+        for (int i = 0; i < activityIds.size(); i++) {
+            Map<String, String> hash = hashes.get(i);
+            if (hash == null || hash.isEmpty() || hash.containsKey(ActivityCodec.COMPACT_FIELD)) {
+                continue;
+            }
+            byte[] compact;
+            try {
+                compact = ActivityCodec.encode(ActivityCodec.fromHash(hash));
+            } catch (RuntimeException e) {
+                skipped++;
+                continue;
+            }
+            if (hash.get("username") == null) {
+                skipped++;
+                continue;
+            }
+            keys.add(SafeEncoder.encode(String.format(RedisKeyNames.ACTIVITY_S, activityIds.get(i))));
+            keys.add(SafeEncoder.encode(String.format(RedisKeyNames.USER_S, hash.get("userId"))));
+            args.add(compact);
+            Profile profile = profiles.get(hash.get("username"));
+            args.add(SafeEncoder.encode(hash.get("username")));
+            args.add(SafeEncoder.encode(profile == null || profile.getFullname() == null ? "" : profile.getFullname()));
+            args.add(SafeEncoder.encode(profile == null || profile.getProfilePic() == null ? "" : profile.getProfilePic()));
+        }
+        return skipped;
+    }
+
+    /**
+     * Runs the migration on the calling thread. Not available on sharded Redis, where activity and user hashes are
+     * on different shards; sharded deployments write the encoding configured when they are rebuilt.
+     *
+     * @param resume continue after the last checkpointed activity id instead of starting over.
+     */
+    public void compact(boolean resume) {
+        if (HashTags.isSharded()) {
+            throw new IllegalStateException("Activity compaction is not available on sharded Redis, rebuild the timelines instead");
+        }
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("An activity compaction is already running");
+        }
+        int batchSize = EnvUtils.intValue("REBUILD_BATCH_SIZE", TimelineRebuildService.DEFAULT_BATCH_SIZE);
+        activitiesCompacted.set(0);
+        activitiesSkipped.set(0);
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        error = null;
+        phase = "activities";
+        try {
+            String checkpoint = resume ? checkpoint() : null;
+            long lastId = checkpoint == null ? 0 : Long.valueOf(checkpoint);
+            long maxId = activityRepository.maxActivityId();
+            logger.info("Compacting activities after id {} up to id {} in batches of {}", lastId, maxId, batchSize);
+            while (lastId < maxId) {
+                long toId = Math.min(lastId + batchSize, maxId);
+                compactBatch(lastId, toId);
+                lastId = toId;
+                checkpoint(String.valueOf(lastId));
+            }
+            clearCheckpoint();
+            phase = "completed";
+            logger.info("Compacted {} activities and skipped {} in {} ms", activitiesCompacted.get(), activitiesSkipped.get(), System.currentTimeMillis() - startedAt);
+        } catch (RuntimeException e) {
+            phase = "failed";
+            error = e.getMessage();
+            logger.error("Activity compaction failed, it can be resumed from the last checkpoint", e);
+            throw e;
+        } finally {
+            finishedAt = System.currentTimeMillis();
+            running.set(false);
+        }
+    }
+
+    private void compactBatch(final long afterId, final long toId) {
+        final List<Long> activityIds = new ArrayList<>();
+        for (long id = afterId + 1; id <= toId; id++) {
+            activityIds.add(id);
+        }
+        List<Map<String, String>> hashes = jedisExecution.execute(new JedisOperation<List<Map<String, String>>>() {
+            @Override
+            public List<Map<String, String>> perform(Jedis jedis) {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Map<byte[], byte[]>>> responses = new ArrayList<>();
+                for (Long activityId : activityIds) {
+                    responses.add(pipeline.hgetAll(SafeEncoder.encode(String.format(RedisKeyNames.ACTIVITY_S, activityId))));
+                }
+                pipeline.sync();
+                List<Map<String, String>> hashes = new ArrayList<>();
+                for (Response<Map<byte[], byte[]>> response : responses) {
+                    hashes.add(ActivityCodec.toStringHash(response.get()));
+                }
+                return hashes;
+            }
+        });
+        if (hashes == null) {
+            return;
+        }
+        final List<byte[]> keys = new ArrayList<>();
+        final List<byte[]> args = new ArrayList<>();
+        activitiesSkipped.addAndGet(compactionArgs(activityIds, hashes, authorProfiles(hashes), keys, args));
+        if (keys.isEmpty()) {
+            return;
+        }
+        Long compacted = jedisExecution.execute(new JedisOperation<Long>() {
+            @Override
+            public Long perform(Jedis jedis) {
+                return (Long) COMPACT_SCRIPT.executeBinary(jedis, keys, args);
+            }
+        });
+        activitiesCompacted.addAndGet(compacted == null ? 0 : compacted);
+    }
+
+    private Map<String, Profile> authorProfiles(List<Map<String, String>> hashes) {
+        Set<String> usernames = new HashSet<>();
+        for (Map<String, String> hash : hashes) {
+            if (hash != null && hash.get("username") != null && !hash.containsKey(ActivityCodec.COMPACT_FIELD)) {
+                usernames.add(hash.get("username"));
+            }
+        }
+        Map<String, Profile> profiles = new HashMap<>();
+        if (!usernames.isEmpty()) {
+            for (Profile profile : profileRepository.findProfiles(new ArrayList<>(usernames))) {
+                profiles.put(profile.getUsername(), profile);
+            }
+        }
+        return profiles;
+    }
+
+    private String checkpoint() {
+        return jedisExecution.execute(new JedisOperation<String>() {
+            @Override
+            public String perform(Jedis jedis) {
+                return jedis.get(RedisKeyNames.ACTIVITY_COMPACTION_CHECKPOINT);
+            }
+        });
+    }
+
+    private void checkpoint(final String lastId) {
+        jedisExecution.execute(new JedisOperation<String>() {
+            @Override
+            public String perform(Jedis jedis) {
+                return jedis.set(RedisKeyNames.ACTIVITY_COMPACTION_CHECKPOINT, lastId);
+            }
+        });
+    }
+
+    private void clearCheckpoint() {
+        jedisExecution.execute(new JedisOperation<Long>() {
+            @Override
+            public Long perform(Jedis jedis) {
+                return jedis.del(RedisKeyNames.ACTIVITY_COMPACTION_CHECKPOINT);
+            }
+        });
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", running.get());
+        status.put("phase", phase);
+        status.put("activitiesCompacted", activitiesCompacted.get());
+        status.put("activitiesSkipped", activitiesSkipped.get());
+        status.put("startedAt", startedAt);
+        status.put("finishedAt", finishedAt);
+        status.put("error", error);
+        status.put("checkpoint", checkpoint());
+        return status;
+    }
+}
@@ -0,0 +1,25 @@
+package org.miles2run.core.rebuild;
+
+import javax.batch.api.AbstractBatchlet;
+import javax.enterprise.context.Dependent;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Runs {@link HyperLogLogMigrationService} as the single step of the hyperloglog-migration batch job.
+ */
+@Named("hyperLogLogMigrationBatchlet")
+@Dependent
+public class HyperLogLogMigrationBatchlet extends AbstractBatchlet {
+
+    public static final String JOB_NAME = "hyperloglog-migration";
+
+    @Inject
+    private HyperLogLogMigrationService hyperLogLogMigrationService;
+
+    @Override
+    public String process() throws Exception {
+        hyperLogLogMigrationService.migrate();
+        return "COMPLETED";
+    }
+}
@@ -0,0 +1,152 @@
+package org.miles2run.core.rebuild;
+
+import org.miles2run.core.repositories.redis.CommunityRunStatsRepository;
+import org.miles2run.core.repositories.redis.HyperLogLogs;
+import org.miles2run.core.repositories.redis.JedisExecution;
+import org.miles2run.core.repositories.redis.JedisOperation;
+import org.miles2run.core.repositories.redis.RedisKeyNames;
+import org.miles2run.core.utils.EnvUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Seeds the HyperLogLogs counted when HYPERLOGLOG_COUNTS is enabled from the sets counted until then: the global
+ * countries and cities, and the runners, cities and countries of every community run.
+ * <p>
+ * The client in use has no SSCAN, so every set is copied with SUNIONSTORE and its members are popped from the copy in
+ * pipelined batches of REBUILD_BATCH_SIZE SPOPs, which keeps a set of any size out of the heap at the cost of holding
+ * the copy in Redis while the set is migrated. Adding a member twice leaves
+ * a HyperLogLog unchanged, so the migration needs no checkpoint; it can be run before enabling HYPERLOGLOG_COUNTS and
+ * again after, to pick up members added in between. The sets are left in place.
+ */
+@ApplicationScoped
+public class HyperLogLogMigrationService {
+
+    static final String COPY_SUFFIX = "-hll-migration";
+    static final int COPY_EXPIRY_SECONDS = 3600;
+
+    private final Logger logger = LoggerFactory.getLogger(HyperLogLogMigrationService.class);
+
+    @Inject
+    JedisExecution jedisExecution;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong setsMigrated = new AtomicLong();
+    private final AtomicLong membersAdded = new AtomicLong();
+    private volatile String phase = "idle";
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+
+    /**
+     * @return the HyperLogLog seeded from every set, keyed by set.
+     */
+    static Map<String, String> hyperLogLogsBySet(Collection<String> communityRunSlugs) {
+        Map<String, String> hyperLogLogs = new LinkedHashMap<>();
+        hyperLogLogs.put(RedisKeyNames.COUNTRY_SET_KEY, RedisKeyNames.COUNTRY_HLL_KEY);
+        hyperLogLogs.put(RedisKeyNames.CITY_SET_KEY, RedisKeyNames.CITY_HLL_KEY);
+        for (String slug : communityRunSlugs) {
+            List<String> keys = CommunityRunStatsRepository.hyperLogLogKeys(slug);
+            hyperLogLogs.put(String.format(RedisKeyNames.CR_S_ALL_RUNNERS_SET, slug), keys.get(0));
+            hyperLogLogs.put(String.format(RedisKeyNames.CR_S_CITIES_SET, slug), keys.get(1));
+            hyperLogLogs.put(String.format(RedisKeyNames.CR_S_COUNTRIES_SET, slug), keys.get(2));
+        }
+        return hyperLogLogs;
+    }
+
+    /**
+     * Runs the migration on the calling thread.
+     */
+    public void migrate() {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A HyperLogLog migration is already running");
+        }
+        int batchSize = EnvUtils.intValue("REBUILD_BATCH_SIZE", TimelineRebuildService.DEFAULT_BATCH_SIZE);
+        setsMigrated.set(0);
+        membersAdded.set(0);
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        error = null;
+        phase = "sets";
+        try {
+            Set<String> slugs = jedisExecution.execute(new JedisOperation<Set<String>>() {
+                @Override
+                public Set<String> perform(Jedis jedis) {
+                    return jedis.smembers(RedisKeyNames.COMMUNITY_RUNS);
+                }
+            });
+            Map<String, String> hyperLogLogs = hyperLogLogsBySet(slugs);
+            logger.info("Seeding {} HyperLogLogs of {} community runs in batches of {}", hyperLogLogs.size(), slugs.size(), batchSize);
+            for (Map.Entry<String, String> entry : hyperLogLogs.entrySet()) {
+                migrateSet(entry.getKey(), entry.getValue(), batchSize);
+                setsMigrated.incrementAndGet();
+            }
+            phase = "completed";
+            logger.info("Seeded {} HyperLogLogs with {} members in {} ms", setsMigrated.get(), membersAdded.get(), System.currentTimeMillis() - startedAt);
+        } catch (RuntimeException e) {
+            phase = "failed";
+            error = e.getMessage();
+            logger.error("HyperLogLog migration failed, it can be run again", e);
+            throw e;
+        } finally {
+            finishedAt = System.currentTimeMillis();
+            running.set(false);
+        }
+    }
+
+    /**
+     * Both keys are global or belong to the same community run, so they are on the same shard, and so is the copy,
+     * whose name keeps the hash tag of the set. The copy expires in case the migration stops before emptying it.
+     */
+    void migrateSet(final String setKey, final String hyperLogLogKey, final int batchSize) {
+        boolean global = RedisKeyNames.COUNTRY_SET_KEY.equals(setKey) || RedisKeyNames.CITY_SET_KEY.equals(setKey);
+        final String copyKey = setKey + COPY_SUFFIX;
+        jedisExecution.execute(global ? null : setKey, new JedisOperation<Void>() {
+            @Override
+            public Void perform(Jedis jedis) {
+                jedis.sunionstore(copyKey, setKey);
+                jedis.expire(copyKey, COPY_EXPIRY_SECONDS);
+                List<String> batch;
+                do {
+                    Pipeline pipeline = jedis.pipelined();
+                    for (int i = 0; i < batchSize; i++) {
+                        pipeline.spop(copyKey);
+                    }
+                    batch = new ArrayList<>();
+                    for (Object member : pipeline.syncAndReturnAll()) {
+                        if (member != null) {
+                            batch.add((String) member);
+                        }
+                    }
+                    HyperLogLogs.addAll(jedis, hyperLogLogKey, batch);
+                    membersAdded.addAndGet(batch.size());
+                } while (batch.size() == batchSize);
+                return null;
+            }
+        });
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", running.get());
+        status.put("phase", phase);
+        status.put("setsMigrated", setsMigrated.get());
+        status.put("membersAdded", membersAdded.get());
+        status.put("startedAt", startedAt);
+        status.put("finishedAt", finishedAt);
+        status.put("error", error);
+        return status;
+    }
+}
@@ -0,0 +1,25 @@
+package org.miles2run.core.rebuild;
+
+import javax.batch.api.AbstractBatchlet;
+import javax.enterprise.context.Dependent;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Runs {@link ShardMigrationService} as the single step of the shard-migration batch job.
+ */
+@Named("shardMigrationBatchlet")
+@Dependent
+public class ShardMigrationBatchlet extends AbstractBatchlet {
+
+    public static final String JOB_NAME = "shard-migration";
+
+    @Inject
+    private ShardMigrationService shardMigrationService;
+
+    @Override
+    public String process() throws Exception {
+        shardMigrationService.migrate();
+        return "COMPLETED";
+    }
+}
@@ -0,0 +1,259 @@
+package org.miles2run.core.rebuild;
+
+import org.miles2run.core.repositories.redis.HashTags;
+import org.miles2run.core.repositories.redis.JedisExecution;
+import org.miles2run.core.repositories.redis.JedisShardedOperation;
+import org.miles2run.core.repositories.redis.JedisShards;
+import org.miles2run.core.repositories.redis.RedisKeyNames;
+import org.miles2run.core.utils.EnvUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Copies every key of the Redis servers used before REDIS_SHARDS was set or changed onto the shards in REDIS_SHARDS.
+ * <p>
+ * Setting REDIS_SHARDS renames every key carrying a {@link HashTags hash tag} and places every key, tagged or not, on
+ * the shard chosen by its tag or name. Appending a shard to REDIS_SHARDS moves part of the keys to the new shard as
+ * well. Neither moves any data, so the keys are copied before the application takes traffic on the new shards:
+ * <ol>
+ * <li>stop the writes to the old servers;</li>
+ * <li>start the application with the new REDIS_SHARDS and with REDIS_MIGRATION_SOURCES listing the old servers, comma
+ * separated host:port pairs sharing the password in REDIS_DB_PASSWORD: the single Redis, or the previous shards;</li>
+ * <li>run the migration, then let the traffic in.</li>
+ * </ol>
+ * The keys of every source are listed at once with KEYS, since the Redis client in use has no SCAN, and copied with
+ * DUMP and RESTORE in pipelined batches of REBUILD_BATCH_SIZE, keeping their time to live. A key that already exists on
+ * its shard, including a key whose shard is its source, is left as it is, so an interrupted migration can be run
+ * again. The sources are not modified; keys left behind on a previous shard can be deleted once the migration is done.
+ */
+@ApplicationScoped
+public class ShardMigrationService {
+
+    private final Logger logger = LoggerFactory.getLogger(ShardMigrationService.class);
+
+    @Inject
+    JedisExecution jedisExecution;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong keysListed = new AtomicLong();
+    private final AtomicLong keysCopied = new AtomicLong();
+    private final AtomicLong keysSkipped = new AtomicLong();
+    private volatile String phase = "idle";
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+
+    private static final Pattern FORMAT_ARGUMENT = Pattern.compile("\\{%s\\}|%s");
+
+    /**
+     * @param key           a key of unsharded or sharded Redis.
+     * @param taggedFormats tagged formats of the key names, the most specific first.
+     * @param communityRuns slugs of the community runs, preferred as tag when a key matches several formats, as
+     *                      <code>50k-all-runners</code> does.
+     * @return the name of the key on sharded Redis.
+     */
+    static String shardedName(String key, List<String> taggedFormats, Set<String> communityRuns) {
+        if (key.contains("{")) {
+            return key;
+        }
+        String shardedName = null;
+        for (String taggedFormat : taggedFormats) {
+            Matcher matcher = untaggedPattern(taggedFormat).matcher(key);
+            if (!matcher.matches()) {
+                continue;
+            }
+            StringBuilder candidate = new StringBuilder();
+            String tag = null;
+            Matcher arguments = FORMAT_ARGUMENT.matcher(taggedFormat);
+            int end = 0;
+            for (int group = 1; arguments.find(); group++) {
+                candidate.append(taggedFormat, end, arguments.start());
+                if (arguments.group().startsWith("{")) {
+                    tag = matcher.group(group);
+                    candidate.append('{').append(tag).append('}');
+                } else {
+                    candidate.append(matcher.group(group));
+                }
+                end = arguments.end();
+            }
+            candidate.append(taggedFormat.substring(end));
+            if (communityRuns.contains(tag)) {
+                return candidate.toString();
+            }
+            if (shardedName == null) {
+                shardedName = candidate.toString();
+            }
+        }
+        return shardedName == null ? key : shardedName;
+    }
+
+    /**
+     * @return the tagged formats of the key names, the ones with the longest fixed part first.
+     */
+    static List<String> taggedFormatsBySpecificity(Collection<String> taggedFormats) {
+        List<String> formats = new ArrayList<>(taggedFormats);
+        formats.sort(Comparator.comparingInt((String format) -> FORMAT_ARGUMENT.matcher(format).replaceAll("").length()).reversed());
+        return formats;
+    }
+
+    private static Pattern untaggedPattern(String taggedFormat) {
+        StringBuilder regex = new StringBuilder();
+        Matcher arguments = FORMAT_ARGUMENT.matcher(taggedFormat);
+        int end = 0;
+        while (arguments.find()) {
+            regex.append(Pattern.quote(taggedFormat.substring(end, arguments.start()))).append("([^:]+)");
+            end = arguments.end();
+        }
+        regex.append(Pattern.quote(taggedFormat.substring(end)));
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Runs the migration on the calling thread.
+     */
+    public void migrate() {
+        String sources = EnvUtils.stringValue("REDIS_MIGRATION_SOURCES", null);
+        if (!HashTags.isSharded() || sources == null) {
+            phase = "failed";
+            error = "A shard migration needs REDIS_SHARDS and REDIS_MIGRATION_SOURCES";
+            throw new IllegalStateException(error);
+        }
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A shard migration is already running");
+        }
+        int batchSize = EnvUtils.intValue("REBUILD_BATCH_SIZE", TimelineRebuildService.DEFAULT_BATCH_SIZE);
+        keysListed.set(0);
+        keysCopied.set(0);
+        keysSkipped.set(0);
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        error = null;
+        try {
+            List<Jedis> servers = new ArrayList<>();
+            try {
+                for (String source : sources.split(",")) {
+                    servers.add(connect(source));
+                }
+                Set<String> communityRuns = new HashSet<>();
+                for (Jedis server : servers) {
+                    communityRuns.addAll(server.smembers(RedisKeyNames.COMMUNITY_RUNS));
+                }
+                List<String> taggedFormats = taggedFormatsBySpecificity(HashTags.taggedFormats());
+                for (Jedis server : servers) {
+                    migrateServer(server, taggedFormats, communityRuns, batchSize);
+                }
+            } finally {
+                for (Jedis server : servers) {
+                    server.disconnect();
+                }
+            }
+            phase = "completed";
+            logger.info("Copied {} of {} keys onto the shards, {} already there, in {} ms", keysCopied.get(), keysListed.get(), keysSkipped.get(), System.currentTimeMillis() - startedAt);
+        } catch (RuntimeException e) {
+            phase = "failed";
+            error = e.getMessage();
+            logger.error("Shard migration failed, it can be run again", e);
+            throw e;
+        } finally {
+            finishedAt = System.currentTimeMillis();
+            running.set(false);
+        }
+    }
+
+    private Jedis connect(String source) {
+        String[] hostAndPort = source.trim().split(":");
+        int port = hostAndPort.length > 1 ? Integer.valueOf(hostAndPort[1]) : 6379;
+        Jedis jedis = new Jedis(hostAndPort[0], port, EnvUtils.intValue("REDIS_TIMEOUT_MILLIS", 2000));
+        String password = System.getenv("REDIS_DB_PASSWORD");
+        if (password != null) {
+            jedis.auth(password);
+        }
+        return jedis;
+    }
+
+    private void migrateServer(Jedis server, List<String> taggedFormats, Set<String> communityRuns, int batchSize) {
+        String source = address(server);
+        phase = "listing " + source;
+        List<String> keys = new ArrayList<>(server.keys("*"));
+        keysListed.addAndGet(keys.size());
+        logger.info("Copying {} keys of {} onto the shards in batches of {}", keys.size(), source, batchSize);
+        phase = "copying " + source;
+        for (int start = 0; start < keys.size(); start += batchSize) {
+            copy(server, source, keys.subList(start, Math.min(start + batchSize, keys.size())), taggedFormats, communityRuns);
+        }
+    }
+
+    private void copy(Jedis server, final String source, final List<String> keys, final List<String> taggedFormats, final Set<String> communityRuns) {
+        Pipeline pipeline = server.pipelined();
+        final List<Response<byte[]>> values = new ArrayList<>();
+        final List<Response<Long>> ttls = new ArrayList<>();
+        for (String key : keys) {
+            values.add(pipeline.dump(key));
+            ttls.add(pipeline.pttl(key));
+        }
+        pipeline.sync();
+        jedisExecution.executeOnShards(new JedisShardedOperation<Void>() {
+            @Override
+            public Void perform(JedisShards shards) {
+                List<Response<String>> restored = new ArrayList<>();
+                for (int i = 0; i < keys.size(); i++) {
+                    byte[] value = values.get(i).get();
+                    if (value == null) {
+                        continue;
+                    }
+                    String shardedName = shardedName(keys.get(i), taggedFormats, communityRuns);
+                    if (source.equals(address(shards.shard(shardedName))) && shardedName.equals(keys.get(i))) {
+                        keysSkipped.incrementAndGet();
+                        continue;
+                    }
+                    // RESTORE takes the time to live in int milliseconds, so the longest ones expire after 24 days
+                    long ttl = Math.min(ttls.get(i).get(), Integer.MAX_VALUE);
+                    restored.add(shards.pipeline(shardedName).restore(shardedName, ttl > 0 ? (int) ttl : 0, value));
+                }
+                shards.sync();
+                for (Response<String> response : restored) {
+                    try {
+                        response.get();
+                        keysCopied.incrementAndGet();
+                    } catch (JedisDataException e) {
+                        keysSkipped.incrementAndGet();
+                    }
+                }
+                return null;
+            }
+        });
+    }
+
+    private static String address(Jedis jedis) {
+        return jedis.getClient().getHost() + ":" + jedis.getClient().getPort();
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", running.get());
+        status.put("phase", phase);
+        status.put("keysListed", keysListed.get());
+        status.put("keysCopied", keysCopied.get());
+        status.put("keysSkipped", keysSkipped.get());
+        status.put("startedAt", startedAt);
+        status.put("finishedAt", finishedAt);
+        status.put("error", error);
+        return status;
+    }
+}
@@ -0,0 +1,29 @@
+package org.miles2run.core.rebuild;
+
+import javax.batch.api.AbstractBatchlet;
+import javax.batch.api.BatchProperty;
+import javax.enterprise.context.Dependent;
+import javax.inject.Inject;
+import javax.inject.Named;
+
+/**
+ * Runs {@link TimelineRebuildService} as the single step of the timeline-rebuild batch job.
+ */
+@Named("timelineRebuildBatchlet")
+@Dependent
+public class TimelineRebuildBatchlet extends AbstractBatchlet {
+
+    public static final String JOB_NAME = "timeline-rebuild";
+
+    @Inject
+    private TimelineRebuildService timelineRebuildService;
+    @Inject
+    @BatchProperty
+    private String resume;
+
+    @Override
+    public String process() throws Exception {
+        timelineRebuildService.rebuild(Boolean.parseBoolean(resume));
+        return "COMPLETED";
+    }
+}
@@ -0,0 +1,284 @@
+package org.miles2run.core.rebuild;
+
+import org.miles2run.core.fanout.FollowerFanoutService;
+import org.miles2run.core.repositories.jpa.ActivityRepository;
+import org.miles2run.core.repositories.mongo.UserProfileRepository;
+import org.miles2run.core.repositories.redis.JedisExecution;
+import org.miles2run.core.repositories.redis.JedisOperation;
+import org.miles2run.core.repositories.redis.RedisKeyNames;
+import org.miles2run.core.repositories.redis.TimelineRepository;
+import org.miles2run.core.utils.EnvUtils;
+import org.miles2run.domain.documents.UserProfile;
+import org.miles2run.domain.entities.Activity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Rebuilds the activity hashes and timelines in Redis from the activity table and the follower graph in MongoDB.
+ * <p>
+ * Activities are split into id ranges, one per worker, and each range is streamed with keyset pagination and written
+ * in pipelined batches. Once every profile timeline is restored, home timelines are rebuilt from the profile timelines
+ * of the users each user follows, on the server with ZUNIONSTORE unless Redis is sharded. The id ranges, the last
+ * activity id written in every range and the last user whose home timeline was rebuilt are checkpointed in
+ * {@link RedisKeyNames#REBUILD_CHECKPOINT}, so an interrupted rebuild resumes where it stopped, whatever the number of
+ * workers it is resumed with. Home timelines are left out when they expire, since they are rebuilt
+ * when their owners read them.
+ */
+@ApplicationScoped
+public class TimelineRebuildService {
+
+    static final int DEFAULT_WORKERS = 4;
+    static final int DEFAULT_BATCH_SIZE = 1000;
+    static final String MAX_ID_CHECKPOINT = "max_id";
+    static final String RANGES_CHECKPOINT = "ranges";
+    static final String HOME_TIMELINES_CHECKPOINT = "home_timelines";
+
+    private final Logger logger = LoggerFactory.getLogger(TimelineRebuildService.class);
+
+    @Inject
+    ActivityRepository activityRepository;
+    @Inject
+    UserProfileRepository userProfileRepository;
+    @Inject
+    TimelineRepository timelineRepository;
+    @Inject
+    FollowerFanoutService followerFanoutService;
+    @Inject
+    JedisExecution jedisExecution;
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final AtomicLong activitiesRestored = new AtomicLong();
+    private final AtomicLong homeTimelinesRestored = new AtomicLong();
+    private volatile String phase = "idle";
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+
+    /**
+     * Splits the ids up to maxId in contiguous ranges, each given as an exclusive lower and an inclusive upper bound.
+     */
+    static List<long[]> idRanges(long maxId, int count) {
+        List<long[]> ranges = new ArrayList<>();
+        long rangeSize = Math.max(1, (maxId + count - 1) / count);
+        for (long lower = 0; lower < maxId; lower += rangeSize) {
+            ranges.add(new long[]{lower, Math.min(lower + rangeSize, maxId)});
+        }
+        return ranges;
+    }
+
+    /**
+     * Runs the rebuild on the calling thread, with the writes spread over REBUILD_WORKERS worker threads.
+     *
+     * @param resume continue from the last checkpoint instead of starting over.
+     */
+    public void rebuild(boolean resume) {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("A timeline rebuild is already running");
+        }
+        int workers = EnvUtils.intValue("REBUILD_WORKERS", DEFAULT_WORKERS);
+        int batchSize = EnvUtils.intValue("REBUILD_BATCH_SIZE", DEFAULT_BATCH_SIZE);
+        ThreadFactory factory = threadFactory == null ? Executors.defaultThreadFactory() : threadFactory;
+        ExecutorService executor = Executors.newFixedThreadPool(workers, factory);
+        activitiesRestored.set(0);
+        homeTimelinesRestored.set(0);
+        startedAt = System.currentTimeMillis();
+        finishedAt = 0;
+        error = null;
+        try {
+            if (!resume) {
+                clearCheckpoints();
+            }
+            Map<String, String> checkpoints = checkpoints();
+            logger.info("Rebuilding timelines with {} workers and batch size {} from checkpoints {}", workers, batchSize, checkpoints);
+            phase = "activities";
+            restoreActivities(executor, workers, batchSize, checkpoints);
+            if (followerFanoutService.isLazyHomeTimelines()) {
+                logger.info("Home timelines expire and will be rebuilt when their owners read them");
+            } else {
+                phase = "home_timelines";
+                restoreHomeTimelines(executor, workers, batchSize, checkpoints.get(HOME_TIMELINES_CHECKPOINT));
+            }
+            clearCheckpoints();
+            phase = "completed";
+            logger.info("Rebuilt {} activities and {} home timelines in {} ms", activitiesRestored.get(), homeTimelinesRestored.get(), System.currentTimeMillis() - startedAt);
+        } catch (RuntimeException e) {
+            phase = "failed";
+            error = e.getMessage();
+            logger.error("Timeline rebuild failed, it can be resumed from the last checkpoint", e);
+            throw e;
+        } finally {
+            finishedAt = System.currentTimeMillis();
+            executor.shutdownNow();
+            running.set(false);
+        }
+    }
+
+    private void restoreActivities(ExecutorService executor, int workers, int batchSize, Map<String, String> checkpoints) {
+        long maxId = checkpoints.containsKey(MAX_ID_CHECKPOINT) ? Long.valueOf(checkpoints.get(MAX_ID_CHECKPOINT)) : activityRepository.maxActivityId();
+        int ranges = checkpoints.containsKey(RANGES_CHECKPOINT) ? Integer.valueOf(checkpoints.get(RANGES_CHECKPOINT)) : workers;
+        checkpoint(MAX_ID_CHECKPOINT, String.valueOf(maxId));
+        checkpoint(RANGES_CHECKPOINT, String.valueOf(ranges));
+        List<Future<?>> futures = new ArrayList<>();
+        for (long[] range : idRanges(maxId, ranges)) {
+            String field = String.format("activities:%d-%d", range[0], range[1]);
+            long afterId = checkpoints.containsKey(field) ? Long.valueOf(checkpoints.get(field)) : range[0];
+            futures.add(executor.submit(() -> restoreActivityRange(field, afterId, range[1], batchSize)));
+        }
+        awaitAll(futures);
+    }
+
+    private void restoreActivityRange(String field, long afterId, long toId, int batchSize) {
+        long lastId = afterId;
+        while (lastId < toId) {
+            List<Activity> activities = activityRepository.findAllInIdRange(lastId, toId, batchSize);
+            if (activities.isEmpty()) {
+                break;
+            }
+            timelineRepository.restoreActivities(activities);
+            lastId = activities.get(activities.size() - 1).getId();
+            checkpoint(field, String.valueOf(lastId));
+            activitiesRestored.addAndGet(activities.size());
+            if (activities.size() < batchSize) {
+                break;
+            }
+        }
+        logger.info("Restored activities {} up to id {}", field, lastId);
+    }
+
+    private void restoreHomeTimelines(ExecutorService executor, int workers, int batchSize, String afterUsername) {
+        Set<String> heavyAccounts = restoreHeavyAccounts(batchSize);
+        String lastUsername = afterUsername;
+        List<Future<?>> window = new ArrayList<>();
+        List<UserProfile> userProfiles;
+        do {
+            userProfiles = userProfileRepository.findAll(lastUsername, batchSize);
+            if (userProfiles.isEmpty()) {
+                break;
+            }
+            Map<String, List<String>> followingByUser = new HashMap<>();
+            for (UserProfile userProfile : userProfiles) {
+                followingByUser.put(userProfile.getUsername(), userProfile.getFollowing().stream().filter(followed -> !heavyAccounts.contains(followed)).collect(toList()));
+            }
+            window.add(executor.submit(() -> {
+                timelineRepository.restoreHomeTimelines(followingByUser);
+                homeTimelinesRestored.addAndGet(followingByUser.size());
+            }));
+            lastUsername = userProfiles.get(userProfiles.size() - 1).getUsername();
+            if (window.size() == workers) {
+                awaitAll(window);
+                window.clear();
+                checkpoint(HOME_TIMELINES_CHECKPOINT, lastUsername);
+            }
+        } while (userProfiles.size() == batchSize);
+        awaitAll(window);
+    }
+
+    /**
+     * Recomputes the accounts that are pulled into home timelines instead of pushed, so that home timelines are not
+     * rebuilt with their activities.
+     */
+    private Set<String> restoreHeavyAccounts(int batchSize) {
+        final Set<String> heavyAccounts = new HashSet<>();
+        if (!followerFanoutService.isHybridEnabled()) {
+            return heavyAccounts;
+        }
+        String lastUsername = null;
+        List<UserProfile> userProfiles;
+        do {
+            userProfiles = userProfileRepository.findAll(lastUsername, batchSize);
+            for (UserProfile userProfile : userProfiles) {
+                if (followerFanoutService.isHeavyAccount(userProfile.getFollowers().size())) {
+                    heavyAccounts.add(userProfile.getUsername());
+                }
+                lastUsername = userProfile.getUsername();
+            }
+        } while (userProfiles.size() == batchSize);
+        jedisExecution.execute(new JedisOperation<Void>() {
+            @Override
+            public Void perform(Jedis jedis) {
+                Pipeline pipeline = jedis.pipelined();
+                pipeline.del(RedisKeyNames.HEAVY_ACCOUNTS_SET);
+                if (!heavyAccounts.isEmpty()) {
+                    pipeline.sadd(RedisKeyNames.HEAVY_ACCOUNTS_SET, heavyAccounts.toArray(new String[heavyAccounts.size()]));
+                }
+                pipeline.sync();
+                return null;
+            }
+        });
+        logger.info("{} heavy accounts will be pulled into home timelines", heavyAccounts.size());
+        return heavyAccounts;
+    }
+
+    private void awaitAll(List<Future<?>> futures) {
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Timeline rebuild was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Timeline rebuild worker failed", e.getCause());
+        }
+    }
+
+    private Map<String, String> checkpoints() {
+        Map<String, String> checkpoints = jedisExecution.execute(new JedisOperation<Map<String, String>>() {
+            @Override
+            public Map<String, String> perform(Jedis jedis) {
+                return jedis.hgetAll(RedisKeyNames.REBUILD_CHECKPOINT);
+            }
+        });
+        return checkpoints == null ? Collections.<String, String>emptyMap() : checkpoints;
+    }
+
+    private void checkpoint(final String field, final String value) {
+        jedisExecution.execute(new JedisOperation<Long>() {
+            @Override
+            public Long perform(Jedis jedis) {
+                return jedis.hset(RedisKeyNames.REBUILD_CHECKPOINT, field, value);
+            }
+        });
+    }
+
+    private void clearCheckpoints() {
+        jedisExecution.execute(new JedisOperation<Long>() {
+            @Override
+            public Long perform(Jedis jedis) {
+                return jedis.del(RedisKeyNames.REBUILD_CHECKPOINT);
+            }
+        });
+    }
+
+    public boolean isRunning() {
+        return running.get();
+    }
+
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("running", running.get());
+        status.put("phase", phase);
+        status.put("activitiesRestored", activitiesRestored.get());
+        status.put("homeTimelinesRestored", homeTimelinesRestored.get());
+        status.put("startedAt", startedAt);
+        status.put("finishedAt", finishedAt);
+        status.put("error", error);
+        status.put("checkpoints", checkpoints());
+        return status;
+    }
+}
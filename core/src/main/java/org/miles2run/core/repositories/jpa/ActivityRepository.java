@@ -2,6 +2,7 @@ package org.miles2run.core.repositories.jpa;
 
 import org.miles2run.core.repositories.jpa.vo.ActivityCountAndDistanceTuple;
 import org.miles2run.core.repositories.jpa.vo.Progress;
+import org.miles2run.core.repositories.jpa.vo.RunnerTotals;
 import org.miles2run.domain.entities.Activity;
 import org.miles2run.domain.entities.Goal;
 import org.miles2run.domain.entities.Profile;
@@ -129,4 +130,36 @@ public class ActivityRepository {
                 .getResultList();
         return Collections.unmodifiableList(activities);
     }
+
+    /**
+     * Keyset paged read of activities ordered by id, with their author and goal fetched in the same query.
+     *
+     * @param afterId activities with an id greater than this id are returned.
+     * @param toId    activities with an id up to and including this id are returned.
+     * @param max     maximum number of activities returned.
+     */
+    public List<Activity> findAllInIdRange(final Long afterId, final Long toId, final int max) {
+        final String query = "SELECT a from Activity a JOIN FETCH a.postedBy JOIN FETCH a.goal where a.id > :afterId and a.id <= :toId order by a.id asc";
+        List<Activity> activities = entityManager.createQuery(query, Activity.class)
+                .setParameter("afterId", afterId)
+                .setParameter("toId", toId)
+                .setMaxResults(max)
+                .getResultList();
+        return Collections.unmodifiableList(activities);
+    }
+
+    /**
+     * Distance and duration of the activities of every runner of a community run.
+     */
+    public List<RunnerTotals> communityRunTotalsByRunner(@NotNull final String slug) {
+        final String query = "SELECT new org.miles2run.core.repositories.jpa.vo.RunnerTotals(a.postedBy.username, SUM(a.distanceCovered), SUM(a.duration)) FROM Activity a, CommunityRunGoal g WHERE a.goal = g and g.communityRun.slug =:slug GROUP BY a.postedBy.username";
+        return entityManager.createQuery(query, RunnerTotals.class)
+                .setParameter("slug", slug)
+                .getResultList();
+    }
+
+    public long maxActivityId() {
+        Long maxId = entityManager.createQuery("SELECT MAX(a.id) FROM Activity a", Long.class).getSingleResult();
+        return maxId == null ? 0 : maxId;
+    }
 }
@@ -0,0 +1,25 @@
+package org.miles2run.core.repositories.jpa.vo;
+
+public class RunnerTotals {
+    private final String username;
+    private final Double distanceCovered;
+    private final Long duration;
+
+    public RunnerTotals(String username, Double distanceCovered, Long duration) {
+        this.username = username;
+        this.distanceCovered = distanceCovered;
+        this.duration = duration;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public double getDistanceCovered() {
+        return distanceCovered == null ? 0 : distanceCovered;
+    }
+
+    public long getDuration() {
+        return duration == null ? 0 : duration;
+    }
+}
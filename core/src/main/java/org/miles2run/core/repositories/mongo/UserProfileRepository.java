@@ -44,8 +44,29 @@ public class UserProfileRepository {
         if (dbObject == null) {
             return null;
         }
+        return toUserProfile((BasicDBObject) dbObject);
+    }
+
+    /**
+     * Keyset paged read of all user profiles ordered by username.
+     *
+     * @param afterUsername profiles with a username after this one are returned, null to start from the first profile.
+     * @param limit         maximum number of profiles returned.
+     */
+    public List<UserProfile> findAll(String afterUsername, int limit) {
+        BasicDBObject findQuery = afterUsername == null ? new BasicDBObject() : new BasicDBObject("username", new BasicDBObject("$gt", afterUsername));
+        BasicDBObject fields = new BasicDBObject("username", 1).append("following", 1).append("followers", 1);
+        List<UserProfile> userProfiles = new ArrayList<>();
+        try (DBCursor cursor = profiles.find(findQuery, fields).sort(new BasicDBObject("username", 1)).limit(limit)) {
+            for (DBObject dbObject : cursor) {
+                userProfiles.add(toUserProfile((BasicDBObject) dbObject));
+            }
+        }
+        return userProfiles;
+    }
+
+    private UserProfile toUserProfile(BasicDBObject basicDBObject) {
         UserProfile userProfile = new UserProfile();
-        BasicDBObject basicDBObject = (BasicDBObject) dbObject;
         String profileUsername = basicDBObject.getString("username");
         BasicDBList followingDbList = (BasicDBList) basicDBObject.get("following");
         BasicDBList followersDbList = (BasicDBList) basicDBObject.get("followers");
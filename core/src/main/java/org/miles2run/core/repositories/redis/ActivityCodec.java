@@ -0,0 +1,125 @@
+package org.miles2run.core.repositories.redis;
+
+import org.miles2run.core.repositories.redis.vo.CompactActivity;
+import org.miles2run.domain.entities.GoalUnit;
+import redis.clients.util.SafeEncoder;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact binary encoding of an activity, stored as the single {@link #COMPACT_FIELD} field of the activity hash.
+ * <p>
+ * Version 1 layout: version byte, user id and goal id as varints, posted and createdAt millis as fixed 8 bytes,
+ * distance in meters as a fixed 8 byte double, goal unit ordinal byte, duration as a varint and the status as a
+ * varint length followed by its UTF-8 bytes.
+ */
+public abstract class ActivityCodec {
+
+    public static final byte VERSION_1 = 1;
+    public static final String COMPACT_FIELD = "b";
+    public static final byte[] COMPACT_FIELD_BYTES = SafeEncoder.encode(COMPACT_FIELD);
+
+    public static byte[] encode(CompactActivity activity) {
+        byte[] status = activity.getStatus().getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 10 + 10 + 8 + 8 + 8 + 1 + 10 + 5 + status.length);
+        buffer.put(VERSION_1);
+        putVarLong(buffer, activity.getUserId());
+        putVarLong(buffer, activity.getGoalId());
+        buffer.putLong(activity.getPosted());
+        buffer.putLong(activity.getCreatedAt());
+        buffer.putDouble(activity.getDistanceCovered());
+        buffer.put((byte) activity.getGoalUnit().ordinal());
+        putVarLong(buffer, activity.getDuration());
+        putVarLong(buffer, status.length);
+        buffer.put(status);
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * @return the decoded activity, or null when the value has an unknown version or is malformed.
+     */
+    public static CompactActivity decode(byte[] value) {
+        if (value == null || value.length == 0 || value[0] != VERSION_1) {
+            return null;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(value, 1, value.length - 1);
+            long userId = getVarLong(buffer);
+            long goalId = getVarLong(buffer);
+            long posted = buffer.getLong();
+            long createdAt = buffer.getLong();
+            double distanceCovered = buffer.getDouble();
+            GoalUnit goalUnit = GoalUnit.values()[buffer.get()];
+            long duration = getVarLong(buffer);
+            byte[] status = new byte[(int) getVarLong(buffer)];
+            buffer.get(status);
+            return new CompactActivity(userId, goalId, posted, createdAt, distanceCovered, goalUnit, duration, new String(status, StandardCharsets.UTF_8));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Converts an activity hash in the original format, one text field per property, to the compact encoding.
+     */
+    public static CompactActivity fromHash(Map<String, String> activity) {
+        GoalUnit goalUnit = GoalUnit.fromStringToGoalUnit(activity.get("goalUnit"));
+        long posted = Long.valueOf(activity.get("posted"));
+        return new CompactActivity(Long.valueOf(activity.get("userId")), Long.valueOf(activity.get("goalId")), posted,
+                activity.containsKey("createdAt") ? Long.valueOf(activity.get("createdAt")) : 0,
+                Double.valueOf(activity.get("distanceCovered")), goalUnit, Long.valueOf(activity.get("duration")), activity.get("status"));
+    }
+
+    /**
+     * Converts a compact activity to the fields of the original format it carries. The profile fields are kept in the
+     * user hash instead.
+     */
+    public static Map<String, String> toHash(CompactActivity activity) {
+        Map<String, String> hash = new HashMap<>();
+        hash.put("userId", String.valueOf(activity.getUserId()));
+        hash.put("goalId", String.valueOf(activity.getGoalId()));
+        hash.put("posted", String.valueOf(activity.getPosted()));
+        if (activity.getCreatedAt() != 0) {
+            hash.put("createdAt", String.valueOf(activity.getCreatedAt()));
+        }
+        hash.put("distanceCovered", String.valueOf(activity.getDistanceCovered()));
+        hash.put("goalUnit", activity.getGoalUnit().getUnit());
+        hash.put("duration", String.valueOf(activity.getDuration()));
+        hash.put("status", activity.getStatus());
+        return hash;
+    }
+
+    /**
+     * Converts a binary activity hash in the original format to text fields.
+     */
+    public static Map<String, String> toStringHash(Map<byte[], byte[]> hash) {
+        Map<String, String> activity = new HashMap<>();
+        hash.forEach((field, value) -> activity.put(SafeEncoder.encode(field), SafeEncoder.encode(value)));
+        return activity;
+    }
+
+    static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+}
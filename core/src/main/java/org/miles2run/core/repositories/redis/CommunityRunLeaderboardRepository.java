@@ -0,0 +1,236 @@
+package org.miles2run.core.repositories.redis;
+
+import org.miles2run.core.repositories.jpa.vo.RunnerTotals;
+import org.miles2run.core.repositories.redis.vo.Leaderboard;
+import org.miles2run.core.repositories.redis.vo.LeaderboardEntry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.*;
+import java.util.function.Supplier;
+
+/**
+ * Runners of every community run ranked by distance and by duration, in one sorted set per run and metric,
+ * {@link RedisKeyNames#COMMUNITY_RUN_LEADERBOARD_S}, scored by the totals of the runner's activities.
+ * <p>
+ * Scores are incremented when activities are posted, updated or deleted. The leaderboards of a run are built from its
+ * activities the first time they are read, which sets {@link RedisKeyNames#COMMUNITY_RUN_LEADERBOARD_BUILT}; until then
+ * increments skip them and count themselves in {@link RedisKeyNames#COMMUNITY_RUN_LEADERBOARD_CHANGES} instead. A build
+ * holds {@link RedisKeyNames#COMMUNITY_RUN_LEADERBOARD_LOCK} so that one reader builds at a time, and watches the change
+ * counter from before the totals are read, so that an increment skipped while it runs starts it over.
+ * <p>
+ * An activity is in the database before its increment runs, so a build reading the totals in between would count it
+ * twice. Writers mark the activity in {@link RedisKeyNames#COMMUNITY_RUN_LEADERBOARD_PENDING} before writing it to the
+ * database and the increment clears the mark; builds do not run while an activity is marked. The mark expires after
+ * {@link #PENDING_SECONDS} when the increment never runs, and an activity written in that window can be counted twice.
+ * Reads take one round trip and O(log N) in the number of runners.
+ */
+@ApplicationScoped
+public class CommunityRunLeaderboardRepository {
+
+    private static final RedisScript UPDATE_LEADERBOARD_SCRIPT = RedisScript.fromResource("lua/update_leaderboard.lua");
+    private static final RedisScript LEADERBOARD_AROUND_SCRIPT = RedisScript.fromResource("lua/leaderboard_around.lua");
+    static final int BUILD_ATTEMPTS = 3;
+    static final int BUILD_LOCK_SECONDS = 60;
+    static final int PENDING_SECONDS = 60;
+
+    private final Logger logger = LoggerFactory.getLogger(CommunityRunLeaderboardRepository.class);
+
+    @Inject
+    JedisExecution jedisExecution;
+
+    public enum Metric {
+        DISTANCE, DURATION;
+
+        public String getName() {
+            return name().toLowerCase();
+        }
+
+        /**
+         * @return the metric with the name, or null when there is none.
+         */
+        public static Metric fromName(String name) {
+            for (Metric metric : values()) {
+                if (metric.getName().equalsIgnoreCase(name)) {
+                    return metric;
+                }
+            }
+            return null;
+        }
+    }
+
+    static String key(String slug, Metric metric) {
+        return String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_S, slug, metric.getName());
+    }
+
+    /**
+     * Ranks start at 1 for the first entry of the slice.
+     */
+    static List<LeaderboardEntry> toEntries(long firstRank, Collection<Tuple> tuples) {
+        List<LeaderboardEntry> entries = new ArrayList<>();
+        long rank = firstRank;
+        for (Tuple tuple : tuples) {
+            entries.add(new LeaderboardEntry(rank++, tuple.getElement(), tuple.getScore()));
+        }
+        return entries;
+    }
+
+    /**
+     * Reads the reply of the around script, runner and score pairs following the number of runners and the zero based
+     * rank of the first pair.
+     */
+    static Leaderboard toLeaderboard(Metric metric, List<?> reply) {
+        long runners = (Long) reply.get(0);
+        long first = (Long) reply.get(1);
+        List<LeaderboardEntry> entries = new ArrayList<>();
+        for (int i = 2; i + 1 < reply.size(); i += 2) {
+            entries.add(new LeaderboardEntry(first + 1 + (i - 2) / 2, reply.get(i).toString(), Double.valueOf(reply.get(i + 1).toString())));
+        }
+        return new Leaderboard(metric.getName(), runners, entries);
+    }
+
+    /**
+     * Marks an activity of the run as being written, before it is written to the database. Builds wait until
+     * {@link #updateRunner(String, String, double, long)} has counted it.
+     */
+    public void activityChanging(final String slug) {
+        final String pending = String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_PENDING, slug);
+        final String changes = String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_CHANGES, slug);
+        jedisExecution.execute(pending, new JedisOperation<List<Object>>() {
+            @Override
+            public List<Object> perform(Jedis jedis) {
+                Transaction transaction = jedis.multi();
+                transaction.incr(pending);
+                transaction.expire(pending, PENDING_SECONDS);
+                transaction.incr(changes);
+                return transaction.exec();
+            }
+        });
+    }
+
+    /**
+     * Adds the distance and duration deltas of an activity to the runner's scores and clears the mark of the activity.
+     * Deleted activities are negative.
+     */
+    public void updateRunner(final String slug, final String username, double distanceDelta, long durationDelta) {
+        final List<String> keys = Arrays.asList(String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_BUILT, slug), key(slug, Metric.DISTANCE), key(slug, Metric.DURATION), String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_CHANGES, slug), String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_PENDING, slug));
+        final List<String> args = Arrays.asList(username, String.valueOf(distanceDelta), String.valueOf(durationDelta));
+        jedisExecution.executeBatched(keys.get(0), new JedisPipelineOperation<String>() {
+            @Override
+            public Response<String> perform(Pipeline pipeline) {
+                return UPDATE_LEADERBOARD_SCRIPT.queue(pipeline, keys, args);
+            }
+        });
+    }
+
+    /**
+     * Reads runners ranked from an offset, best first.
+     *
+     * @return the slice, or null when the leaderboards of the run were never built.
+     */
+    public Leaderboard top(final String slug, final Metric metric, final long offset, final int count) {
+        return jedisExecution.execute(key(slug, metric), new JedisOperation<Leaderboard>() {
+            @Override
+            public Leaderboard perform(Jedis jedis) {
+                Pipeline pipeline = jedis.pipelined();
+                Response<Boolean> built = pipeline.exists(String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_BUILT, slug));
+                Response<Long> runners = pipeline.zcard(key(slug, metric));
+                Response<Set<Tuple>> tuples = pipeline.zrevrangeWithScores(key(slug, metric), offset, offset + count - 1);
+                pipeline.sync();
+                if (!built.get()) {
+                    return null;
+                }
+                return new Leaderboard(metric.getName(), runners.get(), toEntries(offset + 1, tuples.get()));
+            }
+        });
+    }
+
+    /**
+     * Reads a runner's rank with the neighbours ranked just above and below. The slice is empty when the runner has no
+     * activities in the run.
+     *
+     * @return the slice, or null when the leaderboards of the run were never built.
+     */
+    public Leaderboard around(final String slug, final Metric metric, final String username, int neighbours) {
+        final List<String> keys = Arrays.asList(String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_BUILT, slug), key(slug, metric));
+        final List<String> args = Arrays.asList(username, String.valueOf(neighbours));
+        List<?> reply = jedisExecution.execute(keys.get(0), new JedisOperation<List<?>>() {
+            @Override
+            public List<?> perform(Jedis jedis) {
+                return (List<?>) LEADERBOARD_AROUND_SCRIPT.execute(jedis, keys, args);
+            }
+        });
+        return reply == null ? null : toLeaderboard(metric, reply);
+    }
+
+    /**
+     * Replaces the leaderboards of a run with the totals of its runners and marks them built, unless another build of
+     * the run holds the lock or an activity of the run is being written. The totals are read after the change counter is
+     * watched, and read again when an activity was posted, updated or deleted meanwhile.
+     *
+     * @param totals reads the totals of the runners of the run.
+     * @return true when the leaderboards were built, false when another build is running or the activities of the run
+     * are being written or kept changing.
+     */
+    public boolean build(final String slug, final Supplier<List<RunnerTotals>> totals) {
+        final String lock = String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_LOCK, slug);
+        final String changes = String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_CHANGES, slug);
+        final String built = String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_BUILT, slug);
+        final String pending = String.format(RedisKeyNames.COMMUNITY_RUN_LEADERBOARD_PENDING, slug);
+        return jedisExecution.execute(lock, new JedisOperation<Boolean>() {
+            @Override
+            public Boolean perform(Jedis jedis) {
+                String owner = UUID.randomUUID().toString();
+                if (jedis.set(lock, owner, "NX", "EX", BUILD_LOCK_SECONDS) == null) {
+                    return false;
+                }
+                try {
+                    for (int attempt = 1; attempt <= BUILD_ATTEMPTS; attempt++) {
+                        jedis.watch(changes, built, pending);
+                        if (jedis.exists(built)) {
+                            jedis.unwatch();
+                            return true;
+                        }
+                        String pendingActivities = jedis.get(pending);
+                        if (pendingActivities != null && Long.valueOf(pendingActivities) > 0) {
+                            jedis.unwatch();
+                            logger.info("Leaderboards of community run {} not built, {} of its activities are being written", slug, pendingActivities);
+                            return false;
+                        }
+                        List<RunnerTotals> runners = totals.get();
+                        Transaction transaction = jedis.multi();
+                        transaction.del(key(slug, Metric.DISTANCE), key(slug, Metric.DURATION));
+                        for (RunnerTotals runner : runners) {
+                            if (runner.getDistanceCovered() > 0) {
+                                transaction.zadd(key(slug, Metric.DISTANCE), runner.getDistanceCovered(), runner.getUsername());
+                            }
+                            if (runner.getDuration() > 0) {
+                                transaction.zadd(key(slug, Metric.DURATION), runner.getDuration(), runner.getUsername());
+                            }
+                        }
+                        transaction.set(built, "1");
+                        transaction.del(changes);
+                        if (transaction.exec() != null) {
+                            logger.info("Built leaderboards of community run {} with {} runners", slug, runners.size());
+                            return true;
+                        }
+                        logger.info("Activities of community run {} changed while its leaderboards were built, building them again", slug);
+                    }
+                    logger.warn("Leaderboards of community run {} not built, its activities kept changing while they were built", slug);
+                    return false;
+                } finally {
+                    if (owner.equals(jedis.get(lock))) {
+                        jedis.del(lock);
+                    }
+                }
+            }
+        });
+    }
+}
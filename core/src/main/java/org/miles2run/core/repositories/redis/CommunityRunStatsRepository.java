@@ -11,9 +11,17 @@ import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.Response;
 
+import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
-
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Statistics of community runs. Runners, cities and countries of a run are only ever counted, so when
+ * HYPERLOGLOG_COUNTS is enabled they are kept in {@link HyperLogLogs} rather than sets. The runners set of a run is
+ * kept either way, it tells whether a user is part of the run.
+ */
 @ApplicationScoped
 public class CommunityRunStatsRepository {
 
@@ -22,83 +30,115 @@ public class CommunityRunStatsRepository {
     @Inject
     JedisExecution jedisExecution;
 
+    boolean hyperLogLogCounts;
+
+    @PostConstruct
+    public void postConstruct() {
+        this.hyperLogLogCounts = HyperLogLogs.isEnabled();
+    }
+
     public Long addGoalToCommunityRun(final String slug, final Long goalId) {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+        final String goalsKey = String.format(RedisKeyNames.CR_GOALS_SET, slug);
+        return jedisExecution.execute(goalsKey, new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
-                return jedis.sadd(String.format(RedisKeyNames.CR_GOALS_SET, slug), String.valueOf(goalId));
+                return jedis.sadd(goalsKey, String.valueOf(goalId));
             }
         });
     }
 
     public void addRunnerToCommunityRun(final String slug, final Profile profile) {
-        jedisExecution.execute(new JedisOperation<Void>() {
+        final String username = profile.getUsername();
+        final String runnersKey = String.format(RedisKeyNames.CR_S_RUNNERS_SET, slug);
+        final String communityRunsKey = String.format(RedisKeyNames.PROFILE_S_COMMUNITY_RUNS_SET, username);
+        jedisExecution.executeOnShards(new JedisShardedOperation<Void>() {
             @Override
-            public Void perform(Jedis jedis) {
-                String username = profile.getUsername();
+            public Void perform(JedisShards shards) {
                 String country = profile.getCountry();
                 String city = profile.getCity();
-                Pipeline pipeline = jedis.pipelined();
-                pipeline.sadd(String.format("%s-all-runners", slug), username);
-                pipeline.sadd(String.format("%s-runners", slug), username);
-                pipeline.sadd(String.format("%s-cities", slug), city);
-                pipeline.sadd(String.format("%s-countries", slug), country);
-                pipeline.sadd(String.format("%s-community_runs", username), slug);
-                pipeline.sync();
+                Pipeline pipeline = shards.pipeline(runnersKey);
+                if (!hyperLogLogCounts) {
+                    pipeline.sadd(String.format(RedisKeyNames.CR_S_ALL_RUNNERS_SET, slug), username);
+                    pipeline.sadd(String.format(RedisKeyNames.CR_S_CITIES_SET, slug), city);
+                    pipeline.sadd(String.format(RedisKeyNames.CR_S_COUNTRIES_SET, slug), country);
+                }
+                pipeline.sadd(runnersKey, username);
+                shards.pipeline(communityRunsKey).sadd(communityRunsKey, slug);
+                shards.sync();
+                if (hyperLogLogCounts) {
+                    HyperLogLogs.add(shards.shard(runnersKey), hyperLogLogKeys(slug), Arrays.asList(username, city, country));
+                }
                 return null;
             }
         });
     }
 
+    /**
+     * Read from the master, as joining and leaving a community run depend on it.
+     */
     public boolean isUserAlreadyPartOfRun(final String slug, final String username) {
-        return jedisExecution.execute(new JedisOperation<Boolean>() {
+        final String runnersKey = String.format(RedisKeyNames.CR_S_RUNNERS_SET, slug);
+        return jedisExecution.execute(runnersKey, new JedisOperation<Boolean>() {
             @Override
             public Boolean perform(Jedis jedis) {
-                return jedis.sismember(String.format("%s-runners", slug), username);
+                return jedis.sismember(runnersKey, username);
             }
         });
     }
 
     public void updateCommunityRunStats(final String username, final CommunityRunGoal goal, final Activity activity) {
         final CommunityRun communityRun = goal.getCommunityRun();
-
-        jedisExecution.execute(new JedisOperation<Void>() {
+        final String slug = communityRun.getSlug();
+        final String activityCountKey = String.format(RedisKeyNames.CR_S_ACTIVITY_COUNT, slug);
+        jedisExecution.executeBatched(activityCountKey, new JedisPipelineOperation<Long>() {
             @Override
-            public Void perform(Jedis jedis) {
-                Pipeline pipeline = jedis.pipelined();
-                String slug = communityRun.getSlug();
-                pipeline.incrBy(String.format("%s-activity_count", slug), 1);
-                pipeline.incrByFloat(String.format("%s-total_distance_covered", slug), activity.getDistanceCovered());
-                pipeline.incrBy(String.format("%s-total_duration", slug), activity.getDuration());
-                pipeline.sync();
-                return null;
+            public Response<Long> perform(Pipeline pipeline) {
+                pipeline.incrBy(activityCountKey, 1);
+                pipeline.incrByFloat(String.format(RedisKeyNames.CR_S_TOTAL_DISTANCE_COVERED, slug), activity.getDistanceCovered());
+                return pipeline.incrBy(String.format(RedisKeyNames.CR_S_TOTAL_DURATION, slug), activity.getDuration());
             }
         });
     }
 
     public void updateCommunityRunDistanceAndDurationStats(final String slug, final double updatedDistanceCovered, final long updatedDuration) {
-        jedisExecution.execute(new JedisOperation<Void>() {
+        final String distanceKey = String.format(RedisKeyNames.CR_S_TOTAL_DISTANCE_COVERED, slug);
+        jedisExecution.executeBatched(distanceKey, new JedisPipelineOperation<Long>() {
             @Override
-            public Void perform(Jedis jedis) {
-                Pipeline pipeline = jedis.pipelined();
-                pipeline.incrByFloat(String.format("%s-total_distance_covered", slug), updatedDistanceCovered);
-                pipeline.incrBy(String.format("%s-total_duration", slug), updatedDuration);
-                pipeline.sync();
-                return null;
+            public Response<Long> perform(Pipeline pipeline) {
+                pipeline.incrByFloat(distanceKey, updatedDistanceCovered);
+                return pipeline.incrBy(String.format(RedisKeyNames.CR_S_TOTAL_DURATION, slug), updatedDuration);
             }
         });
     }
 
+    /**
+     * @return the HyperLogLogs counting the runners, cities and countries of a run, in that order.
+     */
+    public static List<String> hyperLogLogKeys(String slug) {
+        return Arrays.asList(String.format(RedisKeyNames.CR_S_ALL_RUNNERS_HLL, slug), String.format(RedisKeyNames.CR_S_CITIES_HLL, slug), String.format(RedisKeyNames.CR_S_COUNTRIES_HLL, slug));
+    }
+
     public CommunityRunAggregate getCurrentStatsForCommunityRun(final String slug) {
-        return jedisExecution.execute(new JedisOperation<CommunityRunAggregate>() {
+        final String distanceKey = String.format(RedisKeyNames.CR_S_TOTAL_DISTANCE_COVERED, slug);
+        final String durationKey = String.format(RedisKeyNames.CR_S_TOTAL_DURATION, slug);
+        if (hyperLogLogCounts) {
+            return jedisExecution.executeRead(distanceKey, new JedisOperation<CommunityRunAggregate>() {
+                @Override
+                public CommunityRunAggregate perform(Jedis jedis) {
+                    List<Object> counts = HyperLogLogs.readCounts(jedis, Arrays.asList(distanceKey, durationKey), hyperLogLogKeys(slug));
+                    return new CommunityRunAggregate(HyperLogLogs.longValue(counts.get(2)), HyperLogLogs.longValue(counts.get(4)), HyperLogLogs.longValue(counts.get(3)), HyperLogLogs.doubleValue(counts.get(0)), HyperLogLogs.longValue(counts.get(1)));
+                }
+            });
+        }
+        return jedisExecution.executeRead(distanceKey, new JedisOperation<CommunityRunAggregate>() {
             @Override
             public CommunityRunAggregate perform(Jedis jedis) {
                 Pipeline pipeline = jedis.pipelined();
-                Response<String> totalDistanceCoveredResponse = pipeline.get(String.format("%s-total_distance_covered", slug));
-                Response<String> totalDurationResponse = pipeline.get(String.format("%s-total_duration", slug));
-                Response<Long> countriesCountResponse = pipeline.scard(String.format("%s-countries", slug));
-                Response<Long> citiesCountResponse = pipeline.scard(String.format("%s-cities", slug));
-                Response<Long> runnersCountResponse = pipeline.scard(String.format("%s-all-runners", slug));
+                Response<String> totalDistanceCoveredResponse = pipeline.get(distanceKey);
+                Response<String> totalDurationResponse = pipeline.get(durationKey);
+                Response<Long> countriesCountResponse = pipeline.scard(String.format(RedisKeyNames.CR_S_COUNTRIES_SET, slug));
+                Response<Long> citiesCountResponse = pipeline.scard(String.format(RedisKeyNames.CR_S_CITIES_SET, slug));
+                Response<Long> runnersCountResponse = pipeline.scard(String.format(RedisKeyNames.CR_S_ALL_RUNNERS_SET, slug));
                 pipeline.sync();
                 Double totalDistance = totalDistanceCoveredResponse.get() == null ? Double.valueOf(0) : Double.valueOf(totalDistanceCoveredResponse.get());
                 Long totalDuration = totalDurationResponse.get() == null ? Long.valueOf(0L) : Long.valueOf(totalDurationResponse.get());
@@ -117,6 +157,9 @@ public class CommunityRunStatsRepository {
         });
     }
 
+    /**
+     * Read from the master, as joining and leaving a community run depend on it.
+     */
     public boolean communityRunExists(final String slug) {
         return jedisExecution.execute(new JedisOperation<Boolean>() {
             @Override
@@ -128,13 +171,14 @@ public class CommunityRunStatsRepository {
     }
 
     public void removeRunnerFromCommunityRun(final String slug, final String username) {
-        jedisExecution.execute(new JedisOperation<Void>() {
+        final String runnersKey = String.format(RedisKeyNames.CR_S_RUNNERS_SET, slug);
+        final String communityRunsKey = String.format(RedisKeyNames.PROFILE_S_COMMUNITY_RUNS_SET, username);
+        jedisExecution.executeOnShards(new JedisShardedOperation<Void>() {
             @Override
-            public Void perform(Jedis jedis) {
-                Pipeline pipeline = jedis.pipelined();
-                pipeline.srem(String.format("%s-runners", slug), username);
-                pipeline.srem(String.format("%s-community_runs", username), slug);
-                pipeline.sync();
+            public Void perform(JedisShards shards) {
+                shards.pipeline(runnersKey).srem(runnersKey, username);
+                shards.pipeline(communityRunsKey).srem(communityRunsKey, slug);
+                shards.sync();
                 return null;
             }
         });
@@ -1,21 +1,186 @@
 package org.miles2run.core.repositories.redis;
 
+import org.miles2run.core.utils.EnvUtils;
 import org.miles2run.domain.kv_aggregates.CounterAggregate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.enterprise.concurrent.ManagedThreadFactory;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
 
+/**
+ * Global counters shown on the home page.
+ * <p>
+ * Distance and activity seconds change with every activity posted, updated or deleted, which makes them the hottest
+ * keys in Redis. Their deltas are accumulated in memory and written behind by a flusher thread, in one pipeline every
+ * COUNTER_FLUSH_INTERVAL_MILLIS, as soon as COUNTER_MAX_PENDING_UPDATES updates are pending and at shutdown, so that
+ * posting an activity never waits on the flush. A crashed node loses the updates not flushed yet, which is at most one
+ * interval or the pending bound while Redis can be written; while it cannot, the deltas are kept, summed, until a
+ * flush succeeds, and a crash loses all of them. Setting the interval to 0 writes every update through.
+ * <p>
+ * The aggregate of all counters is read in one pipeline and kept as a snapshot for COUNTER_SNAPSHOT_MILLIS. Callers
+ * arriving while the snapshot is refreshed share the refresh in flight, or are served the previous snapshot.
+ * <p>
+ * Countries and cities are only ever counted; with HYPERLOGLOG_COUNTS enabled they are kept in {@link HyperLogLogs}.
+ */
 @ApplicationScoped
 public class CounterStatsRepository {
 
+    static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 1000;
+    static final int DEFAULT_MAX_PENDING_UPDATES = 1000;
+    static final long DEFAULT_SNAPSHOT_MILLIS = 5000;
+
+    private final Logger logger = LoggerFactory.getLogger(CounterStatsRepository.class);
+    private final DoubleAdder pendingDistance = new DoubleAdder();
+    private final LongAdder pendingSeconds = new LongAdder();
+    private final LongAdder pendingUpdates = new LongAdder();
+    private final AtomicBoolean flushQueued = new AtomicBoolean();
+    private final AtomicReference<CompletableFuture<CounterAggregate>> refreshInFlight = new AtomicReference<>();
+    private volatile CounterAggregate snapshot;
+    private volatile long snapshotTakenAt;
+
     @Inject
-    private JedisExecution jedisExecution;
+    JedisExecution jedisExecution;
+    @Resource
+    private ManagedThreadFactory threadFactory;
+
+    ScheduledExecutorService flusher;
+    long flushIntervalMillis;
+    int maxPendingUpdates;
+    long snapshotMillis;
+    boolean hyperLogLogCounts;
+
+    @PostConstruct
+    public void postConstruct() {
+        this.flushIntervalMillis = EnvUtils.longValue("COUNTER_FLUSH_INTERVAL_MILLIS", DEFAULT_FLUSH_INTERVAL_MILLIS);
+        this.maxPendingUpdates = EnvUtils.intValue("COUNTER_MAX_PENDING_UPDATES", DEFAULT_MAX_PENDING_UPDATES);
+        this.snapshotMillis = EnvUtils.longValue("COUNTER_SNAPSHOT_MILLIS", DEFAULT_SNAPSHOT_MILLIS);
+        this.hyperLogLogCounts = HyperLogLogs.isEnabled();
+        if (!isWriteBehind()) {
+            logger.info("Counters are written through");
+            return;
+        }
+        ThreadFactory factory = threadFactory == null ? Executors.defaultThreadFactory() : threadFactory;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(factory);
+        flusher.scheduleWithFixedDelay(this::flush, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        logger.info("Counters are written behind every {} ms or {} pending updates", flushIntervalMillis, maxPendingUpdates);
+    }
+
+    @PreDestroy
+    public void preDestroy() {
+        if (flusher == null) {
+            return;
+        }
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    boolean isWriteBehind() {
+        return flushIntervalMillis > 0;
+    }
+
+    /**
+     * Writes the pending deltas in one pipeline. Deltas that cannot be written, whether Redis fails or gives no reply,
+     * are kept for the next flush.
+     * <p>
+     * The pending totals are read and then subtracted rather than reset, so that updates racing with the flush are
+     * never lost.
+     */
+    synchronized void flush() {
+        final long updates = pendingUpdates.sum();
+        if (updates == 0) {
+            return;
+        }
+        final double distance = pendingDistance.sum();
+        final long seconds = pendingSeconds.sum();
+        pendingUpdates.add(-updates);
+        pendingDistance.add(-distance);
+        pendingSeconds.add(-seconds);
+        Boolean written;
+        try {
+            written = jedisExecution.execute(new JedisOperation<Boolean>() {
+                @Override
+                public Boolean perform(Jedis jedis) {
+                    Pipeline pipeline = jedis.pipelined();
+                    if (distance != 0) {
+                        pipeline.incrByFloat(RedisKeyNames.DISTANCE_COUNTER, distance);
+                    }
+                    if (seconds != 0) {
+                        pipeline.incrBy(RedisKeyNames.SECONDS_COUNTER, seconds);
+                    }
+                    pipeline.sync();
+                    return true;
+                }
+            });
+        } catch (RuntimeException e) {
+            logger.error("Unable to flush counter updates", e);
+            written = false;
+        }
+        if (!Boolean.TRUE.equals(written)) {
+            pendingUpdates.add(updates);
+            pendingDistance.add(distance);
+            pendingSeconds.add(seconds);
+            logger.warn("{} counter updates were not flushed, they are kept for the next flush", updates);
+        }
+    }
+
+    /**
+     * Hands the flush to the flusher thread when the pending bound is reached, once until it has run.
+     */
+    private void updatePending() {
+        pendingUpdates.increment();
+        if (pendingUpdates.sum() >= maxPendingUpdates && flushQueued.compareAndSet(false, true)) {
+            try {
+                flusher.execute(() -> {
+                    flushQueued.set(false);
+                    flush();
+                });
+            } catch (RejectedExecutionException e) {
+                flushQueued.set(false);
+                logger.info("Counter flusher is shut down, pending updates are flushed at shutdown");
+            }
+        }
+    }
+
+    long pendingUpdates() {
+        return pendingUpdates.sum();
+    }
+
+    double pendingDistance() {
+        return pendingDistance.sum();
+    }
+
+    long pendingSeconds() {
+        return pendingSeconds.sum();
+    }
 
     public Long addCountry(final String country) {
         return jedisExecution.execute(new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
+                if (hyperLogLogCounts) {
+                    return HyperLogLogs.addAll(jedis, RedisKeyNames.COUNTRY_HLL_KEY, Collections.singletonList(country));
+                }
                 return jedis.sadd(RedisKeyNames.COUNTRY_SET_KEY, country);
             }
         });
@@ -25,6 +190,9 @@ public class CounterStatsRepository {
         return jedisExecution.execute(new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
+                if (hyperLogLogCounts) {
+                    return HyperLogLogs.addAll(jedis, RedisKeyNames.CITY_HLL_KEY, Collections.singletonList(country));
+                }
                 return jedis.sadd(RedisKeyNames.CITY_SET_KEY, country);
             }
         });
@@ -39,8 +207,13 @@ public class CounterStatsRepository {
         });
     }
 
-    public Long updateActivitySecondsCount(final long seconds) {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+    public void updateActivitySecondsCount(final long seconds) {
+        if (isWriteBehind()) {
+            pendingSeconds.add(seconds);
+            updatePending();
+            return;
+        }
+        jedisExecution.execute(new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
                 return jedis.incrBy(RedisKeyNames.SECONDS_COUNTER, seconds);
@@ -48,8 +221,13 @@ public class CounterStatsRepository {
         });
     }
 
-    public Double updateDistanceCount(final double distanceCovered) {
-        return jedisExecution.execute(new JedisOperation<Double>() {
+    public void updateDistanceCount(final double distanceCovered) {
+        if (isWriteBehind()) {
+            pendingDistance.add(distanceCovered);
+            updatePending();
+            return;
+        }
+        jedisExecution.execute(new JedisOperation<Double>() {
             @Override
             public Double perform(Jedis jedis) {
                 return jedis.incrByFloat(RedisKeyNames.DISTANCE_COUNTER, distanceCovered);
@@ -57,30 +235,108 @@ public class CounterStatsRepository {
         });
     }
 
+    /**
+     * @return how long a counter snapshot is served before it is read again.
+     */
+    public long getSnapshotMillis() {
+        return snapshotMillis;
+    }
+
     public CounterAggregate currentCounter() {
-        return new CounterAggregate(getRunnerCount(), getCountryCount(), getDistanceCount(), getCityCount(), getActivitySecondCount());
+        while (true) {
+            CounterAggregate current = snapshot;
+            if (current != null && System.currentTimeMillis() - snapshotTakenAt < snapshotMillis) {
+                return current;
+            }
+            CompletableFuture<CounterAggregate> refresh = new CompletableFuture<>();
+            if (refreshInFlight.compareAndSet(null, refresh)) {
+                return refresh(refresh, current);
+            }
+            CompletableFuture<CounterAggregate> inFlight = refreshInFlight.get();
+            if (current != null) {
+                return current;
+            }
+            if (inFlight != null) {
+                try {
+                    return inFlight.join();
+                } catch (CompletionException e) {
+                    throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+                }
+            }
+        }
+    }
+
+    private CounterAggregate refresh(CompletableFuture<CounterAggregate> refresh, CounterAggregate current) {
+        try {
+            CounterAggregate counter = readCounter();
+            if (counter == null) {
+                throw new RedisUnavailableException("Counters could not be read from Redis");
+            }
+            snapshot = counter;
+            snapshotTakenAt = System.currentTimeMillis();
+            refresh.complete(counter);
+            return counter;
+        } catch (RuntimeException e) {
+            refresh.completeExceptionally(e);
+            if (current == null) {
+                throw e;
+            }
+            logger.error("Unable to refresh counters, serving the previous snapshot", e);
+            return current;
+        } finally {
+            refreshInFlight.set(null);
+        }
+    }
+
+    /**
+     * Reads every counter in one pipeline.
+     */
+    CounterAggregate readCounter() {
+        return jedisExecution.executeRead(new JedisOperation<CounterAggregate>() {
+            @Override
+            public CounterAggregate perform(Jedis jedis) {
+                if (hyperLogLogCounts) {
+                    List<Object> counts = HyperLogLogs.readCounts(jedis, Arrays.asList(RedisKeyNames.RUNNER_COUNTER, RedisKeyNames.DISTANCE_COUNTER, RedisKeyNames.SECONDS_COUNTER), Arrays.asList(RedisKeyNames.COUNTRY_HLL_KEY, RedisKeyNames.CITY_HLL_KEY));
+                    return new CounterAggregate(HyperLogLogs.longValue(counts.get(0)), HyperLogLogs.longValue(counts.get(3)), HyperLogLogs.doubleValue(counts.get(1)), HyperLogLogs.longValue(counts.get(4)), HyperLogLogs.longValue(counts.get(2)));
+                }
+                Pipeline pipeline = jedis.pipelined();
+                Response<String> runners = pipeline.get(RedisKeyNames.RUNNER_COUNTER);
+                Response<Long> countries = pipeline.scard(RedisKeyNames.COUNTRY_SET_KEY);
+                Response<String> distance = pipeline.get(RedisKeyNames.DISTANCE_COUNTER);
+                Response<Long> cities = pipeline.scard(RedisKeyNames.CITY_SET_KEY);
+                Response<String> seconds = pipeline.get(RedisKeyNames.SECONDS_COUNTER);
+                pipeline.sync();
+                return new CounterAggregate(runners.get() == null ? 0 : Long.valueOf(runners.get()), countries.get(), distance.get() == null ? 0 : Double.valueOf(distance.get()), cities.get(), seconds.get() == null ? 0 : Long.valueOf(seconds.get()));
+            }
+        });
     }
 
     public Long getCountryCount() {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+        return jedisExecution.executeRead(new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
+                if (hyperLogLogCounts) {
+                    return HyperLogLogs.longValue(HyperLogLogs.readCounts(jedis, Collections.<String>emptyList(), Collections.singletonList(RedisKeyNames.COUNTRY_HLL_KEY)).get(0));
+                }
                 return jedis.scard(RedisKeyNames.COUNTRY_SET_KEY);
             }
         });
     }
 
     public Long getCityCount() {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+        return jedisExecution.executeRead(new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
+                if (hyperLogLogCounts) {
+                    return HyperLogLogs.longValue(HyperLogLogs.readCounts(jedis, Collections.<String>emptyList(), Collections.singletonList(RedisKeyNames.CITY_HLL_KEY)).get(0));
+                }
                 return jedis.scard(RedisKeyNames.CITY_SET_KEY);
             }
         });
     }
 
     public Long getRunnerCount() {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+        return jedisExecution.executeRead(new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
                 String counter = jedis.get(RedisKeyNames.RUNNER_COUNTER);
@@ -90,7 +346,7 @@ public class CounterStatsRepository {
     }
 
     public Long getActivitySecondCount() {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+        return jedisExecution.executeRead(new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
                 String counter = jedis.get(RedisKeyNames.SECONDS_COUNTER);
@@ -100,7 +356,7 @@ public class CounterStatsRepository {
     }
 
     public Double getDistanceCount() {
-        return jedisExecution.execute(new JedisOperation<Double>() {
+        return jedisExecution.executeRead(new JedisOperation<Double>() {
             @Override
             public Double perform(Jedis jedis) {
                 String counter = jedis.get(RedisKeyNames.DISTANCE_COUNTER);
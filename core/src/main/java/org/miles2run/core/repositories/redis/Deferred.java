@@ -0,0 +1,26 @@
+package org.miles2run.core.repositories.redis;
+
+import redis.clients.jedis.Response;
+
+/**
+ * Reply of a command that may be batched, available once the batch it belongs to is flushed.
+ */
+public class Deferred<T> {
+
+    private volatile Response<T> response;
+
+    void complete(Response<T> response) {
+        this.response = response;
+    }
+
+    public boolean isDone() {
+        return response != null;
+    }
+
+    public T get() {
+        if (response == null) {
+            throw new IllegalStateException("The Redis batch of the request has not been flushed yet");
+        }
+        return response.get();
+    }
+}
@@ -1,243 +1,194 @@
 package org.miles2run.core.repositories.redis;
 
 import org.joda.time.DateTimeZone;
-import org.joda.time.Interval;
 import org.joda.time.LocalDate;
+import org.miles2run.core.repositories.redis.vo.CompactActivity;
 import org.miles2run.core.utils.DateUtils;
 import org.miles2run.domain.entities.Goal;
 import org.miles2run.domain.entities.Profile;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Tuple;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.util.SafeEncoder;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 import java.util.*;
 
 @ApplicationScoped
 public class GoalAggregationRepository {
 
-    private static final int SECONDS_IN_ONE_MINUTE = 60;
-    
-    private final Logger logger = LoggerFactory.getLogger(GoalAggregationRepository.class);
+    static final int FETCH_BATCH_SIZE = 500;
+
+    private static final Logger logger = LoggerFactory.getLogger(GoalAggregationRepository.class);
 
     @Inject
     JedisExecution jedisExecution;
+    @Inject
+    GoalRollupRepository goalRollupRepository;
 
+    /**
+     * Distance and mean pace on every local day with activities in the last days.
+     */
     public List<Object[]> distanceAndPaceOverNDays(final String username, final Goal goal, final int daysBack, int timezoneOffsetInMinutes) {
-        int timezoneOffsetInMillis = (-1) * timezoneOffsetInMinutes * 60 * 1000;
-        DateTimeZone dateTimeZone = timezoneOffsetInMillis == 0 ? DateTimeZone.forID("UTC") : DateTimeZone.forOffsetMillis(timezoneOffsetInMillis);
-
-        final Interval interval = DateUtils.toDateRangeInterval(daysBack, dateTimeZone);
-        Set<Tuple> activityIdsInNDaysWithScores = findActivitiesWithScore(username, goal, interval);
-        Map<LocalDate, List<String>> localdateAndTimestamp = toMapOfLocalDateAndActivities(activityIdsInNDaysWithScores, dateTimeZone);
-        logger.info("localdateAndTimestamp : {}", localdateAndTimestamp);
+        DateTimeZone dateTimeZone = DateUtils.toDateTimeZone(timezoneOffsetInMinutes);
+        LocalDate today = new LocalDate(dateTimeZone);
         List<Object[]> result = new ArrayList<>();
-        for (Map.Entry<LocalDate, List<String>> entry : localdateAndTimestamp.entrySet()) {
-            List<String> activityIds = entry.getValue();
-            double totalDistanceRanOnADay = 0;
-            double totalPaceOnADay = 0.0;
-            for (String activityId : activityIds) {
-                List<String> values = getActivityFieldValues(activityId, new String[]{"distanceCovered", "duration"});
-                Double distance = Double.valueOf(values.get(0));
-                double distanceWithUnitConversion = distance / goal.getGoalUnit().getConversion();
-                Long duration = Long.valueOf(values.get(1));
-                double durationInMinutes = Double.valueOf(duration) / SECONDS_IN_ONE_MINUTE;
-                double pace = durationInMinutes / distanceWithUnitConversion;
-                totalDistanceRanOnADay += distanceWithUnitConversion;
-                totalPaceOnADay += pace;
-            }
-            double averagePaceOnADay = totalPaceOnADay / activityIds.size();
-            result.add(new Object[]{entry.getKey().toString(), totalDistanceRanOnADay, averagePaceOnADay});
-        }
+        goalRollupRepository.dailyBuckets(username, goal, today.minusDays(daysBack), today, dateTimeZone).forEach((day, bucket) -> result.add(new Object[]{day.toString(), bucket.getDistance() / goal.getGoalUnit().getConversion(), bucket.getMeanPace()}));
         return result;
+    }
 
+    /**
+     * Reads fields of many activities with one pipeline, whichever encoding each activity is stored in, on a replica
+     * when one is in sync.
+     *
+     * @return the requested fields of every activity, in the order of the ids; a missing activity has no fields.
+     */
+    public List<Map<String, String>> activityFields(final List<String> activityIds, final String... fields) {
+        return activityFields(jedisExecution, true, activityIds, fields);
     }
 
-    List<String> getActivityFieldValues(final String activityId, final String[] fields) {
-        return jedisExecution.execute(new JedisOperation<List<String>>() {
+    /**
+     * Same as {@link #activityFields(List, String...)} with the activities of every shard read on its own connection.
+     *
+     * @param fromReplica false when the fields are written back and must be read from the master.
+     */
+    static List<Map<String, String>> activityFields(JedisExecution jedisExecution, boolean fromReplica, final List<String> activityIds, final String... fields) {
+        JedisShardedOperation<List<Map<String, String>>> read = new JedisShardedOperation<List<Map<String, String>>>() {
             @Override
-            public List<String> perform(Jedis jedis) {
-                return jedis.hmget(String.format(RedisKeyNames.ACTIVITY_S, activityId), fields);
+            public List<Map<String, String>> perform(JedisShards shards) {
+                return activityFields(shards, activityIds, fields);
             }
-        });
+        };
+        List<Map<String, String>> values = fromReplica ? jedisExecution.executeReadOnShards(read) : jedisExecution.executeOnShards(read);
+        return values == null ? Collections.<Map<String, String>>emptyList() : values;
     }
 
-    Set<Tuple> findActivitiesWithScore(final String username, Goal goal, final Interval interval) {
-        final String key = String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goal.getId());
-        return jedisExecution.execute(new JedisOperation<Set<Tuple>>() {
-            @Override
-            public Set<Tuple> perform(Jedis jedis) {
-                return jedis.zrangeByScoreWithScores(key, interval.getStartMillis(), interval.getEndMillis());
+    /**
+     * Same as {@link #activityFields(List, String...)} on connections already borrowed, one per shard.
+     */
+    static List<Map<String, String>> activityFields(JedisShards shards, List<String> activityIds, final String... fields) {
+        final Map<String, String> activityIdsByKey = new LinkedHashMap<>();
+        for (String activityId : activityIds) {
+            activityIdsByKey.put(String.format(RedisKeyNames.ACTIVITY_S, activityId), activityId);
+        }
+        final Map<String, Map<String, String>> fieldsById = new HashMap<>();
+        shards.partition(activityIdsByKey.keySet()).forEach((jedis, keys) -> {
+            List<String> shardActivityIds = new ArrayList<>();
+            keys.forEach(key -> shardActivityIds.add(activityIdsByKey.get(key)));
+            List<Map<String, String>> values = activityFields(jedis, shardActivityIds, fields);
+            for (int i = 0; i < shardActivityIds.size(); i++) {
+                fieldsById.put(shardActivityIds.get(i), values.get(i));
             }
         });
+        List<Map<String, String>> values = new ArrayList<>(activityIds.size());
+        for (String activityId : activityIds) {
+            values.add(fieldsById.getOrDefault(activityId, Collections.<String, String>emptyMap()));
+        }
+        return values;
     }
 
-    Map<LocalDate, List<String>> toMapOfLocalDateAndActivities(Set<Tuple> activityIdsInNDaysWithScores, DateTimeZone dateTimeZone) {
-        Map<LocalDate, List<String>> timestampAndActivities = new HashMap<>();
-        for (Tuple tuple : activityIdsInNDaysWithScores) {
-            String activityId = tuple.getElement();
-            LocalDate localDate = new LocalDate(Double.valueOf(tuple.getScore()).longValue(), dateTimeZone);
-            if (timestampAndActivities.containsKey(localDate)) {
-                List<String> activityIds = timestampAndActivities.get(localDate);
-                activityIds.add(activityId);
-            } else {
-                List<String> activityIds = new ArrayList<>();
-                activityIds.add(activityId);
-                timestampAndActivities.put(localDate, activityIds);
+    /**
+     * Same as {@link #activityFields(List, String...)} for activities on one connection. Activities are read with one
+     * pipeline per {@link #FETCH_BATCH_SIZE} activities to bound the replies buffered at once.
+     */
+    static List<Map<String, String>> activityFields(Jedis jedis, List<String> activityIds, String... fields) {
+        byte[][] requestedFields = new byte[fields.length + 1][];
+        for (int i = 0; i < fields.length; i++) {
+            requestedFields[i] = SafeEncoder.encode(fields[i]);
+        }
+        requestedFields[fields.length] = ActivityCodec.COMPACT_FIELD_BYTES;
+        List<Map<String, String>> activities = new ArrayList<>(activityIds.size());
+        for (int start = 0; start < activityIds.size(); start += FETCH_BATCH_SIZE) {
+            Pipeline pipeline = jedis.pipelined();
+            List<Response<List<byte[]>>> responses = new ArrayList<>();
+            for (String activityId : activityIds.subList(start, Math.min(start + FETCH_BATCH_SIZE, activityIds.size()))) {
+                responses.add(pipeline.hmget(SafeEncoder.encode(String.format(RedisKeyNames.ACTIVITY_S, activityId)), requestedFields));
+            }
+            pipeline.sync();
+            for (Response<List<byte[]>> response : responses) {
+                activities.add(toFields(response.get(), fields));
             }
         }
-        return timestampAndActivities;
+        return activities;
     }
 
-    public Map<String, Double> getActivitiesPerformedInLastNMonthsForGoal(final String username, final Goal goal, final int nMonths) {
-        return jedisExecution.execute(new JedisOperation<Map<String, Double>>() {
-            @Override
-            public Map<String, Double> perform(Jedis jedis) {
-                Interval interval = DateUtils.toDateRangeIntervalInMonths(nMonths);
-                String key = String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goal.getId());
-                Set<Tuple> activityIdsInNMonthWithScores = jedis.zrangeByScoreWithScores(key, interval.getStartMillis(), interval.getEndMillis());
-                Map<Long, List<String>> timestampAndActivities = toMapOfTimestampAndActivities(activityIdsInNMonthWithScores);
-                logger.debug("for key {} : timestampAndActivities {}", key, timestampAndActivities);
-                Map<String, Double> data = new LinkedHashMap<>();
-                for (Map.Entry<Long, List<String>> entry : timestampAndActivities.entrySet()) {
-                    List<String> activityIds = entry.getValue();
-                    double totalDistanceRanOnADay = 0;
-                    for (String activityId : activityIds) {
-                        Double distance = Double.valueOf(jedis.hget(String.format("activity:%s", activityId), "distanceCovered"));
-                        double distanceWithUnitConversion = distance / goal.getGoalUnit().getConversion();
-                        totalDistanceRanOnADay += distanceWithUnitConversion;
-                    }
-                    long timestamp = entry.getKey() / 1000;
-                    data.put(String.valueOf(timestamp), totalDistanceRanOnADay);
+    /**
+     * @return the requested fields, none when the activity is missing or its compact encoding cannot be decoded.
+     */
+    static Map<String, String> toFields(List<byte[]> values, String... fields) {
+        Map<String, String> activity = new HashMap<>();
+        byte[] compact = values.get(fields.length);
+        CompactActivity compactActivity = compact == null ? null : ActivityCodec.decode(compact);
+        if (compact != null && compactActivity == null) {
+            logger.warn("Unable to decode a compact activity, it is left out");
+            return activity;
+        }
+        if (compactActivity != null) {
+            Map<String, String> hash = ActivityCodec.toHash(compactActivity);
+            for (String field : fields) {
+                if (hash.containsKey(field)) {
+                    activity.put(field, hash.get(field));
                 }
-                return data;
             }
-        });
-    }
-
-    Map<Long, List<String>> toMapOfTimestampAndActivities(Set<Tuple> activityIdsInNDaysWithScores) {
-        Map<Long, List<String>> timestampAndActivities = new HashMap<>();
-        for (Tuple tuple : activityIdsInNDaysWithScores) {
-            String activityId = tuple.getElement();
-            Long timestamp = Double.valueOf(tuple.getScore()).longValue();
-            if (timestampAndActivities.containsKey(timestamp)) {
-                List<String> activityIds = timestampAndActivities.get(timestamp);
-                activityIds.add(activityId);
-            } else {
-                List<String> activityIds = new ArrayList<>();
-                activityIds.add(activityId);
-                timestampAndActivities.put(timestamp, activityIds);
+            return activity;
+        }
+        for (int i = 0; i < fields.length; i++) {
+            if (values.get(i) != null) {
+                activity.put(fields[i], SafeEncoder.encode(values.get(i)));
             }
         }
-        return timestampAndActivities;
+        return activity;
     }
 
-    public List<Object[]> distanceAndPaceOverNMonths(final Profile profile, final Goal goal, final String interval, final int nMonths) {
-        return jedisExecution.execute(new JedisOperation<List<Object[]>>() {
-            @Override
-            public List<Object[]> perform(Jedis jedis) {
-                Date today = new Date();
-                Calendar calendar = Calendar.getInstance();
-                calendar.add(Calendar.MONTH, -nMonths);
-                Date nMonthsBack = calendar.getTime();
-                Set<Tuple> activityIdsInNDaysWithScores = jedis.zrangeByScoreWithScores(String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, profile.getUsername(), goal.getId()), nMonthsBack.getTime(), today.getTime());
-                Map<String, Double> monthDistanceHash = new HashMap<>();
-                Map<String, Double> monthPaceHash = new HashMap<>();
-                for (Tuple activityIdTuple : activityIdsInNDaysWithScores) {
-                    String activityId = activityIdTuple.getElement();
-                    double activityTimestamp = activityIdTuple.getScore();
-                    List<String> values = jedis.hmget(String.format("activity:%s", activityId), "distanceCovered", "duration");
-                    Date activityDate = new Date(Double.valueOf(activityTimestamp).longValue());
-                    logger.info(String.format("Activity Date : %s", activityDate));
-                    String key = formatDateToYearAndMonth(activityDate);
-                    logger.info(String.format("DateToYearAndMonth : %s", key));
-                    double distance = Double.valueOf(values.get(0)) / goal.getGoalUnit().getConversion();
-                    if (monthDistanceHash.containsKey(key)) {
-                        Double value = monthDistanceHash.get(key);
-                        monthDistanceHash.put(key, value + distance);
-                        Double durationInSeconds = Double.valueOf(Long.valueOf(values.get(1)));
-                        double durationInMinutes = durationInSeconds / 60;
-                        double pace = durationInMinutes / distance;
-                        Double currentAvgPace = monthPaceHash.get(key);
-                        monthPaceHash.put(key, (currentAvgPace + pace) / 2);
-                    } else {
-                        monthDistanceHash.put(key, distance);
-                        Double durationInSeconds = Double.valueOf(Long.valueOf(values.get(1)));
-                        double durationInMinutes = durationInSeconds / 60;
-                        double pace = durationInMinutes / distance;
-                        monthPaceHash.put(key, pace);
-                    }
-                }
-                List<Object[]> chartData = new ArrayList<>();
-                Set<Map.Entry<String, Double>> entries = monthDistanceHash.entrySet();
-                for (Map.Entry<String, Double> entry : entries) {
-                    chartData.add(new Object[]{entry.getKey(), entry.getValue(), monthPaceHash.get(entry.getKey())});
-                }
-                Collections.reverse(chartData);
-                return chartData;
-            }
+    /**
+     * Distance covered on every local day with activities in the last months, keyed by the epoch second at which the
+     * day starts.
+     */
+    public Map<String, Double> getActivitiesPerformedInLastNMonthsForGoal(final String username, final Goal goal, final int nMonths, int timezoneOffsetInMinutes) {
+        DateTimeZone dateTimeZone = DateUtils.toDateTimeZone(timezoneOffsetInMinutes);
+        LocalDate today = new LocalDate(dateTimeZone);
+        Map<String, Double> data = new LinkedHashMap<>();
+        goalRollupRepository.dailyBuckets(username, goal, today.minusMonths(nMonths), today, dateTimeZone).forEach((day, bucket) -> {
+            long timestamp = day.toDateTimeAtStartOfDay(dateTimeZone).getMillis() / 1000;
+            data.put(String.valueOf(timestamp), bucket.getDistance() / goal.getGoalUnit().getConversion());
         });
+        return data;
     }
 
-    public List<Object[]> distanceAndActivityCountOverNMonths(final Profile profile, final Goal goal, final int months) {
-        return jedisExecution.execute(new JedisOperation<List<Object[]>>() {
-            @Override
-            public List<Object[]> perform(Jedis jedis) {
-                Date today = new Date();
-                Calendar calendar = Calendar.getInstance();
-                calendar.add(Calendar.MONTH, -months);
-                Date nMonthsBack = calendar.getTime();
-                Set<Tuple> activityIdsInNDaysWithScores = jedis.zrangeByScoreWithScores(String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, profile.getUsername(), goal.getId()), nMonthsBack.getTime(), today.getTime());
-                Map<String, Double> monthDistanceHash = new HashMap<>();
-                Map<String, Long> monthActivityCountHash = new HashMap<>();
-                for (Tuple activityIdTuple : activityIdsInNDaysWithScores) {
-                    String activityId = activityIdTuple.getElement();
-                    double activityTimestamp = activityIdTuple.getScore();
-                    List<String> values = jedis.hmget(String.format("activity:%s", activityId), "distanceCovered", "duration");
-                    Date activityDate = new Date(Double.valueOf(activityTimestamp).longValue());
-                    logger.info(String.format("Activity Date : %s", activityDate));
-                    String key = formatDateToYearAndMonth(activityDate);
-                    logger.info(String.format("DateToYearAndMonth : %s", key));
-                    double distance = Double.valueOf(values.get(0)) / goal.getGoalUnit().getConversion();
-                    if (monthDistanceHash.containsKey(key)) {
-                        Double distanceTillNow = monthDistanceHash.get(key);
-                        monthDistanceHash.put(key, distanceTillNow + distance);
-                        Long activityCountTillNow = monthActivityCountHash.get(key);
-                        monthActivityCountHash.put(key, activityCountTillNow + 1L);
-                    } else {
-                        monthDistanceHash.put(key, distance);
-                        monthActivityCountHash.put(key, 1L);
-                    }
-                }
-                List<Object[]> chartData = new ArrayList<>();
-                Set<Map.Entry<String, Double>> entries = monthDistanceHash.entrySet();
-                for (Map.Entry<String, Double> entry : entries) {
-                    chartData.add(new Object[]{entry.getKey(), entry.getValue(), monthActivityCountHash.get(entry.getKey())});
-                }
-                Collections.sort(chartData, (m1, m2) -> {
-                    String month1 = (String) m1[0];
-                    String month2 = (String) m2[0];
-                    SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MMMM");
-                    try {
-                        Date date1 = dateFormat.parse(month1);
-                        Date date2 = dateFormat.parse(month2);
-                        return date1.compareTo(date2);
-                    } catch (ParseException e) {
-                        return 0;
-                    }
-                });
-                return chartData;
+    public List<Object[]> distanceAndPaceOverNMonths(final Profile profile, final Goal goal, final String interval, final int nMonths) {
+        MonthlyAggregator months = lastMonths(profile.getUsername(), goal, nMonths);
+        List<Object[]> chartData = new ArrayList<>();
+        for (int month = 0; month < months.getMonths(); month++) {
+            if (months.count(month) > 0) {
+                chartData.add(new Object[]{months.monthName(month), months.distance(month) / goal.getGoalUnit().getConversion(), months.meanPace(month)});
             }
-        });
+        }
+        return chartData;
     }
 
+    public List<Object[]> distanceAndActivityCountOverNMonths(final Profile profile, final Goal goal, final int nMonths) {
+        MonthlyAggregator months = lastMonths(profile.getUsername(), goal, nMonths);
+        List<Object[]> chartData = new ArrayList<>();
+        for (int month = 0; month < months.getMonths(); month++) {
+            if (months.count(month) > 0) {
+                chartData.add(new Object[]{months.monthName(month), months.distance(month) / goal.getGoalUnit().getConversion(), months.count(month)});
+            }
+        }
+        return chartData;
+    }
 
-    private String formatDateToYearAndMonth(Date date) {
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MMMM");
-        return dateFormat.format(date);
+    /**
+     * Aggregates the UTC months from the same day nMonths ago up to today, in chronological order.
+     */
+    private MonthlyAggregator lastMonths(String username, Goal goal, int nMonths) {
+        LocalDate today = new LocalDate(DateTimeZone.UTC);
+        long start = today.minusMonths(nMonths).toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis();
+        long end = today.plusDays(1).toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis();
+        MonthlyAggregator months = new MonthlyAggregator(start, end, DateTimeZone.UTC);
+        goalRollupRepository.visitBuckets(username, goal, start, end, months);
+        return months;
     }
 }
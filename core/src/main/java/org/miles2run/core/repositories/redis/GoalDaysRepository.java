@@ -0,0 +1,266 @@
+package org.miles2run.core.repositories.redis;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.miles2run.core.repositories.redis.vo.GoalStreak;
+import org.miles2run.core.repositories.redis.vo.RollupBucket;
+import org.miles2run.core.utils.DateUtils;
+import org.miles2run.domain.entities.Activity;
+import org.miles2run.domain.entities.Goal;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Transaction;
+import redis.clients.util.SafeEncoder;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.*;
+
+/**
+ * Days with activities of every goal with a duration, one bit per local day counted from the goal start date, in
+ * {@link RedisKeyNames#GOAL_S_DAYS}. Local days depend on the timezone of the user, so the timezone and start date the
+ * bitmap was built for are kept in {@link RedisKeyNames#GOAL_S_DAYS_BASE}; a bitmap read or marked for another one is
+ * built again from the goal rollup.
+ * <p>
+ * Posted activities set their day bit. Updated and deleted activities can clear a day only when it has no other
+ * activity, which the bitmap cannot tell, so they drop the bitmap instead.
+ * <p>
+ * The current and longest streaks of consecutive days are kept next to the bitmap in {@link RedisKeyNames#GOAL_S_STREAK}
+ * and folded in when a day is marked, so that reading them takes one round trip however long the goal is.
+ */
+@ApplicationScoped
+public class GoalDaysRepository {
+
+    static final String CURRENT = "current";
+    static final String LONGEST = "longest";
+    static final String LAST = "last";
+    private static final RedisScript MARK_DAY_SCRIPT = RedisScript.fromResource("lua/mark_goal_day.lua");
+
+    private final Logger logger = LoggerFactory.getLogger(GoalDaysRepository.class);
+
+    @Inject
+    JedisExecution jedisExecution;
+    @Inject
+    GoalRollupRepository goalRollupRepository;
+
+    /**
+     * @return the keys holding the days and streaks of a goal.
+     */
+    public static String[] keys(Long goalId) {
+        return new String[]{String.format(RedisKeyNames.GOAL_S_DAYS, goalId), String.format(RedisKeyNames.GOAL_S_DAYS_BASE, goalId), String.format(RedisKeyNames.GOAL_S_STREAK, goalId)};
+    }
+
+    private static String streakKey(Goal goal) {
+        return String.format(RedisKeyNames.GOAL_S_STREAK, goal.getId());
+    }
+
+    static String base(DateTimeZone dateTimeZone, LocalDate start) {
+        return dateTimeZone.getID() + "/" + start;
+    }
+
+    /**
+     * @return bitmap in Redis bit order, where bit 0 is the most significant bit of the first byte.
+     */
+    static byte[] toBitmap(Set<LocalDate> days, LocalDate start) {
+        int last = -1;
+        for (LocalDate day : days) {
+            last = Math.max(last, Days.daysBetween(start, day).getDays());
+        }
+        byte[] bitmap = new byte[last / 8 + 1];
+        for (LocalDate day : days) {
+            int offset = Days.daysBetween(start, day).getDays();
+            if (offset >= 0) {
+                bitmap[offset >>> 3] |= 0x80 >>> (offset & 7);
+            }
+        }
+        return last < 0 ? new byte[0] : bitmap;
+    }
+
+    /**
+     * @return days with their bit set between the start date and the end date, both inclusive.
+     */
+    static Set<LocalDate> fromBitmap(byte[] bitmap, LocalDate start, LocalDate end) {
+        Set<LocalDate> days = new TreeSet<>();
+        int totalDays = Math.min(Days.daysBetween(start, end).getDays() + 1, bitmap.length * 8);
+        for (int offset = 0; offset < totalDays; offset++) {
+            if ((bitmap[offset >>> 3] & (0x80 >>> (offset & 7))) != 0) {
+                days.add(start.plusDays(offset));
+            }
+        }
+        return days;
+    }
+
+    static GoalStreak toStreak(Set<LocalDate> days) {
+        int current = 0;
+        int longest = 0;
+        LocalDate last = null;
+        for (LocalDate day : new TreeSet<>(days)) {
+            current = last != null && last.plusDays(1).equals(day) ? current + 1 : 1;
+            longest = Math.max(longest, current);
+            last = day;
+        }
+        return new GoalStreak(current, longest, last);
+    }
+
+    static Map<String, String> toHash(GoalStreak streak, LocalDate start) {
+        Map<String, String> hash = new HashMap<>();
+        hash.put(CURRENT, String.valueOf(streak.getCurrent()));
+        hash.put(LONGEST, String.valueOf(streak.getLongest()));
+        hash.put(LAST, String.valueOf(streak.getLastActiveDay() == null ? -1 : Days.daysBetween(start, streak.getLastActiveDay()).getDays()));
+        return hash;
+    }
+
+    static GoalStreak fromHash(List<String> fields, LocalDate start) {
+        int last = Integer.parseInt(fields.get(2));
+        return new GoalStreak(Integer.parseInt(fields.get(0)), Integer.parseInt(fields.get(1)), last < 0 ? null : start.plusDays(last));
+    }
+
+    public void activityPosted(final Goal goal, Activity activity, int timezoneOffsetInMinutes) {
+        if (goal.getDuration() == null || goal.getDuration().getStartDate() == null) {
+            return;
+        }
+        DateTimeZone dateTimeZone = DateUtils.toDateTimeZone(timezoneOffsetInMinutes);
+        LocalDate start = new LocalDate(goal.getDuration().getStartDate().getTime(), dateTimeZone);
+        LocalDate end = new LocalDate(goal.getDuration().getEndDate().getTime(), dateTimeZone);
+        LocalDate day = new LocalDate(activity.getActivityDate().getTime(), dateTimeZone);
+        if (day.isBefore(start) || day.isAfter(end)) {
+            return;
+        }
+        final List<String> keys = Arrays.asList(keys(goal.getId()));
+        final List<String> args = Arrays.asList(base(dateTimeZone, start), String.valueOf(Days.daysBetween(start, day).getDays()));
+        jedisExecution.executeBatched(keys.get(0), new JedisPipelineOperation<String>() {
+            @Override
+            public Response<String> perform(Pipeline pipeline) {
+                return MARK_DAY_SCRIPT.queue(pipeline, keys, args);
+            }
+        });
+    }
+
+    public void invalidate(final Goal goal) {
+        final String[] keys = keys(goal.getId());
+        jedisExecution.executeBatched(keys[0], new JedisPipelineOperation<Long>() {
+            @Override
+            public Response<Long> perform(Pipeline pipeline) {
+                return pipeline.del(keys);
+            }
+        });
+    }
+
+    /**
+     * Reads the days with activities between the goal start date and an end date, both inclusive, in one round trip
+     * when the bitmap was built for the timezone.
+     */
+    public Set<LocalDate> performedDays(String username, Goal goal, LocalDate start, LocalDate end, DateTimeZone dateTimeZone) {
+        Set<LocalDate> days = keepDays(goal, start, end, dateTimeZone);
+        if (days != null) {
+            return days;
+        }
+        SortedMap<LocalDate, RollupBucket> buckets = goalRollupRepository.dailyBuckets(username, goal, start, end, dateTimeZone);
+        days = keepDays(goal, start, end, dateTimeZone);
+        return days != null ? days : new TreeSet<>(buckets.keySet());
+    }
+
+    /**
+     * Reads the bitmap, or builds it from the goal rollup and keeps it, on one connection watching the bitmap and the
+     * rollup contributions from before either is read, so that a bitmap missing a day marked or an activity changed in
+     * between is not kept; the next read builds it again.
+     *
+     * @return the days with activities, or null when the rollup is not built either.
+     */
+    private Set<LocalDate> keepDays(final Goal goal, final LocalDate start, final LocalDate end, final DateTimeZone dateTimeZone) {
+        final byte[] daysKey = SafeEncoder.encode(String.format(RedisKeyNames.GOAL_S_DAYS, goal.getId()));
+        final byte[] baseKey = SafeEncoder.encode(String.format(RedisKeyNames.GOAL_S_DAYS_BASE, goal.getId()));
+        final byte[] contributionsKey = SafeEncoder.encode(String.format(RedisKeyNames.GOAL_S_ROLLUP_CONTRIBUTIONS, goal.getId()));
+        final String streakKey = streakKey(goal);
+        final String base = base(dateTimeZone, start);
+        return jedisExecution.execute(streakKey, new JedisOperation<Set<LocalDate>>() {
+            @Override
+            public Set<LocalDate> perform(Jedis jedis) {
+                jedis.watch(daysKey, baseKey, contributionsKey);
+                List<byte[]> values = jedis.mget(daysKey, baseKey);
+                if (values != null && values.get(0) != null && values.get(1) != null && base.equals(SafeEncoder.encode(values.get(1)))) {
+                    jedis.unwatch();
+                    return fromBitmap(values.get(0), start, end);
+                }
+                SortedMap<LocalDate, RollupBucket> buckets = goalRollupRepository.dailyBuckets(jedis, goal, start, end, dateTimeZone);
+                if (buckets == null) {
+                    jedis.unwatch();
+                    return null;
+                }
+                logger.info("Building day bitmap of goal {} for {}", goal.getId(), base);
+                Set<LocalDate> days = new TreeSet<>(buckets.keySet());
+                Transaction transaction = jedis.multi();
+                transaction.mset(daysKey, toBitmap(days, start), baseKey, SafeEncoder.encode(base));
+                transaction.del(streakKey);
+                if (transaction.exec() == null) {
+                    logger.info("Activities of goal {} changed while its day bitmap was built, not keeping it", goal.getId());
+                }
+                return days;
+            }
+        });
+    }
+
+    /**
+     * Reads the streaks of a goal in one round trip when they were kept for the timezone, otherwise they are computed
+     * from the days with activities between the goal start date and an end date, both inclusive.
+     */
+    public GoalStreak streak(String username, Goal goal, LocalDate start, LocalDate end, DateTimeZone dateTimeZone) {
+        final String baseKey = String.format(RedisKeyNames.GOAL_S_DAYS_BASE, goal.getId());
+        final String streakKey = streakKey(goal);
+        final String base = base(dateTimeZone, start);
+        List<Object> values = jedisExecution.execute(streakKey, new JedisOperation<List<Object>>() {
+            @Override
+            public List<Object> perform(Jedis jedis) {
+                Pipeline pipeline = jedis.pipelined();
+                pipeline.get(baseKey);
+                pipeline.hmget(streakKey, CURRENT, LONGEST, LAST);
+                return pipeline.syncAndReturnAll();
+            }
+        });
+        @SuppressWarnings("unchecked")
+        List<String> fields = (List<String>) values.get(1);
+        if (base.equals(values.get(0)) && !fields.contains(null)) {
+            return fromHash(fields, start);
+        }
+        GoalStreak streak = keepStreak(goal, start, end, base);
+        if (streak != null) {
+            return streak;
+        }
+        Set<LocalDate> days = performedDays(username, goal, start, end, dateTimeZone);
+        streak = keepStreak(goal, start, end, base);
+        return streak != null ? streak : toStreak(days);
+    }
+
+    /**
+     * Computes the streaks from the bitmap and keeps them, on one connection watching the bitmap from before it is read,
+     * so that streaks are not kept when a day was marked or the bitmap built again in between; the next read computes
+     * them again.
+     *
+     * @return the streaks, or null when the bitmap is not built for the timezone.
+     */
+    GoalStreak keepStreak(Goal goal, final LocalDate start, final LocalDate end, final String base) {
+        final byte[] daysKey = SafeEncoder.encode(String.format(RedisKeyNames.GOAL_S_DAYS, goal.getId()));
+        final byte[] baseKey = SafeEncoder.encode(String.format(RedisKeyNames.GOAL_S_DAYS_BASE, goal.getId()));
+        final String streakKey = streakKey(goal);
+        return jedisExecution.execute(streakKey, new JedisOperation<GoalStreak>() {
+            @Override
+            public GoalStreak perform(Jedis jedis) {
+                jedis.watch(daysKey, baseKey);
+                List<byte[]> values = jedis.mget(daysKey, baseKey);
+                if (values == null || values.get(0) == null || values.get(1) == null || !base.equals(SafeEncoder.encode(values.get(1)))) {
+                    jedis.unwatch();
+                    return null;
+                }
+                GoalStreak streak = toStreak(fromBitmap(values.get(0), start, end));
+                Transaction transaction = jedis.multi();
+                transaction.hmset(streakKey, toHash(streak, start));
+                transaction.exec();
+                return streak;
+            }
+        });
+    }
+}
@@ -0,0 +1,343 @@
+package org.miles2run.core.repositories.redis;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.miles2run.core.repositories.redis.vo.RollupBucket;
+import org.miles2run.domain.entities.Activity;
+import org.miles2run.domain.entities.Goal;
+import org.miles2run.domain.entities.GoalUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+
+import javax.enterprise.context.ApplicationScoped;
+import javax.inject.Inject;
+import java.util.*;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Totals of the activities of every goal in 15 minute UTC buckets, so that they can be folded into the local days of
+ * any timezone, including the ones with half hour and 45 minute offsets.
+ * <p>
+ * Buckets are kept in one hash per UTC month, {@link RedisKeyNames#GOAL_S_ROLLUP_S}, with the fields
+ * <code>{bucket}:d</code> (distance), <code>:t</code> (duration), <code>:n</code> (count) and <code>:p</code> (pace
+ * sum) for every bucket with activities, the bucket being the number of 15 minute slots since the epoch. The index
+ * hash {@link RedisKeyNames#GOAL_S_ROLLUP} lists the monthly hashes of the goal and holds the built marker.
+ * <p>
+ * The contribution of every activity to its bucket is kept in {@link RedisKeyNames#GOAL_S_ROLLUP_CONTRIBUTIONS}, and
+ * posting, updating or deleting an activity replaces its contribution and moves the bucket by the difference, so an
+ * activity is counted once however its update interleaves with a build. A rollup that does not exist yet is built from
+ * the goal timeline the first time it is read, watching the index and the contributions from before the timeline is
+ * read; a build that races an update is started over.
+ */
+@ApplicationScoped
+public class GoalRollupRepository {
+
+    /**
+     * Marker of rollups built with the contribution of every activity; rollups built before are built again.
+     */
+    static final String BUILT = "built_with_contributions";
+    static final int BUILD_ATTEMPTS = 3;
+    static final long BUCKET_MILLIS = 15 * 60 * 1000;
+    private static final DateTimeFormatter MONTH_FORMAT = DateTimeFormat.forPattern("yyyyMM").withZoneUTC();
+    private static final RedisScript UPDATE_ROLLUP_SCRIPT = RedisScript.fromResource("lua/update_goal_rollup.lua");
+
+    private final Logger logger = LoggerFactory.getLogger(GoalRollupRepository.class);
+
+    /**
+     * Receives the totals of a rollup bucket without allocating per bucket.
+     */
+    public interface BucketVisitor {
+
+        void visit(long bucketStart, double distance, long duration, long count, double paceSum);
+    }
+
+    @Inject
+    JedisExecution jedisExecution;
+
+    static long bucket(long timestamp) {
+        return Math.floorDiv(timestamp, BUCKET_MILLIS);
+    }
+
+    static String partitionKey(Long goalId, long timestamp) {
+        return String.format(RedisKeyNames.GOAL_S_ROLLUP_S, goalId, MONTH_FORMAT.print(timestamp));
+    }
+
+    /**
+     * @return pace in minutes per goal unit, or 0 for an activity without distance.
+     */
+    static double pace(double distanceInMeters, long durationInSeconds, GoalUnit goalUnit) {
+        if (distanceInMeters <= 0) {
+            return 0;
+        }
+        return (durationInSeconds / 60.0) / (distanceInMeters / goalUnit.getConversion());
+    }
+
+    /**
+     * @return contribution of one activity as kept by the rollup script: partition, bucket, distance, duration and pace.
+     */
+    static String contribution(Long goalId, long timestamp, double distance, long duration, GoalUnit goalUnit) {
+        return partitionKey(goalId, timestamp) + " " + bucket(timestamp) + " " + distance + " " + duration + " " + pace(distance, duration, goalUnit);
+    }
+
+    private static String contribution(Goal goal, Activity activity) {
+        return contribution(goal.getId(), activity.getActivityDate().getTime(), activity.getDistanceCovered(), activity.getDuration(), goal.getGoalUnit());
+    }
+
+    public void activityPosted(Goal goal, Activity activity) {
+        apply(goal, activity.getId(), contribution(goal, activity), activity.getActivityDate());
+    }
+
+    public void activityUpdated(Goal goal, Date previousActivityDate, Activity activity) {
+        apply(goal, activity.getId(), contribution(goal, activity), activity.getActivityDate(), previousActivityDate);
+    }
+
+    public void activityDeleted(Goal goal, Activity activity) {
+        apply(goal, activity.getId(), "", activity.getActivityDate());
+    }
+
+    private void apply(final Goal goal, Long activityId, String contribution, Date... activityDates) {
+        final List<String> keys = new ArrayList<>();
+        keys.add(String.format(RedisKeyNames.GOAL_S_ROLLUP, goal.getId()));
+        keys.add(String.format(RedisKeyNames.GOAL_S_ROLLUP_CONTRIBUTIONS, goal.getId()));
+        for (Date activityDate : activityDates) {
+            keys.add(partitionKey(goal.getId(), activityDate.getTime()));
+        }
+        final List<String> args = Arrays.asList(BUILT, String.valueOf(activityId), contribution);
+        jedisExecution.executeBatched(keys.get(0), new JedisPipelineOperation<String>() {
+            @Override
+            public Response<String> perform(Pipeline pipeline) {
+                return UPDATE_ROLLUP_SCRIPT.queue(pipeline, keys, args);
+            }
+        });
+    }
+
+    /**
+     * Reads the buckets of a goal between two local days of a timezone, both inclusive, in one pipeline and folds them
+     * into days. Days without activities are left out.
+     */
+    public SortedMap<LocalDate, RollupBucket> dailyBuckets(String username, Goal goal, LocalDate from, LocalDate to, final DateTimeZone dateTimeZone) {
+        final SortedMap<LocalDate, RollupBucket> days = new TreeMap<>();
+        visitBuckets(username, goal, from.toDateTimeAtStartOfDay(dateTimeZone).getMillis(), to.plusDays(1).toDateTimeAtStartOfDay(dateTimeZone).getMillis(), dayFolder(days, dateTimeZone));
+        return days;
+    }
+
+    /**
+     * Reads the buckets of a goal between two local days of a timezone, both inclusive, on a connection to the shard of
+     * the goal keys, so that a caller watching other keys of the goal reads them on the connection it watches with.
+     *
+     * @return the days with activities, or null when the rollup is not built.
+     */
+    SortedMap<LocalDate, RollupBucket> dailyBuckets(Jedis jedis, Goal goal, LocalDate from, LocalDate to, DateTimeZone dateTimeZone) {
+        long start = from.toDateTimeAtStartOfDay(dateTimeZone).getMillis();
+        long end = to.plusDays(1).toDateTimeAtStartOfDay(dateTimeZone).getMillis();
+        List<Map<String, String>> partitions = readPartitions(jedis, String.format(RedisKeyNames.GOAL_S_ROLLUP, goal.getId()), partitionKeys(goal, start, end));
+        return partitions == null ? null : toDays(partitions, start, end, dateTimeZone);
+    }
+
+    /**
+     * Reads the buckets of a goal starting between two instants, start inclusive and end exclusive, in one pipeline on a
+     * replica when one is in sync, and hands every bucket with activities to the visitor.
+     */
+    public void visitBuckets(final String username, final Goal goal, final long start, final long end, final BucketVisitor visitor) {
+        final List<String> partitionKeys = partitionKeys(goal, start, end);
+        final String index = String.format(RedisKeyNames.GOAL_S_ROLLUP, goal.getId());
+        List<Map<String, String>> partitions = jedisExecution.executeRead(index, new JedisOperation<List<Map<String, String>>>() {
+            @Override
+            public List<Map<String, String>> perform(Jedis jedis) {
+                return readPartitions(jedis, index, partitionKeys);
+            }
+        });
+        if (partitions == null) {
+            Map<String, Map<String, String>> rebuilt = rebuild(index, username, goal);
+            partitions = new ArrayList<>();
+            for (String partitionKey : partitionKeys) {
+                partitions.add(rebuilt.getOrDefault(partitionKey, Collections.<String, String>emptyMap()));
+            }
+        }
+        visit(partitions, start, end, visitor);
+    }
+
+    private static List<String> partitionKeys(Goal goal, long start, long end) {
+        List<String> partitionKeys = new ArrayList<>();
+        for (DateTime month = new DateTime(start, DateTimeZone.UTC).withDayOfMonth(1).withTimeAtStartOfDay(); month.getMillis() < end; month = month.plusMonths(1)) {
+            partitionKeys.add(partitionKey(goal.getId(), month.getMillis()));
+        }
+        return partitionKeys;
+    }
+
+    /**
+     * @return the monthly partitions, in the order of their keys, or null when the rollup is not built.
+     */
+    private static List<Map<String, String>> readPartitions(Jedis jedis, String index, List<String> partitionKeys) {
+        Pipeline pipeline = jedis.pipelined();
+        Response<String> built = pipeline.hget(index, BUILT);
+        List<Response<Map<String, String>>> responses = new ArrayList<>();
+        for (String partitionKey : partitionKeys) {
+            responses.add(pipeline.hgetAll(partitionKey));
+        }
+        pipeline.sync();
+        if (built.get() == null) {
+            return null;
+        }
+        List<Map<String, String>> partitions = new ArrayList<>();
+        for (Response<Map<String, String>> response : responses) {
+            partitions.add(response.get());
+        }
+        return partitions;
+    }
+
+    static void visit(List<Map<String, String>> partitions, long start, long end, BucketVisitor visitor) {
+        for (Map<String, String> partition : partitions) {
+            for (Map.Entry<String, String> field : partition.entrySet()) {
+                if (!field.getKey().endsWith(":n")) {
+                    continue;
+                }
+                long count = Long.valueOf(field.getValue());
+                String bucket = field.getKey().substring(0, field.getKey().length() - 2);
+                long bucketStart = Long.valueOf(bucket) * BUCKET_MILLIS;
+                if (count <= 0 || bucketStart < start || bucketStart >= end) {
+                    continue;
+                }
+                visitor.visit(bucketStart, doubleValue(partition.get(bucket + ":d")), longValue(partition.get(bucket + ":t")), count, doubleValue(partition.get(bucket + ":p")));
+            }
+        }
+    }
+
+    /**
+     * Folds the buckets starting between two instants, start inclusive and end exclusive, into the local days of a
+     * timezone.
+     */
+    static SortedMap<LocalDate, RollupBucket> toDays(List<Map<String, String>> partitions, long start, long end, DateTimeZone dateTimeZone) {
+        SortedMap<LocalDate, RollupBucket> days = new TreeMap<>();
+        visit(partitions, start, end, dayFolder(days, dateTimeZone));
+        return days;
+    }
+
+    private static BucketVisitor dayFolder(final SortedMap<LocalDate, RollupBucket> days, final DateTimeZone dateTimeZone) {
+        return (bucketStart, distance, duration, count, paceSum) -> days.computeIfAbsent(new LocalDate(bucketStart, dateTimeZone), day -> new RollupBucket()).add(new RollupBucket(distance, duration, count, paceSum));
+    }
+
+    private static double doubleValue(String value) {
+        return value == null ? 0 : Double.valueOf(value);
+    }
+
+    private static long longValue(String value) {
+        return value == null ? 0 : Long.valueOf(value);
+    }
+
+    /**
+     * Replaces the whole rollup of a goal with buckets computed from its timeline and the activity hashes. The index and
+     * the contributions are watched while the timeline and the activity hashes are read, on the same connection when
+     * Redis is not sharded and otherwise on connections to the other shards borrowed with it, so that the build never
+     * waits on the pool while holding a watched connection. It is started over when an activity was posted, updated or
+     * deleted meanwhile.
+     *
+     * @return the monthly partitions that were written, by key.
+     */
+    Map<String, Map<String, String>> rebuild(final String index, final String username, final Goal goal) {
+        final String contributionsKey = String.format(RedisKeyNames.GOAL_S_ROLLUP_CONTRIBUTIONS, goal.getId());
+        final String partitionPrefix = String.format(RedisKeyNames.GOAL_S_ROLLUP_S, goal.getId(), "");
+        return jedisExecution.executeOnShards(new JedisShardedOperation<Map<String, Map<String, String>>>() {
+            @Override
+            public Map<String, Map<String, String>> perform(JedisShards shards) {
+                Jedis jedis = shards.shard(index);
+                Map<String, Map<String, String>> partitions = Collections.emptyMap();
+                for (int attempt = 1; attempt <= BUILD_ATTEMPTS; attempt++) {
+                    jedis.watch(index, contributionsKey);
+                    Map<String, String> contributions = contributions(shards, username, goal);
+                    if (contributions == null) {
+                        jedis.unwatch();
+                        return Collections.emptyMap();
+                    }
+                    partitions = toPartitions(contributions.values());
+                    Set<String> stalePartitions = new HashSet<>();
+                    for (String field : jedis.hkeys(index)) {
+                        if (field.startsWith(partitionPrefix)) {
+                            stalePartitions.add(field);
+                        }
+                    }
+                    Map<String, String> indexHash = new HashMap<>();
+                    indexHash.put(BUILT, String.valueOf(System.currentTimeMillis()));
+                    Transaction transaction = jedis.multi();
+                    for (String stalePartition : stalePartitions) {
+                        transaction.del(stalePartition);
+                    }
+                    transaction.del(index, contributionsKey);
+                    for (Map.Entry<String, Map<String, String>> partition : partitions.entrySet()) {
+                        transaction.hmset(partition.getKey(), partition.getValue());
+                        indexHash.put(partition.getKey(), "1");
+                    }
+                    transaction.hmset(index, indexHash);
+                    if (!contributions.isEmpty()) {
+                        transaction.hmset(contributionsKey, contributions);
+                    }
+                    if (transaction.exec() != null) {
+                        logger.info("Built rollup of goal {} from {} activities in {} months", goal.getId(), contributions.size(), partitions.size());
+                        return partitions;
+                    }
+                    logger.info("Activities of goal {} changed while its rollup was built, building it again", goal.getId());
+                }
+                logger.warn("Rollup of goal {} not kept, its activities kept changing while it was built", goal.getId());
+                return partitions;
+            }
+        });
+    }
+
+    /**
+     * @return contribution of every activity of the goal timeline by activity id, or null when an activity hash is
+     * missing.
+     */
+    private static Map<String, String> contributions(JedisShards shards, String username, Goal goal) {
+        String goalTimelineKey = String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goal.getId());
+        List<Tuple> activities = new ArrayList<>(shards.shard(goalTimelineKey).zrangeWithScores(goalTimelineKey, 0, -1));
+        List<String> activityIds = activities.stream().map(Tuple::getElement).collect(toList());
+        List<Map<String, String>> values = GoalAggregationRepository.activityFields(shards, activityIds, "distanceCovered", "duration");
+        if (values.size() < activities.size()) {
+            return null;
+        }
+        Map<String, String> contributions = new HashMap<>();
+        for (int i = 0; i < activities.size(); i++) {
+            Map<String, String> activity = values.get(i);
+            if (!activity.containsKey("distanceCovered") || !activity.containsKey("duration")) {
+                continue;
+            }
+            long timestamp = (long) activities.get(i).getScore();
+            contributions.put(activityIds.get(i), contribution(goal.getId(), timestamp, Double.valueOf(activity.get("distanceCovered")), Long.valueOf(activity.get("duration")), goal.getGoalUnit()));
+        }
+        return contributions;
+    }
+
+    /**
+     * @return monthly partitions holding the buckets of the contributions, by key.
+     */
+    static Map<String, Map<String, String>> toPartitions(Collection<String> contributions) {
+        Map<String, Map<Long, RollupBucket>> buckets = new HashMap<>();
+        for (String contribution : contributions) {
+            String[] values = contribution.split(" ");
+            buckets.computeIfAbsent(values[0], key -> new HashMap<>())
+                    .computeIfAbsent(Long.valueOf(values[1]), bucket -> new RollupBucket())
+                    .add(new RollupBucket(Double.valueOf(values[2]), Long.valueOf(values[3]), 1, Double.valueOf(values[4])));
+        }
+        Map<String, Map<String, String>> partitions = new HashMap<>();
+        buckets.forEach((partitionKey, partitionBuckets) -> {
+            Map<String, String> partition = new HashMap<>();
+            partitionBuckets.forEach((bucket, totals) -> {
+                partition.put(bucket + ":d", String.valueOf(totals.getDistance()));
+                partition.put(bucket + ":t", String.valueOf(totals.getDuration()));
+                partition.put(bucket + ":n", String.valueOf(totals.getCount()));
+                partition.put(bucket + ":p", String.valueOf(totals.getPaceSum()));
+            });
+            partitions.put(partitionKey, partition);
+        });
+        return partitions;
+    }
+}
@@ -1,17 +1,19 @@
 package org.miles2run.core.repositories.redis;
 
 import org.joda.time.*;
+import org.miles2run.core.utils.DateUtils;
+import org.miles2run.domain.entities.Goal;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
-import redis.clients.jedis.Tuple;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.Pipeline;
 
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
 
 @ApplicationScoped
 public class GoalStatsRepository {
@@ -20,33 +22,34 @@ public class GoalStatsRepository {
 
     @Inject
     JedisExecution jedisExecution;
+    @Inject
+    GoalDaysRepository goalDaysRepository;
 
     public void updateTotalDistanceCoveredForAGoal(final Long goalId, final double distanceCovered) {
         logger.info("Updating goal with id {} with distance {}", goalId, distanceCovered);
-        jedisExecution.execute(new JedisOperation<Void>() {
+        final String progressKey = String.format(RedisKeyNames.GOAL_S_PROGRESS, goalId);
+        jedisExecution.executeBatched(progressKey, new JedisPipelineOperation<Double>() {
             @Override
-            public Void perform(Jedis jedis) {
-                String key = String.format("goal:%s:progress", goalId);
-                jedis.incrByFloat(key, distanceCovered);
-                return null;
+            public Response<Double> perform(Pipeline pipeline) {
+                return pipeline.incrByFloat(progressKey, distanceCovered);
             }
         });
     }
 
     public double distanceCovered(final Long goalId) {
-        return jedisExecution.execute(new JedisOperation<Double>() {
+        final String progressKey = String.format(RedisKeyNames.GOAL_S_PROGRESS, goalId);
+        return jedisExecution.executeRead(progressKey, new JedisOperation<Double>() {
             @Override
             public Double perform(Jedis jedis) {
-                String key = String.format("goal:%s:progress", goalId);
-                String value = jedis.get(key);
+                String value = jedis.get(progressKey);
                 return value == null ? Double.valueOf(0) : Double.valueOf(value);
             }
         });
     }
 
-    public Map<String, Object> getDurationGoalProgress(final String username, final Long goalId, final Interval goalInterval, int timezoneOffsetInMinutes) {
-        int timezoneOffsetInMillis = (-1) * timezoneOffsetInMinutes * 60 * 1000;
-        DateTimeZone dateTimeZone = timezoneOffsetInMillis == 0 ? DateTimeZone.forID("UTC") : DateTimeZone.forOffsetMillis(timezoneOffsetInMillis);
+    public Map<String, Object> getDurationGoalProgress(final String username, final Goal goal, final Interval goalInterval, int timezoneOffsetInMinutes) {
+        final Long goalId = goal.getId();
+        DateTimeZone dateTimeZone = DateUtils.toDateTimeZone(timezoneOffsetInMinutes);
         logger.info("User {} with DateTimeZone {}", username, dateTimeZone.toTimeZone());
         final DateTime startDateTimeInUserTimezone = goalInterval.getStart().toDateTime(dateTimeZone);
         final DateTime endDateTimeInUserTimezone = goalInterval.getEnd().toDateTime(dateTimeZone);
@@ -66,9 +69,7 @@ public class GoalStatsRepository {
             goalProgress.put("percentage", 0.0d);
             return goalProgress;
         }
-        final Set<Tuple> activitiesPerformed = activitiesPerformedWithinAGoalInterval(username, goalId, goalInterval);
-        logger.info("{}-goal-{} TotalActivitiesPerformed : {}", username, goalId, activitiesPerformed.size());
-        final Set<LocalDate> performedActivityDates = toCollectionOfPerformedActivityDates(activitiesPerformed, dateTimeZone);
+        final Set<LocalDate> performedActivityDates = performedActivityDates(username, goal, startDateTimeInUserTimezone.toLocalDate(), endDateTimeInUserTimezone.toLocalDate(), dateTimeZone);
         final int performedDays = performedActivityDates.size();
         logger.info("{}-goal-{} ActivityPerformedDays :{}", username, goalId, performedDays);
 
@@ -122,20 +123,12 @@ public class GoalStatsRepository {
         return Days.daysBetween(startDateTime.toLocalDate(), endDateTime.toLocalDate()).getDays() + 1;
     }
 
-    Set<LocalDate> toCollectionOfPerformedActivityDates(Set<Tuple> activitiesPerformed, DateTimeZone dateTimeZone) {
-        return activitiesPerformed.stream().map(activityIdAndScore -> new LocalDate(Double.valueOf(activityIdAndScore.getScore()).longValue(), dateTimeZone)).collect(Collectors.toSet());
-    }
-
-    Set<Tuple> activitiesPerformedWithinAGoalInterval(final String username, final Long goalId, final Interval goalInterval) {
-        return jedisExecution.execute(new JedisOperation<Set<Tuple>>() {
-            @Override
-            public Set<Tuple> perform(Jedis jedis) {
-                String profileGoalTimelineKey = String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goalId);
-                DateTime goalStartDateWithOneDayOffset = new DateTime(goalInterval.getStartMillis()).minusDays(1);
-                Set<Tuple> activitiesPerformed = jedis.zrangeByScoreWithScores(profileGoalTimelineKey, goalStartDateWithOneDayOffset.getMillis(), goalInterval.getEndMillis());
-                return activitiesPerformed;
-            }
-        });
+    /**
+     * Local days between two days, both inclusive, on which activities were performed, read from the day bitmap of the
+     * goal.
+     */
+    Set<LocalDate> performedActivityDates(final String username, final Goal goal, LocalDate from, LocalDate to, DateTimeZone dateTimeZone) {
+        return goalDaysRepository.performedDays(username, goal, from, to, dateTimeZone);
     }
 
 }
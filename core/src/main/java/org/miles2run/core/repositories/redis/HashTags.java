@@ -0,0 +1,47 @@
+package org.miles2run.core.repositories.redis;
+
+import org.miles2run.core.utils.EnvUtils;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Hash tags of the key names, the part of a key between braces that chooses its shard when REDIS_SHARDS is set. Keys
+ * of the same user, goal or community run share a tag, so the commands and scripts touching several of them run on
+ * one shard. Without sharding the braces are left out and the key names stay as they always were; the keys written
+ * before sharding are copied to their tagged names on their shards by the shard migration job.
+ */
+public abstract class HashTags {
+
+    private static final Set<String> TAGGED_FORMATS = Collections.synchronizedSet(new LinkedHashSet<String>());
+
+    public static boolean isSharded() {
+        return EnvUtils.stringValue("REDIS_SHARDS", null) != null;
+    }
+
+    /**
+     * @param taggedFormat key format with its hash tag between braces.
+     */
+    public static String keyFormat(String taggedFormat) {
+        TAGGED_FORMATS.add(taggedFormat);
+        return keyFormat(taggedFormat, isSharded());
+    }
+
+    /**
+     * @return the tagged formats of the key names in {@link RedisKeyNames}.
+     */
+    public static Set<String> taggedFormats() {
+        // reading a key name initializes RedisKeyNames, which registers every format
+        if (RedisKeyNames.PROFILE_S_TIMELINE == null) {
+            throw new IllegalStateException("Redis key names are not initialized");
+        }
+        synchronized (TAGGED_FORMATS) {
+            return new LinkedHashSet<>(TAGGED_FORMATS);
+        }
+    }
+
+    static String keyFormat(String taggedFormat, boolean sharded) {
+        return sharded ? taggedFormat : taggedFormat.replace("{", "").replace("}", "");
+    }
+}
@@ -0,0 +1,83 @@
+package org.miles2run.core.repositories.redis;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of values in fixed buckets, cheap enough to record on every Redis operation. Percentiles are reported as the
+ * upper bound of the bucket they fall in, or the maximum for the last bucket.
+ */
+class Histogram {
+
+    static final long[] LATENCY_MICROS = {100, 250, 500, 1000, 2500, 5000, 10000, 25000, 50000, 100000, 250000, 500000, 1000000};
+    static final long[] SIZES = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000};
+
+    private final long[] bounds;
+    private final LongAdder[] counts;
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(long[] bounds) {
+        this.bounds = bounds;
+        this.counts = new LongAdder[bounds.length + 1];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        int bucket = 0;
+        while (bucket < bounds.length && value > bounds[bucket]) {
+            bucket++;
+        }
+        counts[bucket].increment();
+        sum.add(value);
+        long currentMax;
+        do {
+            currentMax = max.get();
+        } while (value > currentMax && !max.compareAndSet(currentMax, value));
+    }
+
+    long count() {
+        long count = 0;
+        for (LongAdder bucket : counts) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    long percentile(double quantile) {
+        long[] snapshot = new long[counts.length];
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            snapshot[i] = counts[i].sum();
+            count += snapshot[i];
+        }
+        long rank = (long) Math.ceil(quantile * count);
+        long seen = 0;
+        for (int i = 0; i < bounds.length; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && seen > 0) {
+                return Math.min(bounds[i], max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * @param unit divisor turning recorded values into reported ones, such as 1000 to report microseconds in millis.
+     */
+    Map<String, Object> snapshot(double unit) {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        long count = count();
+        snapshot.put("count", count);
+        snapshot.put("mean", count == 0 ? 0.0d : sum.sum() / unit / count);
+        snapshot.put("p50", percentile(0.5) / unit);
+        snapshot.put("p95", percentile(0.95) / unit);
+        snapshot.put("p99", percentile(0.99) / unit);
+        snapshot.put("max", max.get() / unit);
+        return snapshot;
+    }
+}
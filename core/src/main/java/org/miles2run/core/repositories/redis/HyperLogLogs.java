@@ -0,0 +1,68 @@
+package org.miles2run.core.repositories.redis;
+
+import org.miles2run.core.utils.EnvUtils;
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Distinct counts kept in HyperLogLogs instead of sets when HYPERLOGLOG_COUNTS is enabled. A HyperLogLog takes at most
+ * 12 KB whatever the number of members, with a standard error of 0.81%.
+ * <p>
+ * The Redis client in use predates the HyperLogLog commands, so they are sent from scripts.
+ */
+public abstract class HyperLogLogs {
+
+    private static final RedisScript PFADD_SCRIPT = RedisScript.fromResource("lua/pfadd.lua");
+    private static final RedisScript READ_COUNTS_SCRIPT = RedisScript.fromResource("lua/read_counts.lua");
+
+    public static boolean isEnabled() {
+        return EnvUtils.booleanValue("HYPERLOGLOG_COUNTS", false);
+    }
+
+    /**
+     * Adds every member to the HyperLogLog at the same position.
+     *
+     * @return the number of HyperLogLogs whose estimate changed.
+     */
+    public static Long add(Jedis jedis, List<String> keys, List<String> members) {
+        return (Long) PFADD_SCRIPT.execute(jedis, keys, members);
+    }
+
+    /**
+     * Adds every member to one HyperLogLog.
+     *
+     * @return 1 when the estimate changed, otherwise 0.
+     */
+    public static Long addAll(Jedis jedis, String key, List<String> members) {
+        if (members.isEmpty()) {
+            return 0L;
+        }
+        return (Long) PFADD_SCRIPT.execute(jedis, Collections.singletonList(key), members);
+    }
+
+    /**
+     * Reads counters and HyperLogLog cardinalities in one round trip.
+     *
+     * @return the values of the counters, null when missing, followed by the cardinalities.
+     */
+    public static List<Object> readCounts(Jedis jedis, List<String> counterKeys, List<String> hyperLogLogKeys) {
+        List<String> keys = new ArrayList<>(counterKeys);
+        keys.addAll(hyperLogLogKeys);
+        List<String> args = new ArrayList<>();
+        args.add(String.valueOf(counterKeys.size()));
+        @SuppressWarnings("unchecked")
+        List<Object> counts = (List<Object>) READ_COUNTS_SCRIPT.execute(jedis, keys, args);
+        return counts;
+    }
+
+    static long longValue(Object count) {
+        return count == null ? 0 : Long.valueOf(count.toString());
+    }
+
+    static double doubleValue(Object count) {
+        return count == null ? 0 : Double.valueOf(count.toString());
+    }
+}
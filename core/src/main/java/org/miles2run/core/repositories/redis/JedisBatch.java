@@ -0,0 +1,78 @@
+package org.miles2run.core.repositories.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Commands collected during a request and sent in one pipeline per shard when it is flushed, in the order they were
+ * queued. Every operation is timed under its own name, with the time taken by the whole flush.
+ */
+class JedisBatch {
+
+    private static final Logger logger = LoggerFactory.getLogger(JedisBatch.class);
+
+    private final List<String> keys = new ArrayList<>();
+    private final List<String> names = new ArrayList<>();
+    private final List<JedisPipelineOperation<?>> operations = new ArrayList<>();
+    private final List<Deferred<?>> replies = new ArrayList<>();
+
+    <T> Deferred<T> add(String key, JedisPipelineOperation<T> operation) {
+        Deferred<T> reply = new Deferred<>();
+        keys.add(key);
+        names.add(RedisMetrics.name(operation));
+        operations.add(operation);
+        replies.add(reply);
+        return reply;
+    }
+
+    boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    int size() {
+        return operations.size();
+    }
+
+    @SuppressWarnings("unchecked")
+    void flush(JedisShards shards, RedisMetrics metrics) {
+        long start = System.nanoTime();
+        List<Response<?>> responses = new ArrayList<>();
+        for (int i = 0; i < operations.size(); i++) {
+            responses.add(operations.get(i).perform(shards.pipeline(keys.get(i))));
+        }
+        shards.sync();
+        long nanos = System.nanoTime() - start;
+        for (String name : names) {
+            metrics.performed(name, nanos);
+        }
+        for (int i = 0; i < responses.size(); i++) {
+            Response<Object> response = (Response<Object>) responses.get(i);
+            ((Deferred<Object>) replies.get(i)).complete(response);
+            failed(response);
+        }
+    }
+
+    /**
+     * Logs a command that failed, as nobody may read the reply of a batched write.
+     */
+    static boolean failed(Response<?> response) {
+        if (response == null) {
+            return false;
+        }
+        try {
+            response.get();
+            return false;
+        } catch (JedisDataException e) {
+            logger.error("Batched Redis command failed", e);
+            return true;
+        } catch (ClassCastException e) {
+            // this client builds the reply of a pipelined EVAL as a bulk string whatever the script returns
+            return false;
+        }
+    }
+}
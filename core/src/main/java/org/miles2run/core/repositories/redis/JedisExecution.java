@@ -1,36 +1,364 @@
 package org.miles2run.core.repositories.redis;
 
+import org.miles2run.core.utils.EnvUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.ShardedJedisPool;
 import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.Pool;
 
+import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
 
+/**
+ * Runs Redis operations on a pooled connection.
+ * <p>
+ * An operation that cannot reach Redis in time, or cannot get a pooled connection in time, throws
+ * {@link RedisUnavailableException}. Repeated connection or read failures of a Redis server open its
+ * {@link RedisCircuitBreaker}, after which its operations are refused until a probe succeeds; a pool exhausted by load
+ * is not a failure of Redis and leaves the breaker alone. The master has one breaker, checked before a connection is
+ * borrowed, and every shard has its own, checked when {@link JedisShards} hands out a shard. A breaker opens after
+ * REDIS_BREAKER_FAILURES consecutive failures, 5 by default, and probes after REDIS_BREAKER_OPEN_MILLIS, 5000 by
+ * default.
+ * <p>
+ * When REDIS_SHARDS is set, keys are spread over the shards by their {@link HashTags}. An operation given a key runs on
+ * the shard holding that key and every key with the same tag; an operation given no key runs on the shard holding the
+ * keys that belong to no user, goal or community run, such as the global counters, sets and checkpoints. Operations on
+ * keys of several shards go through {@link #executeOnShards(JedisShardedOperation)}.
+ * <p>
+ * Read-only operations that can be served slightly stale go through {@link #executeRead(String, JedisOperation)}, which
+ * sends them to a {@link JedisReplicas replica} in sync with the master when REDIS_REPLICAS is set, and to the master
+ * when no replica is in sync or the replica fails. Reads that must see a write just made stay on the master.
+ * <p>
+ * When REDIS_REQUEST_BATCHING is enabled, operations passed to {@link #executeBatched(String, JedisPipelineOperation)}
+ * between {@link #beginBatch()} and {@link #flushBatch()} on the same thread are queued and sent in one pipeline per
+ * shard, on one pooled connection, when the batch is flushed. Outside a batch they are sent right away.
+ * <p>
+ * Every operation is timed in {@link RedisMetrics}; operations slower than REDIS_SLOW_OPERATION_MILLIS, 100 by default,
+ * are logged.
+ */
 @ApplicationScoped
 public class JedisExecution {
 
+    private static final ThreadLocal<JedisBatch> BATCH = new ThreadLocal<>();
+    static final String MASTER = "master";
+
+    private final Logger logger = LoggerFactory.getLogger(JedisExecution.class);
+
     @Inject
     JedisPool jedisPool;
+    @Inject
+    ShardedJedisPool shardedJedisPool;
+    @Inject
+    JedisReplicas jedisReplicas;
+
+    boolean batching;
+    int breakerFailures = 5;
+    long breakerOpenMillis = 5000;
+    RedisMetrics metrics = new RedisMetrics(100);
+    private final ConcurrentMap<String, RedisCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
 
+    @PostConstruct
+    public void postConstruct() {
+        this.batching = EnvUtils.booleanValue("REDIS_REQUEST_BATCHING", false);
+        this.breakerFailures = EnvUtils.intValue("REDIS_BREAKER_FAILURES", 5);
+        this.breakerOpenMillis = EnvUtils.longValue("REDIS_BREAKER_OPEN_MILLIS", 5000);
+        this.metrics = new RedisMetrics(EnvUtils.longValue("REDIS_SLOW_OPERATION_MILLIS", 100));
+    }
+
+    /**
+     * Runs an operation on keys that belong to no user, goal or community run.
+     */
     public <T> T execute(JedisOperation<T> operation) {
-        Jedis jedis = jedisPool.getResource();
+        return execute(null, operation);
+    }
+
+    /**
+     * Runs an operation on the shard holding the key. The operation may use any key with the same hash tag.
+     *
+     * @param key a key of the operation, or null when it only uses keys that belong to no user, goal or community run.
+     * @throws RedisUnavailableException when Redis does not answer in time or the circuit breaker is open.
+     */
+    public <T> T execute(final String key, final JedisOperation<T> operation) {
+        return executeOnShards(RedisMetrics.name(operation), new JedisShardedOperation<T>() {
+            @Override
+            public T perform(JedisShards shards) {
+                return operation.perform(shards.shard(key));
+            }
+        });
+    }
+
+    /**
+     * Runs an operation with a connection to every shard.
+     */
+    public <T> T executeOnShards(JedisShardedOperation<T> operation) {
+        return executeOnShards(RedisMetrics.name(operation), operation);
+    }
+
+    private <T> T executeOnShards(String name, JedisShardedOperation<T> operation) {
+        if (shardedJedisPool != null) {
+            return execute(name, shardedJedisPool, null, shardedJedis -> new JedisShards(shardedJedis, metrics, this::circuitBreaker), operation);
+        }
+        return execute(name, jedisPool, circuitBreaker(MASTER), jedis -> new JedisShards(jedis, metrics), operation);
+    }
+
+    /**
+     * Runs a read-only operation on keys that belong to no user, goal or community run, on a replica when one is in
+     * sync.
+     */
+    public <T> T executeRead(JedisOperation<T> operation) {
+        return executeRead(null, operation);
+    }
+
+    /**
+     * Runs a read-only operation on a replica in sync with the master, or on the shard holding the key.
+     *
+     * @see #execute(String, JedisOperation)
+     */
+    public <T> T executeRead(final String key, final JedisOperation<T> operation) {
+        return executeReadOnShards(RedisMetrics.name(operation), new JedisShardedOperation<T>() {
+            @Override
+            public T perform(JedisShards shards) {
+                return operation.perform(shards.shard(key));
+            }
+        });
+    }
+
+    /**
+     * Runs a read-only operation on a replica in sync with the master, or with a connection to every shard. Replicas
+     * keep serving reads while the circuit breaker of the master is open.
+     */
+    public <T> T executeReadOnShards(JedisShardedOperation<T> operation) {
+        return executeReadOnShards(RedisMetrics.name(operation), operation);
+    }
+
+    private <T> T executeReadOnShards(String name, JedisShardedOperation<T> operation) {
+        JedisReplicas.Replica replica = jedisReplicas == null || jedisPool == null ? null : jedisReplicas.choose(jedisPool);
+        if (replica == null) {
+            return executeOnShards(name, operation);
+        }
+        Jedis jedis = null;
         try {
-            return operation.perform(jedis);
+            long borrowStart = System.nanoTime();
+            jedis = replica.pool.getResource();
+            long start = System.nanoTime();
+            metrics.borrowed(start - borrowStart);
+            T result = operation.perform(new JedisShards(jedis, metrics));
+            metrics.performed(name, System.nanoTime() - start);
+            return result;
         } catch (JedisConnectionException e) {
-            if (null != jedis) {
-                jedisPool.returnBrokenResource(jedis);
+            if (jedis != null) {
+                replica.pool.returnBrokenResource(jedis);
                 jedis = null;
             }
+            metrics.failed();
+            replica.markDown();
+            logger.warn("Read on a Redis replica failed, reading from the master : {}", e.getMessage());
         } finally {
-            if (null != jedis) {
-                jedisPool.returnResource(jedis);
+            if (jedis != null) {
+                replica.pool.returnResource(jedis);
+            }
+        }
+        return executeOnShards(name, operation);
+    }
+
+    /**
+     * @param circuitBreaker the breaker of the server behind the pool, or null when the shards check their own.
+     */
+    private <R, T> T execute(String name, Pool<R> pool, RedisCircuitBreaker circuitBreaker, Function<R, JedisShards> shards, JedisShardedOperation<T> operation) {
+        if (circuitBreaker != null && !circuitBreaker.allowRequest()) {
+            metrics.refused();
+            throw new RedisUnavailableException("Redis circuit breaker is open");
+        }
+        R resource = null;
+        JedisShards connections = null;
+        try {
+            long borrowStart = System.nanoTime();
+            resource = borrow(pool);
+            long start = System.nanoTime();
+            metrics.borrowed(start - borrowStart);
+            connections = shards.apply(resource);
+            T result = operation.perform(connections);
+            if (name != null) {
+                metrics.performed(name, System.nanoTime() - start);
+            }
+            recordSuccess(circuitBreaker, connections);
+            return result;
+        } catch (JedisConnectionException e) {
+            metrics.failed();
+            if (circuitBreaker != null) {
+                circuitBreaker.recordFailure();
+            } else if (connections != null) {
+                connections.recordFailure();
+            }
+            if (null != resource) {
+                pool.returnBrokenResource(resource);
+                resource = null;
+            }
+            throw new RedisUnavailableException("Redis did not answer in time", e);
+        } catch (RedisUnavailableException e) {
+            if (circuitBreaker != null) {
+                circuitBreaker.releaseProbe();
+            } else if (connections != null) {
+                connections.releaseProbes();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            recordSuccess(circuitBreaker, connections);
+            throw e;
+        } finally {
+            if (null != resource) {
+                pool.returnResource(resource);
+            }
+        }
+    }
+
+    /**
+     * A pool that times out waiting for a connection is exhausted by the load on it, not failed by Redis, so the
+     * timeout is not recorded by the circuit breaker.
+     */
+    private <R> R borrow(Pool<R> pool) {
+        try {
+            return pool.getResource();
+        } catch (JedisConnectionException e) {
+            if (isPoolExhausted(e)) {
+                metrics.failed();
+                throw new RedisUnavailableException("No Redis connection was free in time", e);
             }
+            throw e;
+        }
+    }
+
+    /**
+     * The pool reports a borrow that timed out with the NoSuchElementException of commons-pool, which it also throws
+     * when a new connection fails validation.
+     */
+    static boolean isPoolExhausted(JedisConnectionException e) {
+        return e.getCause() instanceof NoSuchElementException && String.valueOf(e.getCause().getMessage()).startsWith("Timeout waiting");
+    }
+
+    private void recordSuccess(RedisCircuitBreaker circuitBreaker, JedisShards connections) {
+        if (circuitBreaker != null) {
+            circuitBreaker.recordSuccess();
+        } else if (connections != null) {
+            connections.recordSuccess();
+        }
+    }
+
+    RedisCircuitBreaker circuitBreaker(String server) {
+        return circuitBreakers.computeIfAbsent(server, key -> new RedisCircuitBreaker(breakerFailures, breakerOpenMillis));
+    }
+
+    /**
+     * Queues the operation on the batch of the current thread, or sends it right away when there is none. Writes whose
+     * reply is not needed and reads that can wait for the end of the request should go through here.
+     * <p>
+     * Like a batch that cannot be flushed, an operation sent right away while Redis is unavailable is logged and lost,
+     * and its reply is never completed, so callers behave the same with or without REDIS_REQUEST_BATCHING.
+     *
+     * @param key the key used by the operation, or one with the same hash tag.
+     */
+    public <T> Deferred<T> executeBatched(String key, JedisPipelineOperation<T> operation) {
+        JedisBatch batch = BATCH.get();
+        if (batch != null) {
+            return batch.add(key, operation);
+        }
+        JedisBatch single = new JedisBatch();
+        Deferred<T> reply = single.add(key, operation);
+        try {
+            flush(single);
+        } catch (RedisUnavailableException e) {
+            logger.error("Redis operation {} is lost : {}", RedisMetrics.name(operation), e.getMessage());
+        }
+        return reply;
+    }
+
+    /**
+     * Starts collecting the batched operations of the current thread, when request batching is enabled.
+     */
+    public void beginBatch() {
+        if (!batching) {
+            return;
+        }
+        JedisBatch stale = BATCH.get();
+        if (stale != null) {
+            logger.warn("Flushing {} Redis operations left in the batch of a previous request", stale.size());
+            flushBatch();
+        }
+        BATCH.set(new JedisBatch());
+    }
+
+    /**
+     * Sends the operations collected since {@link #beginBatch()} in one pipeline per shard and stops collecting.
+     */
+    public void flushBatch() {
+        JedisBatch batch = BATCH.get();
+        if (batch == null) {
+            return;
+        }
+        BATCH.remove();
+        if (!batch.isEmpty()) {
+            flush(batch);
         }
-        return null;
+    }
+
+    /**
+     * The batch times its operations under their own names, so the flush itself is not timed.
+     */
+    private void flush(final JedisBatch batch) {
+        executeOnShards(null, new JedisShardedOperation<Void>() {
+            @Override
+            public Void perform(JedisShards shards) {
+                batch.flush(shards, metrics);
+                return null;
+            }
+        });
     }
 
     public void setJedisPool(JedisPool jedisPool) {
         this.jedisPool = jedisPool;
     }
+
+    public void setJedisReplicas(JedisReplicas jedisReplicas) {
+        this.jedisReplicas = jedisReplicas;
+    }
+
+    /**
+     * @return how long a circuit breaker refuses operations before it probes Redis again.
+     */
+    public long getBreakerOpenMillis() {
+        return breakerOpenMillis;
+    }
+
+    public Map<String, Object> metrics() {
+        Map<String, PoolGauges> pools = new LinkedHashMap<>();
+        if (jedisPool instanceof PoolGauges) {
+            pools.put("master", (PoolGauges) jedisPool);
+        }
+        if (shardedJedisPool instanceof PoolGauges) {
+            pools.put("shards", (PoolGauges) shardedJedisPool);
+        }
+        if (jedisReplicas != null) {
+            List<JedisPool> replicaPools = jedisReplicas.getPools();
+            for (int i = 0; i < replicaPools.size(); i++) {
+                if (replicaPools.get(i) instanceof PoolGauges) {
+                    pools.put("replica" + i, (PoolGauges) replicaPools.get(i));
+                }
+            }
+        }
+        Map<String, RedisCircuitBreaker.State> states = new TreeMap<>();
+        circuitBreakers.forEach((server, circuitBreaker) -> states.put(server, circuitBreaker.getState()));
+        return metrics.snapshot(pools, states);
+    }
 }
@@ -0,0 +1,12 @@
+package org.miles2run.core.repositories.redis;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+/**
+ * A command queued on a pipeline, which can be batched with the commands of the rest of the request.
+ */
+public interface JedisPipelineOperation<T> {
+
+    Response<T> perform(Pipeline pipeline);
+}
@@ -0,0 +1,173 @@
+package org.miles2run.core.repositories.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisException;
+import redis.clients.util.Pool;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Read replicas of the Redis master. A replica serves reads while its link to the master is up and the replication
+ * offset it has applied is at most REDIS_REPLICA_MAX_LAG_BYTES, 65536 by default, behind the offset of the master. The
+ * offsets are read from INFO replication of the master and the replica, which Redis reports from 2.8 on, at most once
+ * every REDIS_REPLICA_CHECK_MILLIS, on the thread reading at that time. A replica that fails a read, or whose master
+ * cannot be reached, is left out until its next check.
+ * <p>
+ * The lag is measured in bytes of the replication stream rather than seconds: a replica that has heard from its master
+ * recently may still be far behind it after a burst of writes.
+ */
+public class JedisReplicas {
+
+    private final Logger logger = LoggerFactory.getLogger(JedisReplicas.class);
+    private final List<Replica> replicas = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
+    private final long maxLagBytes;
+    private final long checkIntervalMillis;
+
+    public JedisReplicas(List<JedisPool> pools, long maxLagBytes, long checkIntervalMillis) {
+        for (JedisPool pool : pools) {
+            replicas.add(new Replica(pool));
+        }
+        this.maxLagBytes = maxLagBytes;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    public boolean isEmpty() {
+        return replicas.isEmpty();
+    }
+
+    /**
+     * @param master pool of the master the replicas follow.
+     * @return the next replica in sync with the master, in turn, or null when none is.
+     */
+    Replica choose(Pool<Jedis> master) {
+        int start = next.getAndIncrement();
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get(Math.floorMod(start + i, replicas.size()));
+            if (replica.isUsable(master)) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    public List<JedisPool> getPools() {
+        List<JedisPool> pools = new ArrayList<>();
+        for (Replica replica : replicas) {
+            pools.add(replica.pool);
+        }
+        return pools;
+    }
+
+    public void destroy() {
+        for (Replica replica : replicas) {
+            replica.pool.destroy();
+        }
+    }
+
+    /**
+     * @param replication  reply of INFO replication of the replica.
+     * @param masterOffset replication offset of the master, read before the replica's.
+     */
+    static boolean inSync(String replication, long masterOffset, long maxLagBytes) {
+        Map<String, String> fields = fields(replication);
+        if (!"slave".equals(fields.get("role")) || !"up".equals(fields.get("master_link_status")) || "1".equals(fields.get("master_sync_in_progress"))) {
+            return false;
+        }
+        try {
+            return masterOffset >= 0 && masterOffset - Long.parseLong(fields.get("slave_repl_offset")) <= maxLagBytes;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param replication reply of INFO replication of the master.
+     * @return the replication offset of the master, or -1 when it does not report one.
+     */
+    static long masterOffset(String replication) {
+        try {
+            return Long.parseLong(fields(replication).get("master_repl_offset"));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static Map<String, String> fields(String replication) {
+        Map<String, String> fields = new HashMap<>();
+        for (String line : replication.split("\r?\n")) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                fields.put(line.substring(0, colon), line.substring(colon + 1).trim());
+            }
+        }
+        return fields;
+    }
+
+    class Replica {
+
+        final JedisPool pool;
+        private final AtomicBoolean checking = new AtomicBoolean();
+        private volatile boolean usable;
+        private volatile long checkedAt;
+
+        Replica(JedisPool pool) {
+            this.pool = pool;
+        }
+
+        boolean isUsable(Pool<Jedis> master) {
+            long now = System.currentTimeMillis();
+            if (now - checkedAt >= checkIntervalMillis && checking.compareAndSet(false, true)) {
+                try {
+                    boolean inSync = check(master);
+                    if (inSync != usable) {
+                        logger.info("Redis replica {} serving reads", inSync ? "now" : "no longer");
+                    }
+                    usable = inSync;
+                    checkedAt = now;
+                } finally {
+                    checking.set(false);
+                }
+            }
+            return usable;
+        }
+
+        void markDown() {
+            usable = false;
+            checkedAt = System.currentTimeMillis();
+        }
+
+        private boolean check(Pool<Jedis> master) {
+            String masterReplication = info(master);
+            if (masterReplication == null) {
+                return false;
+            }
+            String replication = info(pool);
+            return replication != null && inSync(replication, masterOffset(masterReplication), maxLagBytes);
+        }
+
+        private String info(Pool<Jedis> server) {
+            Jedis jedis = null;
+            try {
+                jedis = server.getResource();
+                String replication = jedis.info("replication");
+                server.returnResource(jedis);
+                return replication;
+            } catch (JedisException e) {
+                if (jedis != null) {
+                    server.returnBrokenResource(jedis);
+                }
+                logger.warn("Could not read the replication state of Redis : {}", e.getMessage());
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package org.miles2run.core.repositories.redis;
+
+/**
+ * An operation on keys that may be spread over several Redis shards.
+ */
+public interface JedisShardedOperation<T> {
+
+    T perform(JedisShards shards);
+}
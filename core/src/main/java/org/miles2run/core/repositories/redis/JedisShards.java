@@ -0,0 +1,151 @@
+package org.miles2run.core.repositories.redis;
+
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.ShardedJedis;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * Connections borrowed for one operation, one per Redis shard. A key is on the shard chosen by its hash tag, or by
+ * the whole key when it has none; the keys that belong to no user, goal or community run are on the shard of the null
+ * key. Without sharding every key is on the same connection.
+ * <p>
+ * Commands on keys of several shards are queued with {@link #pipeline(String)}, which opens one pipeline per shard,
+ * and sent with {@link #sync()}, so a pipeline spanning users takes one round trip per shard instead of failing.
+ * <p>
+ * When Redis is sharded every shard has its own {@link RedisCircuitBreaker}: a shard is refused while its breaker is
+ * open, and a connection failure is recorded against the shard last used, so one failing shard does not refuse the
+ * keys of the others.
+ */
+public class JedisShards {
+
+    static final String GLOBAL_KEYS = "{global}";
+
+    private final Jedis jedis;
+    private final ShardedJedis shardedJedis;
+    private final Map<Jedis, Pipeline> pipelines = new LinkedHashMap<>();
+    private final RedisMetrics metrics;
+    private final Function<String, RedisCircuitBreaker> circuitBreakers;
+    private final Map<Jedis, RedisCircuitBreaker> allowed = new LinkedHashMap<>();
+    private RedisCircuitBreaker current;
+    private int queued;
+
+    JedisShards(Jedis jedis) {
+        this(jedis, null);
+    }
+
+    JedisShards(Jedis jedis, RedisMetrics metrics) {
+        this.jedis = jedis;
+        this.shardedJedis = null;
+        this.metrics = metrics;
+        this.circuitBreakers = null;
+    }
+
+    /**
+     * @param circuitBreakers the breaker of every shard by <code>host:port</code>.
+     */
+    JedisShards(ShardedJedis shardedJedis, RedisMetrics metrics, Function<String, RedisCircuitBreaker> circuitBreakers) {
+        this.jedis = null;
+        this.shardedJedis = shardedJedis;
+        this.metrics = metrics;
+        this.circuitBreakers = circuitBreakers;
+    }
+
+    /**
+     * @throws RedisUnavailableException when the circuit breaker of the shard is open.
+     */
+    public Jedis shard(String key) {
+        if (shardedJedis == null) {
+            return jedis;
+        }
+        String shardKey = key == null ? GLOBAL_KEYS : key;
+        Jedis shard = shardedJedis.getShard(shardKey);
+        if (circuitBreakers != null) {
+            current = allow(shard, shardedJedis.getShardInfo(shardKey));
+        }
+        return shard;
+    }
+
+    private RedisCircuitBreaker allow(Jedis shard, JedisShardInfo shardInfo) {
+        RedisCircuitBreaker circuitBreaker = allowed.get(shard);
+        if (circuitBreaker == null) {
+            String server = shardInfo.getHost() + ":" + shardInfo.getPort();
+            circuitBreaker = circuitBreakers.apply(server);
+            if (!circuitBreaker.allowRequest()) {
+                if (metrics != null) {
+                    metrics.refused();
+                }
+                throw new RedisUnavailableException("Redis circuit breaker of shard " + server + " is open");
+            }
+            allowed.put(shard, circuitBreaker);
+        }
+        return circuitBreaker;
+    }
+
+    /**
+     * Records that every shard used answered.
+     */
+    void recordSuccess() {
+        for (RedisCircuitBreaker circuitBreaker : allowed.values()) {
+            circuitBreaker.recordSuccess();
+        }
+    }
+
+    /**
+     * Gives back the probes of the half-open shards used, when the operation failed for another reason than them.
+     */
+    void releaseProbes() {
+        for (RedisCircuitBreaker circuitBreaker : allowed.values()) {
+            circuitBreaker.releaseProbe();
+        }
+    }
+
+    /**
+     * Records that the shard last used could not be reached or did not answer in time.
+     */
+    void recordFailure() {
+        if (current != null) {
+            current.recordFailure();
+        }
+    }
+
+    /**
+     * @return the keys held by every shard, in the order they were given.
+     */
+    public Map<Jedis, List<String>> partition(Collection<String> keys) {
+        Map<Jedis, List<String>> partitions = new LinkedHashMap<>();
+        for (String key : keys) {
+            partitions.computeIfAbsent(shard(key), shard -> new ArrayList<>()).add(key);
+        }
+        return partitions;
+    }
+
+    /**
+     * @return the pipeline of the shard holding the key, opened the first time the shard is used.
+     */
+    public Pipeline pipeline(String key) {
+        queued++;
+        return pipelines.computeIfAbsent(shard(key), Jedis::pipelined);
+    }
+
+    /**
+     * Sends the commands queued on the pipelines of every shard and reads their replies. The number of pipeline lookups
+     * since the previous sync is recorded as the size of the pipelines.
+     */
+    public void sync() {
+        for (Map.Entry<Jedis, Pipeline> pipeline : pipelines.entrySet()) {
+            if (circuitBreakers != null) {
+                current = allowed.get(pipeline.getKey());
+            }
+            pipeline.getValue().sync();
+        }
+        pipelines.clear();
+        if (metrics != null && queued > 0) {
+            metrics.pipelineSynced(queued);
+        }
+        queued = 0;
+    }
+}
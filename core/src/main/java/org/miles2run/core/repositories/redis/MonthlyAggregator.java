@@ -0,0 +1,107 @@
+package org.miles2run.core.repositories.redis;
+
+import org.joda.time.Chronology;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Streams rollup buckets into per month totals kept in primitive arrays indexed by month ordinal, counted from the
+ * month of the first instant aggregated.
+ * <p>
+ * Pace statistics are over buckets: the mean is the total of the activity paces divided by the number of activities,
+ * while the minimum and maximum are taken over the mean pace of every 15 minute bucket, which holds a single activity
+ * unless activities overlap.
+ */
+public class MonthlyAggregator implements GoalRollupRepository.BucketVisitor {
+
+    private static final DateTimeFormatter MONTH_NAME_FORMAT = DateTimeFormat.forPattern("yyyy-MMMM");
+
+    private final Chronology chronology;
+    private final DateTimeZone dateTimeZone;
+    private final int firstMonth;
+    private final double[] distance;
+    private final long[] duration;
+    private final long[] count;
+    private final double[] paceSum;
+    private final double[] minPace;
+    private final double[] maxPace;
+
+    /**
+     * @param start first instant aggregated
+     * @param end   instant after the last one aggregated
+     */
+    public MonthlyAggregator(long start, long end, DateTimeZone dateTimeZone) {
+        this.dateTimeZone = dateTimeZone;
+        this.chronology = ISOChronology.getInstance(dateTimeZone);
+        this.firstMonth = monthOrdinal(start);
+        int months = monthOrdinal(end - 1) - firstMonth + 1;
+        this.distance = new double[months];
+        this.duration = new long[months];
+        this.count = new long[months];
+        this.paceSum = new double[months];
+        this.minPace = new double[months];
+        this.maxPace = new double[months];
+    }
+
+    private int monthOrdinal(long instant) {
+        return chronology.year().get(instant) * 12 + chronology.monthOfYear().get(instant) - 1;
+    }
+
+    @Override
+    public void visit(long bucketStart, double bucketDistance, long bucketDuration, long bucketCount, double bucketPaceSum) {
+        int month = monthOrdinal(bucketStart) - firstMonth;
+        if (month < 0 || month >= count.length) {
+            return;
+        }
+        double pace = bucketPaceSum / bucketCount;
+        if (count[month] == 0) {
+            minPace[month] = pace;
+            maxPace[month] = pace;
+        } else {
+            minPace[month] = Math.min(minPace[month], pace);
+            maxPace[month] = Math.max(maxPace[month], pace);
+        }
+        distance[month] += bucketDistance;
+        duration[month] += bucketDuration;
+        count[month] += bucketCount;
+        paceSum[month] += bucketPaceSum;
+    }
+
+    public int getMonths() {
+        return count.length;
+    }
+
+    /**
+     * @return the month at the ordinal in <code>yyyy-MMMM</code> format.
+     */
+    public String monthName(int month) {
+        int ordinal = firstMonth + month;
+        return MONTH_NAME_FORMAT.withZone(dateTimeZone).print(chronology.getDateTimeMillis(ordinal / 12, ordinal % 12 + 1, 1, 0));
+    }
+
+    public double distance(int month) {
+        return distance[month];
+    }
+
+    public long duration(int month) {
+        return duration[month];
+    }
+
+    public long count(int month) {
+        return count[month];
+    }
+
+    public double meanPace(int month) {
+        return count[month] == 0 ? 0 : paceSum[month] / count[month];
+    }
+
+    public double minPace(int month) {
+        return minPace[month];
+    }
+
+    public double maxPace(int month) {
+        return maxPace[month];
+    }
+}
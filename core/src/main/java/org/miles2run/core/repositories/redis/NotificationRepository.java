@@ -23,10 +23,11 @@ public class NotificationRepository {
     }
 
     public Long addNotification(final Notification notification) {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+        final String notificationsKey = String.format(RedisKeyNames.NOTIFICATIONS_S, notification.getUserToNotify());
+        return jedisExecution.execute(notificationsKey, new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
-                return jedis.zadd("notifications:" + notification.getUserToNotify(), notification.getTimestamp(), toJSON(notification));
+                return jedis.zadd(notificationsKey, notification.getTimestamp(), toJSON(notification));
             }
         });
     }
@@ -37,11 +38,12 @@ public class NotificationRepository {
     }
 
     public Set<Notification> notifications(final String username) {
-        Set<String> notificationStrings = jedisExecution.execute(new JedisOperation<Set<String>>() {
+        final String notificationsKey = String.format(RedisKeyNames.NOTIFICATIONS_S, username);
+        Set<String> notificationStrings = jedisExecution.executeRead(notificationsKey, new JedisOperation<Set<String>>() {
             @Override
             public Set<String> perform(Jedis jedis) {
                 long currentTimestamp = new Date().getTime();
-                return jedis.zrevrangeByScore("notifications:" + username, currentTimestamp, 0);
+                return jedis.zrevrangeByScore(notificationsKey, currentTimestamp, 0);
             }
         });
 
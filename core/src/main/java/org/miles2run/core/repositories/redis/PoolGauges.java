@@ -0,0 +1,13 @@
+package org.miles2run.core.repositories.redis;
+
+/**
+ * Connections of a Redis pool, for pools created with their gauges exposed.
+ */
+public interface PoolGauges {
+
+    int getNumActive();
+
+    int getNumIdle();
+
+    int getMaxActive();
+}
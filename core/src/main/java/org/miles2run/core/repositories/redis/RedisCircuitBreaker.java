@@ -0,0 +1,104 @@
+package org.miles2run.core.repositories.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Stops sending operations to Redis once it has failed to answer a number of times in a row, so that request threads
+ * fail fast instead of queuing for connections while Redis stalls.
+ * <p>
+ * The breaker opens after the given number of consecutive connection failures. While open every operation is refused.
+ * Once the open interval has passed the breaker is half-open and lets a single probe through: the breaker closes when
+ * Redis answers it and opens again when it fails.
+ */
+public class RedisCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final Logger logger = LoggerFactory.getLogger(RedisCircuitBreaker.class);
+    private final int failureThreshold;
+    private final long openMillis;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private volatile State state = State.CLOSED;
+    private volatile long openedAt;
+
+    public RedisCircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * @return whether an operation may be sent to Redis now.
+     */
+    public boolean allowRequest() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            synchronized (this) {
+                if (state == State.OPEN && System.currentTimeMillis() - openedAt >= openMillis) {
+                    state = State.HALF_OPEN;
+                    probing.set(false);
+                }
+            }
+        }
+        return state == State.HALF_OPEN && probing.compareAndSet(false, true);
+    }
+
+    /**
+     * Records that Redis answered, with a reply or an error.
+     */
+    public void recordSuccess() {
+        if (state == State.CLOSED && consecutiveFailures.get() == 0) {
+            return;
+        }
+        synchronized (this) {
+            if (state != State.CLOSED) {
+                logger.info("Redis answered, closing the circuit breaker");
+            }
+            state = State.CLOSED;
+            consecutiveFailures.set(0);
+            probing.set(false);
+        }
+    }
+
+    /**
+     * Gives back the probe of a half-open breaker when the operation ended without telling whether Redis answers, such
+     * as a borrow that timed out on an exhausted pool, so that the next operation probes instead.
+     */
+    public void releaseProbe() {
+        probing.set(false);
+    }
+
+    /**
+     * Records that Redis could not be reached or did not answer in time.
+     */
+    public void recordFailure() {
+        int failures = consecutiveFailures.incrementAndGet();
+        synchronized (this) {
+            if (state == State.HALF_OPEN || (state == State.CLOSED && failures >= failureThreshold)) {
+                logger.warn("Redis failed {} times in a row, refusing operations for {} ms", failures, openMillis);
+                state = State.OPEN;
+                openedAt = System.currentTimeMillis();
+                probing.set(false);
+            }
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public long getOpenMillis() {
+        return openMillis;
+    }
+}
@@ -1,18 +1,54 @@
 package org.miles2run.core.repositories.redis;
 
+/**
+ * Key names, with the {@link HashTags} of the user, goal or community run they belong to between braces. Keys without
+ * a tag are either alone in every command touching them or global, used through
+ * {@link JedisExecution#execute(JedisOperation)} only.
+ */
 public interface RedisKeyNames {
 
-    public static final String PROFILE_S_TIMELINE = "profile:%s:timeline";
-    public static final String HOME_S_TIMELINE = "home:%s:timeline";
-    public static final String PROFILE_S_GOAL_S_TIMELINE = "profile:%s:goal:%s:timeline";
-    public static final String PROFILE_S_TIMELINE_LATEST = "profile:%s:timeline:latest";
+    public static final String PROFILE_S_TIMELINE = HashTags.keyFormat("profile:{%s}:timeline");
+    public static final String HOME_S_TIMELINE = HashTags.keyFormat("home:{%s}:timeline");
+    public static final String HOME_S_TIMELINE_MATERIALIZED = HashTags.keyFormat("home:{%s}:timeline:materialized");
+    public static final String PROFILE_S_GOAL_S_TIMELINE = HashTags.keyFormat("profile:{%s}:goal:%s:timeline");
+    public static final String PROFILE_S_TIMELINE_LATEST = HashTags.keyFormat("profile:{%s}:timeline:latest");
+    public static final String PROFILE_S_COMMUNITY_RUNS_SET = HashTags.keyFormat("{%s}-community_runs");
+    public static final String NOTIFICATIONS_S = HashTags.keyFormat("notifications:{%s}");
     public static final String ACTIVITY_S = "activity:%s";
-    public static final String COMMUNITY_RUN_TIMELINE = "community_run:%s:timeline";
+    public static final String USER_S = "user:%s";
+    public static final String GOAL_S_PROGRESS = HashTags.keyFormat("goal:{%s}:progress");
+    public static final String GOAL_S_ROLLUP = HashTags.keyFormat("goal:{%s}:rollup");
+    public static final String GOAL_S_ROLLUP_S = HashTags.keyFormat("goal:{%s}:rollup:%s");
+    public static final String GOAL_S_ROLLUP_CONTRIBUTIONS = HashTags.keyFormat("goal:{%s}:rollup_contributions");
+    public static final String GOAL_S_DAYS = HashTags.keyFormat("goal:{%s}:days");
+    public static final String GOAL_S_DAYS_BASE = HashTags.keyFormat("goal:{%s}:days:base");
+    public static final String GOAL_S_STREAK = HashTags.keyFormat("goal:{%s}:streak");
+    public static final String HEAVY_ACCOUNTS_SET = "timeline:heavy_accounts";
+    public static final String REBUILD_CHECKPOINT = "rebuild:checkpoint";
+    public static final String ACTIVITY_COMPACTION_CHECKPOINT = "activity_compaction:checkpoint";
+    public static final String COMMUNITY_RUN_TIMELINE = HashTags.keyFormat("community_run:{%s}:timeline");
+    public static final String COMMUNITY_RUN_LEADERBOARD_BUILT = HashTags.keyFormat("community_run:{%s}:leaderboard:built");
+    public static final String COMMUNITY_RUN_LEADERBOARD_CHANGES = HashTags.keyFormat("community_run:{%s}:leaderboard:changes");
+    public static final String COMMUNITY_RUN_LEADERBOARD_PENDING = HashTags.keyFormat("community_run:{%s}:leaderboard:pending");
+    public static final String COMMUNITY_RUN_LEADERBOARD_LOCK = HashTags.keyFormat("community_run:{%s}:leaderboard:lock");
+    public static final String COMMUNITY_RUN_LEADERBOARD_S = HashTags.keyFormat("community_run:{%s}:leaderboard:%s");
     public static final String COMMUNITY_RUNS = "community_runs";
-    public static final String CR_GOALS_SET = "%s-goals";
+    public static final String CR_GOALS_SET = HashTags.keyFormat("{%s}-goals");
+    public static final String CR_S_RUNNERS_SET = HashTags.keyFormat("{%s}-runners");
+    public static final String CR_S_ALL_RUNNERS_SET = HashTags.keyFormat("{%s}-all-runners");
+    public static final String CR_S_CITIES_SET = HashTags.keyFormat("{%s}-cities");
+    public static final String CR_S_COUNTRIES_SET = HashTags.keyFormat("{%s}-countries");
+    public static final String CR_S_ALL_RUNNERS_HLL = HashTags.keyFormat("{%s}-all-runners-hll");
+    public static final String CR_S_CITIES_HLL = HashTags.keyFormat("{%s}-cities-hll");
+    public static final String CR_S_COUNTRIES_HLL = HashTags.keyFormat("{%s}-countries-hll");
+    public static final String CR_S_ACTIVITY_COUNT = HashTags.keyFormat("{%s}-activity_count");
+    public static final String CR_S_TOTAL_DISTANCE_COVERED = HashTags.keyFormat("{%s}-total_distance_covered");
+    public static final String CR_S_TOTAL_DURATION = HashTags.keyFormat("{%s}-total_duration");
+    public static final String COUNTRY_HLL_KEY = "countries-hll";
     public static final String COUNTRY_SET_KEY = "countries";
     public static final String RUNNER_COUNTER = "runners";
     public static final String DISTANCE_COUNTER = "distance";
     public static final String CITY_SET_KEY = "cities";
+    public static final String CITY_HLL_KEY = "cities-hll";
     public static final String SECONDS_COUNTER = "hours";
 }
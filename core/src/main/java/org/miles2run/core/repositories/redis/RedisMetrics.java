@@ -0,0 +1,99 @@
+package org.miles2run.core.repositories.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Figures of the Redis operations run by {@link JedisExecution}: latency per operation, time spent waiting for a pooled
+ * connection and number of operations sent in every pipeline. An operation is named after the repository method that
+ * defines it, such as <code>TimelineRepository.readTimeline</code>, and its latency covers every command it sends.
+ * Operations slower than the slow threshold are logged.
+ */
+public class RedisMetrics {
+
+    private static final ClassValue<String> NAMES = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            Class<?> owner = type.getEnclosingClass() == null ? type : type.getEnclosingClass();
+            return type.getEnclosingMethod() == null ? owner.getSimpleName() : owner.getSimpleName() + "." + type.getEnclosingMethod().getName();
+        }
+    };
+
+    private final Logger logger = LoggerFactory.getLogger(RedisMetrics.class);
+    private final ConcurrentMap<String, Histogram> operations = new ConcurrentHashMap<>();
+    private final Histogram borrowWait = new Histogram(Histogram.LATENCY_MICROS);
+    private final Histogram pipelineSizes = new Histogram(Histogram.SIZES);
+    private final AtomicLong slowOperations = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final long slowOperationMillis;
+
+    public RedisMetrics(long slowOperationMillis) {
+        this.slowOperationMillis = slowOperationMillis;
+    }
+
+    static String name(Object operation) {
+        return NAMES.get(operation.getClass());
+    }
+
+    void borrowed(long waitNanos) {
+        borrowWait.record(waitNanos / 1000);
+    }
+
+    void performed(String operation, long nanos) {
+        operations.computeIfAbsent(operation, name -> new Histogram(Histogram.LATENCY_MICROS)).record(nanos / 1000);
+        long millis = nanos / 1000000;
+        if (slowOperationMillis > 0 && millis >= slowOperationMillis) {
+            slowOperations.incrementAndGet();
+            logger.warn("Slow Redis operation {} took {} ms", operation, millis);
+        }
+    }
+
+    void failed() {
+        failures.incrementAndGet();
+    }
+
+    void refused() {
+        refused.incrementAndGet();
+    }
+
+    void pipelineSynced(int operations) {
+        pipelineSizes.record(operations);
+    }
+
+    /**
+     * @param pools gauges of every pool by name.
+     * @param circuitBreakers state of the circuit breaker of every Redis server by name.
+     */
+    public Map<String, Object> snapshot(Map<String, PoolGauges> pools, Map<String, RedisCircuitBreaker.State> circuitBreakers) {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        Map<String, Object> breakerStates = new LinkedHashMap<>();
+        circuitBreakers.forEach((server, state) -> breakerStates.put(server, state.name()));
+        snapshot.put("circuitBreakers", breakerStates);
+        snapshot.put("failures", failures.get());
+        snapshot.put("refused", refused.get());
+        snapshot.put("slowOperations", slowOperations.get());
+        Map<String, Object> poolSnapshots = new LinkedHashMap<>();
+        pools.forEach((name, pool) -> {
+            Map<String, Object> gauges = new LinkedHashMap<>();
+            gauges.put("active", pool.getNumActive());
+            gauges.put("idle", pool.getNumIdle());
+            gauges.put("max", pool.getMaxActive());
+            poolSnapshots.put(name, gauges);
+        });
+        snapshot.put("pools", poolSnapshots);
+        snapshot.put("borrowWaitInMillis", borrowWait.snapshot(1000));
+        snapshot.put("pipelineSizes", pipelineSizes.snapshot(1));
+        Map<String, Object> latencies = new TreeMap<>();
+        operations.forEach((name, histogram) -> latencies.put(name, histogram.snapshot(1000)));
+        snapshot.put("operationLatencyInMillis", latencies);
+        return snapshot;
+    }
+}
@@ -0,0 +1,100 @@
+package org.miles2run.core.repositories.redis;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisDataException;
+import redis.clients.util.SafeEncoder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A Lua script loaded with SCRIPT LOAD the first time it is used and then invoked with EVALSHA. When Redis no longer
+ * knows the script, after a restart or a SCRIPT FLUSH, it is loaded again and the call is retried once.
+ */
+public class RedisScript {
+
+    private final Logger logger = LoggerFactory.getLogger(RedisScript.class);
+
+    private final String name;
+    private final String source;
+    private volatile String sha;
+
+    public RedisScript(String name, String source) {
+        this.name = name;
+        this.source = source;
+    }
+
+    public static RedisScript fromResource(String path) {
+        InputStream in = RedisScript.class.getClassLoader().getResourceAsStream(path);
+        if (in == null) {
+            throw new IllegalArgumentException(String.format("Redis script %s not found on classpath", path));
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+            return new RedisScript(path, reader.lines().collect(Collectors.joining("\n")));
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Unable to read Redis script %s", path), e);
+        }
+    }
+
+    public Object execute(Jedis jedis, List<String> keys, List<String> args) {
+        if (sha == null) {
+            sha = load(jedis);
+        }
+        try {
+            return jedis.evalsha(sha, keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            logger.info("Redis script {} is not loaded, loading it again", name);
+            sha = load(jedis);
+            return jedis.evalsha(sha, keys, args);
+        }
+    }
+
+    /**
+     * Invokes the script with binary keys and arguments, for values that are not text.
+     */
+    public Object executeBinary(Jedis jedis, List<byte[]> keys, List<byte[]> args) {
+        if (sha == null) {
+            sha = load(jedis);
+        }
+        try {
+            return jedis.evalsha(SafeEncoder.encode(sha), keys, args);
+        } catch (JedisDataException e) {
+            if (e.getMessage() == null || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            logger.info("Redis script {} is not loaded, loading it again", name);
+            sha = load(jedis);
+            return jedis.evalsha(SafeEncoder.encode(sha), keys, args);
+        }
+    }
+
+    /**
+     * Queues the script on a pipeline. The source is sent with EVAL, since a script missing from the script cache
+     * could not be loaded again in the middle of a pipeline.
+     */
+    public Response<String> queue(Pipeline pipeline, List<String> keys, List<String> args) {
+        return pipeline.eval(source, keys, args);
+    }
+
+    private String load(Jedis jedis) {
+        String loadedSha = jedis.scriptLoad(source);
+        logger.info("Loaded Redis script {} with sha {}", name, loadedSha);
+        return loadedSha;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
@@ -0,0 +1,19 @@
+package org.miles2run.core.repositories.redis;
+
+/**
+ * Thrown instead of a Redis reply when Redis cannot be reached in time, no pooled connection is free in time or the
+ * {@link RedisCircuitBreaker} of the Redis server is open.
+ * Callers that can do without the data kept in Redis catch it and leave that data out.
+ */
+public class RedisUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public RedisUnavailableException(String message) {
+        super(message);
+    }
+
+    public RedisUnavailableException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
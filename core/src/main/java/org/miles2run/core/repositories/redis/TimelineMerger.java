@@ -0,0 +1,71 @@
+package org.miles2run.core.repositories.redis;
+
+import redis.clients.jedis.Tuple;
+
+import java.util.*;
+
+/**
+ * K-way merge of timelines that are each already sorted newest first, as returned by ZREVRANGE WITHSCORES. Ties on
+ * score are broken on the member in reverse lexicographical order, which is the order Redis uses for ZREVRANGE, so a
+ * merged page is ordered exactly like a single sorted set containing all members would be.
+ */
+public final class TimelineMerger {
+
+    static final Comparator<Tuple> NEWEST_FIRST = (first, second) -> {
+        int byScore = Double.compare(second.getScore(), first.getScore());
+        return byScore != 0 ? byScore : second.getElement().compareTo(first.getElement());
+    };
+
+    private TimelineMerger() {
+    }
+
+    /**
+     * Merges timelines skipping the first <code>offset</code> distinct activities and returning at most
+     * <code>count</code> of them. An activity present in more than one timeline is returned once.
+     */
+    public static List<Tuple> merge(List<? extends Collection<Tuple>> timelines, long offset, long count) {
+        PriorityQueue<Head> heads = new PriorityQueue<>(Math.max(1, timelines.size()), (first, second) -> NEWEST_FIRST.compare(first.tuple, second.tuple));
+        for (Collection<Tuple> timeline : timelines) {
+            Iterator<Tuple> iterator = timeline.iterator();
+            if (iterator.hasNext()) {
+                heads.add(new Head(iterator.next(), iterator));
+            }
+        }
+        List<Tuple> merged = new ArrayList<>();
+        Set<String> seen = new HashSet<>();
+        long skipped = 0;
+        while (!heads.isEmpty() && merged.size() < count) {
+            Head head = heads.poll();
+            Tuple tuple = head.tuple;
+            if (seen.add(tuple.getElement())) {
+                if (skipped < offset) {
+                    skipped++;
+                } else {
+                    merged.add(tuple);
+                }
+            }
+            if (head.rest.hasNext()) {
+                heads.add(new Head(head.rest.next(), head.rest));
+            }
+        }
+        return merged;
+    }
+
+    public static Set<String> elements(List<Tuple> tuples) {
+        Set<String> elements = new LinkedHashSet<>();
+        for (Tuple tuple : tuples) {
+            elements.add(tuple.getElement());
+        }
+        return elements;
+    }
+
+    private static class Head {
+        private final Tuple tuple;
+        private final Iterator<Tuple> rest;
+
+        private Head(Tuple tuple, Iterator<Tuple> rest) {
+            this.tuple = tuple;
+            this.rest = rest;
+        }
+    }
+}
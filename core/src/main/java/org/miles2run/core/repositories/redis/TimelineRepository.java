@@ -1,69 +1,345 @@
 package org.miles2run.core.repositories.redis;
 
+import org.miles2run.core.fanout.FollowerFanoutService;
 import org.miles2run.core.repositories.mongo.UserProfileRepository;
+import org.miles2run.core.repositories.redis.vo.CompactActivity;
+import org.miles2run.core.repositories.redis.vo.TimelineCursor;
+import org.miles2run.core.utils.EnvUtils;
 import org.miles2run.domain.documents.UserProfile;
 import org.miles2run.domain.entities.*;
+import org.miles2run.domain.kv_aggregates.ActivityAggregate;
+import org.miles2run.domain.kv_aggregates.TimelineAggregate;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.Tuple;
+import redis.clients.jedis.ZParams;
+import redis.clients.util.SafeEncoder;
 
+import javax.annotation.PostConstruct;
 import javax.enterprise.context.ApplicationScoped;
 import javax.inject.Inject;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toMap;
 
 @ApplicationScoped
 public class TimelineRepository {
 
-    private static final long TIMELINE_SIZE = 1000;
+    public static final long TIMELINE_SIZE = 1000;
+    private static final RedisScript POST_ACTIVITY_SCRIPT = RedisScript.fromResource("lua/post_activity.lua");
+    private static final RedisScript UPDATE_ACTIVITY_SCRIPT = RedisScript.fromResource("lua/update_activity.lua");
     private final Logger logger = LoggerFactory.getLogger(TimelineRepository.class);
 
     @Inject
     JedisExecution jedisExecution;
+    boolean compactActivities;
+    boolean sharded;
     @Inject
-    private UserProfileRepository userProfileRepository;
+    UserProfileRepository userProfileRepository;
+    @Inject
+    FollowerFanoutService followerFanoutService;
+
+    @PostConstruct
+    public void postConstruct() {
+        this.compactActivities = EnvUtils.booleanValue("ACTIVITY_COMPACT_ENCODING", false);
+        this.sharded = HashTags.isSharded();
+    }
 
     /**
-     * Get User's home timeline activity Ids.
+     * Get a page of User's home timeline with activities read from their Redis hashes. Pages are addressed either by
+     * offset or by the score based cursors returned with a previous page.
      *
-     * @param username user whose home timeline activity ids need to be retrieved.
-     * @param page
+     * @param username user whose home timeline needs to be retrieved.
+     * @param maxId    cursor returned with the previous page, null to start from the newest activity.
+     * @param sinceId  only activities newer than this cursor are returned, null for no lower bound.
+     * @param offset   number of activities to skip, 0 when paging with cursors.
      * @param count
-     * @return a set of activity ids or empty set if no activity exists.
+     * @return timeline page with the total activity count and the cursor of the next page.
+     */
+    public TimelineAggregate homeTimeline(final String username, final TimelineCursor maxId, final TimelineCursor sinceId, final long offset, final int count) {
+        boolean fromReplica = !materializeHomeTimeline(username);
+        List<String> timelineKeys = new ArrayList<>();
+        timelineKeys.add(String.format(RedisKeyNames.HOME_S_TIMELINE, username));
+        for (String heavyAccount : heavyAccountsFollowedBy(username)) {
+            timelineKeys.add(String.format(RedisKeyNames.PROFILE_S_TIMELINE, heavyAccount));
+        }
+        return readTimeline(timelineKeys, maxId, sinceId, offset, count, fromReplica);
+    }
+
+    /**
+     * Get a page of User's profile timeline with activities read from their Redis hashes.
+     *
+     * @see #homeTimeline(String, TimelineCursor, TimelineCursor, long, int)
+     */
+    public TimelineAggregate userProfileTimeline(final String username, final TimelineCursor maxId, final TimelineCursor sinceId, final long offset, final int count) {
+        return readTimeline(Collections.singletonList(String.format(RedisKeyNames.PROFILE_S_TIMELINE, username)), maxId, sinceId, offset, count, true);
+    }
+
+    /**
+     * Get a page of activities posted by user for a specific goal with activities read from their Redis hashes.
+     *
+     * @see #homeTimeline(String, TimelineCursor, TimelineCursor, long, int)
+     */
+    public TimelineAggregate goalTimeline(final String username, final Long goalId, final TimelineCursor maxId, final TimelineCursor sinceId, final long offset, final int count) {
+        return readTimeline(Collections.singletonList(String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goalId)), maxId, sinceId, offset, count, true);
+    }
+
+    /**
+     * Get a page of the activities posted for a community run with activities read from their Redis hashes.
+     *
+     * @see #homeTimeline(String, TimelineCursor, TimelineCursor, long, int)
      */
-    public Set<String> getHomeTimelineIds(final String username, final long page, final long count) {
+    public TimelineAggregate communityRunTimeline(final String slug, final TimelineCursor maxId, final TimelineCursor sinceId, final long offset, final int count) {
+        return readTimeline(Collections.singletonList(String.format(RedisKeyNames.COMMUNITY_RUN_TIMELINE, slug)), maxId, sinceId, offset, count, true);
+    }
 
-        return jedisExecution.execute(new JedisOperation<Set<String>>() {
+    /**
+     * Reads a timeline page in two pipelined round trips per shard: the range of every timeline key and the cardinality
+     * of the first, then the hashes of the activities on the page. Activities without a readable hash are left for the
+     * caller to load. The count is that of the first timeline, the one materialised for the reader: the profile
+     * timelines of heavy accounts merged into a home timeline share activities with it and with each other, so adding
+     * their cardinalities would count some activities twice.
+     * <p>
+     * Ranges are read by score strictly between the cursors, along with the activities sharing the score of a cursor,
+     * which are kept when their id places them on the right side of it.
+     *
+     * @param fromReplica false when a timeline has just been written and must be read from the master.
+     */
+    TimelineAggregate readTimeline(final List<String> timelineKeys, final TimelineCursor maxId, final TimelineCursor sinceId, final long offset, final int count, boolean fromReplica) {
+        final String max = maxId == null ? "+inf" : "(" + maxId.getScore();
+        final String min = sinceId == null ? "-inf" : "(" + sinceId.getScore();
+        final boolean sameScore = maxId != null && sinceId != null && maxId.getScore() == sinceId.getScore();
+        TimelineAggregate timeline = read(fromReplica, new JedisShardedOperation<TimelineAggregate>() {
             @Override
-            public Set<String> perform(Jedis jedis) {
-                String homeTimelineKey = String.format(RedisKeyNames.HOME_S_TIMELINE, username);
-                return jedis.zrevrange(homeTimelineKey, (page - 1) * count, page * (count - 1));
+            public TimelineAggregate perform(JedisShards shards) {
+                // only plain offset pages of a single timeline can be skipped by Redis
+                boolean skipInRedis = timelineKeys.size() == 1 && maxId == null && sinceId == null;
+                int rangeOffset = skipInRedis ? (int) offset : 0;
+                int rangeCount = skipInRedis ? count : (int) offset + count;
+                List<Response<Set<Tuple>>> ranges = new ArrayList<>();
+                List<Response<Set<Tuple>>> maxIdTies = new ArrayList<>();
+                List<Response<Set<Tuple>>> sinceIdTies = new ArrayList<>();
+                for (String timelineKey : timelineKeys) {
+                    Pipeline pipeline = shards.pipeline(timelineKey);
+                    ranges.add(pipeline.zrevrangeByScoreWithScores(timelineKey, max, min, rangeOffset, rangeCount));
+                    maxIdTies.add(maxId == null ? null : pipeline.zrevrangeByScoreWithScores(timelineKey, maxId.getScore(), maxId.getScore()));
+                    sinceIdTies.add(sinceId == null || sameScore ? null : pipeline.zrevrangeByScoreWithScores(timelineKey, sinceId.getScore(), sinceId.getScore()));
+                }
+                Response<Long> activityCount = shards.pipeline(timelineKeys.get(0)).zcard(timelineKeys.get(0));
+                shards.sync();
+                List<Tuple> page;
+                if (skipInRedis) {
+                    page = new ArrayList<>(ranges.get(0).get());
+                } else {
+                    List<List<Tuple>> windows = new ArrayList<>();
+                    for (int i = 0; i < timelineKeys.size(); i++) {
+                        windows.add(window(get(maxIdTies.get(i)), ranges.get(i).get(), get(sinceIdTies.get(i)), maxId, sinceId));
+                    }
+                    page = TimelineMerger.merge(windows, offset, count);
+                }
+                List<Long> activityIds = page.stream().map(tuple -> Long.valueOf(tuple.getElement())).collect(toList());
+                TimelineCursor nextMaxId = nextCursor(page, count);
+                return new TimelineAggregate(activityIds, hydrate(shards, activityIds), activityCount.get(), nextMaxId == null ? null : nextMaxId.toString());
+            }
+        });
+        return timeline == null ? TimelineAggregate.empty() : timeline;
+    }
+
+    private static Set<Tuple> get(Response<Set<Tuple>> response) {
+        return response == null ? Collections.<Tuple>emptySet() : response.get();
+    }
+
+    /**
+     * Activities of one timeline between the cursors, newest first: the activities sharing the score of max_id that are
+     * older than it, the range strictly between the scores of the cursors, then the activities sharing the score of
+     * since_id that are newer than it.
+     */
+    static List<Tuple> window(Set<Tuple> maxIdTies, Set<Tuple> range, Set<Tuple> sinceIdTies, TimelineCursor maxId, TimelineCursor sinceId) {
+        List<Tuple> window = new ArrayList<>();
+        for (Tuple tuple : maxIdTies) {
+            if (isBetween(tuple, maxId, sinceId)) {
+                window.add(tuple);
+            }
+        }
+        window.addAll(range);
+        for (Tuple tuple : sinceIdTies) {
+            if (isBetween(tuple, maxId, sinceId)) {
+                window.add(tuple);
+            }
+        }
+        return window;
+    }
+
+    private static boolean isBetween(Tuple tuple, TimelineCursor maxId, TimelineCursor sinceId) {
+        long score = (long) tuple.getScore();
+        return (maxId == null || maxId.isOlder(score, tuple.getElement())) && (sinceId == null || sinceId.isNewer(score, tuple.getElement()));
+    }
+
+    /**
+     * Reads the activity hashes of a page, in either encoding, and the user hashes of the authors of compact activities.
+     */
+    private Map<Long, ActivityAggregate> hydrate(JedisShards shards, List<Long> activityIds) {
+        if (activityIds.isEmpty()) {
+            return new HashMap<>();
+        }
+        List<Response<Map<byte[], byte[]>>> hashes = new ArrayList<>();
+        for (Long activityId : activityIds) {
+            String activityKey = String.format(RedisKeyNames.ACTIVITY_S, activityId);
+            hashes.add(shards.pipeline(activityKey).hgetAll(SafeEncoder.encode(activityKey)));
+        }
+        shards.sync();
+        Map<Long, Map<String, String>> textActivities = new HashMap<>();
+        Map<Long, CompactActivity> compactActivities = new HashMap<>();
+        for (int i = 0; i < activityIds.size(); i++) {
+            Map<byte[], byte[]> hash = hashes.get(i).get();
+            if (hash == null || hash.isEmpty()) {
+                continue;
+            }
+            byte[] compact = hash.get(ActivityCodec.COMPACT_FIELD_BYTES);
+            CompactActivity compactActivity = compact == null ? null : ActivityCodec.decode(compact);
+            if (compact == null) {
+                textActivities.put(activityIds.get(i), ActivityCodec.toStringHash(hash));
+            } else if (compactActivity != null) {
+                compactActivities.put(activityIds.get(i), compactActivity);
+            } else {
+                logger.warn("Unable to decode activity {} from Redis, it will be loaded from the database", activityIds.get(i));
+            }
+        }
+        Map<Long, Map<String, String>> users = new HashMap<>();
+        if (!compactActivities.isEmpty()) {
+            Map<Long, Response<Map<String, String>>> userHashes = new HashMap<>();
+            compactActivities.values().forEach(activity -> userHashes.computeIfAbsent(activity.getUserId(), userId -> {
+                String userKey = String.format(RedisKeyNames.USER_S, userId);
+                return shards.pipeline(userKey).hgetAll(userKey);
+            }));
+            shards.sync();
+            userHashes.forEach((userId, user) -> users.put(userId, user.get()));
+        }
+        return toActivities(activityIds, textActivities, compactActivities, users);
+    }
+
+    Map<Long, ActivityAggregate> toActivities(List<Long> activityIds, Map<Long, Map<String, String>> textActivities, Map<Long, CompactActivity> compactActivities, Map<Long, Map<String, String>> users) {
+        Map<Long, ActivityAggregate> activities = new HashMap<>();
+        for (Long activityId : activityIds) {
+            try {
+                if (textActivities.containsKey(activityId)) {
+                    activities.put(activityId, new ActivityAggregate(textActivities.get(activityId)));
+                } else if (compactActivities.containsKey(activityId)) {
+                    Map<String, String> user = users.get(compactActivities.get(activityId).getUserId());
+                    if (user != null && !user.isEmpty()) {
+                        activities.put(activityId, compactActivities.get(activityId).toActivityAggregate(activityId, user));
+                    }
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Unable to read activity {} from Redis, it will be loaded from the database", activityId);
+            }
+        }
+        return activities;
+    }
+
+    /**
+     * The next page starts after the last activity on this page.
+     */
+    static TimelineCursor nextCursor(List<Tuple> page, int count) {
+        if (page.isEmpty() || page.size() < count) {
+            return null;
+        }
+        Tuple last = page.get(page.size() - 1);
+        return new TimelineCursor((long) last.getScore(), last.getElement());
+    }
+
+    /**
+     * Heavy accounts followed by the user. Always empty when the hybrid timeline mode is disabled.
+     *
+     * @param username user whose followings need to be checked
+     * @return usernames of followed accounts whose activities are not pushed to followers
+     */
+    List<String> heavyAccountsFollowedBy(final String username) {
+        if (followerFanoutService == null || !followerFanoutService.isHybridEnabled()) {
+            return Collections.emptyList();
+        }
+        UserProfile userProfile = userProfileRepository.find(username);
+        if (userProfile == null) {
+            return Collections.emptyList();
+        }
+        return heavyAccounts(userProfile.getFollowing());
+    }
+
+    private List<String> heavyAccounts(final List<String> following) {
+        if (following.isEmpty() || followerFanoutService == null || !followerFanoutService.isHybridEnabled()) {
+            return Collections.emptyList();
+        }
+        return jedisExecution.executeRead(new JedisOperation<List<String>>() {
+            @Override
+            public List<String> perform(Jedis jedis) {
+                Pipeline pipeline = jedis.pipelined();
+                List<Response<Boolean>> memberships = new ArrayList<>();
+                for (String followed : following) {
+                    memberships.add(pipeline.sismember(RedisKeyNames.HEAVY_ACCOUNTS_SET, followed));
+                }
+                pipeline.sync();
+                List<String> heavyAccounts = new ArrayList<>();
+                for (int i = 0; i < following.size(); i++) {
+                    if (Boolean.TRUE.equals(memberships.get(i).get())) {
+                        heavyAccounts.add(following.get(i));
+                    }
+                }
+                return heavyAccounts;
             }
         });
     }
 
     /**
-     * Get User's Profile timeline activity Ids.
+     * When home timelines expire, refreshes the TTL of the user's home timeline, or rebuilds it from the profile
+     * timelines of the users they follow when it has already expired. Does nothing when home timelines do not expire.
+     * <p>
+     * A materialised home timeline may be empty, and so have no key, so it is its marker
+     * {@link RedisKeyNames#HOME_S_TIMELINE_MATERIALIZED} that tells whether it has expired.
      *
-     * @param username user whose profile timeline activity ids need to be retrieved.
-     * @param page
-     * @param count
-     * @return a set of activity ids or empty set if no activity exists.
+     * @param username user reading their home timeline
+     * @return true when the home timeline has been rebuilt, and is not on the replicas yet.
      */
-    public Set<String> getUserProfileTimelineIds(final String username, final long page, final long count) {
-        return jedisExecution.execute(new JedisOperation<Set<String>>() {
+    boolean materializeHomeTimeline(final String username) {
+        if (followerFanoutService == null || !followerFanoutService.isLazyHomeTimelines()) {
+            return false;
+        }
+        final String homeTimelineKey = String.format(RedisKeyNames.HOME_S_TIMELINE, username);
+        final String markerKey = String.format(RedisKeyNames.HOME_S_TIMELINE_MATERIALIZED, username);
+        final int ttl = homeTimelineTtl();
+        Long refreshed = jedisExecution.execute(homeTimelineKey, new JedisOperation<Long>() {
             @Override
-            public Set<String> perform(Jedis jedis) {
-                String profileTimelineKey = String.format(RedisKeyNames.PROFILE_S_TIMELINE, username);
-                return jedis.zrevrange(profileTimelineKey, (page - 1) * count, page * (count - 1));
+            public Long perform(Jedis jedis) {
+                Long marker = jedis.expire(markerKey, ttl);
+                if (marker != null && marker == 1) {
+                    jedis.expire(homeTimelineKey, ttl);
+                }
+                return marker;
             }
         });
+        if (refreshed == null || refreshed == 1) {
+            return false;
+        }
+        UserProfile userProfile = userProfileRepository.find(username);
+        List<String> following = userProfile == null ? new ArrayList<>() : new ArrayList<>(userProfile.getFollowing());
+        following.removeAll(heavyAccounts(following));
+        logger.info("Home timeline of {} has expired, rebuilding it from {} followed timelines", username, following.size());
+        restoreHomeTimelines(Collections.singletonMap(username, following));
+        return true;
+    }
+
+    /**
+     * @return TTL of home timelines in seconds, 0 when they do not expire.
+     */
+    private int homeTimelineTtl() {
+        return followerFanoutService == null ? 0 : followerFanoutService.getHomeTimelineTtl();
+    }
+
+    private <T> T read(boolean fromReplica, JedisShardedOperation<T> operation) {
+        return fromReplica ? jedisExecution.executeReadOnShards(operation) : jedisExecution.executeOnShards(operation);
     }
 
     /**
@@ -73,17 +349,21 @@ public class TimelineRepository {
      * @param userToFollow a new follower whose activities need to be added
      */
     public void updateTimelineWithFollowingTimeline(final String username, final String userToFollow) {
-        jedisExecution.execute(new JedisOperation<Void>() {
+        materializeHomeTimeline(username);
+        jedisExecution.executeOnShards(new JedisShardedOperation<Void>() {
             @Override
-            public Void perform(Jedis jedis) {
+            public Void perform(JedisShards shards) {
                 String followerTimelineKey = String.format(RedisKeyNames.PROFILE_S_TIMELINE, userToFollow);
-                Set<Tuple> followerActivitiesWithTimestamp = jedis.zrevrangeWithScores(followerTimelineKey, 0, TIMELINE_SIZE - 1);
+                Set<Tuple> followerActivitiesWithTimestamp = shards.shard(followerTimelineKey).zrevrangeWithScores(followerTimelineKey, 0, TIMELINE_SIZE - 1);
                 if (!followerActivitiesWithTimestamp.isEmpty()) {
-                    Pipeline pipeline = jedis.pipelined();
                     String userHomeTimeline = String.format(RedisKeyNames.HOME_S_TIMELINE, username);
+                    Pipeline pipeline = shards.pipeline(userHomeTimeline);
                     pipeline.zadd(userHomeTimeline, followerActivitiesWithTimestamp.stream().collect(toMap(Tuple::getScore, Tuple::getElement)));
-                    pipeline.zremrangeByRank(userHomeTimeline, 0, -(TIMELINE_SIZE - 1));
-                    pipeline.sync();
+                    pipeline.zremrangeByRank(userHomeTimeline, 0, -(TIMELINE_SIZE + 1));
+                    if (homeTimelineTtl() > 0) {
+                        pipeline.expire(userHomeTimeline, homeTimelineTtl());
+                    }
+                    shards.sync();
                 }
                 return null;
             }
@@ -98,144 +378,371 @@ public class TimelineRepository {
      * @return 1 if activities were removed from the user's home timeline else it returns 0.
      */
     public Long removeFollowingTimeline(final String username, final String userToUnfollow) {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+        return jedisExecution.executeOnShards(new JedisShardedOperation<Long>() {
             @Override
-            public Long perform(Jedis jedis) {
+            public Long perform(JedisShards shards) {
                 String profileTimeline = String.format(RedisKeyNames.PROFILE_S_TIMELINE, userToUnfollow);
-                Set<String> unfollowerActivities = jedis.zrevrange(profileTimeline, 0, TIMELINE_SIZE - 1);
+                Set<String> unfollowerActivities = shards.shard(profileTimeline).zrevrange(profileTimeline, 0, TIMELINE_SIZE - 1);
                 if (unfollowerActivities.isEmpty()) {
                     return Long.valueOf(0);
                 }
                 String homeTimeline = String.format(RedisKeyNames.HOME_S_TIMELINE, username);
-                return jedis.zrem(homeTimeline, unfollowerActivities.stream().toArray(size -> new String[size]));
+                return shards.shard(homeTimeline).zrem(homeTimeline, unfollowerActivities.stream().toArray(size -> new String[size]));
             }
         });
     }
 
+    /**
+     * Rewrites the activity hash in place. The activity is moved in the author's timelines and redelivered to the
+     * followers only when its date has changed. An activity missing from Redis is posted again. On sharded Redis the
+     * hashes and the community run timeline are on other shards than the author timelines and are written after the
+     * script.
+     */
     public void updateActivity(final Activity updatedActivity, final Profile profile, Goal goal) {
-        deleteActivityFromTimeline(profile.getUsername(), updatedActivity.getId(), goal);
-        postActivityToTimeline(updatedActivity, profile, goal);
+        final String username = profile.getUsername();
+        final String activityId = String.valueOf(updatedActivity.getId());
+        final long posted = updatedActivity.getActivityDate().getTime();
+        final List<byte[]> keys = authorTimelineKeys(activityId, profile, goal);
+        final List<byte[]> args = new ArrayList<>();
+        args.add(SafeEncoder.encode(String.valueOf(posted)));
+        args.add(SafeEncoder.encode(activityId));
+        addHashArgs(args, updatedActivity, profile, goal);
+        final String profileTimelineKey = String.format(RedisKeyNames.PROFILE_S_TIMELINE, username);
+        final String communityRunTimelineKey = communityRunTimelineKey(goal);
+        Long result;
+        try {
+            result = jedisExecution.executeOnShards(new JedisShardedOperation<Long>() {
+                @Override
+                public Long perform(JedisShards shards) {
+                    Long updated = (Long) UPDATE_ACTIVITY_SCRIPT.executeBinary(shards.shard(profileTimelineKey), keys, args);
+                    if (!sharded || updated == -1) {
+                        return updated;
+                    }
+                    boolean moveInCommunityRun = updated == 1 && communityRunTimelineKey != null
+                            && shards.shard(communityRunTimelineKey).zscore(communityRunTimelineKey, activityId) != null;
+                    writeHashes(shards, updatedActivity, profile, goal, true);
+                    if (moveInCommunityRun) {
+                        shards.pipeline(communityRunTimelineKey).zadd(communityRunTimelineKey, posted, activityId);
+                    }
+                    shards.sync();
+                    return updated;
+                }
+            });
+        } catch (RedisUnavailableException e) {
+            logger.warn("Activity {} of {} could not be updated in Redis : {}", activityId, username, e.getMessage());
+            return;
+        }
+        if (result == -1) {
+            logger.info("Activity {} is not in Redis, posting it again", activityId);
+            postActivityToTimeline(updatedActivity, profile, goal);
+        } else if (result == 1) {
+            logger.info("Date of activity {} changed, moving it in the followers timelines", activityId);
+            followerFanoutService.fanout(username, activityId, posted);
+        }
+    }
+
+    private List<byte[]> authorTimelineKeys(String activityId, Profile profile, Goal goal) {
+        String username = profile.getUsername();
+        List<String> keys = new ArrayList<>();
+        keys.add(String.format(RedisKeyNames.ACTIVITY_S, activityId));
+        keys.add(String.format(RedisKeyNames.USER_S, profile.getId()));
+        keys.add(String.format(RedisKeyNames.PROFILE_S_TIMELINE, username));
+        keys.add(String.format(RedisKeyNames.HOME_S_TIMELINE, username));
+        keys.add(String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goal.getId()));
+        keys.add(String.format(RedisKeyNames.PROFILE_S_TIMELINE_LATEST, username));
+        String communityRunTimelineKey = communityRunTimelineKey(goal);
+        if (communityRunTimelineKey != null && !sharded) {
+            keys.add(communityRunTimelineKey);
+        }
+        return keys.stream().map(SafeEncoder::encode).collect(toList());
+    }
+
+    private static String communityRunTimelineKey(Goal goal) {
+        if (goal instanceof CommunityRunGoal) {
+            CommunityRun communityRun = ((CommunityRunGoal) goal).getCommunityRun();
+            return String.format(RedisKeyNames.COMMUNITY_RUN_TIMELINE, communityRun.getSlug());
+        }
+        return null;
+    }
+
+    /**
+     * Appends the number of activity hash arguments, the activity hash fields and values and then the user hash fields
+     * and values to the arguments of a posting script. On sharded Redis the count is 0 and the hashes are written with
+     * {@link #writeHashes(JedisShards, Activity, Profile, Goal, boolean)} instead.
+     */
+    private void addHashArgs(List<byte[]> args, Activity activity, Profile profile, Goal goal) {
+        if (sharded) {
+            args.add(SafeEncoder.encode("0"));
+            return;
+        }
+        Map<String, byte[]> activityFields = activityFields(activity, profile, goal);
+        args.add(SafeEncoder.encode(String.valueOf(activityFields.size() * 2)));
+        activityFields.forEach((field, value) -> {
+            args.add(SafeEncoder.encode(field));
+            args.add(value);
+        });
+        userHash(profile).forEach((field, value) -> {
+            args.add(SafeEncoder.encode(field));
+            args.add(SafeEncoder.encode(value));
+        });
+    }
+
+    /**
+     * Queues the writes of the activity hash and the user hash of its author on the pipelines of their shards.
+     *
+     * @param replace whether the activity hash is deleted first, as it may be stored in the other encoding.
+     */
+    private void writeHashes(JedisShards shards, Activity activity, Profile profile, Goal goal, boolean replace) {
+        String activityKey = String.format(RedisKeyNames.ACTIVITY_S, activity.getId());
+        Map<byte[], byte[]> activityFields = new HashMap<>();
+        activityFields(activity, profile, goal).forEach((field, value) -> activityFields.put(SafeEncoder.encode(field), value));
+        Pipeline activityPipeline = shards.pipeline(activityKey);
+        if (replace) {
+            activityPipeline.del(activityKey);
+        }
+        activityPipeline.hmset(SafeEncoder.encode(activityKey), activityFields);
+        String userKey = String.format(RedisKeyNames.USER_S, profile.getId());
+        shards.pipeline(userKey).hmset(userKey, userHash(profile));
     }
 
     public void deleteActivityFromTimeline(final String username, final Long activityId, final Goal goal) {
-        jedisExecution.execute(new JedisOperation<Void>() {
+        jedisExecution.executeOnShards(new JedisShardedOperation<Void>() {
             @Override
-            public Void perform(Jedis jedis) {
-                String key = "activity:" + activityId;
-                if (!jedis.hget(key, "username").equals(username)) {
-                    return null;
-                }
-                Pipeline pipeline = jedis.pipelined();
-                pipeline.del(key);
+            public Void perform(JedisShards shards) {
+                String key = String.format(RedisKeyNames.ACTIVITY_S, activityId);
                 String homeTimelineKey = String.format(RedisKeyNames.HOME_S_TIMELINE, username);
                 String profileTimelineKey = String.format(RedisKeyNames.PROFILE_S_TIMELINE, username);
+                if (shards.shard(profileTimelineKey).zscore(profileTimelineKey, String.valueOf(activityId)) == null) {
+                    return null;
+                }
+                shards.pipeline(key).del(key);
+                Pipeline pipeline = shards.pipeline(profileTimelineKey);
                 pipeline.zrem(homeTimelineKey, String.valueOf(activityId));
                 pipeline.zrem(profileTimelineKey, String.valueOf(activityId));
                 pipeline.zrem(String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goal.getId()), String.valueOf(activityId));
                 pipeline.zrem(String.format(RedisKeyNames.PROFILE_S_TIMELINE_LATEST, username), String.valueOf(activityId));
+                if (goal instanceof CommunityRunGoal) {
+                    String communityRunTimelineKey = String.format(RedisKeyNames.COMMUNITY_RUN_TIMELINE, ((CommunityRunGoal) goal).getCommunityRun().getSlug());
+                    shards.pipeline(communityRunTimelineKey).zrem(communityRunTimelineKey, String.valueOf(activityId));
+                }
                 UserProfile userProfile = userProfileRepository.find(username);
                 logger.info("Deleting activity from all the followers timeline");
                 final List<String> followers = userProfile.getFollowers();
                 logger.info("Followers for {} are {}", username, followers);
                 followers.forEach(follower -> {
                     String homeTimelineKeyForFollower = String.format(RedisKeyNames.HOME_S_TIMELINE, follower);
-                    pipeline.zrem(homeTimelineKeyForFollower, String.valueOf(activityId));
+                    shards.pipeline(homeTimelineKeyForFollower).zrem(homeTimelineKeyForFollower, String.valueOf(activityId));
                 });
-                pipeline.sync();
+                shards.sync();
                 return null;
             }
         });
     }
 
+    /**
+     * Stores the activity hash and adds the activity to the profile, home, goal, latest and community run timelines of
+     * its author with a single EVALSHA, then queues it for delivery to the followers of the author. On sharded Redis
+     * the hashes and the community run timeline are written before the script, on their own shards.
+     */
     public void postActivityToTimeline(final Activity activity, final Profile profile, final Goal goal) {
         final String username = profile.getUsername();
         final String activityId = String.valueOf(activity.getId());
-        logger.info("Storing activity in redis");
-        storeActivity(activity, profile, goal);
-        logger.info("Activity created with id : " + activityId);
-        logger.info("Getting posted time from Redis..");
-        final Long posted = jedisExecution.execute(new JedisOperation<Long>() {
-            @Override
-            public Long perform(Jedis jedis) {
-                String postedVal = jedis.hget("activity:" + activityId, "posted");
-                if (postedVal == null) {
-                    return null;
+        final long posted = activity.getActivityDate().getTime();
+        logger.info(String.format("Posting activity %s to %s timelines..", activityId, username));
+        final List<byte[]> keys = authorTimelineKeys(activityId, profile, goal);
+        keys.add(6, SafeEncoder.encode(String.format(RedisKeyNames.HOME_S_TIMELINE_MATERIALIZED, username)));
+        final List<byte[]> args = new ArrayList<>();
+        args.add(SafeEncoder.encode(String.valueOf(posted)));
+        args.add(SafeEncoder.encode(activityId));
+        args.add(SafeEncoder.encode(String.valueOf(TIMELINE_SIZE)));
+        args.add(SafeEncoder.encode(String.valueOf(homeTimelineTtl())));
+        addHashArgs(args, activity, profile, goal);
+        final String profileTimelineKey = String.format(RedisKeyNames.PROFILE_S_TIMELINE, username);
+        final String communityRunTimelineKey = communityRunTimelineKey(goal);
+        try {
+            jedisExecution.executeOnShards(new JedisShardedOperation<Object>() {
+                @Override
+                public Object perform(JedisShards shards) {
+                    if (sharded) {
+                        writeHashes(shards, activity, profile, goal, false);
+                        if (communityRunTimelineKey != null) {
+                            Pipeline pipeline = shards.pipeline(communityRunTimelineKey);
+                            pipeline.zadd(communityRunTimelineKey, posted, activityId);
+                            pipeline.zremrangeByRank(communityRunTimelineKey, 0, -(TIMELINE_SIZE + 1));
+                        }
+                        shards.sync();
+                    }
+                    return POST_ACTIVITY_SCRIPT.executeBinary(shards.shard(profileTimelineKey), keys, args);
                 }
-                return Long.valueOf(postedVal);
-            }
-        });
-        logger.info("Activity posted at.." + posted);
-        if (posted == null) {
+            });
+        } catch (RedisUnavailableException e) {
+            logger.warn("Activity {} could not be posted to {} timelines : {}", activityId, username, e.getMessage());
             return;
         }
-        logger.info(String.format("Updating %s timelines with new activity..", username));
-        jedisExecution.execute(new JedisOperation<Void>() {
+        logger.info("Queuing new activity for delivery to all the followers ...");
+        followerFanoutService.fanout(username, activityId, posted);
+    }
+
+    Map<String, String> activityHash(final Activity activity, final Profile profile, final Goal goal) {
+        Map<String, String> data = new HashMap<>();
+        data.put("id", String.valueOf(activity.getId()));
+        data.put("username", profile.getUsername());
+        data.put("userId", String.valueOf(profile.getId()));
+        data.put("posted", String.valueOf(activity.getActivityDate().getTime()));
+        data.put("activityDate", activity.getActivityDate().toString());
+        data.put("fullname", profile.getFullname());
+        data.put("distanceCovered", String.valueOf(activity.getDistanceCovered()));
+        data.put("goalUnit", goal.getGoalUnit().getUnit());
+        data.put("goalId", String.valueOf(goal.getId()));
+        data.put("profilePic", profile.getProfilePic());
+        data.put("status", activity.getStatus() == null ? "" : activity.getStatus());
+        data.put("duration", String.valueOf(activity.getDuration()));
+        data.put("createdAt", String.valueOf(activity.getCreatedAt().getTime()));
+        data.values().removeIf(value -> value == null);
+        return data;
+    }
+
+    /**
+     * Fields of the activity hash in the configured encoding: one text field per property, or a single compact binary
+     * field when ACTIVITY_COMPACT_ENCODING is enabled.
+     */
+    Map<String, byte[]> activityFields(final Activity activity, final Profile profile, final Goal goal) {
+        Map<String, byte[]> fields = new LinkedHashMap<>();
+        if (compactActivities) {
+            CompactActivity compactActivity = new CompactActivity(profile.getId(), goal.getId(), activity.getActivityDate().getTime(), activity.getCreatedAt().getTime(),
+                    activity.getDistanceCovered(), goal.getGoalUnit(), activity.getDuration(), activity.getStatus() == null ? "" : activity.getStatus());
+            fields.put(ActivityCodec.COMPACT_FIELD, ActivityCodec.encode(compactActivity));
+        } else {
+            activityHash(activity, profile, goal).forEach((field, value) -> fields.put(field, SafeEncoder.encode(value)));
+        }
+        return fields;
+    }
+
+    /**
+     * Profile fields shown with the activities of a user, kept once per user for activities in the compact encoding.
+     */
+    static Map<String, String> userHash(final Profile profile) {
+        Map<String, String> user = new HashMap<>();
+        user.put("username", profile.getUsername());
+        user.put("fullname", profile.getFullname());
+        user.put("profilePic", profile.getProfilePic());
+        user.values().removeIf(value -> value == null);
+        return user;
+    }
+
+    /**
+     * Writes the hashes and the author timelines of a batch of activities loaded from the database in one pipeline per
+     * shard.
+     * Used to rebuild Redis after data loss, writing an activity twice leaves the same state. The rollups of the
+     * goals in the batch are dropped and built again from the restored goal timelines when next read.
+     *
+     * @param activities activities with their author and goal loaded.
+     */
+    public void restoreActivities(final List<Activity> activities) {
+        jedisExecution.executeOnShards(new JedisShardedOperation<Void>() {
             @Override
-            public Void perform(Jedis jedis) {
-                Pipeline pipeline = jedis.pipelined();
-                pipeline.zadd(String.format(RedisKeyNames.PROFILE_S_TIMELINE, username), posted, activityId);
-                pipeline.zadd(String.format(RedisKeyNames.HOME_S_TIMELINE, username), posted, activityId);
-                if (goal instanceof CommunityRunGoal) {
-                    CommunityRun communityRun = ((CommunityRunGoal) goal).getCommunityRun();
-                    pipeline.zadd(String.format(RedisKeyNames.COMMUNITY_RUN_TIMELINE, communityRun.getSlug()), posted, activityId);
+            public Void perform(JedisShards shards) {
+                Set<String> trimmedTimelines = new HashSet<>();
+                Set<Long> staleGoals = new HashSet<>();
+                for (Activity activity : activities) {
+                    Profile profile = activity.getPostedBy();
+                    Goal goal = activity.getGoal();
+                    String username = profile.getUsername();
+                    String activityId = String.valueOf(activity.getId());
+                    long posted = activity.getActivityDate().getTime();
+                    writeHashes(shards, activity, profile, goal, true);
+                    Pipeline pipeline = shards.pipeline(String.format(RedisKeyNames.PROFILE_S_TIMELINE, username));
+                    pipeline.zadd(String.format(RedisKeyNames.PROFILE_S_TIMELINE, username), posted, activityId);
+                    pipeline.zadd(String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goal.getId()), posted, activityId);
+                    staleGoals.add(goal.getId());
+                    String latestTimelineKey = String.format(RedisKeyNames.PROFILE_S_TIMELINE_LATEST, username);
+                    pipeline.zadd(latestTimelineKey, posted, activityId);
+                    pipeline.zremrangeByRank(latestTimelineKey, 0, -2);
+                    if (goal instanceof CommunityRunGoal) {
+                        String communityRunTimelineKey = String.format(RedisKeyNames.COMMUNITY_RUN_TIMELINE, ((CommunityRunGoal) goal).getCommunityRun().getSlug());
+                        shards.pipeline(communityRunTimelineKey).zadd(communityRunTimelineKey, posted, activityId);
+                        trimmedTimelines.add(communityRunTimelineKey);
+                    }
                 }
-                pipeline.zadd(String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goal.getId()), posted, activityId);
-                pipeline.zadd(String.format(RedisKeyNames.PROFILE_S_TIMELINE_LATEST, username), activity.getActivityDate().getTime(), activityId);
-                pipeline.zremrangeByRank(String.format(RedisKeyNames.PROFILE_S_TIMELINE_LATEST, username), 0, -2);
-                pipeline.sync();
+                for (String timelineKey : trimmedTimelines) {
+                    shards.pipeline(timelineKey).zremrangeByRank(timelineKey, 0, -(TIMELINE_SIZE + 1));
+                }
+                for (Long goalId : staleGoals) {
+                    String rollupKey = String.format(RedisKeyNames.GOAL_S_ROLLUP, goalId);
+                    Pipeline pipeline = shards.pipeline(rollupKey);
+                    pipeline.hdel(rollupKey, GoalRollupRepository.BUILT);
+                    pipeline.del(GoalDaysRepository.keys(goalId));
+                }
+                shards.sync();
                 return null;
             }
         });
-        logger.info("Updated user timeline with new activity..");
-        logger.info("Posting new activity to all the followers ...");
-        postActivityToFollowersTimeline(username, activityId, posted);
-        logger.info("Posted new activity to all the followers ...");
     }
 
-    private String storeActivity(final Activity activity, final Profile profile, final Goal goal) {
-
-        return jedisExecution.execute(new JedisOperation<String>() {
+    /**
+     * Replaces the home timeline of every user in the batch with the union of their own profile timeline and the
+     * profile timelines of the users they follow, in one pipeline. Profile timelines must be restored first. On sharded
+     * Redis the timelines of a user and the users they follow are on different shards, so the profile timelines are
+     * read and merged here instead of with ZUNIONSTORE.
+     *
+     * @param followingByUser users whose home timeline is restored, with the users they follow that are pushed into
+     *                        home timelines.
+     */
+    public void restoreHomeTimelines(final Map<String, List<String>> followingByUser) {
+        final int ttl = homeTimelineTtl();
+        if (sharded) {
+            restoreShardedHomeTimelines(followingByUser, ttl);
+            return;
+        }
+        jedisExecution.execute(new JedisOperation<Void>() {
             @Override
-            public String perform(Jedis jedis) {
+            public Void perform(Jedis jedis) {
                 Pipeline pipeline = jedis.pipelined();
-                String id = String.valueOf(activity.getId());
-                logger.info(String.format("Activity id for Redis is %s ", id));
-                Map<String, String> data = new HashMap<>();
-                data.put("id", id);
-                data.put("username", profile.getUsername());
-                data.put("userId", String.valueOf(profile.getId()));
-                String posted = String.valueOf(activity.getActivityDate().getTime());
-                data.put("posted", posted);
-                data.put("activityDate", activity.getActivityDate().toString());
-                data.put("fullname", profile.getFullname());
-                data.put("distanceCovered", String.valueOf(activity.getDistanceCovered()));
-                data.put("goalUnit", goal.getGoalUnit().getUnit());
-                data.put("goalId", String.valueOf(goal.getId()));
-                data.put("profilePic", profile.getProfilePic());
-                data.put("status", activity.getStatus() == null ? "" : activity.getStatus());
-                data.put("duration", String.valueOf(activity.getDuration()));
-                pipeline.hmset("activity:" + id, data);
+                ZParams keepScore = new ZParams().aggregate(ZParams.Aggregate.MAX);
+                followingByUser.forEach((username, following) -> {
+                    List<String> profileTimelineKeys = new ArrayList<>();
+                    profileTimelineKeys.add(String.format(RedisKeyNames.PROFILE_S_TIMELINE, username));
+                    following.forEach(followed -> profileTimelineKeys.add(String.format(RedisKeyNames.PROFILE_S_TIMELINE, followed)));
+                    String homeTimelineKey = String.format(RedisKeyNames.HOME_S_TIMELINE, username);
+                    pipeline.zunionstore(homeTimelineKey, keepScore, profileTimelineKeys.toArray(new String[profileTimelineKeys.size()]));
+                    pipeline.zremrangeByRank(homeTimelineKey, 0, -(TIMELINE_SIZE + 1));
+                    if (ttl > 0) {
+                        pipeline.expire(homeTimelineKey, ttl);
+                        pipeline.setex(String.format(RedisKeyNames.HOME_S_TIMELINE_MATERIALIZED, username), ttl, "1");
+                    }
+                });
                 pipeline.sync();
-                return id;
+                return null;
             }
         });
-
     }
 
-    private void postActivityToFollowersTimeline(final String username, final String activityId, final Long posted) {
-        UserProfile userProfile = userProfileRepository.find(username);
-        final List<String> followers = userProfile.getFollowers();
-        logger.info(String.format("Followers for %s are %s", username, followers));
-        jedisExecution.execute(new JedisOperation<Object>() {
+    private void restoreShardedHomeTimelines(final Map<String, List<String>> followingByUser, final int ttl) {
+        jedisExecution.executeOnShards(new JedisShardedOperation<Void>() {
             @Override
-            public <T> T perform(Jedis jedis) {
-                Pipeline pipeline = jedis.pipelined();
-                for (String follower : followers) {
-                    String homeTimelineKey = String.format(RedisKeyNames.HOME_S_TIMELINE, follower);
-                    pipeline.zadd(homeTimelineKey, posted, activityId);
-                    pipeline.zremrangeByRank(homeTimelineKey, 0, -(TIMELINE_SIZE - 1));
-                }
-                pipeline.sync();
+            public Void perform(JedisShards shards) {
+                Map<String, List<Response<Set<Tuple>>>> profileTimelines = new LinkedHashMap<>();
+                followingByUser.forEach((username, following) -> {
+                    List<String> profileTimelineKeys = new ArrayList<>();
+                    profileTimelineKeys.add(String.format(RedisKeyNames.PROFILE_S_TIMELINE, username));
+                    following.forEach(followed -> profileTimelineKeys.add(String.format(RedisKeyNames.PROFILE_S_TIMELINE, followed)));
+                    profileTimelines.put(username, profileTimelineKeys.stream()
+                            .map(key -> shards.pipeline(key).zrevrangeWithScores(key, 0, TIMELINE_SIZE - 1))
+                            .collect(toList()));
+                });
+                shards.sync();
+                profileTimelines.forEach((username, timelines) -> {
+                    List<Tuple> homeTimeline = TimelineMerger.merge(timelines.stream().map(Response::get).collect(toList()), 0, TIMELINE_SIZE);
+                    String homeTimelineKey = String.format(RedisKeyNames.HOME_S_TIMELINE, username);
+                    Pipeline pipeline = shards.pipeline(homeTimelineKey);
+                    pipeline.del(homeTimelineKey);
+                    homeTimeline.forEach(tuple -> pipeline.zadd(homeTimelineKey, tuple.getScore(), tuple.getElement()));
+                    if (ttl > 0) {
+                        pipeline.expire(homeTimelineKey, ttl);
+                        pipeline.setex(String.format(RedisKeyNames.HOME_S_TIMELINE_MATERIALIZED, username), ttl, "1");
+                    }
+                });
+                shards.sync();
                 return null;
             }
         });
@@ -248,47 +755,32 @@ public class TimelineRepository {
      * @return user timeline activity count
      */
     public Long userTimelineActivityCount(final String username) {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+        final String profileTimelineKey = String.format(RedisKeyNames.PROFILE_S_TIMELINE, username);
+        return jedisExecution.executeRead(profileTimelineKey, new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
-                return jedis.zcard(String.format(RedisKeyNames.PROFILE_S_TIMELINE, username));
+                return jedis.zcard(profileTimelineKey);
             }
         });
     }
 
     /**
      * Count of home timeline activities. If user and the users user is following have not posted any activity then 0 is returned.
+     * Activities of heavy accounts merged in at read time are not counted.
      *
      * @param username
      * @return home timeline activity count
      */
     public Long homeTimelineActivityCount(final String username) {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+        boolean fromReplica = !materializeHomeTimeline(username);
+        final String homeTimelineKey = String.format(RedisKeyNames.HOME_S_TIMELINE, username);
+        JedisOperation<Long> count = new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
-                return jedis.zcard(String.format(RedisKeyNames.HOME_S_TIMELINE, username));
+                return jedis.zcard(homeTimelineKey);
             }
-        });
-    }
-
-    /**
-     * Returns a set of activity ids posted by user for a specific goal. The activity ids are sorted by activity date in descending order.
-     * If no activity posted for a goal, then an empty Set is returned.
-     *
-     * @param username
-     * @param goalId
-     * @param page
-     * @param count
-     * @return Set with activity ids
-     */
-    public Set<String> getGoalTimelineIds(final String username, final Long goalId, final int page, final int count) {
-        return jedisExecution.execute(new JedisOperation<Set<String>>() {
-            @Override
-            public Set<String> perform(Jedis jedis) {
-                final String goalTimelineKey = String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goalId);
-                return jedis.zrevrange(goalTimelineKey, (page - 1) * count, page * (count - 1));
-            }
-        });
+        };
+        return fromReplica ? jedisExecution.executeRead(homeTimelineKey, count) : jedisExecution.execute(homeTimelineKey, count);
     }
 
     /**
@@ -299,10 +791,10 @@ public class TimelineRepository {
      * @return goal timeline activity count
      */
     public Long goalTimelineActivityCount(final String username, final Long goalId) {
-        return jedisExecution.execute(new JedisOperation<Long>() {
+        final String goalTimelineKey = String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goalId);
+        return jedisExecution.executeRead(goalTimelineKey, new JedisOperation<Long>() {
             @Override
             public Long perform(Jedis jedis) {
-                String goalTimelineKey = String.format(RedisKeyNames.PROFILE_S_GOAL_S_TIMELINE, username, goalId);
                 return jedis.zcard(goalTimelineKey);
             }
         });
@@ -0,0 +1,78 @@
+package org.miles2run.core.repositories.redis.vo;
+
+import org.miles2run.domain.entities.GoalUnit;
+import org.miles2run.domain.kv_aggregates.ActivityAggregate;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Fields of an activity stored in the compact encoding. The author is referenced by id, their username, full name and
+ * profile picture are kept once per user in the user hash.
+ */
+public class CompactActivity {
+
+    private final long userId;
+    private final long goalId;
+    private final long posted;
+    private final long createdAt;
+    private final double distanceCovered;
+    private final GoalUnit goalUnit;
+    private final long duration;
+    private final String status;
+
+    public CompactActivity(long userId, long goalId, long posted, long createdAt, double distanceCovered, GoalUnit goalUnit, long duration, String status) {
+        this.userId = userId;
+        this.goalId = goalId;
+        this.posted = posted;
+        this.createdAt = createdAt;
+        this.distanceCovered = distanceCovered;
+        this.goalUnit = goalUnit;
+        this.duration = duration;
+        this.status = status == null ? "" : status;
+    }
+
+    /**
+     * @param id   id of the activity
+     * @param user user hash of the author
+     */
+    public ActivityAggregate toActivityAggregate(Long id, Map<String, String> user) {
+        return new ActivityAggregate(id, goalId, status, distanceCovered / goalUnit.getConversion(), goalUnit, new Date(posted),
+                user.get("fullname"), user.get("username"), user.get("profilePic"), duration, createdAt == 0 ? null : new Date(createdAt));
+    }
+
+    public long getUserId() {
+        return userId;
+    }
+
+    public long getGoalId() {
+        return goalId;
+    }
+
+    public long getPosted() {
+        return posted;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * @return distance covered in meters
+     */
+    public double getDistanceCovered() {
+        return distanceCovered;
+    }
+
+    public GoalUnit getGoalUnit() {
+        return goalUnit;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+}
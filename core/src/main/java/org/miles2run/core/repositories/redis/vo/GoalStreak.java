@@ -0,0 +1,39 @@
+package org.miles2run.core.repositories.redis.vo;
+
+import org.joda.time.LocalDate;
+
+/**
+ * Streaks of consecutive local days with activities of a goal. The current streak is the run of days ending on the last
+ * active day; it is only still going when the last active day is today or yesterday.
+ */
+public class GoalStreak {
+
+    private final int current;
+    private final int longest;
+    private final LocalDate lastActiveDay;
+
+    public GoalStreak(int current, int longest, LocalDate lastActiveDay) {
+        this.current = current;
+        this.longest = longest;
+        this.lastActiveDay = lastActiveDay;
+    }
+
+    public int getCurrent() {
+        return current;
+    }
+
+    public int getLongest() {
+        return longest;
+    }
+
+    public LocalDate getLastActiveDay() {
+        return lastActiveDay;
+    }
+
+    /**
+     * @return the current streak, or 0 when no activity was performed today or yesterday.
+     */
+    public int currentOn(LocalDate today) {
+        return lastActiveDay != null && !lastActiveDay.isBefore(today.minusDays(1)) ? current : 0;
+    }
+}
@@ -0,0 +1,31 @@
+package org.miles2run.core.repositories.redis.vo;
+
+import java.util.List;
+
+/**
+ * A slice of a community run leaderboard, with the number of runners on the whole leaderboard.
+ */
+public class Leaderboard {
+
+    private final String metric;
+    private final long runners;
+    private final List<LeaderboardEntry> entries;
+
+    public Leaderboard(String metric, long runners, List<LeaderboardEntry> entries) {
+        this.metric = metric;
+        this.runners = runners;
+        this.entries = entries;
+    }
+
+    public String getMetric() {
+        return metric;
+    }
+
+    public long getRunners() {
+        return runners;
+    }
+
+    public List<LeaderboardEntry> getEntries() {
+        return entries;
+    }
+}
@@ -0,0 +1,30 @@
+package org.miles2run.core.repositories.redis.vo;
+
+/**
+ * A runner on a community run leaderboard. Ranks start at 1; the score is the distance in meters or the duration in
+ * seconds of the runner's activities.
+ */
+public class LeaderboardEntry {
+
+    private final long rank;
+    private final String username;
+    private final double score;
+
+    public LeaderboardEntry(long rank, String username, double score) {
+        this.rank = rank;
+        this.username = username;
+        this.score = score;
+    }
+
+    public long getRank() {
+        return rank;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public double getScore() {
+        return score;
+    }
+}
@@ -0,0 +1,50 @@
+package org.miles2run.core.repositories.redis.vo;
+
+/**
+ * Totals of the activities of a goal performed within one rollup bucket. Distance is in meters, duration in seconds and
+ * the pace sum adds up the pace of every activity in minutes per goal unit, so the mean pace is paceSum / count.
+ */
+public class RollupBucket {
+
+    private double distance;
+    private long duration;
+    private long count;
+    private double paceSum;
+
+    public RollupBucket() {
+    }
+
+    public RollupBucket(double distance, long duration, long count, double paceSum) {
+        this.distance = distance;
+        this.duration = duration;
+        this.count = count;
+        this.paceSum = paceSum;
+    }
+
+    public void add(RollupBucket other) {
+        this.distance += other.distance;
+        this.duration += other.duration;
+        this.count += other.count;
+        this.paceSum += other.paceSum;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getPaceSum() {
+        return paceSum;
+    }
+
+    public double getMeanPace() {
+        return count == 0 ? 0 : paceSum / count;
+    }
+}
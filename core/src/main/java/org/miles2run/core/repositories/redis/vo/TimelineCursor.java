@@ -0,0 +1,65 @@
+package org.miles2run.core.repositories.redis.vo;
+
+/**
+ * Position in a timeline sorted set. Timelines are scored by activity date so many activities can share a score; the
+ * cursor therefore keeps the score and the id of the last activity returned, and activities are ordered on both, as
+ * Redis orders them: newest score first, then activity id in reverse lexicographical order. It is exchanged with
+ * clients as <code>score:id</code>.
+ */
+public class TimelineCursor {
+
+    private final long score;
+    private final String id;
+
+    public TimelineCursor(long score, String id) {
+        this.score = score;
+        this.id = id;
+    }
+
+    /**
+     * @param text cursor in <code>score:id</code> format
+     * @return parsed cursor or null when the text is blank
+     * @throws IllegalArgumentException when the text is not a cursor
+     */
+    public static TimelineCursor parse(String text) {
+        if (text == null || text.trim().isEmpty()) {
+            return null;
+        }
+        String[] parts = text.trim().split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Timeline cursors are score:id, not " + text);
+        }
+        try {
+            return new TimelineCursor(Long.parseLong(parts[0]), String.valueOf(Long.parseLong(parts[1])));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Timeline cursors are score:id, not " + text, e);
+        }
+    }
+
+    /**
+     * @return true when the activity comes after the cursor in timeline order.
+     */
+    public boolean isOlder(long score, String id) {
+        return score < this.score || score == this.score && id.compareTo(this.id) < 0;
+    }
+
+    /**
+     * @return true when the activity comes before the cursor in timeline order.
+     */
+    public boolean isNewer(long score, String id) {
+        return score > this.score || score == this.score && id.compareTo(this.id) > 0;
+    }
+
+    public long getScore() {
+        return score;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public String toString() {
+        return score + ":" + id;
+    }
+}
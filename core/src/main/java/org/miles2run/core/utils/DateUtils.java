@@ -8,6 +8,15 @@ import java.util.*;
 
 public abstract class DateUtils {
 
+    /**
+     * @param timezoneOffsetInMinutes offset sent by the browser in the timezoneoffset cookie, which is positive west
+     *                                of UTC.
+     */
+    public static DateTimeZone toDateTimeZone(int timezoneOffsetInMinutes) {
+        int timezoneOffsetInMillis = (-1) * timezoneOffsetInMinutes * 60 * 1000;
+        return timezoneOffsetInMillis == 0 ? DateTimeZone.forID("UTC") : DateTimeZone.forOffsetMillis(timezoneOffsetInMillis);
+    }
+
     public static Interval toDateRangeInterval(int daysBack, DateTimeZone dateTimeZone) {
         DateTime currentDateTime = new DateTime(dateTimeZone);
         DateTime nDaysBack = currentDateTime.minusDays(daysBack);
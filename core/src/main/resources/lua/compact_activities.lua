@@ -0,0 +1,33 @@
+-- Replaces activity hashes in the original text format with their compact encoding and writes the user hashes they
+-- reference. An activity that was already rewritten in the compact encoding since it was read is left untouched, so a
+-- concurrent update is never overwritten with the values read before it.
+--
+-- KEYS[2n-1] activity hash
+-- KEYS[2n]   user hash of the author of the activity
+--
+-- ARGV[4n-3] compact encoding of the activity
+-- ARGV[4n-2] username of the author
+-- ARGV[4n-1] fullname of the author from their current profile, empty when unknown
+-- ARGV[4n]   profile picture of the author from their current profile, empty when unknown
+
+local compacted = 0
+
+for i = 1, #KEYS / 2 do
+    local activity = KEYS[2 * i - 1]
+    local user = KEYS[2 * i]
+    local arg = 4 * (i - 1)
+    if redis.call('EXISTS', activity) == 1 and redis.call('HEXISTS', activity, 'b') == 0 then
+        redis.call('DEL', activity)
+        redis.call('HSET', activity, 'b', ARGV[arg + 1])
+        redis.call('HSET', user, 'username', ARGV[arg + 2])
+        if ARGV[arg + 3] ~= '' then
+            redis.call('HSET', user, 'fullname', ARGV[arg + 3])
+        end
+        if ARGV[arg + 4] ~= '' then
+            redis.call('HSET', user, 'profilePic', ARGV[arg + 4])
+        end
+        compacted = compacted + 1
+    end
+end
+
+return compacted
@@ -0,0 +1,29 @@
+-- Adds activities to the home timelines that are materialised. Expired home timelines are skipped, they are rebuilt
+-- from the profile timelines of the followed users the next time their owner reads them. A home timeline is
+-- materialised while its marker exists, even when it is empty and so has no key of its own.
+--
+-- KEYS    home timeline and marker of the home timeline of each follower, in pairs
+--
+-- ARGV[1] number of activities kept in a home timeline
+-- ARGV[2] timeline score of the first activity, followed by its id, then the score and id of each other activity
+
+local timelineSize = tonumber(ARGV[1])
+local delivered = 0
+
+for i = 1, #KEYS, 2 do
+    local homeTimeline = KEYS[i]
+    local marker = KEYS[i + 1]
+    if redis.call('EXISTS', marker) == 1 then
+        for j = 2, #ARGV, 2 do
+            redis.call('ZADD', homeTimeline, ARGV[j], ARGV[j + 1])
+        end
+        redis.call('ZREMRANGEBYRANK', homeTimeline, 0, -(timelineSize + 1))
+        -- a materialised home timeline that was empty expires with its marker
+        if redis.call('TTL', homeTimeline) == -1 then
+            redis.call('PEXPIRE', homeTimeline, redis.call('PTTL', marker))
+        end
+        delivered = delivered + 1
+    end
+end
+
+return delivered
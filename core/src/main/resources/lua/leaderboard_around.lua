@@ -0,0 +1,28 @@
+-- Reads a runner's position in a leaderboard with the runners ranked just above and below.
+--
+-- KEYS[1] built marker of the leaderboards
+-- KEYS[2] leaderboard
+--
+-- ARGV[1] runner
+-- ARGV[2] number of neighbours on each side
+--
+-- Returns nil when the leaderboards were never built. Otherwise returns the number of runners, the zero based rank of
+-- the first runner returned, or -1 when the runner is not on the leaderboard, then runner and score pairs.
+
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    return false
+end
+
+local total = redis.call('ZCARD', KEYS[2])
+local rank = redis.call('ZREVRANK', KEYS[2], ARGV[1])
+if not rank then
+    return {total, -1}
+end
+
+local neighbours = tonumber(ARGV[2])
+local first = math.max(rank - neighbours, 0)
+local reply = {total, first}
+for _, value in ipairs(redis.call('ZREVRANGE', KEYS[2], first, rank + neighbours, 'WITHSCORES')) do
+    reply[#reply + 1] = value
+end
+return reply
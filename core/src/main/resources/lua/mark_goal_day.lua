@@ -0,0 +1,47 @@
+-- Marks a day as performed in the day bitmap of a goal and folds it into the streaks of the goal. A bitmap built for
+-- another timezone or goal start date is dropped instead, with the streaks; both are built again from the goal rollup
+-- when progress is next read.
+--
+-- KEYS[1] day bitmap of the goal
+-- KEYS[2] timezone and start date the bitmap was built for
+-- KEYS[3] streaks of the goal, with the fields current, longest and last, the day offset of the last active day
+--
+-- ARGV[1] timezone and start date of the day being marked
+-- ARGV[2] day offset from the goal start date
+
+if redis.call('GET', KEYS[2]) ~= ARGV[1] or redis.call('EXISTS', KEYS[1]) == 0 then
+    redis.call('DEL', KEYS[1], KEYS[2], KEYS[3])
+    return 0
+end
+
+local day = tonumber(ARGV[2])
+if redis.call('SETBIT', KEYS[1], day, 1) == 1 or redis.call('EXISTS', KEYS[3]) == 0 then
+    return 1
+end
+
+local streak = redis.call('HMGET', KEYS[3], 'current', 'longest', 'last')
+local current, longest, last = tonumber(streak[1]), tonumber(streak[2]), tonumber(streak[3])
+
+-- days of the run the marked day joins, before and after it; only a backdated day needs to walk the bitmap
+local before, after = 0, 0
+if day > last then
+    if day == last + 1 then
+        before = current
+    end
+else
+    while day - before > 0 and redis.call('GETBIT', KEYS[1], day - before - 1) == 1 do
+        before = before + 1
+    end
+    while redis.call('GETBIT', KEYS[1], day + after + 1) == 1 do
+        after = after + 1
+    end
+end
+
+local run = before + 1 + after
+if day + after >= last then
+    redis.call('HMSET', KEYS[3], 'current', run, 'last', day + after)
+end
+if run > longest then
+    redis.call('HSET', KEYS[3], 'longest', run)
+end
+return 1
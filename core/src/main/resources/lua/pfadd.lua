@@ -0,0 +1,18 @@
+-- Adds ARGV[i] to the HyperLogLog in KEYS[i], or every ARGV to the HyperLogLog in KEYS[1] when there is a single key.
+-- Returns the number of HyperLogLogs whose estimate changed.
+
+local changed = 0
+
+if #KEYS == 1 then
+    for i = 1, #ARGV, 1000 do
+        if redis.call('PFADD', KEYS[1], unpack(ARGV, i, math.min(i + 999, #ARGV))) == 1 then
+            changed = 1
+        end
+    end
+    return changed
+end
+
+for i = 1, #KEYS do
+    changed = changed + redis.call('PFADD', KEYS[i], ARGV[i])
+end
+return changed
@@ -0,0 +1,53 @@
+-- Stores an activity hash and adds the activity to the timelines of its author in a single atomic call.
+--
+-- KEYS[1] activity hash
+-- KEYS[2] user hash of the author
+-- KEYS[3] profile timeline
+-- KEYS[4] home timeline
+-- KEYS[5] profile goal timeline
+-- KEYS[6] profile latest timeline
+-- KEYS[7] marker of the home timeline, set while it is materialised when home timelines expire
+-- KEYS[8] community run timeline, only when the goal belongs to a community run
+--
+-- ARGV[1] timeline score of the activity
+-- ARGV[2] activity id
+-- ARGV[3] number of activities kept in the home and community run timelines
+-- ARGV[4] home timeline TTL in seconds, 0 when home timelines do not expire
+-- ARGV[5] number of arguments holding activity hash fields and values, 0 on sharded Redis where the hashes and the
+--         community run timeline are on other shards and are written apart
+-- ARGV[6..] activity hash field and value pairs, followed by the user hash field and value pairs
+
+local posted = ARGV[1]
+local activityId = ARGV[2]
+local timelineSize = tonumber(ARGV[3])
+local homeTimelineTtl = tonumber(ARGV[4])
+local activityArgs = tonumber(ARGV[5])
+
+if activityArgs > 0 then
+    redis.call('HMSET', KEYS[1], unpack(ARGV, 6, 5 + activityArgs))
+    redis.call('HMSET', KEYS[2], unpack(ARGV, 6 + activityArgs))
+end
+
+redis.call('ZADD', KEYS[3], posted, activityId)
+-- an expired home timeline is rebuilt with this activity when its owner reads it
+if homeTimelineTtl == 0 then
+    redis.call('ZADD', KEYS[4], posted, activityId)
+    redis.call('ZREMRANGEBYRANK', KEYS[4], 0, -(timelineSize + 1))
+elseif redis.call('EXISTS', KEYS[7]) == 1 then
+    redis.call('ZADD', KEYS[4], posted, activityId)
+    redis.call('ZREMRANGEBYRANK', KEYS[4], 0, -(timelineSize + 1))
+    -- a materialised home timeline that was empty expires with its marker
+    if redis.call('TTL', KEYS[4]) == -1 then
+        redis.call('PEXPIRE', KEYS[4], redis.call('PTTL', KEYS[7]))
+    end
+end
+redis.call('ZADD', KEYS[5], posted, activityId)
+redis.call('ZADD', KEYS[6], posted, activityId)
+redis.call('ZREMRANGEBYRANK', KEYS[6], 0, -2)
+
+if #KEYS > 7 then
+    redis.call('ZADD', KEYS[8], posted, activityId)
+    redis.call('ZREMRANGEBYRANK', KEYS[8], 0, -(timelineSize + 1))
+end
+
+return posted
@@ -0,0 +1,16 @@
+-- Reads counters and HyperLogLog cardinalities in one round trip.
+--
+-- KEYS[1] .. KEYS[ARGV[1]] counters, read with GET
+-- remaining KEYS          HyperLogLogs, read with PFCOUNT
+
+local counters = tonumber(ARGV[1])
+local counts = {}
+
+for i = 1, #KEYS do
+    if i <= counters then
+        counts[i] = redis.call('GET', KEYS[i])
+    else
+        counts[i] = redis.call('PFCOUNT', KEYS[i])
+    end
+end
+return counts
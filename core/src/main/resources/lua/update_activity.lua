@@ -0,0 +1,51 @@
+-- Rewrites the hash of an existing activity and moves it in the timelines of its author when its date has changed.
+--
+-- KEYS[1] activity hash
+-- KEYS[2] user hash of the author
+-- KEYS[3] profile timeline
+-- KEYS[4] home timeline
+-- KEYS[5] profile goal timeline
+-- KEYS[6] profile latest timeline
+-- KEYS[7] community run timeline, only when the goal belongs to a community run
+--
+-- ARGV[1] timeline score of the activity
+-- ARGV[2] activity id
+-- ARGV[3] number of arguments holding activity hash fields and values, 0 on sharded Redis where the hashes and the
+--         community run timeline are on other shards and are written apart
+-- ARGV[4..] activity hash field and value pairs, followed by the user hash field and value pairs
+--
+-- Returns -1 when the activity is not in Redis, 1 when its score changed and 0 otherwise.
+
+local posted = ARGV[1]
+local activityId = ARGV[2]
+local activityArgs = tonumber(ARGV[3])
+
+local previous = redis.call('ZSCORE', KEYS[3], activityId)
+if not previous then
+    return -1
+end
+
+-- the activity may be stored in the other encoding, so its hash is replaced rather than updated
+if activityArgs > 0 then
+    redis.call('DEL', KEYS[1])
+    redis.call('HMSET', KEYS[1], unpack(ARGV, 4, 3 + activityArgs))
+    redis.call('HMSET', KEYS[2], unpack(ARGV, 4 + activityArgs))
+end
+if tonumber(previous) == tonumber(posted) then
+    return 0
+end
+
+for i = 3, #KEYS do
+    if i ~= 6 and redis.call('ZSCORE', KEYS[i], activityId) then
+        redis.call('ZADD', KEYS[i], posted, activityId)
+    end
+end
+
+-- the latest timeline holds the newest activity of the profile timeline
+local newest = redis.call('ZREVRANGE', KEYS[3], 0, 0, 'WITHSCORES')
+redis.call('DEL', KEYS[6])
+if #newest > 0 then
+    redis.call('ZADD', KEYS[6], newest[2], newest[1])
+end
+
+return 1
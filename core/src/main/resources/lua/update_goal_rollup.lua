@@ -0,0 +1,51 @@
+-- Sets the contribution of a posted, updated or deleted activity to the rollup buckets of a goal. The contribution
+-- of every activity is kept next to the buckets, so the buckets move by the difference between the kept contribution
+-- and the new one: an activity already counted when its rollup was built is not counted twice. Rollups that were
+-- never built, or were invalidated, only keep the contribution; they are built from the goal timeline when next read.
+--
+-- KEYS[1] rollup index of the goal, holding the built marker and the names of its monthly partitions
+-- KEYS[2] contributions of the activities of the goal
+-- KEYS[3] monthly partition of the new contribution, or of the kept one when the activity is deleted
+-- KEYS[4] monthly partition of the kept contribution, when the activity was moved to another month
+--
+-- ARGV[1] built marker field
+-- ARGV[2] activity id
+-- ARGV[3] new contribution, "partition bucket distance duration pace", or empty when the activity is deleted
+
+local index = KEYS[1]
+local contributions = KEYS[2]
+local activity = ARGV[2]
+local contribution = ARGV[3]
+
+local function add(value, sign)
+    local rollup, bucket, distance, duration, pace = string.match(value, '^(%S+) (%S+) (%S+) (%S+) (%S+)$')
+    redis.call('HSET', index, rollup, 1)
+    local count = redis.call('HINCRBY', rollup, bucket .. ':n', sign)
+    if count <= 0 then
+        redis.call('HDEL', rollup, bucket .. ':n', bucket .. ':d', bucket .. ':t', bucket .. ':p')
+    else
+        redis.call('HINCRBYFLOAT', rollup, bucket .. ':d', sign * tonumber(distance))
+        redis.call('HINCRBY', rollup, bucket .. ':t', sign * tonumber(duration))
+        redis.call('HINCRBYFLOAT', rollup, bucket .. ':p', sign * tonumber(pace))
+    end
+end
+
+local kept = redis.call('HGET', contributions, activity)
+if contribution == '' then
+    redis.call('HDEL', contributions, activity)
+else
+    redis.call('HSET', contributions, activity, contribution)
+end
+
+if redis.call('HEXISTS', index, ARGV[1]) == 0 then
+    return 0
+end
+
+if kept then
+    add(kept, -1)
+end
+if contribution ~= '' then
+    add(contribution, 1)
+end
+
+return 1
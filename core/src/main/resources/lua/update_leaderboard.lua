@@ -0,0 +1,32 @@
+-- Applies the distance and duration deltas of a posted, updated or deleted activity to the leaderboards of a community
+-- run. Runners left without distance or duration are removed from the leaderboard. Leaderboards that were never built
+-- are left alone; they are built from the activities of the run when first read, and the change counter tells a build
+-- running meanwhile that the totals it read may be stale. Either way the mark set before the activity was written to
+-- the database is cleared.
+--
+-- KEYS[1] built marker of the leaderboards
+-- KEYS[2] distance leaderboard
+-- KEYS[3] duration leaderboard
+-- KEYS[4] change counter of the leaderboards
+-- KEYS[5] number of activities being written
+--
+-- ARGV[1] runner
+-- ARGV[2] distance delta
+-- ARGV[3] duration delta
+
+if tonumber(redis.call('GET', KEYS[5]) or '0') > 0 then
+    redis.call('DECR', KEYS[5])
+end
+
+if redis.call('EXISTS', KEYS[1]) == 0 then
+    redis.call('INCR', KEYS[4])
+    return 0
+end
+
+for i = 2, 3 do
+    local score = tonumber(redis.call('ZINCRBY', KEYS[i], ARGV[i], ARGV[1]))
+    if score < 0.000001 then
+        redis.call('ZREM', KEYS[i], ARGV[1])
+    end
+end
+return 1
@@ -0,0 +1,78 @@
+package org.miles2run.core.cache;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.miles2run.core.repositories.redis.RedisUnavailableException;
+import org.miles2run.core.repositories.redis.TimelineRepository;
+import org.miles2run.domain.kv_aggregates.TimelineAggregate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class CommunityRunTimelineCacheTest {
+
+    private CommunityRunTimelineCache cache;
+    private final TimelineAggregate timeline = TimelineAggregate.empty();
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new CommunityRunTimelineCache();
+        cache.timelineRepository = mock(TimelineRepository.class);
+        cache.ttlInMillis = 60000;
+        when(cache.timelineRepository.communityRunTimeline("run", null, null, 0, 10)).thenReturn(timeline);
+    }
+
+    @Test
+    public void firstPage_ReadTwiceWithinTtl_ReadFromRedisOnce() throws Exception {
+        assertThat(cache.firstPage("run", 10), is(sameInstance(timeline)));
+        assertThat(cache.firstPage("run", 10), is(sameInstance(timeline)));
+        verify(cache.timelineRepository, times(1)).communityRunTimeline("run", null, null, 0, 10);
+    }
+
+    @Test
+    public void firstPage_CacheDisabled_AlwaysReadFromRedis() throws Exception {
+        cache.ttlInMillis = 0;
+        cache.firstPage("run", 10);
+        cache.firstPage("run", 10);
+        verify(cache.timelineRepository, times(2)).communityRunTimeline("run", null, null, 0, 10);
+    }
+
+    @Test
+    public void firstPage_ConcurrentMisses_SingleRedisRead() throws Exception {
+        CountDownLatch reading = new CountDownLatch(1);
+        when(cache.timelineRepository.communityRunTimeline("run", null, null, 0, 10)).thenAnswer(invocation -> {
+            reading.await(5, TimeUnit.SECONDS);
+            return timeline;
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<TimelineAggregate>> pages = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            pages.add(executor.submit(() -> cache.firstPage("run", 10)));
+        }
+        reading.countDown();
+        for (Future<TimelineAggregate> page : pages) {
+            assertThat(page.get(5, TimeUnit.SECONDS), is(sameInstance(timeline)));
+        }
+        executor.shutdown();
+        verify(cache.timelineRepository, times(1)).communityRunTimeline("run", null, null, 0, 10);
+    }
+
+    @Test
+    public void firstPage_ReadFails_NextCallRetries() throws Exception {
+        when(cache.timelineRepository.communityRunTimeline("run", null, null, 0, 10)).thenThrow(new RedisUnavailableException("down")).thenReturn(timeline);
+        try {
+            cache.firstPage("run", 10);
+            fail("Redis is unavailable");
+        } catch (RedisUnavailableException e) {
+            // expected, surfaced as is so that it is mapped to 503
+        }
+        assertThat(cache.firstPage("run", 10), is(sameInstance(timeline)));
+    }
+}
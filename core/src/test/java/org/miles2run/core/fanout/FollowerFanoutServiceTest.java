@@ -0,0 +1,178 @@
+package org.miles2run.core.fanout;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.miles2run.core.repositories.mongo.UserProfileRepository;
+import org.miles2run.core.repositories.redis.JedisExecution;
+import org.miles2run.core.repositories.redis.JedisShardedOperation;
+import org.miles2run.core.repositories.redis.RedisKeyNames;
+import org.miles2run.core.repositories.redis.TimelineRepository;
+import org.miles2run.domain.documents.UserProfile;
+import org.mockito.InOrder;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Tuple;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class FollowerFanoutServiceTest {
+
+    private final Queue<Pipeline> pipelines = new LinkedList<>();
+    private FollowerFanoutService service;
+    private Jedis jedis;
+
+    @Before
+    public void setUp() throws Exception {
+        service = new FollowerFanoutService();
+        service.userProfileRepository = mock(UserProfileRepository.class);
+        JedisPool jedisPool = mock(JedisPool.class);
+        jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        service.jedisExecution = new JedisExecution();
+        service.jedisExecution.setJedisPool(jedisPool);
+        service.chunkSize = FollowerFanoutService.DEFAULT_CHUNK_SIZE;
+    }
+
+    @Test
+    public void chunks_FiveFollowersAndChunkSizeTwo_ThreeChunksWithLastChunkOfOne() throws Exception {
+        List<List<String>> chunks = FollowerFanoutService.chunks(Arrays.asList("a", "b", "c", "d", "e"), 2);
+        assertThat(chunks, hasSize(3));
+        assertThat(chunks.get(0), is(equalTo(Arrays.asList("a", "b"))));
+        assertThat(chunks.get(2), is(equalTo(Collections.singletonList("e"))));
+    }
+
+    @Test
+    public void chunks_NoFollowers_NoChunks() throws Exception {
+        List<List<String>> chunks = FollowerFanoutService.chunks(Collections.<String>emptyList(), 500);
+        assertThat(chunks, hasSize(0));
+    }
+
+    @Test
+    public void metrics_CompletedTwoFanouts_AverageAndMaxLagComputed() throws Exception {
+        FanoutMetrics metrics = new FanoutMetrics();
+        metrics.submitted();
+        metrics.submitted();
+        metrics.completed(10);
+        metrics.completed(30);
+        assertThat(metrics.snapshot(0, 0).get("maxLagInMillis"), is(equalTo((Object) 30L)));
+        assertThat(metrics.snapshot(0, 0).get("averageLagInMillis"), is(equalTo((Object) 20.0d)));
+    }
+
+    @Test
+    public void deliver_HeavyAccountBackUnderThreshold_CopiesProfileTimelineBeforeLeavingHeavyAccounts() throws Exception {
+        service.followerThreshold = 5;
+        when(service.userProfileRepository.find("alice")).thenReturn(userProfile("alice", "bob", "carol"));
+        when(jedis.sismember(RedisKeyNames.HEAVY_ACCOUNTS_SET, "alice")).thenReturn(true);
+        String profileTimelineKey = String.format(RedisKeyNames.PROFILE_S_TIMELINE, "alice");
+        when(jedis.zrevrangeWithScores(profileTimelineKey, 0, TimelineRepository.TIMELINE_SIZE - 1)).thenReturn(new LinkedHashSet<>(Arrays.asList(new Tuple("3", 300d), new Tuple("2", 200d))));
+        Client client = pipelined(jedis, 1L, 1L, 0L, 1L, 1L, 0L);
+
+        service.deliver("alice", "3", 300, System.currentTimeMillis());
+
+        InOrder inOrder = inOrder(client, jedis);
+        for (String follower : Arrays.asList("bob", "carol")) {
+            String homeTimelineKey = String.format(RedisKeyNames.HOME_S_TIMELINE, follower);
+            inOrder.verify(client).zadd(homeTimelineKey, 300d, "3");
+            inOrder.verify(client).zadd(homeTimelineKey, 200d, "2");
+        }
+        inOrder.verify(jedis).srem(RedisKeyNames.HEAVY_ACCOUNTS_SET, "alice");
+        verify(jedis, never()).sadd(anyString(), anyString());
+    }
+
+    @Test
+    public void deliver_HeavyAccount_NotPushed() throws Exception {
+        service.followerThreshold = 1;
+        when(service.userProfileRepository.find("alice")).thenReturn(userProfile("alice", "bob", "carol"));
+
+        service.deliver("alice", "3", 300, System.currentTimeMillis());
+
+        verify(jedis).sadd(RedisKeyNames.HEAVY_ACCOUNTS_SET, "alice");
+        verify(jedis, never()).pipelined();
+    }
+
+    @Test
+    public void deliver_FollowersOverChunkSize_OnePipelinePerChunk() throws Exception {
+        service.chunkSize = 2;
+        when(service.userProfileRepository.find("alice")).thenReturn(userProfile("alice", "bob", "carol", "dave", "erin", "frank"));
+        Client first = pipelined(jedis, 1L, 0L, 1L, 0L);
+        Client second = pipelined(jedis, 1L, 0L, 1L, 0L);
+        Client third = pipelined(jedis, 1L, 0L);
+
+        service.deliver("alice", "3", 300, System.currentTimeMillis());
+
+        verify(jedis, times(3)).pipelined();
+        verify(first).zadd(String.format(RedisKeyNames.HOME_S_TIMELINE, "bob"), 300d, "3");
+        verify(first).zadd(String.format(RedisKeyNames.HOME_S_TIMELINE, "carol"), 300d, "3");
+        verify(second).zadd(String.format(RedisKeyNames.HOME_S_TIMELINE, "dave"), 300d, "3");
+        verify(second).zadd(String.format(RedisKeyNames.HOME_S_TIMELINE, "erin"), 300d, "3");
+        verify(third).zadd(String.format(RedisKeyNames.HOME_S_TIMELINE, "frank"), 300d, "3");
+        verify(third, never()).zadd(String.format(RedisKeyNames.HOME_S_TIMELINE, "bob"), 300d, "3");
+        service.start(1, 1);
+        assertThat(service.metrics().get("chunksWritten"), is(equalTo((Object) 3L)));
+        assertThat(service.metrics().get("followersDelivered"), is(equalTo((Object) 5L)));
+        service.preDestroy();
+    }
+
+    @Test
+    public void fanout_QueueFull_DeliveredOnTheCallingThread() throws Exception {
+        service.jedisExecution = mock(JedisExecution.class);
+        service.start(1, 1);
+        final Thread caller = Thread.currentThread();
+        final CountDownLatch workerBusy = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Thread> deliveringThreads = Collections.synchronizedList(new ArrayList<>());
+        when(service.userProfileRepository.find("alice")).thenAnswer(invocation -> {
+            deliveringThreads.add(Thread.currentThread());
+            if (Thread.currentThread() != caller) {
+                workerBusy.countDown();
+                release.await(5, TimeUnit.SECONDS);
+            }
+            return userProfile("alice", "bob");
+        });
+
+        service.fanout("alice", "1", 100);
+        assertThat(workerBusy.await(5, TimeUnit.SECONDS), is(true));
+        service.fanout("alice", "2", 200);
+        service.fanout("alice", "3", 300);
+
+        assertThat(deliveringThreads.contains(caller), is(true));
+        assertThat(service.metrics().get("callerRuns"), is(equalTo((Object) 1L)));
+        assertThat(service.metrics().get("queueDepth"), is(equalTo((Object) 1)));
+        release.countDown();
+        service.preDestroy();
+        verify(service.jedisExecution, times(3)).executeOnShards(any(JedisShardedOperation.class));
+    }
+
+    /**
+     * Pipelines of the mocked connection are real, with a client answering their commands with the replies.
+     */
+    private Client pipelined(Jedis jedis, Object... replies) {
+        Client client = mock(Client.class);
+        when(client.getAll()).thenReturn(Arrays.asList(replies));
+        Pipeline pipeline = new Pipeline();
+        pipeline.setClient(client);
+        if (pipelines.isEmpty()) {
+            when(jedis.pipelined()).thenAnswer(invocation -> pipelines.poll());
+        }
+        pipelines.add(pipeline);
+        return client;
+    }
+
+    private UserProfile userProfile(String username, String... followers) {
+        UserProfile userProfile = new UserProfile();
+        userProfile.setUsername(username);
+        userProfile.getFollowers().addAll(Arrays.asList(followers));
+        return userProfile;
+    }
+}
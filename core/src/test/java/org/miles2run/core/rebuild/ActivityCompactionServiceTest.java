@@ -0,0 +1,64 @@
+package org.miles2run.core.rebuild;
+
+import org.junit.Test;
+import org.miles2run.core.repositories.redis.ActivityCodec;
+import org.miles2run.domain.entities.Profile;
+import redis.clients.util.SafeEncoder;
+
+import java.util.*;
+
+import static java.util.stream.Collectors.toList;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ActivityCompactionServiceTest {
+
+    @Test
+    public void compactionArgs_OnlyTextHashesConverted() throws Exception {
+        Map<String, String> compact = Collections.singletonMap(ActivityCodec.COMPACT_FIELD, "x");
+        Map<String, String> incomplete = textHash();
+        incomplete.remove("duration");
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> args = new ArrayList<>();
+
+        int skipped = ActivityCompactionService.compactionArgs(Arrays.asList(1L, 2L, 3L, 4L), Arrays.asList(textHash(), Collections.<String, String>emptyMap(), compact, incomplete), Collections.<String, Profile>emptyMap(), keys, args);
+
+        assertThat(skipped, is(equalTo(1)));
+        assertThat(keys.stream().map(SafeEncoder::encode).collect(toList()), is(equalTo(Arrays.asList("activity:1", "user:42"))));
+        assertThat(args.size(), is(equalTo(4)));
+        assertThat(ActivityCodec.decode(args.get(0)).getUserId(), is(equalTo(42L)));
+        assertThat(SafeEncoder.encode(args.get(1)), is(equalTo("test_user")));
+        assertThat(SafeEncoder.encode(args.get(3)), is(equalTo("")));
+    }
+
+    @Test
+    public void compactionArgs_AuthorRenamed_UserHashWrittenFromCurrentProfile() throws Exception {
+        Profile profile = mock(Profile.class);
+        when(profile.getFullname()).thenReturn("Renamed User");
+        when(profile.getProfilePic()).thenReturn("pic.png");
+        List<byte[]> keys = new ArrayList<>();
+        List<byte[]> args = new ArrayList<>();
+
+        ActivityCompactionService.compactionArgs(Collections.singletonList(1L), Collections.singletonList(textHash()), Collections.singletonMap("test_user", profile), keys, args);
+
+        assertThat(SafeEncoder.encode(args.get(2)), is(equalTo("Renamed User")));
+        assertThat(SafeEncoder.encode(args.get(3)), is(equalTo("pic.png")));
+    }
+
+    private Map<String, String> textHash() {
+        Map<String, String> hash = new HashMap<>();
+        hash.put("userId", "42");
+        hash.put("username", "test_user");
+        hash.put("fullname", "Test User");
+        hash.put("goalId", "7");
+        hash.put("posted", "100");
+        hash.put("distanceCovered", "5000.0");
+        hash.put("goalUnit", "km");
+        hash.put("duration", "1800");
+        hash.put("status", "morning run");
+        return hash;
+    }
+}
@@ -0,0 +1,75 @@
+package org.miles2run.core.rebuild;
+
+import org.junit.Test;
+import org.miles2run.core.repositories.redis.JedisExecution;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.util.SafeEncoder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.*;
+
+public class HyperLogLogMigrationServiceTest {
+
+    @Test
+    public void hyperLogLogsBySet_NoCommunityRuns_GlobalSetsMigrated() throws Exception {
+        Map<String, String> hyperLogLogs = HyperLogLogMigrationService.hyperLogLogsBySet(Collections.<String>emptyList());
+
+        assertThat(new ArrayList<>(hyperLogLogs.keySet()), is(equalTo(Arrays.asList("countries", "cities"))));
+        assertThat(new ArrayList<>(hyperLogLogs.values()), is(equalTo(Arrays.asList("countries-hll", "cities-hll"))));
+    }
+
+    @Test
+    public void hyperLogLogsBySet_CommunityRun_CountedSetsOfRunMigrated() throws Exception {
+        Map<String, String> hyperLogLogs = HyperLogLogMigrationService.hyperLogLogsBySet(Collections.singletonList("bangalore-10k"));
+
+        assertThat(hyperLogLogs.size(), is(equalTo(5)));
+        assertThat(hyperLogLogs.get("bangalore-10k-all-runners"), is(equalTo("bangalore-10k-all-runners-hll")));
+        assertThat(hyperLogLogs.get("bangalore-10k-cities"), is(equalTo("bangalore-10k-cities-hll")));
+        assertThat(hyperLogLogs.get("bangalore-10k-countries"), is(equalTo("bangalore-10k-countries-hll")));
+    }
+
+    @Test
+    public void migrateSet_MembersPoppedFromCopyInBatches() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        JedisPool jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        Pipeline first = pipeline("nl", "in");
+        Pipeline second = pipeline("us", null);
+        when(jedis.pipelined()).thenReturn(first, second);
+        HyperLogLogMigrationService service = new HyperLogLogMigrationService();
+        service.jedisExecution = new JedisExecution();
+        service.jedisExecution.setJedisPool(jedisPool);
+
+        service.migrateSet("countries", "countries-hll", 2);
+
+        verify(jedis).sunionstore("countries-hll-migration", "countries");
+        verify(jedis).expire("countries-hll-migration", HyperLogLogMigrationService.COPY_EXPIRY_SECONDS);
+        verify(jedis, never()).smembers(anyString());
+        verify(jedis).evalsha(anyString(), eq(Collections.singletonList("countries-hll")), eq(Arrays.asList("nl", "in")));
+        verify(jedis).evalsha(anyString(), eq(Collections.singletonList("countries-hll")), eq(Arrays.asList("us")));
+        assertThat(service.status().get("membersAdded"), is(equalTo((Object) 3L)));
+    }
+
+    private Pipeline pipeline(String... members) {
+        Client client = mock(Client.class);
+        Object[] replies = new Object[members.length];
+        for (int i = 0; i < members.length; i++) {
+            replies[i] = members[i] == null ? null : SafeEncoder.encode(members[i]);
+        }
+        when(client.getAll()).thenReturn(Arrays.asList(replies));
+        Pipeline pipeline = new Pipeline();
+        pipeline.setClient(client);
+        return pipeline;
+    }
+}
@@ -0,0 +1,44 @@
+package org.miles2run.core.rebuild;
+
+import org.junit.Test;
+import org.miles2run.core.repositories.redis.HashTags;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class ShardMigrationServiceTest {
+
+    private final List<String> taggedFormats = ShardMigrationService.taggedFormatsBySpecificity(HashTags.taggedFormats());
+    private final Set<String> communityRuns = Collections.singleton("50k-in-june");
+
+    @Test
+    public void shardedName_UserAndGoalKeys_Tagged() throws Exception {
+        assertThat(shardedName("profile:shekhar:timeline"), is(equalTo("profile:{shekhar}:timeline")));
+        assertThat(shardedName("profile:shekhar:goal:1:timeline"), is(equalTo("profile:{shekhar}:goal:1:timeline")));
+        assertThat(shardedName("goal:1:rollup:2014-06"), is(equalTo("goal:{1}:rollup:2014-06")));
+        assertThat(shardedName("shekhar-community_runs"), is(equalTo("{shekhar}-community_runs")));
+    }
+
+    @Test
+    public void shardedName_CommunityRunKeys_TaggedWithTheSlug() throws Exception {
+        assertThat(shardedName("50k-in-june-all-runners"), is(equalTo("{50k-in-june}-all-runners")));
+        assertThat(shardedName("50k-in-june-runners"), is(equalTo("{50k-in-june}-runners")));
+        assertThat(shardedName("50k-in-june-cities-hll"), is(equalTo("{50k-in-june}-cities-hll")));
+    }
+
+    @Test
+    public void shardedName_UntaggedOrAlreadyTagged_Unchanged() throws Exception {
+        assertThat(shardedName("activity:42"), is(equalTo("activity:42")));
+        assertThat(shardedName("distance"), is(equalTo("distance")));
+        assertThat(shardedName("home:{shekhar}:timeline"), is(equalTo("home:{shekhar}:timeline")));
+    }
+
+    private String shardedName(String key) {
+        return ShardMigrationService.shardedName(key, taggedFormats, communityRuns);
+    }
+}
@@ -0,0 +1,134 @@
+package org.miles2run.core.rebuild;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.miles2run.core.fanout.FollowerFanoutService;
+import org.miles2run.core.repositories.jpa.ActivityRepository;
+import org.miles2run.core.repositories.mongo.UserProfileRepository;
+import org.miles2run.core.repositories.redis.JedisExecution;
+import org.miles2run.core.repositories.redis.TimelineRepository;
+import org.miles2run.domain.documents.UserProfile;
+import org.miles2run.domain.entities.Activity;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class TimelineRebuildServiceTest {
+
+    private TimelineRebuildService service;
+    private Jedis jedis;
+
+    @Before
+    public void setUp() throws Exception {
+        service = new TimelineRebuildService();
+        service.activityRepository = mock(ActivityRepository.class);
+        service.userProfileRepository = mock(UserProfileRepository.class);
+        service.timelineRepository = mock(TimelineRepository.class);
+        service.followerFanoutService = mock(FollowerFanoutService.class);
+        JedisPool jedisPool = mock(JedisPool.class);
+        jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        service.jedisExecution = new JedisExecution();
+        service.jedisExecution.setJedisPool(jedisPool);
+    }
+
+    @Test
+    public void idRanges_SplitsIdsInContiguousRanges() throws Exception {
+        List<long[]> ranges = TimelineRebuildService.idRanges(10, 4);
+
+        assertThat(ranges, hasSize(4));
+        assertThat(ranges.get(0)[0], is(equalTo(0L)));
+        assertThat(ranges.get(0)[1], is(equalTo(3L)));
+        assertThat(ranges.get(3)[0], is(equalTo(9L)));
+        assertThat(ranges.get(3)[1], is(equalTo(10L)));
+    }
+
+    @Test
+    public void idRanges_NoActivities_NoRanges() throws Exception {
+        assertThat(TimelineRebuildService.idRanges(0, 4), hasSize(0));
+        assertThat(TimelineRebuildService.idRanges(2, 4), hasSize(2));
+    }
+
+    @Test
+    public void rebuild_RestoresActivitiesAndHomeTimelines() throws Exception {
+        when(service.activityRepository.maxActivityId()).thenReturn(2L);
+        List<Activity> first = Collections.singletonList(activity(1L));
+        List<Activity> second = Collections.singletonList(activity(2L));
+        when(service.activityRepository.findAllInIdRange(anyLong(), anyLong(), anyInt())).thenAnswer(invocation -> {
+            long afterId = (Long) invocation.getArguments()[0];
+            return afterId == 0 ? first : afterId == 1 ? second : Collections.emptyList();
+        });
+        when(service.userProfileRepository.findAll(null, TimelineRebuildService.DEFAULT_BATCH_SIZE)).thenReturn(Arrays.asList(userProfile("alice", "bob"), userProfile("bob")));
+
+        service.rebuild(false);
+
+        verify(service.timelineRepository).restoreActivities(first);
+        verify(service.timelineRepository).restoreActivities(second);
+        Map<String, List<String>> followingByUser = new HashMap<>();
+        followingByUser.put("alice", Arrays.asList("bob"));
+        followingByUser.put("bob", Collections.<String>emptyList());
+        verify(service.timelineRepository).restoreHomeTimelines(followingByUser);
+        verify(jedis, times(2)).del("rebuild:checkpoint");
+        assertThat(service.status().get("activitiesRestored"), is(equalTo((Object) 2L)));
+        assertThat(service.status().get("phase"), is(equalTo((Object) "completed")));
+    }
+
+    @Test
+    public void rebuild_Resume_ContinuesAfterCheckpoint() throws Exception {
+        Map<String, String> checkpoints = new HashMap<>();
+        checkpoints.put(TimelineRebuildService.MAX_ID_CHECKPOINT, "4");
+        checkpoints.put("activities:0-1", "1");
+        checkpoints.put("activities:1-2", "2");
+        checkpoints.put("activities:2-3", "3");
+        checkpoints.put("activities:3-4", "3");
+        checkpoints.put(TimelineRebuildService.HOME_TIMELINES_CHECKPOINT, "alice");
+        when(jedis.hgetAll("rebuild:checkpoint")).thenReturn(checkpoints);
+        List<Activity> remaining = Collections.singletonList(activity(4L));
+        when(service.activityRepository.findAllInIdRange(3L, 4L, TimelineRebuildService.DEFAULT_BATCH_SIZE)).thenReturn(remaining);
+
+        service.rebuild(true);
+
+        verify(service.activityRepository, never()).maxActivityId();
+        verify(service.activityRepository, times(1)).findAllInIdRange(anyLong(), anyLong(), anyInt());
+        verify(service.userProfileRepository).findAll("alice", TimelineRebuildService.DEFAULT_BATCH_SIZE);
+    }
+
+    @Test
+    public void rebuild_ResumeWithAnotherWorkerCount_KeepsCheckpointedRanges() throws Exception {
+        Map<String, String> checkpoints = new HashMap<>();
+        checkpoints.put(TimelineRebuildService.MAX_ID_CHECKPOINT, "4");
+        checkpoints.put(TimelineRebuildService.RANGES_CHECKPOINT, "2");
+        checkpoints.put("activities:0-2", "2");
+        checkpoints.put("activities:2-4", "3");
+        when(jedis.hgetAll("rebuild:checkpoint")).thenReturn(checkpoints);
+        List<Activity> remaining = Collections.singletonList(activity(4L));
+        when(service.activityRepository.findAllInIdRange(3L, 4L, TimelineRebuildService.DEFAULT_BATCH_SIZE)).thenReturn(remaining);
+        when(service.followerFanoutService.isLazyHomeTimelines()).thenReturn(true);
+
+        service.rebuild(true);
+
+        verify(service.activityRepository, times(1)).findAllInIdRange(anyLong(), anyLong(), anyInt());
+        verify(service.timelineRepository).restoreActivities(remaining);
+        verify(jedis).hset("rebuild:checkpoint", TimelineRebuildService.RANGES_CHECKPOINT, "2");
+    }
+
+    private Activity activity(Long id) {
+        Activity activity = mock(Activity.class);
+        when(activity.getId()).thenReturn(id);
+        return activity;
+    }
+
+    private UserProfile userProfile(String username, String... following) {
+        UserProfile userProfile = new UserProfile();
+        userProfile.setUsername(username);
+        userProfile.getFollowing().addAll(Arrays.asList(following));
+        return userProfile;
+    }
+}
@@ -0,0 +1,81 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.Test;
+import org.miles2run.core.repositories.redis.vo.CompactActivity;
+import org.miles2run.domain.entities.GoalUnit;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+public class ActivityCodecTest {
+
+    @Test
+    public void encode_ThenDecode_ReturnsSameActivity() throws Exception {
+        CompactActivity activity = new CompactActivity(42L, 7L, 1400000000000L, 1400000001000L, 10500.5, GoalUnit.MI, 3600L, "Long run \u2013 felt great");
+
+        CompactActivity decoded = ActivityCodec.decode(ActivityCodec.encode(activity));
+
+        assertThat(decoded.getUserId(), is(equalTo(42L)));
+        assertThat(decoded.getGoalId(), is(equalTo(7L)));
+        assertThat(decoded.getPosted(), is(equalTo(1400000000000L)));
+        assertThat(decoded.getCreatedAt(), is(equalTo(1400000001000L)));
+        assertThat(decoded.getDistanceCovered(), is(equalTo(10500.5)));
+        assertThat(decoded.getGoalUnit(), is(equalTo(GoalUnit.MI)));
+        assertThat(decoded.getDuration(), is(equalTo(3600L)));
+        assertThat(decoded.getStatus(), is(equalTo("Long run \u2013 felt great")));
+    }
+
+    @Test
+    public void encode_IsSmallerThanTextHash() throws Exception {
+        byte[] encoded = ActivityCodec.encode(new CompactActivity(42L, 7L, 1400000000000L, 1400000001000L, 5000, GoalUnit.KM, 1800L, "morning run"));
+
+        assertTrue(encoded.length < 50);
+    }
+
+    @Test
+    public void decode_UnknownVersionOrTruncatedValue_ReturnsNull() throws Exception {
+        byte[] encoded = ActivityCodec.encode(new CompactActivity(1L, 1L, 1L, 1L, 1, GoalUnit.KM, 1L, ""));
+        byte[] unknownVersion = encoded.clone();
+        unknownVersion[0] = 2;
+
+        assertThat(ActivityCodec.decode(unknownVersion), is(nullValue()));
+        assertThat(ActivityCodec.decode(new byte[]{ActivityCodec.VERSION_1, 1}), is(nullValue()));
+    }
+
+    @Test
+    public void varLong_RoundTripsLargeValues() throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        ActivityCodec.putVarLong(buffer, Long.MAX_VALUE);
+        ActivityCodec.putVarLong(buffer, 127);
+        assertThat(buffer.position(), is(equalTo(10)));
+        buffer.flip();
+
+        assertThat(ActivityCodec.getVarLong(buffer), is(equalTo(Long.MAX_VALUE)));
+        assertThat(ActivityCodec.getVarLong(buffer), is(equalTo(127L)));
+    }
+
+    @Test
+    public void fromHash_TextHashWithoutCreatedAt_Converted() throws Exception {
+        Map<String, String> hash = new HashMap<>();
+        hash.put("userId", "42");
+        hash.put("goalId", "7");
+        hash.put("posted", "100");
+        hash.put("distanceCovered", "5000.0");
+        hash.put("goalUnit", "km");
+        hash.put("duration", "1800");
+        hash.put("status", "morning run");
+
+        CompactActivity activity = ActivityCodec.fromHash(hash);
+
+        assertThat(activity.getUserId(), is(equalTo(42L)));
+        assertThat(activity.getCreatedAt(), is(equalTo(0L)));
+        assertThat(activity.getGoalUnit(), is(equalTo(GoalUnit.KM)));
+    }
+}
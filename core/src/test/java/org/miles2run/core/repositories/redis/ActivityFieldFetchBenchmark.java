@@ -0,0 +1,77 @@
+package org.miles2run.core.repositories.redis;
+
+import redis.clients.jedis.Jedis;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares reading the distance and duration of the activities of a goal one HMGET at a time with the pipelined
+ * {@link GoalAggregationRepository#activityFields(Jedis, List, String...)}.
+ * <p>
+ * Run against a scratch Redis, it writes to database 15:
+ * <code>java -cp ... org.miles2run.core.repositories.redis.ActivityFieldFetchBenchmark [activities] [runs]</code>.
+ * The host and port are read from REDIS_DB_HOST and REDIS_DB_PORT like the application does.
+ */
+public class ActivityFieldFetchBenchmark {
+
+    private static final String[] FIELDS = {"distanceCovered", "duration"};
+
+    public static void main(String[] args) {
+        int activities = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        String host = System.getenv("REDIS_DB_HOST") == null ? "localhost" : System.getenv("REDIS_DB_HOST");
+        int port = System.getenv("REDIS_DB_PORT") == null ? 6379 : Integer.parseInt(System.getenv("REDIS_DB_PORT"));
+        Jedis jedis = new Jedis(host, port);
+        try {
+            jedis.select(15);
+            List<String> activityIds = seed(jedis, activities);
+            for (int run = 0; run < runs; run++) {
+                measure("one HMGET per activity", jedis, activities, () -> {
+                    for (String activityId : activityIds) {
+                        jedis.hmget(String.format(RedisKeyNames.ACTIVITY_S, activityId), FIELDS);
+                    }
+                });
+                measure("pipelined batch fetch", jedis, (activities + GoalAggregationRepository.FETCH_BATCH_SIZE - 1) / GoalAggregationRepository.FETCH_BATCH_SIZE,
+                        () -> GoalAggregationRepository.activityFields(jedis, activityIds, FIELDS));
+            }
+            jedis.flushDB();
+        } finally {
+            jedis.disconnect();
+        }
+    }
+
+    private static List<String> seed(Jedis jedis, int activities) {
+        jedis.flushDB();
+        List<String> activityIds = new ArrayList<>();
+        for (int id = 1; id <= activities; id++) {
+            Map<String, String> activity = new HashMap<>();
+            activity.put("distanceCovered", String.valueOf(5000.0 + id));
+            activity.put("duration", String.valueOf(1800 + id));
+            jedis.hmset(String.format(RedisKeyNames.ACTIVITY_S, id), activity);
+            activityIds.add(String.valueOf(id));
+        }
+        return activityIds;
+    }
+
+    private static void measure(String name, Jedis jedis, int roundTrips, Runnable fetch) {
+        long commandsBefore = totalCommandsProcessed(jedis);
+        long start = System.nanoTime();
+        fetch.run();
+        long elapsedMicros = (System.nanoTime() - start) / 1000;
+        // the INFO command issued to read the counter is counted as well
+        long commands = totalCommandsProcessed(jedis) - commandsBefore - 1;
+        System.out.println(String.format("%-24s commands=%d roundTrips=%d elapsed=%dus", name, commands, roundTrips, elapsedMicros));
+    }
+
+    private static long totalCommandsProcessed(Jedis jedis) {
+        for (String line : jedis.info().split("\r\n")) {
+            if (line.startsWith("total_commands_processed:")) {
+                return Long.parseLong(line.substring("total_commands_processed:".length()));
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,125 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.miles2run.core.repositories.jpa.vo.RunnerTotals;
+import org.miles2run.core.repositories.redis.vo.Leaderboard;
+import org.miles2run.core.repositories.redis.vo.LeaderboardEntry;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class CommunityRunLeaderboardRepositoryTest {
+
+    private final CommunityRunLeaderboardRepository leaderboardRepository = new CommunityRunLeaderboardRepository();
+    private final AtomicInteger totalsRead = new AtomicInteger();
+    private final Supplier<List<RunnerTotals>> totals = () -> {
+        totalsRead.incrementAndGet();
+        return Collections.singletonList(new RunnerTotals("shekhar", 42000.0, 12600L));
+    };
+    private Jedis jedis;
+
+    @Before
+    public void setUp() throws Exception {
+        jedis = mock(Jedis.class);
+        JedisPool jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        leaderboardRepository.jedisExecution = new JedisExecution();
+        leaderboardRepository.jedisExecution.setJedisPool(jedisPool);
+    }
+
+    @Test
+    public void key_Metric_OneSortedSetPerRunAndMetric() throws Exception {
+        assertThat(CommunityRunLeaderboardRepository.key("bangalore-10k", CommunityRunLeaderboardRepository.Metric.DURATION), is(equalTo("community_run:bangalore-10k:leaderboard:duration")));
+    }
+
+    @Test
+    public void fromName_UnknownMetric_Null() throws Exception {
+        assertThat(CommunityRunLeaderboardRepository.Metric.fromName("Distance"), is(equalTo(CommunityRunLeaderboardRepository.Metric.DISTANCE)));
+        assertThat(CommunityRunLeaderboardRepository.Metric.fromName("pace"), is(nullValue()));
+    }
+
+    @Test
+    public void toEntries_SecondPage_RanksContinueFromOffset() throws Exception {
+        List<LeaderboardEntry> entries = CommunityRunLeaderboardRepository.toEntries(11, Arrays.asList(new Tuple("shekhar", 42000.0), new Tuple("rahul", 21000.0)));
+
+        assertThat(entries.get(0).getRank(), is(equalTo(11L)));
+        assertThat(entries.get(1).getRank(), is(equalTo(12L)));
+        assertThat(entries.get(1).getUsername(), is(equalTo("rahul")));
+    }
+
+    @Test
+    public void toLeaderboard_AroundReply_NeighboursRankedFromFirstRank() throws Exception {
+        Leaderboard leaderboard = CommunityRunLeaderboardRepository.toLeaderboard(CommunityRunLeaderboardRepository.Metric.DISTANCE, Arrays.<Object>asList(120L, 4L, "a", "9000", "b", "8000", "c", "7000"));
+
+        assertThat(leaderboard.getRunners(), is(equalTo(120L)));
+        assertThat(leaderboard.getEntries().size(), is(equalTo(3)));
+        assertThat(leaderboard.getEntries().get(0).getRank(), is(equalTo(5L)));
+        assertThat(leaderboard.getEntries().get(2).getRank(), is(equalTo(7L)));
+        assertThat(leaderboard.getEntries().get(2).getScore(), is(equalTo(7000.0)));
+    }
+
+    @Test
+    public void toLeaderboard_RunnerNotRanked_NoEntries() throws Exception {
+        Leaderboard leaderboard = CommunityRunLeaderboardRepository.toLeaderboard(CommunityRunLeaderboardRepository.Metric.DISTANCE, Arrays.<Object>asList(120L, -1L));
+
+        assertThat(leaderboard.getEntries().isEmpty(), is(true));
+    }
+
+    @Test
+    public void build_AnotherBuildHoldsTheLock_NotBuilt() throws Exception {
+        when(jedis.set(eq("community_run:bangalore-10k:leaderboard:lock"), anyString(), eq("NX"), eq("EX"), anyInt())).thenReturn(null);
+
+        assertThat(leaderboardRepository.build("bangalore-10k", totals), is(false));
+        assertThat(totalsRead.get(), is(equalTo(0)));
+        verify(jedis, never()).multi();
+    }
+
+    @Test
+    public void build_ActivityPostedMeanwhile_TotalsReadAgain() throws Exception {
+        when(jedis.set(eq("community_run:bangalore-10k:leaderboard:lock"), anyString(), eq("NX"), eq("EX"), anyInt())).thenReturn("OK");
+        when(jedis.exists("community_run:bangalore-10k:leaderboard:built")).thenReturn(false);
+        final Client client = mock(Client.class);
+        when(client.getObjectMultiBulkReply()).thenReturn(null, Collections.emptyList());
+        when(jedis.multi()).thenAnswer(invocation -> new Transaction(client));
+
+        assertThat(leaderboardRepository.build("bangalore-10k", totals), is(true));
+        assertThat(totalsRead.get(), is(equalTo(2)));
+        verify(jedis, times(2)).watch("community_run:bangalore-10k:leaderboard:changes", "community_run:bangalore-10k:leaderboard:built", "community_run:bangalore-10k:leaderboard:pending");
+    }
+
+    @Test
+    public void build_BuiltWhileWaitingForTheLock_TotalsNotRead() throws Exception {
+        when(jedis.set(eq("community_run:bangalore-10k:leaderboard:lock"), anyString(), eq("NX"), eq("EX"), anyInt())).thenReturn("OK");
+        when(jedis.exists("community_run:bangalore-10k:leaderboard:built")).thenReturn(true);
+
+        assertThat(leaderboardRepository.build("bangalore-10k", totals), is(true));
+        assertThat(totalsRead.get(), is(equalTo(0)));
+    }
+
+    @Test
+    public void build_ActivityBeingWritten_NotBuilt() throws Exception {
+        when(jedis.set(eq("community_run:bangalore-10k:leaderboard:lock"), anyString(), eq("NX"), eq("EX"), anyInt())).thenReturn("OK");
+        when(jedis.exists("community_run:bangalore-10k:leaderboard:built")).thenReturn(false);
+        when(jedis.get("community_run:bangalore-10k:leaderboard:pending")).thenReturn("1");
+
+        assertThat(leaderboardRepository.build("bangalore-10k", totals), is(false));
+        assertThat(totalsRead.get(), is(equalTo(0)));
+        verify(jedis).unwatch();
+        verify(jedis, never()).multi();
+    }
+}
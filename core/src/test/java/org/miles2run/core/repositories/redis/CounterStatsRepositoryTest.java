@@ -0,0 +1,187 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.miles2run.domain.kv_aggregates.CounterAggregate;
+import org.mockito.ArgumentCaptor;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class CounterStatsRepositoryTest {
+
+    private final CounterStatsRepository repository = new CounterStatsRepository();
+
+    @Before
+    public void setUp() throws Exception {
+        repository.jedisExecution = mock(JedisExecution.class);
+        repository.flushIntervalMillis = 1000;
+        repository.maxPendingUpdates = 100;
+        when(repository.jedisExecution.execute(any(JedisOperation.class))).thenReturn(true);
+    }
+
+    @Test
+    public void updateDistanceCount_WriteBehind_AccumulatedWithoutRedis() throws Exception {
+        repository.updateDistanceCount(5000);
+        repository.updateDistanceCount(-1000);
+        repository.updateActivitySecondsCount(1800);
+
+        verify(repository.jedisExecution, never()).execute(any(JedisOperation.class));
+        assertThat(repository.pendingDistance(), is(equalTo(4000.0)));
+        assertThat(repository.pendingSeconds(), is(equalTo(1800L)));
+        assertThat(repository.pendingUpdates(), is(equalTo(3L)));
+    }
+
+    @Test
+    public void flush_PendingDeltas_WrittenOnceAndCleared() throws Exception {
+        repository.updateDistanceCount(5000);
+        repository.updateActivitySecondsCount(1800);
+
+        repository.flush();
+        repository.flush();
+
+        verify(repository.jedisExecution, times(1)).execute(any(JedisOperation.class));
+        assertThat(repository.pendingDistance(), is(equalTo(0.0)));
+        assertThat(repository.pendingUpdates(), is(equalTo(0L)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flush_RedisUnavailable_DeltasKeptForNextFlush() throws Exception {
+        when(repository.jedisExecution.execute(any(JedisOperation.class))).thenThrow(new RedisUnavailableException("Redis circuit breaker is open"));
+        repository.updateDistanceCount(5000);
+        repository.updateActivitySecondsCount(1800);
+
+        repository.flush();
+
+        assertThat(repository.pendingDistance(), is(equalTo(5000.0)));
+        assertThat(repository.pendingSeconds(), is(equalTo(1800L)));
+        assertThat(repository.pendingUpdates(), is(equalTo(2L)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flush_NoReply_DeltasKeptForNextFlush() throws Exception {
+        when(repository.jedisExecution.execute(any(JedisOperation.class))).thenReturn(null);
+        repository.updateDistanceCount(5000);
+
+        repository.flush();
+
+        assertThat(repository.pendingDistance(), is(equalTo(5000.0)));
+        assertThat(repository.pendingUpdates(), is(equalTo(1L)));
+    }
+
+    @Test
+    public void updateDistanceCount_PendingBoundReached_FlushHandedToFlusherOnce() throws Exception {
+        repository.maxPendingUpdates = 2;
+        repository.flusher = mock(ScheduledExecutorService.class);
+
+        repository.updateDistanceCount(5000);
+        repository.updateActivitySecondsCount(1800);
+        repository.updateDistanceCount(1000);
+
+        ArgumentCaptor<Runnable> flush = ArgumentCaptor.forClass(Runnable.class);
+        verify(repository.flusher, times(1)).execute(flush.capture());
+        verifyZeroInteractions(repository.jedisExecution);
+        flush.getValue().run();
+        verify(repository.jedisExecution, times(1)).execute(any(JedisOperation.class));
+        assertThat(repository.pendingUpdates(), is(equalTo(0L)));
+    }
+
+    @Test
+    public void currentCounter_WithinSnapshotInterval_ReadOnce() throws Exception {
+        CountingRepository counting = new CountingRepository(new CountDownLatch(0));
+        counting.snapshotMillis = 60000;
+
+        CounterAggregate first = counting.currentCounter();
+        CounterAggregate second = counting.currentCounter();
+
+        assertThat(second, is(sameInstance(first)));
+        assertThat(counting.reads.get(), is(equalTo(1)));
+    }
+
+    @Test
+    public void currentCounter_ConcurrentColdCallers_ShareOneRefresh() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        final CountingRepository counting = new CountingRepository(release);
+        counting.snapshotMillis = 60000;
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            Future<CounterAggregate> first = executor.submit(counting::currentCounter);
+            while (counting.reads.get() == 0) {
+                Thread.sleep(1);
+            }
+            Future<CounterAggregate> second = executor.submit(counting::currentCounter);
+            Future<CounterAggregate> third = executor.submit(counting::currentCounter);
+            release.countDown();
+
+            assertThat(second.get(5, TimeUnit.SECONDS), is(sameInstance(first.get(5, TimeUnit.SECONDS))));
+            assertThat(third.get(5, TimeUnit.SECONDS), is(sameInstance(first.get())));
+            assertThat(counting.reads.get(), is(equalTo(1)));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void currentCounter_RefreshFails_PreviousSnapshotServed() throws Exception {
+        CountingRepository counting = new CountingRepository(new CountDownLatch(0));
+        CounterAggregate first = counting.currentCounter();
+        counting.failing = true;
+
+        assertThat(counting.currentCounter(), is(sameInstance(first)));
+    }
+
+    @Test
+    public void currentCounter_RefreshGetsNoReply_PreviousSnapshotServed() throws Exception {
+        CountingRepository counting = new CountingRepository(new CountDownLatch(0));
+        CounterAggregate first = counting.currentCounter();
+        counting.noReply = true;
+
+        assertThat(counting.currentCounter(), is(sameInstance(first)));
+    }
+
+    @Test(expected = RedisUnavailableException.class)
+    public void currentCounter_NoReplyAndNoSnapshot_Unavailable() throws Exception {
+        CountingRepository counting = new CountingRepository(new CountDownLatch(0));
+        counting.noReply = true;
+
+        counting.currentCounter();
+    }
+
+    private static class CountingRepository extends CounterStatsRepository {
+
+        private final AtomicInteger reads = new AtomicInteger();
+        private final CountDownLatch release;
+        private volatile boolean failing;
+        private volatile boolean noReply;
+
+        CountingRepository(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        CounterAggregate readCounter() {
+            reads.incrementAndGet();
+            if (failing) {
+                throw new RuntimeException("connection refused");
+            }
+            if (noReply) {
+                return null;
+            }
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new CounterAggregate(10, 2, 42000.0, 3, 3600);
+        }
+    }
+}
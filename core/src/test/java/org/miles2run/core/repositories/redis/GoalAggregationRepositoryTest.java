@@ -0,0 +1,41 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.Test;
+import org.miles2run.core.repositories.redis.vo.CompactActivity;
+import org.miles2run.domain.entities.GoalUnit;
+import redis.clients.util.SafeEncoder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class GoalAggregationRepositoryTest {
+
+    @Test
+    public void toFields_TextActivity_RequestedFieldsRead() throws Exception {
+        Map<String, String> activity = GoalAggregationRepository.toFields(Arrays.asList(SafeEncoder.encode("5000.0"), null, null), "distanceCovered", "duration");
+
+        assertThat(activity, is(equalTo(Collections.singletonMap("distanceCovered", "5000.0"))));
+    }
+
+    @Test
+    public void toFields_CompactActivity_RequestedFieldsDecoded() throws Exception {
+        byte[] compact = ActivityCodec.encode(new CompactActivity(42L, 7L, 100L, 100L, 5000, GoalUnit.KM, 1800L, "morning run"));
+
+        Map<String, String> activity = GoalAggregationRepository.toFields(Arrays.asList(null, null, compact), "distanceCovered", "duration");
+
+        assertThat(activity.get("distanceCovered"), is(equalTo("5000.0")));
+        assertThat(activity.get("duration"), is(equalTo("1800")));
+    }
+
+    @Test
+    public void toFields_UndecodableCompactActivity_NoFields() throws Exception {
+        Map<String, String> activity = GoalAggregationRepository.toFields(Arrays.asList(null, null, new byte[]{99}), "distanceCovered", "duration");
+
+        assertThat(activity.isEmpty(), is(true));
+    }
+}
@@ -0,0 +1,174 @@
+package org.miles2run.core.repositories.redis;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.miles2run.core.repositories.redis.vo.GoalStreak;
+import org.miles2run.core.repositories.redis.vo.RollupBucket;
+import org.miles2run.domain.entities.Goal;
+import org.mockito.InOrder;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Transaction;
+import redis.clients.util.SafeEncoder;
+
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+public class GoalDaysRepositoryTest {
+
+    private final LocalDate start = new LocalDate(2014, 8, 1);
+
+    @Test
+    public void toBitmap_DaysFromGoalStart_BitsInRedisOrder() throws Exception {
+        byte[] bitmap = GoalDaysRepository.toBitmap(new HashSet<>(Arrays.asList(start, start.plusDays(9))), start);
+
+        assertThat(bitmap.length, is(equalTo(2)));
+        assertThat(bitmap[0], is(equalTo((byte) 0x80)));
+        assertThat(bitmap[1], is(equalTo((byte) 0x40)));
+    }
+
+    @Test
+    public void toBitmap_NoDays_EmptyBitmap() throws Exception {
+        assertThat(GoalDaysRepository.toBitmap(Collections.<LocalDate>emptySet(), start).length, is(equalTo(0)));
+    }
+
+    @Test
+    public void fromBitmap_DaysAfterEndDate_LeftOut() throws Exception {
+        Set<LocalDate> days = new TreeSet<>(Arrays.asList(start.plusDays(2), start.plusDays(5), start.plusDays(20)));
+        byte[] bitmap = GoalDaysRepository.toBitmap(days, start);
+
+        Set<LocalDate> performedDays = GoalDaysRepository.fromBitmap(bitmap, start, start.plusDays(10));
+
+        assertThat(performedDays, is(equalTo((Set<LocalDate>) new TreeSet<>(Arrays.asList(start.plusDays(2), start.plusDays(5))))));
+    }
+
+    @Test
+    public void base_DifferentTimezones_DifferentBases() throws Exception {
+        assertThat(GoalDaysRepository.base(DateTimeZone.UTC, start), is(equalTo("UTC/2014-08-01")));
+        assertThat(GoalDaysRepository.base(DateTimeZone.forOffsetHoursMinutes(5, 30), start), is(equalTo("+05:30/2014-08-01")));
+    }
+
+    @Test
+    public void toStreak_RunsOfDays_CurrentRunEndsOnLastActiveDay() throws Exception {
+        Set<LocalDate> days = new HashSet<>(Arrays.asList(start, start.plusDays(1), start.plusDays(2), start.plusDays(5), start.plusDays(6)));
+
+        GoalStreak streak = GoalDaysRepository.toStreak(days);
+
+        assertThat(streak.getCurrent(), is(equalTo(2)));
+        assertThat(streak.getLongest(), is(equalTo(3)));
+        assertThat(streak.getLastActiveDay(), is(equalTo(start.plusDays(6))));
+    }
+
+    @Test
+    public void currentOn_NoActivityYesterday_StreakBroken() throws Exception {
+        GoalStreak streak = new GoalStreak(4, 4, start.plusDays(6));
+
+        assertThat(streak.currentOn(start.plusDays(7)), is(equalTo(4)));
+        assertThat(streak.currentOn(start.plusDays(8)), is(equalTo(0)));
+    }
+
+    @Test
+    public void fromHash_StoredStreak_SameAsComputed() throws Exception {
+        GoalStreak streak = GoalDaysRepository.toStreak(new HashSet<>(Arrays.asList(start.plusDays(3), start.plusDays(4))));
+
+        Map<String, String> hash = GoalDaysRepository.toHash(streak, start);
+        GoalStreak stored = GoalDaysRepository.fromHash(Arrays.asList(hash.get("current"), hash.get("longest"), hash.get("last")), start);
+
+        assertThat(stored.getCurrent(), is(equalTo(2)));
+        assertThat(stored.getLongest(), is(equalTo(2)));
+        assertThat(stored.getLastActiveDay(), is(equalTo(start.plusDays(4))));
+    }
+
+    @Test
+    public void fromHash_NoActivities_NoLastActiveDay() throws Exception {
+        Map<String, String> hash = GoalDaysRepository.toHash(GoalDaysRepository.toStreak(Collections.<LocalDate>emptySet()), start);
+
+        assertThat(hash.get("last"), is(equalTo("-1")));
+        assertThat(GoalDaysRepository.fromHash(Arrays.asList("0", "0", "-1"), start).getLastActiveDay() == null, is(true));
+    }
+
+    @Test
+    public void keepStreak_BitmapBuilt_WatchedBeforeItIsRead() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        byte[] bitmap = GoalDaysRepository.toBitmap(new HashSet<>(Arrays.asList(start, start.plusDays(1))), start);
+        when(jedis.mget(any(byte[].class), any(byte[].class))).thenReturn(Arrays.asList(bitmap, SafeEncoder.encode("UTC/2014-08-01")));
+        when(jedis.multi()).thenReturn(new Transaction(mock(Client.class)));
+        JedisPool jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        GoalDaysRepository goalDaysRepository = new GoalDaysRepository();
+        goalDaysRepository.jedisExecution = new JedisExecution();
+        goalDaysRepository.jedisExecution.setJedisPool(jedisPool);
+        Goal goal = mock(Goal.class);
+        when(goal.getId()).thenReturn(1L);
+
+        GoalStreak streak = goalDaysRepository.keepStreak(goal, start, start.plusDays(1), "UTC/2014-08-01");
+
+        assertThat(streak.getCurrent(), is(equalTo(2)));
+        InOrder inOrder = inOrder(jedis);
+        inOrder.verify(jedis).watch(any(byte[].class), any(byte[].class));
+        inOrder.verify(jedis).mget(any(byte[].class), any(byte[].class));
+        inOrder.verify(jedis).multi();
+    }
+
+    @Test
+    public void performedDays_NoReply_BuiltFromRollupOnWatchedConnection() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.mget(any(byte[].class), any(byte[].class))).thenReturn(null);
+        when(jedis.multi()).thenReturn(new Transaction(mock(Client.class)));
+        GoalDaysRepository goalDaysRepository = goalDaysRepository(jedis);
+        Goal goal = mock(Goal.class);
+        when(goal.getId()).thenReturn(1L);
+        when(goalDaysRepository.goalRollupRepository.dailyBuckets(jedis, goal, start, start.plusDays(10), DateTimeZone.UTC)).thenReturn(buckets(start.plusDays(3)));
+
+        Set<LocalDate> performedDays = goalDaysRepository.performedDays("test_user", goal, start, start.plusDays(10), DateTimeZone.UTC);
+
+        assertThat(performedDays, is(equalTo((Set<LocalDate>) new TreeSet<>(Collections.singletonList(start.plusDays(3))))));
+        InOrder inOrder = inOrder(jedis, goalDaysRepository.goalRollupRepository);
+        inOrder.verify(jedis).watch(any(byte[].class), any(byte[].class), any(byte[].class));
+        inOrder.verify(goalDaysRepository.goalRollupRepository).dailyBuckets(jedis, goal, start, start.plusDays(10), DateTimeZone.UTC);
+        inOrder.verify(jedis).multi();
+        verify(goalDaysRepository.goalRollupRepository, never()).dailyBuckets("test_user", goal, start, start.plusDays(10), DateTimeZone.UTC);
+    }
+
+    @Test
+    public void performedDays_RollupNotBuilt_RollupBuiltThenBitmapNotKept() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.mget(any(byte[].class), any(byte[].class))).thenReturn(null);
+        GoalDaysRepository goalDaysRepository = goalDaysRepository(jedis);
+        Goal goal = mock(Goal.class);
+        when(goal.getId()).thenReturn(1L);
+        when(goalDaysRepository.goalRollupRepository.dailyBuckets(jedis, goal, start, start.plusDays(10), DateTimeZone.UTC)).thenReturn(null);
+        when(goalDaysRepository.goalRollupRepository.dailyBuckets("test_user", goal, start, start.plusDays(10), DateTimeZone.UTC)).thenReturn(buckets(start.plusDays(3)));
+
+        Set<LocalDate> performedDays = goalDaysRepository.performedDays("test_user", goal, start, start.plusDays(10), DateTimeZone.UTC);
+
+        assertThat(performedDays, is(equalTo((Set<LocalDate>) new TreeSet<>(Collections.singletonList(start.plusDays(3))))));
+        verify(jedis, times(2)).unwatch();
+        verify(jedis, never()).multi();
+    }
+
+    private GoalDaysRepository goalDaysRepository(Jedis jedis) {
+        JedisPool jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        GoalDaysRepository goalDaysRepository = new GoalDaysRepository();
+        goalDaysRepository.jedisExecution = new JedisExecution();
+        goalDaysRepository.jedisExecution.setJedisPool(jedisPool);
+        goalDaysRepository.goalRollupRepository = mock(GoalRollupRepository.class);
+        return goalDaysRepository;
+    }
+
+    private SortedMap<LocalDate, RollupBucket> buckets(LocalDate... days) {
+        SortedMap<LocalDate, RollupBucket> buckets = new TreeMap<>();
+        for (LocalDate day : days) {
+            buckets.put(day, mock(RollupBucket.class));
+        }
+        return buckets;
+    }
+}
@@ -0,0 +1,151 @@
+package org.miles2run.core.repositories.redis;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.junit.Test;
+import org.miles2run.core.repositories.redis.vo.RollupBucket;
+import org.miles2run.domain.entities.Goal;
+import org.miles2run.domain.entities.GoalUnit;
+import org.mockito.InOrder;
+import redis.clients.jedis.Client;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Transaction;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class GoalRollupRepositoryTest {
+
+    @Test
+    public void partitionKey_ActivityLateInTheUtcMonth_PartitionedInUtcMonth() throws Exception {
+        long timestamp = new DateTime(2014, 8, 31, 23, 30, DateTimeZone.UTC).getMillis();
+        assertThat(GoalRollupRepository.partitionKey(1L, timestamp), is(equalTo("goal:1:rollup:201408")));
+    }
+
+    @Test
+    public void contribution_Activity_PartitionBucketAndTotals() throws Exception {
+        long timestamp = new DateTime(2014, 8, 10, 7, 20, DateTimeZone.UTC).getMillis();
+
+        String contribution = GoalRollupRepository.contribution(1L, timestamp, 5000, 1800, GoalUnit.KM);
+
+        String bucket = String.valueOf(new DateTime(2014, 8, 10, 7, 15, DateTimeZone.UTC).getMillis() / GoalRollupRepository.BUCKET_MILLIS);
+        assertThat(contribution, is(equalTo("goal:1:rollup:201408 " + bucket + " 5000.0 1800 6.0")));
+    }
+
+    @Test
+    public void toPartitions_ContributionsInOneBucket_Summed() throws Exception {
+        long timestamp = new DateTime(2014, 8, 10, 7, 20, DateTimeZone.UTC).getMillis();
+        String first = GoalRollupRepository.contribution(1L, timestamp, 5000, 1800, GoalUnit.KM);
+        String second = GoalRollupRepository.contribution(1L, timestamp + 60000, 10000, 3000, GoalUnit.KM);
+
+        Map<String, Map<String, String>> partitions = GoalRollupRepository.toPartitions(Arrays.asList(first, second));
+
+        long bucket = GoalRollupRepository.bucket(timestamp);
+        Map<String, String> partition = partitions.get("goal:1:rollup:201408");
+        assertThat(partitions.size(), is(equalTo(1)));
+        assertThat(partition.get(bucket + ":d"), is(equalTo("15000.0")));
+        assertThat(partition.get(bucket + ":t"), is(equalTo("4800")));
+        assertThat(partition.get(bucket + ":n"), is(equalTo("2")));
+        assertThat(partition.get(bucket + ":p"), is(equalTo("11.0")));
+    }
+
+    @Test
+    public void pace_ActivityWithoutDistance_Zero() throws Exception {
+        assertThat(GoalRollupRepository.pace(0, 1800, GoalUnit.KM), is(equalTo(0.0)));
+        assertThat(GoalRollupRepository.pace(1609, 600, GoalUnit.MI), is(equalTo(10.0)));
+    }
+
+    @Test
+    public void toDays_HalfHourTimezone_BucketsFoldedIntoLocalDays() throws Exception {
+        DateTimeZone india = DateTimeZone.forOffsetHoursMinutes(5, 30);
+        Map<String, String> partition = new HashMap<>();
+        putBucket(partition, new DateTime(2014, 8, 10, 18, 15, DateTimeZone.UTC), 5000, 1800, 1, 6.0);
+        putBucket(partition, new DateTime(2014, 8, 10, 18, 30, DateTimeZone.UTC), 10000, 3000, 1, 5.0);
+        putBucket(partition, new DateTime(2014, 8, 11, 18, 0, DateTimeZone.UTC), 3000, 900, 1, 5.0);
+        long start = new LocalDate(2014, 8, 10).toDateTimeAtStartOfDay(india).getMillis();
+        long end = new LocalDate(2014, 8, 12).toDateTimeAtStartOfDay(india).getMillis();
+
+        SortedMap<LocalDate, RollupBucket> days = GoalRollupRepository.toDays(Collections.singletonList(partition), start, end, india);
+
+        assertThat(days.keySet(), is(equalTo((Set<LocalDate>) new TreeSet<>(Arrays.asList(new LocalDate(2014, 8, 10), new LocalDate(2014, 8, 11))))));
+        assertThat(days.get(new LocalDate(2014, 8, 10)).getDistance(), is(equalTo(5000.0)));
+        assertThat(days.get(new LocalDate(2014, 8, 11)).getDistance(), is(equalTo(13000.0)));
+        assertThat(days.get(new LocalDate(2014, 8, 11)).getMeanPace(), is(equalTo(5.0)));
+    }
+
+    @Test
+    public void toDays_BucketsOutsideRange_LeftOut() throws Exception {
+        Map<String, String> partition = new HashMap<>();
+        putBucket(partition, new DateTime(2014, 8, 9, 23, 45, DateTimeZone.UTC), 5000, 1800, 1, 6.0);
+        putBucket(partition, new DateTime(2014, 8, 10, 0, 0, DateTimeZone.UTC), 5000, 1800, 2, 12.0);
+        long start = new DateTime(2014, 8, 10, 0, 0, DateTimeZone.UTC).getMillis();
+
+        SortedMap<LocalDate, RollupBucket> days = GoalRollupRepository.toDays(Collections.singletonList(partition), start, start + 24 * 3600 * 1000, DateTimeZone.UTC);
+
+        assertThat(days.size(), is(equalTo(1)));
+        assertThat(days.get(new LocalDate(2014, 8, 10)).getCount(), is(equalTo(2L)));
+    }
+
+    @Test
+    public void rebuild_ActivityChangedMeanwhile_BuiltAgain() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.zrangeWithScores("profile:shekhar:goal:1:timeline", 0, -1)).thenReturn(Collections.<Tuple>emptySet());
+        when(jedis.hkeys("goal:1:rollup")).thenReturn(Collections.<String>emptySet());
+        final Client client = mock(Client.class);
+        when(client.getObjectMultiBulkReply()).thenReturn(null, Collections.emptyList());
+        when(jedis.multi()).thenAnswer(invocation -> new Transaction(client));
+        JedisPool jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        GoalRollupRepository goalRollupRepository = new GoalRollupRepository();
+        goalRollupRepository.jedisExecution = new JedisExecution();
+        goalRollupRepository.jedisExecution.setJedisPool(jedisPool);
+        Goal goal = mock(Goal.class);
+        when(goal.getId()).thenReturn(1L);
+
+        goalRollupRepository.rebuild("goal:1:rollup", "shekhar", goal);
+
+        verify(jedis, times(2)).watch("goal:1:rollup", "goal:1:rollup_contributions");
+        verify(jedis, times(2)).multi();
+    }
+
+    @Test
+    public void rebuild_OneConnectionLeft_TimelineReadOnWatchedConnection() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.zrangeWithScores("profile:shekhar:goal:1:timeline", 0, -1)).thenReturn(Collections.<Tuple>emptySet());
+        when(jedis.hkeys("goal:1:rollup")).thenReturn(Collections.<String>emptySet());
+        final Client client = mock(Client.class);
+        when(client.getObjectMultiBulkReply()).thenReturn(Collections.emptyList());
+        when(jedis.multi()).thenAnswer(invocation -> new Transaction(client));
+        JedisPool jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource()).thenReturn(jedis).thenThrow(new JedisConnectionException("Could not get a resource from the pool", new NoSuchElementException("Timeout waiting for idle object")));
+        GoalRollupRepository goalRollupRepository = new GoalRollupRepository();
+        goalRollupRepository.jedisExecution = new JedisExecution();
+        goalRollupRepository.jedisExecution.setJedisPool(jedisPool);
+        Goal goal = mock(Goal.class);
+        when(goal.getId()).thenReturn(1L);
+
+        goalRollupRepository.rebuild("goal:1:rollup", "shekhar", goal);
+
+        InOrder inOrder = inOrder(jedis);
+        inOrder.verify(jedis).watch("goal:1:rollup", "goal:1:rollup_contributions");
+        inOrder.verify(jedis).zrangeWithScores("profile:shekhar:goal:1:timeline", 0, -1);
+        inOrder.verify(jedis).multi();
+        verify(jedisPool, times(1)).getResource();
+    }
+
+    private void putBucket(Map<String, String> partition, DateTime start, double distance, long duration, long count, double paceSum) {
+        long bucket = GoalRollupRepository.bucket(start.getMillis());
+        partition.put(bucket + ":d", String.valueOf(distance));
+        partition.put(bucket + ":t", String.valueOf(duration));
+        partition.put(bucket + ":n", String.valueOf(count));
+        partition.put(bucket + ":p", String.valueOf(paceSum));
+    }
+}
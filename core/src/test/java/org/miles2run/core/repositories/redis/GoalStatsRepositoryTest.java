@@ -1,21 +1,24 @@
 package org.miles2run.core.repositories.redis;
 
 import org.hamcrest.CoreMatchers;
-import org.hamcrest.Matchers;
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Interval;
 import org.joda.time.LocalDate;
 import org.junit.Assert;
 import org.junit.Test;
+import org.miles2run.domain.entities.Goal;
 import redis.clients.jedis.Tuple;
 
 import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static com.google.common.collect.Sets.newHashSet;
 import static org.hamcrest.Matchers.hasEntry;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
 
 public class GoalStatsRepositoryTest {
 
@@ -49,35 +52,15 @@ public class GoalStatsRepositoryTest {
         Assert.assertThat(remainingDays, CoreMatchers.is(CoreMatchers.equalTo(0)));
     }
 
-    @Test
-    public void toCollectionOfPerformedActivityDates_ActivityPerformedOnThreeDifferentDays_SetWithSizeEqualTo3() throws Exception {
-        Tuple tuple1 = new Tuple("1", (double) new DateTime(2014, 8, 10, 15, 30, 30).getMillis());
-        Tuple tuple2 = new Tuple("2", (double) new DateTime(2014, 8, 11, 17, 30, 30).getMillis());
-        Tuple tuple3 = new Tuple("3", (double) new DateTime(2014, 8, 12, 16, 30, 30).getMillis());
-        Set<Tuple> activitiesPerformed = newHashSet(tuple1, tuple2, tuple3);
-        Set<LocalDate> activityPerformedDates = goalStatsRepository.toCollectionOfPerformedActivityDates(activitiesPerformed, null);
-        Assert.assertThat(activityPerformedDates, Matchers.hasSize(3));
-    }
-
-    @Test
-    public void toCollectionOfPerformedActivityDates_ThreeActivitiesWithTwoPerformedOnSameDay_SetWithSizeEqualTo2() throws Exception {
-        Tuple tuple1 = new Tuple("1", (double) new DateTime(2014, 8, 10, 15, 30, 30).getMillis());
-        Tuple tuple2 = new Tuple("2", (double) new DateTime(2014, 8, 10, 17, 30, 30).getMillis());
-        Tuple tuple3 = new Tuple("3", (double) new DateTime(2014, 8, 12, 16, 30, 30).getMillis());
-        Set<Tuple> activitiesPerformed = newHashSet(tuple1, tuple2, tuple3);
-        Set<LocalDate> activityPerformedDates = goalStatsRepository.toCollectionOfPerformedActivityDates(activitiesPerformed, null);
-        Assert.assertThat(activityPerformedDates, Matchers.hasSize(2));
-    }
-
     @Test
     public void getDurationGoalProgress_WithValidData_MapWithProgressData() throws Exception {
         GoalStatsRepository goalRedisService = new GoalStatsRepository() {
             @Override
-            Set<Tuple> activitiesPerformedWithinAGoalInterval(String username, Long goalId, Interval goalInterval) {
+            Set<LocalDate> performedActivityDates(String username, Goal goal, LocalDate from, LocalDate to, DateTimeZone dateTimeZone) {
                 Tuple tuple1 = new Tuple("1", (double) new DateTime(2014, 8, 10, 15, 30, 30).getMillis());
                 Tuple tuple2 = new Tuple("2", (double) new DateTime(2014, 8, 11, 17, 30, 30).getMillis());
                 Tuple tuple3 = new Tuple("3", (double) new DateTime(2014, 8, 12, 16, 30, 30).getMillis());
-                return newHashSet(tuple1, tuple2, tuple3);
+                return toDates(newHashSet(tuple1, tuple2, tuple3), dateTimeZone);
             }
 
             @Override
@@ -91,7 +74,7 @@ public class GoalStatsRepositoryTest {
         DateTime end = new DateTime(2014, 8, 30, 23, 59, utc);
         Interval goalInterval = new Interval(start, end);
 
-        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", 1L, goalInterval, 0);
+        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", goal(), goalInterval, 0);
         Assert.assertThat(progress, hasEntry("totalDays", 30));
         Assert.assertThat(progress, hasEntry("performedDays", 3));
         Assert.assertThat(progress, hasEntry("missedDays", 12));
@@ -103,12 +86,12 @@ public class GoalStatsRepositoryTest {
     public void getDurationGoalProgress_ActivityPerformedToday_MapWithProgressData() throws Exception {
         GoalStatsRepository goalRedisService = new GoalStatsRepository() {
             @Override
-            Set<Tuple> activitiesPerformedWithinAGoalInterval(String username, Long goalId, Interval goalInterval) {
+            Set<LocalDate> performedActivityDates(String username, Goal goal, LocalDate from, LocalDate to, DateTimeZone dateTimeZone) {
                 Tuple tuple1 = new Tuple("1", (double) new DateTime(2014, 8, 10, 15, 30, 30).getMillis());
                 Tuple tuple2 = new Tuple("2", (double) new DateTime(2014, 8, 11, 17, 30, 30).getMillis());
                 Tuple tuple3 = new Tuple("3", (double) new DateTime(2014, 8, 12, 16, 30, 30).getMillis());
                 Tuple tuple4 = new Tuple("4", (double) new DateTime(2014, 8, 15, 15, 30, 30).getMillis());
-                return newHashSet(tuple1, tuple2, tuple3, tuple4);
+                return toDates(newHashSet(tuple1, tuple2, tuple3, tuple4), dateTimeZone);
             }
 
             @Override
@@ -121,7 +104,7 @@ public class GoalStatsRepositoryTest {
         DateTime end = new DateTime(2014, 8, 30, 23, 59, utc);
         Interval goalInterval = new Interval(start, end);
 
-        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", 1L, goalInterval, 0);
+        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", goal(), goalInterval, 0);
         Assert.assertThat(progress, hasEntry("totalDays", 30));
         Assert.assertThat(progress, hasEntry("performedDays", 4));
         Assert.assertThat(progress, hasEntry("missedDays", 11));
@@ -132,7 +115,7 @@ public class GoalStatsRepositoryTest {
     public void getDurationGoalProgress_IntervalStartDateGreaterThanTodayDate_PartialCalculatedProgressDataRestEmpty() throws Exception {
         GoalStatsRepository goalRedisService = new GoalStatsRepository() {
             @Override
-            Set<Tuple> activitiesPerformedWithinAGoalInterval(String username, Long goalId, Interval goalInterval) {
+            Set<LocalDate> performedActivityDates(String username, Goal goal, LocalDate from, LocalDate to, DateTimeZone dateTimeZone) {
                 return Collections.emptySet();
             }
 
@@ -146,7 +129,7 @@ public class GoalStatsRepositoryTest {
         DateTime end = new DateTime(2014, 8, 30, 23, 59, utc);
         Interval goalInterval = new Interval(start, end);
 
-        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", 1L, goalInterval, 0);
+        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", goal(), goalInterval, 0);
         Assert.assertThat(progress, hasEntry("totalDays", 15));
         Assert.assertThat(progress, hasEntry("performedDays", 0));
         Assert.assertThat(progress, hasEntry("missedDays", 0));
@@ -157,7 +140,7 @@ public class GoalStatsRepositoryTest {
     public void getDurationGoalProgress_CurrentDateLessThanGoalStartDate_RemainingDaysShouldBe30() throws Exception {
         GoalStatsRepository goalRedisService = new GoalStatsRepository() {
             @Override
-            Set<Tuple> activitiesPerformedWithinAGoalInterval(String username, Long goalId, Interval goalInterval) {
+            Set<LocalDate> performedActivityDates(String username, Goal goal, LocalDate from, LocalDate to, DateTimeZone dateTimeZone) {
                 return Collections.emptySet();
             }
 
@@ -171,7 +154,7 @@ public class GoalStatsRepositoryTest {
         DateTime end = new DateTime(2014, 9, 14, 18, 4);
         Interval goalInterval = new Interval(start, end);
 
-        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", 1L, goalInterval, 0);
+        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", goal(), goalInterval, 0);
         Assert.assertThat(progress, hasEntry("totalDays", 30));
         Assert.assertThat(progress, hasEntry("performedDays", 0));
         Assert.assertThat(progress, hasEntry("missedDays", 0));
@@ -182,9 +165,9 @@ public class GoalStatsRepositoryTest {
     public void getDurationGoalProgress_StartDate9AugEndDate7SeptActivityPerformedOneDay_MissedDays1AndRemainingDays28() throws Exception {
         GoalStatsRepository goalRedisService = new GoalStatsRepository() {
             @Override
-            Set<Tuple> activitiesPerformedWithinAGoalInterval(String username, Long goalId, Interval goalInterval) {
+            Set<LocalDate> performedActivityDates(String username, Goal goal, LocalDate from, LocalDate to, DateTimeZone dateTimeZone) {
                 Tuple tuple1 = new Tuple("1", (double) new DateTime(2014, 8, 9, 15, 30, 30).getMillis());
-                return newHashSet(tuple1);
+                return toDates(newHashSet(tuple1), dateTimeZone);
             }
 
             @Override
@@ -197,7 +180,7 @@ public class GoalStatsRepositoryTest {
         DateTime end = new DateTime(2014, 9, 7, 23, 59);
         Interval goalInterval = new Interval(start, end);
 
-        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", 1L, goalInterval, 0);
+        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", goal(), goalInterval, 0);
         Assert.assertThat(progress, hasEntry("totalDays", 30));
         Assert.assertThat(progress, hasEntry("performedDays", 1));
         Assert.assertThat(progress, hasEntry("missedDays", 1));
@@ -209,7 +192,7 @@ public class GoalStatsRepositoryTest {
     public void getDurationGoalProgress_StartDateTodayAnyEndDateNoActivityPerformed_TodayDateShouldNotBeShownInMissedDays() throws Exception {
         GoalStatsRepository statsRepository = new GoalStatsRepository() {
             @Override
-            Set<Tuple> activitiesPerformedWithinAGoalInterval(String username, Long goalId, Interval goalInterval) {
+            Set<LocalDate> performedActivityDates(String username, Goal goal, LocalDate from, LocalDate to, DateTimeZone dateTimeZone) {
                 return Collections.emptySet();
             }
 
@@ -219,7 +202,7 @@ public class GoalStatsRepositoryTest {
         System.out.printf("Start %s End %s", start, end);
         Interval goalInterval = new Interval(start, end);
 
-        Map<String, Object> progress = statsRepository.getDurationGoalProgress("test_user", 1L, goalInterval, 0);
+        Map<String, Object> progress = statsRepository.getDurationGoalProgress("test_user", goal(), goalInterval, 0);
         Assert.assertThat(progress, hasEntry("totalDays", 30));
         Assert.assertThat(progress, hasEntry("performedDays", 0));
         Assert.assertThat(progress, hasEntry("missedDays", 0));
@@ -230,9 +213,9 @@ public class GoalStatsRepositoryTest {
     public void getDurationGoalProgress_StartDateTodayAnyEndDateActivityPerformed_Missed0Completed1() throws Exception {
         GoalStatsRepository goalRedisService = new GoalStatsRepository() {
             @Override
-            Set<Tuple> activitiesPerformedWithinAGoalInterval(String username, Long goalId, Interval goalInterval) {
+            Set<LocalDate> performedActivityDates(String username, Goal goal, LocalDate from, LocalDate to, DateTimeZone dateTimeZone) {
                 Tuple tuple1 = new Tuple("1", (double) new DateTime().getMillis());
-                return newHashSet(tuple1);
+                return toDates(newHashSet(tuple1), dateTimeZone);
             }
 
         };
@@ -241,7 +224,7 @@ public class GoalStatsRepositoryTest {
         System.out.printf("Start %s End %s", start, end);
         Interval goalInterval = new Interval(start, end);
 
-        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", 1L, goalInterval, 0);
+        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", goal(), goalInterval, 0);
         Assert.assertThat(progress, hasEntry("totalDays", 30));
         Assert.assertThat(progress, hasEntry("performedDays", 1));
         Assert.assertThat(progress, hasEntry("missedDays", 0));
@@ -252,9 +235,9 @@ public class GoalStatsRepositoryTest {
     public void getDurationGoalProgress_StartDate9AugEndDate7SeptActivityPerformedOneDayTimezoneOffset420_MissedDays1AndRemainingDays28() throws Exception {
         GoalStatsRepository goalRedisService = new GoalStatsRepository() {
             @Override
-            Set<Tuple> activitiesPerformedWithinAGoalInterval(String username, Long goalId, Interval goalInterval) {
+            Set<LocalDate> performedActivityDates(String username, Goal goal, LocalDate from, LocalDate to, DateTimeZone dateTimeZone) {
                 Tuple tuple1 = new Tuple("1", (double) new DateTime(2014, 8, 9, 15, 30, 30).getMillis());
-                return newHashSet(tuple1);
+                return toDates(newHashSet(tuple1), dateTimeZone);
             }
 
             @Override
@@ -267,12 +250,20 @@ public class GoalStatsRepositoryTest {
         DateTime end = new DateTime(2014, 9, 7, 23, 59);
         Interval goalInterval = new Interval(start, end);
 
-        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", 1L, goalInterval, 420);
+        Map<String, Object> progress = goalRedisService.getDurationGoalProgress("test_user", goal(), goalInterval, 420);
         Assert.assertThat(progress, hasEntry("totalDays", 30));
         Assert.assertThat(progress, hasEntry("performedDays", 1));
         Assert.assertThat(progress, hasEntry("missedDays", 1));
         Assert.assertThat(progress, hasEntry("remainingDays", 28));
     }
 
+    private Goal goal() {
+        Goal goal = mock(Goal.class);
+        when(goal.getId()).thenReturn(1L);
+        return goal;
+    }
 
-}
\ No newline at end of file
+    private static Set<LocalDate> toDates(Set<Tuple> activitiesPerformed, DateTimeZone dateTimeZone) {
+        return activitiesPerformed.stream().map(activity -> new LocalDate((long) activity.getScore(), dateTimeZone)).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,39 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+public class HashTagsTest {
+
+    @Test
+    public void keyFormat_NotSharded_BracesRemoved() throws Exception {
+        String key = String.format(HashTags.keyFormat("profile:{%s}:goal:%s:timeline", false), "shekhar", 1);
+        assertThat(key, is(equalTo("profile:shekhar:goal:1:timeline")));
+    }
+
+    @Test
+    public void keyFormat_Sharded_TagKept() throws Exception {
+        String key = String.format(HashTags.keyFormat("profile:{%s}:goal:%s:timeline", true), "shekhar", 1);
+        assertThat(key, is(equalTo("profile:{shekhar}:goal:1:timeline")));
+    }
+
+    @Test
+    public void partition_NotSharded_AllKeysOnOneConnection() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        JedisShards shards = new JedisShards(jedis);
+        Map<Jedis, List<String>> partitions = shards.partition(Arrays.asList("home:{a}:timeline", "home:{b}:timeline"));
+        assertThat(partitions.size(), is(equalTo(1)));
+        assertThat(partitions.get(jedis), is(equalTo(Arrays.asList("home:{a}:timeline", "home:{b}:timeline"))));
+        assertThat(shards.shard(null), is(sameInstance(jedis)));
+    }
+}
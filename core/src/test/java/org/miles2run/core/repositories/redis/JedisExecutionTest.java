@@ -0,0 +1,134 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class JedisExecutionTest {
+
+    private final JedisExecution jedisExecution = new JedisExecution();
+    private final List<String> performed = new ArrayList<>();
+    private JedisPool jedisPool;
+
+    @Before
+    public void setUp() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.pipelined()).thenReturn(mock(Pipeline.class));
+        jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        jedisExecution.setJedisPool(jedisPool);
+        jedisExecution.batching = true;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        jedisExecution.flushBatch();
+    }
+
+    @Test
+    public void executeBatched_NoBatch_SentRightAway() throws Exception {
+        jedisExecution.executeBatched("key", operation("incr"));
+
+        assertThat(performed.size(), is(equalTo(1)));
+        verify(jedisPool, times(1)).getResource();
+    }
+
+    @Test
+    public void executeBatched_InBatch_SentTogetherOnFlush() throws Exception {
+        jedisExecution.beginBatch();
+        jedisExecution.executeBatched("key", operation("incr"));
+        jedisExecution.executeBatched("key", operation("eval"));
+
+        assertThat(performed.size(), is(equalTo(0)));
+        verify(jedisPool, never()).getResource();
+
+        jedisExecution.flushBatch();
+
+        assertThat(performed.toString(), is(equalTo("[incr, eval]")));
+        verify(jedisPool, times(1)).getResource();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void executeBatched_ReadBeforeFlush_Fails() throws Exception {
+        jedisExecution.beginBatch();
+        jedisExecution.executeBatched("key", operation("get")).get();
+    }
+
+    @Test
+    public void beginBatch_BatchingDisabled_SentRightAway() throws Exception {
+        jedisExecution.batching = false;
+
+        jedisExecution.beginBatch();
+        jedisExecution.executeBatched("key", operation("incr"));
+
+        assertThat(performed.size(), is(equalTo(1)));
+    }
+
+    @Test
+    public void executeBatched_NoBatchRedisUnavailable_LoggedAndLost() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.pipelined()).thenThrow(new JedisConnectionException("connection refused"));
+        when(jedisPool.getResource()).thenReturn(jedis);
+        jedisExecution.batching = false;
+
+        Deferred<Long> reply = jedisExecution.executeBatched("key", operation("incr"));
+
+        assertThat(reply.isDone(), is(false));
+        verify(jedisPool).returnBrokenResource(jedis);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void flushBatch_OperationsTimedUnderTheirOwnName() throws Exception {
+        jedisExecution.beginBatch();
+        jedisExecution.executeBatched("key", operation("incr"));
+
+        jedisExecution.flushBatch();
+
+        Map<String, Object> latencies = (Map<String, Object>) jedisExecution.metrics().get("operationLatencyInMillis");
+        assertThat(latencies.keySet().toString(), is(equalTo("[JedisExecutionTest.operation]")));
+    }
+
+    @Test
+    public void executeRead_ReplicaFails_FailureCountedAndReadFromMaster() throws Exception {
+        JedisPool replicaPool = mock(JedisPool.class);
+        when(replicaPool.getResource()).thenThrow(new JedisConnectionException("connection refused"));
+        JedisReplicas jedisReplicas = mock(JedisReplicas.class);
+        when(jedisReplicas.choose(jedisPool)).thenReturn(jedisReplicas.new Replica(replicaPool));
+        jedisExecution.setJedisReplicas(jedisReplicas);
+
+        String value = jedisExecution.executeRead(new JedisOperation<String>() {
+            @Override
+            public String perform(Jedis jedis) {
+                return "value";
+            }
+        });
+
+        assertThat(value, is(equalTo("value")));
+        assertThat(jedisExecution.metrics().get("failures"), is(equalTo((Object) 1L)));
+    }
+
+    private JedisPipelineOperation<Long> operation(final String name) {
+        return new JedisPipelineOperation<Long>() {
+            @Override
+            public Response<Long> perform(Pipeline pipeline) {
+                performed.add(name);
+                return null;
+            }
+        };
+    }
+}
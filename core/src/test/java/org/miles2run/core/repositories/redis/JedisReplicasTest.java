@@ -0,0 +1,116 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.Before;
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class JedisReplicasTest {
+
+    private static final String IN_SYNC = "# Replication\r\nrole:slave\r\nmaster_host:10.0.0.1\r\nmaster_link_status:up\r\nmaster_last_io_seconds_ago:1\r\nmaster_sync_in_progress:0\r\nslave_repl_offset:1000\r\n";
+    private static final String MASTER = "# Replication\r\nrole:master\r\nconnected_slaves:1\r\nmaster_repl_offset:1100\r\n";
+
+    private final JedisExecution jedisExecution = new JedisExecution();
+    private Jedis master;
+    private Jedis replica;
+    private JedisPool replicaPool;
+
+    @Before
+    public void setUp() throws Exception {
+        master = mock(Jedis.class);
+        JedisPool masterPool = mock(JedisPool.class);
+        when(masterPool.getResource()).thenReturn(master);
+        jedisExecution.setJedisPool(masterPool);
+        replica = mock(Jedis.class);
+        replicaPool = mock(JedisPool.class);
+        when(replicaPool.getResource()).thenReturn(replica);
+        jedisExecution.setJedisReplicas(new JedisReplicas(Collections.singletonList(replicaPool), 512, 1000));
+    }
+
+    @Test
+    public void inSync_LinkUpWithinLag_True() throws Exception {
+        assertThat(JedisReplicas.inSync(IN_SYNC, 1100, 512), is(true));
+    }
+
+    @Test
+    public void inSync_OffsetBehindMoreThanLag_False() throws Exception {
+        assertThat(JedisReplicas.inSync(IN_SYNC, 2000, 512), is(false));
+    }
+
+    @Test
+    public void inSync_NoMasterOffset_False() throws Exception {
+        assertThat(JedisReplicas.inSync(IN_SYNC, JedisReplicas.masterOffset("# Replication\r\nrole:master\r\n"), 512), is(false));
+    }
+
+    @Test
+    public void masterOffset_MasterReplication_Offset() throws Exception {
+        assertThat(JedisReplicas.masterOffset(MASTER), is(1100L));
+    }
+
+    @Test
+    public void inSync_LinkDownOrMaster_False() throws Exception {
+        assertThat(JedisReplicas.inSync(IN_SYNC.replace("master_link_status:up", "master_link_status:down"), 1100, 512), is(false));
+        assertThat(JedisReplicas.inSync(MASTER, 1100, 512), is(false));
+    }
+
+    @Test
+    public void executeRead_ReplicaInSync_ReadOnReplica() throws Exception {
+        when(master.info("replication")).thenReturn(MASTER);
+        when(replica.info("replication")).thenReturn(IN_SYNC);
+        when(replica.get("runners")).thenReturn("42");
+
+        assertThat(jedisExecution.executeRead(get("runners")), is(equalTo("42")));
+        verify(master, never()).get("runners");
+    }
+
+    @Test
+    public void executeRead_ReplicaBehindMasterOffset_ReadOnMaster() throws Exception {
+        when(master.info("replication")).thenReturn(MASTER.replace("master_repl_offset:1100", "master_repl_offset:90000"));
+        when(replica.info("replication")).thenReturn(IN_SYNC);
+        when(master.get("runners")).thenReturn("42");
+
+        assertThat(jedisExecution.executeRead(get("runners")), is(equalTo("42")));
+        verify(replica, never()).get("runners");
+    }
+
+    @Test
+    public void executeRead_ReplicaLagging_ReadOnMaster() throws Exception {
+        when(master.info("replication")).thenReturn(MASTER);
+        when(replica.info("replication")).thenReturn(IN_SYNC.replace("master_link_status:up", "master_link_status:down"));
+        when(master.get("runners")).thenReturn("42");
+
+        assertThat(jedisExecution.executeRead(get("runners")), is(equalTo("42")));
+        verify(replica, never()).get("runners");
+    }
+
+    @Test
+    public void executeRead_ReplicaFails_ReadOnMasterAndReplicaLeftOut() throws Exception {
+        when(master.info("replication")).thenReturn(MASTER);
+        when(replica.info("replication")).thenReturn(IN_SYNC);
+        when(replica.get("runners")).thenThrow(new JedisConnectionException("connection reset"));
+        when(master.get("runners")).thenReturn("42");
+
+        assertThat(jedisExecution.executeRead(get("runners")), is(equalTo("42")));
+        assertThat(jedisExecution.executeRead(get("runners")), is(equalTo("42")));
+
+        verify(replica, times(1)).get("runners");
+        verify(replicaPool).returnBrokenResource(replica);
+    }
+
+    private JedisOperation<String> get(final String key) {
+        return new JedisOperation<String>() {
+            @Override
+            public String perform(Jedis jedis) {
+                return jedis.get(key);
+            }
+        };
+    }
+}
@@ -0,0 +1,65 @@
+package org.miles2run.core.repositories.redis;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+public class MonthlyAggregatorTest {
+
+    private final long start = new DateTime(2014, 6, 15, 0, 0, DateTimeZone.UTC).getMillis();
+    private final long end = new DateTime(2014, 9, 15, 0, 0, DateTimeZone.UTC).getMillis();
+
+    @Test
+    public void visit_ThreeActivitiesInAMonth_TrueMeanPace() throws Exception {
+        MonthlyAggregator months = new MonthlyAggregator(start, end, DateTimeZone.UTC);
+
+        months.visit(at(2014, 7, 1), 5000, 1800, 1, 6.0);
+        months.visit(at(2014, 7, 2), 5000, 1500, 1, 5.0);
+        months.visit(at(2014, 7, 3), 5000, 2100, 1, 7.0);
+        months.visit(at(2014, 7, 4), 10000, 4000, 1, 4.0);
+
+        assertThat(months.getMonths(), is(equalTo(4)));
+        assertThat(months.count(1), is(equalTo(4L)));
+        assertThat(months.distance(1), is(equalTo(25000.0)));
+        assertThat(months.meanPace(1), is(equalTo(5.5)));
+        assertThat(months.minPace(1), is(equalTo(4.0)));
+        assertThat(months.maxPace(1), is(equalTo(7.0)));
+    }
+
+    @Test
+    public void visit_BucketsOutsideTheMonths_Ignored() throws Exception {
+        MonthlyAggregator months = new MonthlyAggregator(start, end, DateTimeZone.UTC);
+
+        months.visit(at(2014, 5, 31), 5000, 1800, 1, 6.0);
+        months.visit(at(2014, 10, 1), 5000, 1800, 1, 6.0);
+
+        for (int month = 0; month < months.getMonths(); month++) {
+            assertThat(months.count(month), is(equalTo(0L)));
+        }
+    }
+
+    @Test
+    public void monthName_MonthOrdinals_NamedInOrder() throws Exception {
+        Locale defaultLocale = Locale.getDefault();
+        Locale.setDefault(Locale.ENGLISH);
+        try {
+            MonthlyAggregator months = new MonthlyAggregator(new DateTime(2014, 11, 15, 0, 0, DateTimeZone.UTC).getMillis(), new DateTime(2015, 2, 1, 0, 0, DateTimeZone.UTC).getMillis(), DateTimeZone.UTC);
+
+            assertThat(months.getMonths(), is(equalTo(3)));
+            assertThat(months.monthName(0), is(equalTo("2014-November")));
+            assertThat(months.monthName(2), is(equalTo("2015-January")));
+        } finally {
+            Locale.setDefault(defaultLocale);
+        }
+    }
+
+    private long at(int year, int month, int day) {
+        return new DateTime(year, month, day, 7, 0, DateTimeZone.UTC).getMillis();
+    }
+}
@@ -0,0 +1,196 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisShardInfo;
+import redis.clients.jedis.ShardedJedis;
+import redis.clients.jedis.ShardedJedisPool;
+import redis.clients.jedis.exceptions.JedisConnectionException;
+import redis.clients.util.Sharded;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class RedisCircuitBreakerTest {
+
+    @Test
+    public void recordFailure_ThresholdReached_Opens() throws Exception {
+        RedisCircuitBreaker breaker = new RedisCircuitBreaker(3, 60000);
+        breaker.recordFailure();
+        breaker.recordFailure();
+        assertThat(breaker.allowRequest(), is(true));
+
+        breaker.recordFailure();
+
+        assertThat(breaker.getState(), is(equalTo(RedisCircuitBreaker.State.OPEN)));
+        assertThat(breaker.allowRequest(), is(false));
+    }
+
+    @Test
+    public void recordSuccess_BeforeThreshold_FailuresForgotten() throws Exception {
+        RedisCircuitBreaker breaker = new RedisCircuitBreaker(2, 60000);
+        breaker.recordFailure();
+        breaker.recordSuccess();
+        breaker.recordFailure();
+
+        assertThat(breaker.getState(), is(equalTo(RedisCircuitBreaker.State.CLOSED)));
+    }
+
+    @Test
+    public void allowRequest_OpenIntervalPassed_SingleProbeLetThrough() throws Exception {
+        RedisCircuitBreaker breaker = new RedisCircuitBreaker(1, 0);
+        breaker.recordFailure();
+
+        assertThat(breaker.allowRequest(), is(true));
+        assertThat(breaker.getState(), is(equalTo(RedisCircuitBreaker.State.HALF_OPEN)));
+        assertThat(breaker.allowRequest(), is(false));
+
+        breaker.recordSuccess();
+
+        assertThat(breaker.getState(), is(equalTo(RedisCircuitBreaker.State.CLOSED)));
+        assertThat(breaker.allowRequest(), is(true));
+    }
+
+    @Test
+    public void recordFailure_ProbeFails_OpensAgain() throws Exception {
+        RedisCircuitBreaker breaker = new RedisCircuitBreaker(1, 0);
+        breaker.recordFailure();
+        breaker.allowRequest();
+
+        breaker.recordFailure();
+
+        assertThat(breaker.getState(), is(equalTo(RedisCircuitBreaker.State.OPEN)));
+    }
+
+    @Test
+    public void execute_BreakerOpen_RefusedWithoutBorrowing() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.get("runners")).thenThrow(new JedisConnectionException("read timed out"));
+        JedisPool jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        JedisExecution jedisExecution = new JedisExecution();
+        jedisExecution.setJedisPool(jedisPool);
+        jedisExecution.breakerFailures = 1;
+        jedisExecution.breakerOpenMillis = 60000;
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                jedisExecution.execute(new JedisOperation<String>() {
+                    @Override
+                    public String perform(Jedis jedis) {
+                        return jedis.get("runners");
+                    }
+                });
+                fail("Redis is unavailable");
+            } catch (RedisUnavailableException expected) {
+            }
+        }
+
+        verify(jedisPool, times(1)).getResource();
+        verify(jedisPool).returnBrokenResource(jedis);
+    }
+
+    @Test
+    public void execute_PoolExhausted_BreakerStaysClosed() throws Exception {
+        JedisPool jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource()).thenThrow(new JedisConnectionException("Could not get a resource from the pool", new NoSuchElementException("Timeout waiting for idle object")));
+        JedisExecution jedisExecution = new JedisExecution();
+        jedisExecution.setJedisPool(jedisPool);
+        jedisExecution.breakerFailures = 1;
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                jedisExecution.execute(new JedisOperation<String>() {
+                    @Override
+                    public String perform(Jedis jedis) {
+                        return jedis.get("runners");
+                    }
+                });
+                fail("No connection is free");
+            } catch (RedisUnavailableException expected) {
+            }
+        }
+
+        verify(jedisPool, times(2)).getResource();
+        assertThat(jedisExecution.circuitBreaker(JedisExecution.MASTER).getState(), is(equalTo(RedisCircuitBreaker.State.CLOSED)));
+    }
+
+    @Test
+    public void execute_ShardFails_OnlyThatShardRefused() throws Exception {
+        ShardedJedis shardedJedis = new ShardedJedis(Arrays.asList(new JedisShardInfo("shard1", 6379), new JedisShardInfo("shard2", 6379)), Sharded.DEFAULT_KEY_TAG_PATTERN);
+        String failingKey = "user:1";
+        String otherKey = failingKey;
+        for (int i = 2; shardedJedis.getShardInfo(otherKey) == shardedJedis.getShardInfo(failingKey); i++) {
+            otherKey = "user:" + i;
+        }
+        ShardedJedisPool shardedJedisPool = mock(ShardedJedisPool.class);
+        when(shardedJedisPool.getResource()).thenReturn(shardedJedis);
+        JedisExecution jedisExecution = new JedisExecution();
+        jedisExecution.shardedJedisPool = shardedJedisPool;
+        jedisExecution.breakerFailures = 1;
+        JedisOperation<String> failing = new JedisOperation<String>() {
+            @Override
+            public String perform(Jedis jedis) {
+                throw new JedisConnectionException("read timed out");
+            }
+        };
+        JedisOperation<String> answering = new JedisOperation<String>() {
+            @Override
+            public String perform(Jedis jedis) {
+                return "answered";
+            }
+        };
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                jedisExecution.execute(failingKey, failing);
+                fail("The shard is unavailable");
+            } catch (RedisUnavailableException expected) {
+            }
+        }
+
+        verify(shardedJedisPool, times(1)).returnBrokenResource(shardedJedis);
+        assertThat(jedisExecution.execute(otherKey, answering), is(equalTo("answered")));
+    }
+
+    @Test
+    public void execute_ProbeTimesOutBorrowing_NextOperationProbes() throws Exception {
+        Jedis failing = mock(Jedis.class);
+        when(failing.get("runners")).thenThrow(new JedisConnectionException("read timed out"));
+        Jedis answering = mock(Jedis.class);
+        when(answering.get("runners")).thenReturn("10");
+        JedisPool jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource())
+                .thenReturn(failing)
+                .thenThrow(new JedisConnectionException("Could not get a resource from the pool", new NoSuchElementException("Timeout waiting for idle object")))
+                .thenReturn(answering);
+        JedisExecution jedisExecution = new JedisExecution();
+        jedisExecution.setJedisPool(jedisPool);
+        jedisExecution.breakerFailures = 1;
+        jedisExecution.breakerOpenMillis = 0;
+        JedisOperation<String> read = new JedisOperation<String>() {
+            @Override
+            public String perform(Jedis jedis) {
+                return jedis.get("runners");
+            }
+        };
+
+        for (int i = 0; i < 2; i++) {
+            try {
+                jedisExecution.execute(read);
+                fail("Redis is unavailable");
+            } catch (RedisUnavailableException expected) {
+            }
+        }
+
+        assertThat(jedisExecution.execute(read), is(equalTo("10")));
+        assertThat(jedisExecution.circuitBreaker(JedisExecution.MASTER).getState(), is(equalTo(RedisCircuitBreaker.State.CLOSED)));
+    }
+}
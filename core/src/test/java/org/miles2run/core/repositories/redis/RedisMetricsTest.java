@@ -0,0 +1,61 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+
+import java.util.Collections;
+import java.util.Map;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class RedisMetricsTest {
+
+    @Test
+    public void name_AnonymousOperation_NamedAfterDefiningMethod() throws Exception {
+        JedisOperation<String> operation = new JedisOperation<String>() {
+            @Override
+            public String perform(Jedis jedis) {
+                return null;
+            }
+        };
+        assertThat(RedisMetrics.name(operation), is(equalTo("RedisMetricsTest.name_AnonymousOperation_NamedAfterDefiningMethod")));
+    }
+
+    @Test
+    public void percentile_RecordedValues_UpperBoundOfBucketCappedAtMax() throws Exception {
+        Histogram histogram = new Histogram(Histogram.SIZES);
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i <= 95 ? 1 : 40);
+        }
+        assertThat(histogram.count(), is(equalTo(100L)));
+        assertThat(histogram.percentile(0.50), is(equalTo(1L)));
+        assertThat(histogram.percentile(0.99), is(equalTo(40L)));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void execute_Operation_LatencyRecordedUnderItsName() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        JedisPool jedisPool = mock(JedisPool.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        JedisExecution jedisExecution = new JedisExecution();
+        jedisExecution.setJedisPool(jedisPool);
+
+        jedisExecution.execute(new JedisOperation<String>() {
+            @Override
+            public String perform(Jedis jedis) {
+                return jedis.get("runners");
+            }
+        });
+
+        Map<String, Object> latencies = (Map<String, Object>) jedisExecution.metrics().get("operationLatencyInMillis");
+        assertThat(latencies.keySet(), is(equalTo(Collections.singleton("RedisMetricsTest.execute_Operation_LatencyRecordedUnderItsName"))));
+        Map<String, Object> latency = (Map<String, Object>) latencies.get("RedisMetricsTest.execute_Operation_LatencyRecordedUnderItsName");
+        assertThat(latency.get("count"), is(equalTo((Object) 1L)));
+    }
+}
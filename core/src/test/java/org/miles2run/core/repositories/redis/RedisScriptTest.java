@@ -0,0 +1,62 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.exceptions.JedisDataException;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+public class RedisScriptTest {
+
+    private final List<String> keys = Arrays.asList("activity:1");
+    private final List<String> args = Collections.singletonList("100");
+
+    @Test
+    public void execute_LoadsScriptOnceAndInvokesItBySha() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.scriptLoad("return ARGV[1]")).thenReturn("sha1");
+        when(jedis.evalsha("sha1", keys, args)).thenReturn("100");
+        RedisScript script = new RedisScript("test", "return ARGV[1]");
+
+        script.execute(jedis, keys, args);
+        Object result = script.execute(jedis, keys, args);
+
+        assertThat(result, is(equalTo((Object) "100")));
+        verify(jedis, times(1)).scriptLoad("return ARGV[1]");
+        verify(jedis, times(2)).evalsha("sha1", keys, args);
+    }
+
+    @Test
+    public void execute_ScriptFlushedFromRedis_ReloadsAndRetries() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.scriptLoad("return ARGV[1]")).thenReturn("sha1");
+        when(jedis.evalsha("sha1", keys, args)).thenThrow(new JedisDataException("NOSCRIPT No matching script. Please use EVAL.")).thenReturn("100");
+        RedisScript script = new RedisScript("test", "return ARGV[1]");
+
+        Object result = script.execute(jedis, keys, args);
+
+        assertThat(result, is(equalTo((Object) "100")));
+        verify(jedis, times(2)).scriptLoad("return ARGV[1]");
+    }
+
+    @Test(expected = JedisDataException.class)
+    public void execute_ScriptError_Propagated() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedis.scriptLoad("return ARGV[1]")).thenReturn("sha1");
+        when(jedis.evalsha("sha1", keys, args)).thenThrow(new JedisDataException("ERR Error running script"));
+
+        new RedisScript("test", "return ARGV[1]").execute(jedis, keys, args);
+    }
+
+    @Test
+    public void fromResource_PostActivityScriptOnClasspath() throws Exception {
+        assertThat(RedisScript.fromResource("lua/post_activity.lua").getName(), is(equalTo("lua/post_activity.lua")));
+    }
+}
@@ -0,0 +1,64 @@
+package org.miles2run.core.repositories.redis;
+
+import org.junit.Test;
+import redis.clients.jedis.Tuple;
+
+import java.util.*;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
+import static org.junit.Assert.assertThat;
+
+public class TimelineMergerTest {
+
+    private static Set<Tuple> timeline(Tuple... tuples) {
+        return new LinkedHashSet<>(Arrays.asList(tuples));
+    }
+
+    @Test
+    public void merge_TwoTimelines_ActivitiesOrderedNewestFirst() throws Exception {
+        Set<Tuple> home = timeline(new Tuple("5", 50d), new Tuple("3", 30d), new Tuple("1", 10d));
+        Set<Tuple> heavyAccount = timeline(new Tuple("4", 40d), new Tuple("2", 20d));
+
+        List<Tuple> merged = TimelineMerger.merge(Arrays.asList(home, heavyAccount), 0, 10);
+
+        assertThat(new ArrayList<>(TimelineMerger.elements(merged)), is(equalTo(Arrays.asList("5", "4", "3", "2", "1"))));
+    }
+
+    @Test
+    public void merge_ActivityPresentInBothTimelines_ReturnedOnce() throws Exception {
+        Set<Tuple> home = timeline(new Tuple("5", 50d), new Tuple("3", 30d));
+        Set<Tuple> heavyAccount = timeline(new Tuple("5", 50d), new Tuple("4", 40d));
+
+        List<Tuple> merged = TimelineMerger.merge(Arrays.asList(home, heavyAccount), 0, 10);
+
+        assertThat(merged, hasSize(3));
+    }
+
+    @Test
+    public void merge_SecondPage_SkipsOffsetAndLimitsToCount() throws Exception {
+        Set<Tuple> home = timeline(new Tuple("6", 60d), new Tuple("4", 40d), new Tuple("2", 20d));
+        Set<Tuple> heavyAccount = timeline(new Tuple("5", 50d), new Tuple("3", 30d), new Tuple("1", 10d));
+
+        List<Tuple> merged = TimelineMerger.merge(Arrays.asList(home, heavyAccount), 2, 2);
+
+        assertThat(new ArrayList<>(TimelineMerger.elements(merged)), is(equalTo(Arrays.asList("4", "3"))));
+    }
+
+    @Test
+    public void merge_SameScore_TiesBrokenInReverseLexicographicalOrder() throws Exception {
+        Set<Tuple> home = timeline(new Tuple("11", 10d));
+        Set<Tuple> heavyAccount = timeline(new Tuple("12", 10d));
+
+        List<Tuple> merged = TimelineMerger.merge(Arrays.asList(home, heavyAccount), 0, 10);
+
+        assertThat(merged.get(0).getElement(), is(equalTo("12")));
+    }
+
+    @Test
+    public void merge_NoTimelines_EmptyList() throws Exception {
+        List<Tuple> merged = TimelineMerger.merge(Collections.<Set<Tuple>>emptyList(), 0, 10);
+        assertThat(merged, hasSize(0));
+    }
+}
@@ -3,15 +3,37 @@ package org.miles2run.core.repositories.redis;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.miles2run.core.fanout.FollowerFanoutService;
+import org.miles2run.core.repositories.mongo.UserProfileRepository;
+import org.miles2run.core.repositories.redis.vo.CompactActivity;
+import org.miles2run.core.repositories.redis.vo.TimelineCursor;
+import org.miles2run.domain.documents.UserProfile;
+import org.miles2run.domain.entities.Activity;
+import org.miles2run.domain.entities.CommunityRun;
+import org.miles2run.domain.entities.CommunityRunGoal;
+import org.miles2run.domain.entities.Goal;
+import org.miles2run.domain.entities.GoalUnit;
+import org.miles2run.domain.entities.Profile;
+import org.miles2run.domain.kv_aggregates.ActivityAggregate;
+import org.miles2run.domain.kv_aggregates.TimelineAggregate;
 import org.mockito.runners.MockitoJUnitRunner;
+import redis.clients.jedis.Client;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Tuple;
+import redis.clients.util.SafeEncoder;
 
-import java.util.Set;
+import java.util.*;
 import java.util.stream.Stream;
 
+import static java.util.stream.Collectors.toList;
 import static java.util.stream.Collectors.toSet;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
 import static org.hamcrest.collection.IsCollectionWithSize.hasSize;
 import static org.junit.Assert.assertThat;
 import static org.mockito.Mockito.*;
@@ -23,6 +45,7 @@ public class TimelineRepositoryTest {
     private TimelineRepository repository;
     @Mock
     private JedisPool jedisPool;
+    private final Queue<Pipeline> pipelines = new ArrayDeque<>();
 
 
     @Before
@@ -35,16 +58,348 @@ public class TimelineRepositoryTest {
 
 
     @Test
-    public void givenUserHomeTimelineWith5Activities_whenGetHomeTimelineIds_ThenReturnHomeTimelineIds() throws Exception {
+    public void givenUserHomeTimelineWith5Activities_whenHomeTimeline_ThenReturnHomeTimelineIds() throws Exception {
         Jedis jedis = mock(Jedis.class);
         when(jedisPool.getResource()).thenReturn(jedis);
-        when(jedis.zrevrange("home:test_user:timeline", 0, 4)).thenReturn(Stream.of("1", "2", "3", "4", "5").collect(toSet()));
+        Client ranges = pipelined(jedis, tuples("5", 500, "4", 400, "3", 300, "2", 200, "1", 100), 5L);
+        Client hashes = pipelined(jedis, emptyHashes(5));
 
-        Set<String> homeTimelineIds = repository.getHomeTimelineIds("test_user", 1, 5);
-        assertThat(homeTimelineIds, hasSize(5));
+        TimelineAggregate timeline = repository.homeTimeline("test_user", null, null, 0, 5);
+
+        assertThat(timeline.getActivityIds(), is(equalTo(Arrays.asList(5L, 4L, 3L, 2L, 1L))));
+        assertThat(timeline.getMissingActivityIds(), hasSize(5));
+        verify(ranges).zrevrangeByScoreWithScores("home:test_user:timeline", "+inf", "-inf", 0, 5);
+        verify(hashes, times(5)).hgetAll(any(byte[].class));
         verify(jedisPool, times(1)).getResource();
-        verify(jedisPool, times(1)).returnResource(any());
-        verify(jedis).zrevrange("home:test_user:timeline", 0, 4);
-        verifyNoMoreInteractions(jedis, jedisPool);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void givenUserProfileTimelineWithCursor_whenUserProfileTimeline_ThenActivitiesSharingCursorScoreKept() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        Client ranges = pipelined(jedis, tuples("1", 90), tuples("4", 100, "3", 100, "2", 100), 4L);
+        pipelined(jedis, emptyHashes(2));
+
+        TimelineAggregate timeline = repository.userProfileTimeline("test_user", TimelineCursor.parse("100:3"), null, 0, 2);
+
+        assertThat(timeline.getActivityIds(), is(equalTo(Arrays.asList(2L, 1L))));
+        assertThat(timeline.getNextMaxId(), is(equalTo("90:1")));
+        verify(ranges).zrevrangeByScoreWithScores("profile:test_user:timeline", "(100", "-inf", 0, 2);
+    }
+
+    @Test
+    public void givenSinceId_whenGoalTimeline_ThenNewerActivitiesSharingItsScoreKept() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        Client ranges = pipelined(jedis, tuples("4", 110), tuples("3", 100, "2", 100, "1", 100), 4L);
+        pipelined(jedis, emptyHashes(2));
+
+        TimelineAggregate timeline = repository.goalTimeline("test_user", 1L, null, TimelineCursor.parse("100:2"), 0, 10);
+
+        assertThat(timeline.getActivityIds(), is(equalTo(Arrays.asList(4L, 3L))));
+        assertThat(timeline.getNextMaxId(), is(nullValue()));
+        verify(ranges).zrevrangeByScoreWithScores("profile:test_user:goal:1:timeline", "+inf", "(100", 0, 10);
+    }
+
+    @Test
+    public void givenHeavyAccountTimelines_whenReadTimeline_ThenOnlyFirstTimelineCounted() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        Client ranges = pipelined(jedis, tuples("3", 300, "1", 100), tuples("3", 300, "2", 200), 2L);
+        pipelined(jedis, emptyHashes(3));
+
+        TimelineAggregate timeline = repository.readTimeline(Arrays.asList("home:test_user:timeline", "profile:heavy:timeline"), null, null, 0, 5, true);
+
+        assertThat(timeline.getActivityIds(), is(equalTo(Arrays.asList(3L, 2L, 1L))));
+        assertThat(timeline.getActivityCount(), is(equalTo(2L)));
+        verify(ranges).zcard("home:test_user:timeline");
+        verify(ranges, never()).zcard("profile:heavy:timeline");
+    }
+
+    /**
+     * Pipelines of the mocked connection are real, with a client answering their commands with the replies.
+     */
+    private Client pipelined(Jedis jedis, Object... replies) {
+        Client client = mock(Client.class);
+        when(client.getAll()).thenReturn(Arrays.asList(replies));
+        Pipeline pipeline = new Pipeline();
+        pipeline.setClient(client);
+        if (pipelines.isEmpty()) {
+            when(jedis.pipelined()).thenAnswer(invocation -> pipelines.poll());
+        }
+        pipelines.add(pipeline);
+        return client;
+    }
+
+    private static List<byte[]> tuples(Object... membersAndScores) {
+        List<byte[]> reply = new ArrayList<>();
+        for (Object memberOrScore : membersAndScores) {
+            reply.add(SafeEncoder.encode(String.valueOf(memberOrScore)));
+        }
+        return reply;
+    }
+
+    private static Object[] emptyHashes(int count) {
+        Object[] replies = new Object[count];
+        Arrays.fill(replies, Collections.<byte[]>emptyList());
+        return replies;
+    }
+
+    @Test
+    public void toActivities_MissingOrUnreadableHashes_LeftForDatabase() throws Exception {
+        Map<String, String> unreadable = activityHash(3L);
+        unreadable.remove("goalId");
+
+        Map<Long, Map<String, String>> textActivities = new HashMap<>();
+        textActivities.put(1L, activityHash(1L));
+        textActivities.put(3L, unreadable);
+
+        Map<Long, ActivityAggregate> activities = repository.toActivities(Arrays.asList(1L, 2L, 3L), textActivities, Collections.emptyMap(), Collections.emptyMap());
+        TimelineAggregate timeline = new TimelineAggregate(Arrays.asList(1L, 2L, 3L), activities, 3, null);
+
+        assertThat(timeline.getActivity(1L).getUsername(), is(equalTo("test_user")));
+        assertThat(timeline.getActivity(1L).getPostedAt().getTime(), is(equalTo(100L)));
+        assertThat(timeline.getMissingActivityIds(), is(equalTo(Arrays.asList(2L, 3L))));
+    }
+
+    @Test
+    public void toActivities_CompactActivities_JoinedWithTheirUser() throws Exception {
+        Map<Long, CompactActivity> compactActivities = new HashMap<>();
+        compactActivities.put(1L, new CompactActivity(7L, 1L, 100L, 100L, 5000, GoalUnit.KM, 1800L, "morning run"));
+        compactActivities.put(2L, new CompactActivity(8L, 1L, 200L, 200L, 5000, GoalUnit.KM, 1800L, "evening run"));
+        Map<String, String> user = new HashMap<>();
+        user.put("username", "test_user");
+        user.put("fullname", "Test User");
+
+        Map<Long, ActivityAggregate> activities = repository.toActivities(Arrays.asList(1L, 2L), Collections.emptyMap(), compactActivities, Collections.singletonMap(7L, user));
+        TimelineAggregate timeline = new TimelineAggregate(Arrays.asList(1L, 2L), activities, 2, null);
+
+        assertThat(timeline.getActivity(1L).getUsername(), is(equalTo("test_user")));
+        assertThat(timeline.getActivity(1L).getDistanceCovered(), is(equalTo(5.0)));
+        assertThat(timeline.getMissingActivityIds(), is(equalTo(Arrays.asList(2L))));
+    }
+
+    @Test
+    public void givenCompactEncoding_whenActivityFields_ThenSingleBinaryField() throws Exception {
+        repository.compactActivities = true;
+        Activity activity = activity(1L, 100L);
+        when(activity.getDistanceCovered()).thenReturn(5000.0);
+
+        Map<String, byte[]> fields = repository.activityFields(activity, profile(), goal());
+
+        assertThat(fields.keySet(), is(equalTo(Collections.singleton(ActivityCodec.COMPACT_FIELD))));
+        CompactActivity compactActivity = ActivityCodec.decode(fields.get(ActivityCodec.COMPACT_FIELD));
+        assertThat(compactActivity.getUserId(), is(equalTo(3L)));
+        assertThat(compactActivity.getGoalId(), is(equalTo(2L)));
+    }
+
+    private Map<String, String> activityHash(Long id) {
+        Map<String, String> hash = new HashMap<>();
+        hash.put("id", String.valueOf(id));
+        hash.put("status", "morning run");
+        hash.put("distanceCovered", "5.0");
+        hash.put("goalUnit", "km");
+        hash.put("username", "test_user");
+        hash.put("fullname", "Test User");
+        hash.put("profilePic", "pic.png");
+        hash.put("posted", "100");
+        hash.put("createdAt", "100");
+        hash.put("duration", "1800");
+        hash.put("goalId", "1");
+        return hash;
+    }
+
+    @Test
+    public void givenHomeTimelineNotExpired_whenMaterializeHomeTimeline_ThenTtlRefreshedWithoutRebuild() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        when(jedis.expire("home:test_user:timeline:materialized", 3600)).thenReturn(1L);
+        repository.followerFanoutService = lazyHomeTimelines(3600);
+        repository.userProfileRepository = mock(UserProfileRepository.class);
+
+        repository.materializeHomeTimeline("test_user");
+
+        verify(jedis).expire("home:test_user:timeline", 3600);
+        verifyZeroInteractions(repository.userProfileRepository);
+    }
+
+    @Test
+    public void givenMaterializedHomeTimelineEmpty_whenMaterializeHomeTimeline_ThenNotRebuilt() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        when(jedis.expire("home:test_user:timeline:materialized", 3600)).thenReturn(1L);
+        when(jedis.expire("home:test_user:timeline", 3600)).thenReturn(0L);
+        repository.followerFanoutService = lazyHomeTimelines(3600);
+        repository.userProfileRepository = mock(UserProfileRepository.class);
+
+        assertThat(repository.materializeHomeTimeline("test_user"), is(false));
+        verifyZeroInteractions(repository.userProfileRepository);
+    }
+
+    @Test
+    public void givenHomeTimelineExpired_whenMaterializeHomeTimeline_ThenRebuiltFromFollowedTimelines() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        when(jedis.expire("home:test_user:timeline:materialized", 3600)).thenReturn(0L);
+        repository.followerFanoutService = lazyHomeTimelines(3600);
+        repository.userProfileRepository = mock(UserProfileRepository.class);
+        UserProfile userProfile = new UserProfile();
+        userProfile.getFollowing().addAll(Arrays.asList("friend1", "friend2"));
+        when(repository.userProfileRepository.find("test_user")).thenReturn(userProfile);
+        TimelineRepository spy = spy(repository);
+        doNothing().when(spy).restoreHomeTimelines(anyMap());
+
+        spy.materializeHomeTimeline("test_user");
+
+        verify(spy).restoreHomeTimelines(Collections.singletonMap("test_user", Arrays.asList("friend1", "friend2")));
+    }
+
+    @Test
+    public void givenHomeTimelinesDoNotExpire_whenMaterializeHomeTimeline_ThenNothingDone() throws Exception {
+        repository.followerFanoutService = lazyHomeTimelines(0);
+
+        repository.materializeHomeTimeline("test_user");
+
+        verifyZeroInteractions(jedisPool);
+    }
+
+    @Test
+    public void givenStatusEdited_whenUpdateActivity_ThenFollowersNotTouched() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        when(jedis.scriptLoad(anyString())).thenReturn("sha");
+        when(jedis.evalsha(any(byte[].class), anyListOf(byte[].class), anyListOf(byte[].class))).thenReturn(0L);
+        repository.followerFanoutService = mock(FollowerFanoutService.class);
+
+        repository.updateActivity(activity(1L, 100L), profile(), goal());
+
+        ArgumentCaptor<List> keys = ArgumentCaptor.forClass(List.class);
+        ArgumentCaptor<List> args = ArgumentCaptor.forClass(List.class);
+        verify(jedis).evalsha(any(byte[].class), keys.capture(), args.capture());
+        assertThat(decode(keys.getValue()), is(equalTo(Arrays.asList("activity:1", "user:3", "profile:test_user:timeline", "home:test_user:timeline", "profile:test_user:goal:2:timeline", "profile:test_user:timeline:latest"))));
+        assertThat(decode(args.getValue().subList(0, 2)), is(equalTo(Arrays.asList("100", "1"))));
+        verifyZeroInteractions(repository.followerFanoutService);
+    }
+
+    @Test
+    public void givenActivityDateChanged_whenUpdateActivity_ThenMovedInFollowersTimelines() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        when(jedis.scriptLoad(anyString())).thenReturn("sha");
+        when(jedis.evalsha(any(byte[].class), anyListOf(byte[].class), anyListOf(byte[].class))).thenReturn(1L);
+        repository.followerFanoutService = mock(FollowerFanoutService.class);
+
+        repository.updateActivity(activity(1L, 200L), profile(), goal());
+
+        verify(repository.followerFanoutService).fanout("test_user", "1", 200L);
+    }
+
+    @Test
+    public void givenCommunityRunActivity_whenDeleteActivityFromTimeline_ThenRemovedFromCommunityRunTimeline() throws Exception {
+        Jedis jedis = mock(Jedis.class);
+        when(jedisPool.getResource()).thenReturn(jedis);
+        when(jedis.zscore("profile:test_user:timeline", "1")).thenReturn(100d);
+        Client client = pipelined(jedis, 1L, 1L, 1L, 1L, 1L, 1L, 1L);
+        repository.userProfileRepository = mock(UserProfileRepository.class);
+        UserProfile userProfile = new UserProfile();
+        userProfile.getFollowers().add("friend1");
+        when(repository.userProfileRepository.find("test_user")).thenReturn(userProfile);
+        CommunityRun communityRun = mock(CommunityRun.class);
+        when(communityRun.getSlug()).thenReturn("mumbai_marathon");
+        CommunityRunGoal goal = mock(CommunityRunGoal.class);
+        when(goal.getId()).thenReturn(2L);
+        when(goal.getCommunityRun()).thenReturn(communityRun);
+
+        repository.deleteActivityFromTimeline("test_user", 1L, goal);
+
+        verify(client).zrem("community_run:mumbai_marathon:timeline", "1");
+        verify(client).zrem("home:friend1:timeline", "1");
+    }
+
+    private List<String> decode(List<byte[]> values) {
+        return values.stream().map(SafeEncoder::encode).collect(toList());
+    }
+
+    private Activity activity(Long id, long activityDate) {
+        Activity activity = mock(Activity.class);
+        when(activity.getId()).thenReturn(id);
+        when(activity.getActivityDate()).thenReturn(new Date(activityDate));
+        when(activity.getCreatedAt()).thenReturn(new Date(activityDate));
+        return activity;
+    }
+
+    private Profile profile() {
+        Profile profile = mock(Profile.class);
+        when(profile.getId()).thenReturn(3L);
+        when(profile.getUsername()).thenReturn("test_user");
+        return profile;
+    }
+
+    private Goal goal() {
+        Goal goal = mock(Goal.class);
+        when(goal.getId()).thenReturn(2L);
+        when(goal.getGoalUnit()).thenReturn(GoalUnit.KM);
+        return goal;
+    }
+
+    private FollowerFanoutService lazyHomeTimelines(int ttl) {
+        FollowerFanoutService followerFanoutService = mock(FollowerFanoutService.class);
+        when(followerFanoutService.isLazyHomeTimelines()).thenReturn(ttl > 0);
+        when(followerFanoutService.getHomeTimelineTtl()).thenReturn(ttl);
+        return followerFanoutService;
+    }
+
+    @Test
+    public void nextCursor_FullPage_ScoreAndIdOfLastActivity() throws Exception {
+        TimelineCursor cursor = TimelineRepository.nextCursor(Arrays.asList(new Tuple("2", 100d), new Tuple("1", 100d)), 2);
+        assertThat(cursor.toString(), is(equalTo("100:1")));
+    }
+
+    @Test
+    public void nextCursor_PageSmallerThanCount_NoNextCursor() throws Exception {
+        TimelineCursor cursor = TimelineRepository.nextCursor(Arrays.asList(new Tuple("2", 100d)), 2);
+        assertThat(cursor, is(nullValue()));
+    }
+
+    @Test
+    public void window_ActivitiesShareMaxIdScore_OnlyOlderIdsKept() throws Exception {
+        Set<Tuple> ties = new LinkedHashSet<>(Arrays.asList(new Tuple("9", 100d), new Tuple("8", 100d), new Tuple("7", 100d)));
+        Set<Tuple> range = new LinkedHashSet<>(Collections.singletonList(new Tuple("6", 90d)));
+
+        List<Tuple> window = TimelineRepository.window(ties, range, Collections.<Tuple>emptySet(), new TimelineCursor(100, "8"), null);
+
+        assertThat(TimelineMerger.elements(window), is(equalTo((Set<String>) new LinkedHashSet<>(Arrays.asList("7", "6")))));
+    }
+
+    @Test
+    public void window_ActivitiesShareSinceIdScore_OnlyNewerIdsKept() throws Exception {
+        Set<Tuple> range = new LinkedHashSet<>(Collections.singletonList(new Tuple("9", 110d)));
+        Set<Tuple> ties = new LinkedHashSet<>(Arrays.asList(new Tuple("8", 100d), new Tuple("7", 100d), new Tuple("6", 100d)));
+
+        List<Tuple> window = TimelineRepository.window(Collections.<Tuple>emptySet(), range, ties, null, new TimelineCursor(100, "7"));
+
+        assertThat(TimelineMerger.elements(window), is(equalTo((Set<String>) new LinkedHashSet<>(Arrays.asList("9", "8")))));
+    }
+
+    @Test
+    public void window_CursorsShareScore_ActivitiesBetweenIds() throws Exception {
+        Set<Tuple> ties = new LinkedHashSet<>(Arrays.asList(new Tuple("9", 100d), new Tuple("8", 100d), new Tuple("7", 100d), new Tuple("6", 100d)));
+
+        List<Tuple> window = TimelineRepository.window(ties, Collections.<Tuple>emptySet(), Collections.<Tuple>emptySet(), new TimelineCursor(100, "9"), new TimelineCursor(100, "6"));
+
+        assertThat(TimelineMerger.elements(window), is(equalTo((Set<String>) new LinkedHashSet<>(Arrays.asList("8", "7")))));
+    }
+
+    @Test
+    public void parse_Cursor_ScoreAndId() throws Exception {
+        TimelineCursor cursor = TimelineCursor.parse("100:2");
+        assertThat(cursor.getScore(), is(equalTo(100L)));
+        assertThat(cursor.getId(), is(equalTo("2")));
+        assertThat(TimelineCursor.parse(" "), is(nullValue()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void parse_MalformedCursor_Rejected() throws Exception {
+        TimelineCursor.parse("abc");
+    }
+}
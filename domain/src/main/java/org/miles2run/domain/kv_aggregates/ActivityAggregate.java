@@ -27,10 +27,12 @@ public class ActivityAggregate {
 
     private final long duration;
 
+    private final Date postedAt;
+
     public ActivityAggregate(Map<String, String> activity) {
         this.id = Long.valueOf(activity.get("id"));
         this.username = activity.get("username");
-        this.activityDate = toDate(activity.get("activityDate"));
+        this.activityDate = activity.containsKey("posted") ? new Date(Long.valueOf(activity.get("posted"))) : toDate(activity.get("activityDate"));
         this.goalUnit = GoalUnit.fromStringToGoalUnit(activity.get("goalUnit"));
         this.distanceCovered = Double.valueOf(activity.get("distanceCovered")) / this.goalUnit.getConversion();
         this.fullname = activity.get("fullname");
@@ -38,6 +40,21 @@ public class ActivityAggregate {
         this.status = activity.get("status");
         this.goalId = Long.valueOf(activity.get("goalId"));
         this.duration = Long.valueOf(activity.get("duration"));
+        this.postedAt = activity.containsKey("createdAt") ? new Date(Long.valueOf(activity.get("createdAt"))) : null;
+    }
+
+    public ActivityAggregate(Long id, Long goalId, String status, double distanceCovered, GoalUnit goalUnit, Date activityDate, String fullname, String username, String profilePic, long duration, Date postedAt) {
+        this.id = id;
+        this.goalId = goalId;
+        this.status = status;
+        this.distanceCovered = distanceCovered;
+        this.goalUnit = goalUnit;
+        this.activityDate = activityDate;
+        this.fullname = fullname;
+        this.username = username;
+        this.profilePic = profilePic;
+        this.duration = duration;
+        this.postedAt = postedAt;
     }
 
     private static Date toDate(String text) {
@@ -88,4 +105,8 @@ public class ActivityAggregate {
     public long getDuration() {
         return duration;
     }
+
+    public Date getPostedAt() {
+        return postedAt;
+    }
 }
@@ -0,0 +1,53 @@
+package org.miles2run.domain.kv_aggregates;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * A timeline page read from Redis. Activities are hydrated from their <code>activity:{id}</code> hashes; ids whose
+ * hash is missing or unreadable are reported by {@link #getMissingActivityIds()} so they can be loaded from MySQL.
+ */
+public class TimelineAggregate {
+
+    private final List<Long> activityIds;
+    private final Map<Long, ActivityAggregate> activities;
+    private final long activityCount;
+    private final String nextMaxId;
+
+    public TimelineAggregate(List<Long> activityIds, Map<Long, ActivityAggregate> activities, long activityCount, String nextMaxId) {
+        this.activityIds = activityIds;
+        this.activities = activities;
+        this.activityCount = activityCount;
+        this.nextMaxId = nextMaxId;
+    }
+
+    public static TimelineAggregate empty() {
+        return new TimelineAggregate(Collections.<Long>emptyList(), Collections.<Long, ActivityAggregate>emptyMap(), 0L, null);
+    }
+
+    public List<Long> getActivityIds() {
+        return Collections.unmodifiableList(activityIds);
+    }
+
+    public ActivityAggregate getActivity(Long activityId) {
+        return activities.get(activityId);
+    }
+
+    public List<Long> getMissingActivityIds() {
+        return activityIds.stream().filter(activityId -> !activities.containsKey(activityId)).collect(Collectors.toList());
+    }
+
+    public boolean isEmpty() {
+        return activityIds.isEmpty();
+    }
+
+    public long getActivityCount() {
+        return activityCount;
+    }
+
+    public String getNextMaxId() {
+        return nextMaxId;
+    }
+}
@@ -3,6 +3,7 @@ package org.miles2run.representations;
 import org.miles2run.domain.entities.Activity;
 import org.miles2run.domain.entities.GoalUnit;
 import org.miles2run.domain.entities.Profile;
+import org.miles2run.domain.kv_aggregates.ActivityAggregate;
 
 import java.util.Date;
 
@@ -50,6 +51,23 @@ public class ActivityRepresentation {
         return representation;
     }
 
+    public static ActivityRepresentation from(ActivityAggregate activity) {
+        ActivityRepresentation representation = new ActivityRepresentation();
+        representation.id = activity.getId();
+        representation.goalId = activity.getGoalId();
+        representation.status = activity.getStatus();
+        representation.goalUnit = activity.getGoalUnit();
+        representation.distanceCovered = activity.getDistanceCovered();
+        representation.activityDate = activity.getActivityDate();
+        representation.fullname = activity.getFullname();
+        representation.username = activity.getUsername();
+        representation.profilePic = activity.getProfilePic();
+        representation.duration = activity.getDuration();
+        representation.postedAt = activity.getPostedAt();
+        representation.durationStr = toDurationText(representation.duration);
+        return representation;
+    }
+
     private static String toDurationText(long duration) {
         long secondsInMinute = 60;
         long minutesInHour = 60;
@@ -1,19 +1,26 @@
 package org.miles2run.representations;
 
 import org.miles2run.domain.entities.Activity;
+import org.miles2run.domain.kv_aggregates.ActivityAggregate;
+import org.miles2run.domain.kv_aggregates.TimelineAggregate;
 
-import java.util.Collections;
-import java.util.List;
+import java.util.*;
 import java.util.stream.Collectors;
 
 public class TimelineRepresentation {
 
     private final List<ActivityRepresentation> activities;
     private final long activityCount;
+    private final String nextMaxId;
 
     protected TimelineRepresentation(long activityCount, List<ActivityRepresentation> activities) {
+        this(activityCount, activities, null);
+    }
+
+    protected TimelineRepresentation(long activityCount, List<ActivityRepresentation> activities, String nextMaxId) {
         this.activities = activities;
         this.activityCount = activityCount;
+        this.nextMaxId = nextMaxId;
     }
 
     public static TimelineRepresentation empty() {
@@ -25,6 +32,27 @@ public class TimelineRepresentation {
         return new TimelineRepresentation(activityCount, activityRepresentations);
     }
 
+    /**
+     * Builds the timeline in Redis order from the hydrated activities, using the given activities loaded from the
+     * database for the ones that could not be read from Redis.
+     */
+    public static TimelineRepresentation from(TimelineAggregate timeline, List<Activity> missingActivities) {
+        Map<Long, Activity> activitiesById = new HashMap<>();
+        for (Activity activity : missingActivities) {
+            activitiesById.put(activity.getId(), activity);
+        }
+        List<ActivityRepresentation> activityRepresentations = new ArrayList<>();
+        for (Long activityId : timeline.getActivityIds()) {
+            ActivityAggregate activityAggregate = timeline.getActivity(activityId);
+            if (activityAggregate != null) {
+                activityRepresentations.add(ActivityRepresentation.from(activityAggregate));
+            } else if (activitiesById.containsKey(activityId)) {
+                activityRepresentations.add(ActivityRepresentation.from(activitiesById.get(activityId)));
+            }
+        }
+        return new TimelineRepresentation(timeline.getActivityCount(), activityRepresentations, timeline.getNextMaxId());
+    }
+
     public List<ActivityRepresentation> getActivities() {
         return Collections.unmodifiableList(activities);
     }
@@ -32,4 +60,8 @@ public class TimelineRepresentation {
     public long getActivityCount() {
         return activityCount;
     }
+
+    public String getNextMaxId() {
+        return nextMaxId;
+    }
 }
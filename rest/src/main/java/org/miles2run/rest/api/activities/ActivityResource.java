@@ -5,15 +5,21 @@ import org.jug.filters.LoggedIn;
 import org.miles2run.core.repositories.jpa.ActivityRepository;
 import org.miles2run.core.repositories.jpa.GoalRepository;
 import org.miles2run.core.repositories.jpa.ProfileRepository;
+import org.miles2run.core.repositories.redis.CommunityRunLeaderboardRepository;
 import org.miles2run.core.repositories.redis.CommunityRunStatsRepository;
 import org.miles2run.core.repositories.redis.CounterStatsRepository;
+import org.miles2run.core.repositories.redis.GoalDaysRepository;
+import org.miles2run.core.repositories.redis.GoalRollupRepository;
 import org.miles2run.core.repositories.redis.GoalStatsRepository;
+import org.miles2run.core.repositories.redis.RedisUnavailableException;
 import org.miles2run.core.repositories.redis.TimelineRepository;
 import org.miles2run.domain.entities.Activity;
 import org.miles2run.domain.entities.CommunityRunGoal;
 import org.miles2run.domain.entities.Goal;
 import org.miles2run.domain.entities.Profile;
 import org.miles2run.representations.ActivityRepresentation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.inject.Inject;
 import javax.validation.Valid;
@@ -23,10 +29,12 @@ import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import javax.ws.rs.core.SecurityContext;
+import java.util.Date;
 
 @Path("goals/{goalId}/activities")
 public class ActivityResource {
 
+    private Logger logger = LoggerFactory.getLogger(ActivityResource.class);
     @Inject
     private ActivityRepository activityRepository;
     @Inject
@@ -43,12 +51,18 @@ public class ActivityResource {
     private CommunityRunStatsRepository communityRunStatsRepository;
     @Inject
     private GoalStatsRepository goalStatsRepository;
+    @Inject
+    private GoalRollupRepository goalRollupRepository;
+    @Inject
+    private GoalDaysRepository goalDaysRepository;
+    @Inject
+    private CommunityRunLeaderboardRepository leaderboardRepository;
 
     @POST
     @Consumes("application/json")
     @Produces("application/json")
     @LoggedIn
-    public Response postActivity(@PathParam("goalId") Long goalId, @Valid final ActivityRequest activityRequest) {
+    public Response postActivity(@PathParam("goalId") Long goalId, @CookieParam("timezoneoffset") int timezoneOffset, @Valid final ActivityRequest activityRequest) {
         String loggedInUser = securityContext.getUserPrincipal().getName();
         Profile profile = profileRepository.findByUsername(loggedInUser);
         Goal goal = goalRepository.find(profile, goalId);
@@ -56,18 +70,41 @@ public class ActivityResource {
             return Response.status(Response.Status.NOT_FOUND).entity("No goal exists with id " + goalId).build();
         }
         Activity activity = activityRequest.toActivity(profile, goal);
+        activityChanging(goal);
         Activity savedActivity = activityRepository.save(activity);
-        updateStats(profile, goal, activity, savedActivity);
+        try {
+            updateStats(profile, goal, activity, savedActivity);
+            goalDaysRepository.activityPosted(goal, savedActivity, timezoneOffset);
+        } catch (RedisUnavailableException e) {
+            logger.warn("Activity {} is saved but its stats could not be updated in Redis : {}", savedActivity.getId(), e.getMessage());
+        }
         return Response.status(Response.Status.CREATED).entity(ActivityRepresentation.from(savedActivity)).build();
     }
 
+    /**
+     * Marks an activity of a community run before it is written to the database, so that its leaderboards are not built
+     * from totals that already count it before it is added to them.
+     */
+    private void activityChanging(Goal goal) {
+        if (!(goal instanceof CommunityRunGoal)) {
+            return;
+        }
+        try {
+            leaderboardRepository.activityChanging(((CommunityRunGoal) goal).getCommunityRun().getSlug());
+        } catch (RedisUnavailableException e) {
+            logger.warn("Leaderboards of goal {} could not be told about a change : {}", goal.getId(), e.getMessage());
+        }
+    }
+
     private void updateStats(Profile profile, Goal goal, Activity activity, Activity savedActivity) {
         counterStatsRepository.updateDistanceCount(activity.getDistanceCovered());
         counterStatsRepository.updateActivitySecondsCount(activity.getDuration());
         goalStatsRepository.updateTotalDistanceCoveredForAGoal(goal.getId(), savedActivity.getDistanceCovered());
         timelineRepository.postActivityToTimeline(savedActivity, profile, goal);
+        goalRollupRepository.activityPosted(goal, savedActivity);
         if (goal instanceof CommunityRunGoal) {
             communityRunStatsRepository.updateCommunityRunStats(profile.getUsername(), (CommunityRunGoal) goal, activity);
+            leaderboardRepository.updateRunner(((CommunityRunGoal) goal).getCommunityRun().getSlug(), profile.getUsername(), activity.getDistanceCovered(), activity.getDuration());
         }
     }
 
@@ -101,10 +138,18 @@ public class ActivityResource {
         }
         double oldDistanceCovered = existingActivity.getDistanceCovered();
         long oldDuration = existingActivity.getDuration();
+        Date oldActivityDate = existingActivity.getActivityDate();
         updateExistingActivity(existingActivity, activityRequest);
+        activityChanging(goal);
         Activity updatedActivity = activityRepository.update(existingActivity);
-        timelineRepository.updateActivity(updatedActivity, profile, goal);
-        updateStats(goal, updatedActivity.getDistanceCovered(), updatedActivity.getDuration(), oldDistanceCovered, oldDuration);
+        try {
+            timelineRepository.updateActivity(updatedActivity, profile, goal);
+            goalRollupRepository.activityUpdated(goal, oldActivityDate, updatedActivity);
+            goalDaysRepository.invalidate(goal);
+            updateStats(goal, oldDistanceCovered, oldDuration, updatedActivity.getDistanceCovered(), updatedActivity.getDuration());
+        } catch (RedisUnavailableException e) {
+            logger.warn("Activity {} is updated but its stats could not be updated in Redis : {}", id, e.getMessage());
+        }
         return Response.status(Response.Status.OK).entity(ActivityRepresentation.from(updatedActivity)).build();
     }
 
@@ -126,6 +171,7 @@ public class ActivityResource {
         goalStatsRepository.updateTotalDistanceCoveredForAGoal(goalId, updatedDistanceCovered);
         if (goal instanceof CommunityRunGoal) {
             communityRunStatsRepository.updateCommunityRunDistanceAndDurationStats(((CommunityRunGoal) goal).getCommunityRun().getSlug(), updatedDistanceCovered, updatedDuration);
+            leaderboardRepository.updateRunner(((CommunityRunGoal) goal).getCommunityRun().getSlug(), goal.getProfile().getUsername(), updatedDistanceCovered, updatedDuration);
         }
     }
 
@@ -147,9 +193,16 @@ public class ActivityResource {
         if (!StringUtils.equals(loggedInUser, activityBy)) {
             return Response.status(Response.Status.UNAUTHORIZED).build();
         }
+        activityChanging(goal);
         activityRepository.delete(activityId);
-        timelineRepository.deleteActivityFromTimeline(loggedInUser, activityId, goal);
-        updateStats(goal, existingActivity.getDistanceCovered(), existingActivity.getDuration(), 0.0d, 0L);
+        try {
+            timelineRepository.deleteActivityFromTimeline(loggedInUser, activityId, goal);
+            goalRollupRepository.activityDeleted(goal, existingActivity);
+            goalDaysRepository.invalidate(goal);
+            updateStats(goal, existingActivity.getDistanceCovered(), existingActivity.getDuration(), 0.0d, 0L);
+        } catch (RedisUnavailableException e) {
+            logger.warn("Activity {} is deleted but its stats could not be updated in Redis : {}", activityId, e.getMessage());
+        }
         return Response.noContent().build();
     }
 
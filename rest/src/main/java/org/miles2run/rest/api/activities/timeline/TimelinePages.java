@@ -0,0 +1,56 @@
+package org.miles2run.rest.api.activities.timeline;
+
+import org.miles2run.core.repositories.jpa.ActivityRepository;
+import org.miles2run.core.repositories.redis.vo.TimelineCursor;
+import org.miles2run.domain.entities.Activity;
+import org.miles2run.domain.kv_aggregates.TimelineAggregate;
+import org.miles2run.representations.TimelineRepresentation;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Paging parameters and responses shared by the timeline resources.
+ */
+public final class TimelinePages {
+
+    private TimelinePages() {
+    }
+
+    /**
+     * @return the cursor, or null when none was sent.
+     * @throws WebApplicationException with 400 Bad Request when the cursor is malformed.
+     */
+    public static TimelineCursor cursor(String text) {
+        try {
+            return TimelineCursor.parse(text);
+        } catch (IllegalArgumentException e) {
+            throw new WebApplicationException(Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build());
+        }
+    }
+
+    /**
+     * Activities are read from their Redis hashes. Only the ones missing from Redis are loaded from the database.
+     */
+    public static TimelineRepresentation representation(TimelineAggregate timeline, ActivityRepository activityRepository) {
+        if (timeline.isEmpty()) {
+            return TimelineRepresentation.empty();
+        }
+        List<Long> missingActivityIds = timeline.getMissingActivityIds();
+        List<Activity> missingActivities = missingActivityIds.isEmpty() ? Collections.<Activity>emptyList() : activityRepository.findAllActivitiesWithIds(missingActivityIds);
+        return TimelineRepresentation.from(timeline, missingActivities);
+    }
+
+    public static long offset(int page, int count) {
+        return page <= 1 ? 0 : (long) (page - 1) * count;
+    }
+
+    /**
+     * @return true when the request asks for a page after the first or around a cursor.
+     */
+    public static boolean isCursorOrOffsetRequest(int page, String maxId, String sinceId) {
+        return page > 1 || maxId != null || sinceId != null;
+    }
+}
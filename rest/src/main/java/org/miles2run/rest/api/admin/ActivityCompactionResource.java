@@ -0,0 +1,40 @@
+package org.miles2run.rest.api.admin;
+
+import org.jug.filters.LoggedIn;
+import org.miles2run.core.rebuild.ActivityCompactionBatchlet;
+import org.miles2run.core.rebuild.ActivityCompactionService;
+
+import javax.batch.runtime.BatchRuntime;
+import javax.inject.Inject;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.Properties;
+
+@AdminOnly
+@Path("admin/activities/compact")
+public class ActivityCompactionResource {
+
+    @Inject
+    private ActivityCompactionService activityCompactionService;
+
+    @POST
+    @Produces("application/json")
+    @LoggedIn
+    public Response compact(@QueryParam("resume") boolean resume) {
+        if (activityCompactionService.isRunning()) {
+            return Response.status(Response.Status.CONFLICT).entity(activityCompactionService.status()).build();
+        }
+        Properties jobParameters = new Properties();
+        jobParameters.setProperty("resume", String.valueOf(resume));
+        long executionId = BatchRuntime.getJobOperator().start(ActivityCompactionBatchlet.JOB_NAME, jobParameters);
+        return Response.status(Response.Status.ACCEPTED).entity(Collections.singletonMap("executionId", executionId)).build();
+    }
+
+    @GET
+    @Produces("application/json")
+    @LoggedIn
+    public Response status() {
+        return Response.ok(activityCompactionService.status()).build();
+    }
+}
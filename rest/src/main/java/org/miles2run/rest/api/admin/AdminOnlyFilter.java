@@ -0,0 +1,41 @@
+package org.miles2run.rest.api.admin;
+
+import org.miles2run.core.repositories.jpa.ProfileRepository;
+import org.miles2run.domain.entities.Profile;
+import org.miles2run.domain.entities.Role;
+
+import javax.annotation.Priority;
+import javax.inject.Inject;
+import javax.ws.rs.Priorities;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+import java.security.Principal;
+
+/**
+ * Refuses requests to admin resources from users who are not logged in with 401 and from users who are not admins
+ * with 403.
+ */
+@AdminOnly
+@Priority(Priorities.AUTHORIZATION)
+@Provider
+public class AdminOnlyFilter implements ContainerRequestFilter {
+
+    @Inject
+    private ProfileRepository profileRepository;
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        Principal principal = requestContext.getSecurityContext().getUserPrincipal();
+        if (principal == null) {
+            requestContext.abortWith(Response.status(Response.Status.UNAUTHORIZED).build());
+            return;
+        }
+        Profile profile = profileRepository.findByUsername(principal.getName());
+        if (profile == null || profile.getRole() != Role.ADMIN) {
+            requestContext.abortWith(Response.status(Response.Status.FORBIDDEN).build());
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package org.miles2run.rest.api.admin;
+
+import org.jug.filters.LoggedIn;
+import org.miles2run.core.rebuild.HyperLogLogMigrationBatchlet;
+import org.miles2run.core.rebuild.HyperLogLogMigrationService;
+
+import javax.batch.runtime.BatchRuntime;
+import javax.inject.Inject;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.Properties;
+
+@AdminOnly
+@Path("admin/hyperloglogs/migrate")
+public class HyperLogLogMigrationResource {
+
+    @Inject
+    private HyperLogLogMigrationService hyperLogLogMigrationService;
+
+    @POST
+    @Produces("application/json")
+    @LoggedIn
+    public Response migrate() {
+        if (hyperLogLogMigrationService.isRunning()) {
+            return Response.status(Response.Status.CONFLICT).entity(hyperLogLogMigrationService.status()).build();
+        }
+        long executionId = BatchRuntime.getJobOperator().start(HyperLogLogMigrationBatchlet.JOB_NAME, new Properties());
+        return Response.status(Response.Status.ACCEPTED).entity(Collections.singletonMap("executionId", executionId)).build();
+    }
+
+    @GET
+    @Produces("application/json")
+    @LoggedIn
+    public Response status() {
+        return Response.ok(hyperLogLogMigrationService.status()).build();
+    }
+}
@@ -0,0 +1,38 @@
+package org.miles2run.rest.api.admin;
+
+import org.jug.filters.LoggedIn;
+import org.miles2run.core.rebuild.ShardMigrationBatchlet;
+import org.miles2run.core.rebuild.ShardMigrationService;
+
+import javax.batch.runtime.BatchRuntime;
+import javax.inject.Inject;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.Properties;
+
+@AdminOnly
+@Path("admin/shards/migrate")
+public class ShardMigrationResource {
+
+    @Inject
+    private ShardMigrationService shardMigrationService;
+
+    @POST
+    @Produces("application/json")
+    @LoggedIn
+    public Response migrate() {
+        if (shardMigrationService.isRunning()) {
+            return Response.status(Response.Status.CONFLICT).entity(shardMigrationService.status()).build();
+        }
+        long executionId = BatchRuntime.getJobOperator().start(ShardMigrationBatchlet.JOB_NAME, new Properties());
+        return Response.status(Response.Status.ACCEPTED).entity(Collections.singletonMap("executionId", executionId)).build();
+    }
+
+    @GET
+    @Produces("application/json")
+    @LoggedIn
+    public Response status() {
+        return Response.ok(shardMigrationService.status()).build();
+    }
+}
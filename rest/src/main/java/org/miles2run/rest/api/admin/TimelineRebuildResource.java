@@ -0,0 +1,40 @@
+package org.miles2run.rest.api.admin;
+
+import org.jug.filters.LoggedIn;
+import org.miles2run.core.rebuild.TimelineRebuildBatchlet;
+import org.miles2run.core.rebuild.TimelineRebuildService;
+
+import javax.batch.runtime.BatchRuntime;
+import javax.inject.Inject;
+import javax.ws.rs.*;
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.Properties;
+
+@AdminOnly
+@Path("admin/timelines/rebuild")
+public class TimelineRebuildResource {
+
+    @Inject
+    private TimelineRebuildService timelineRebuildService;
+
+    @POST
+    @Produces("application/json")
+    @LoggedIn
+    public Response rebuild(@QueryParam("resume") boolean resume) {
+        if (timelineRebuildService.isRunning()) {
+            return Response.status(Response.Status.CONFLICT).entity(timelineRebuildService.status()).build();
+        }
+        Properties jobParameters = new Properties();
+        jobParameters.setProperty("resume", String.valueOf(resume));
+        long executionId = BatchRuntime.getJobOperator().start(TimelineRebuildBatchlet.JOB_NAME, jobParameters);
+        return Response.status(Response.Status.ACCEPTED).entity(Collections.singletonMap("executionId", executionId)).build();
+    }
+
+    @GET
+    @Produces("application/json")
+    @LoggedIn
+    public Response status() {
+        return Response.ok(timelineRebuildService.status()).build();
+    }
+}
@@ -4,14 +4,22 @@ import org.apache.commons.lang3.StringUtils;
 import org.jug.filters.InjectPrincipal;
 import org.jug.filters.LoggedIn;
 import org.miles2run.core.cache.CityCoordinatesCache;
+import org.miles2run.core.cache.CommunityRunTimelineCache;
+import org.miles2run.core.repositories.jpa.ActivityRepository;
 import org.miles2run.core.repositories.jpa.CommunityRunRepository;
 import org.miles2run.core.repositories.jpa.GoalRepository;
 import org.miles2run.core.repositories.jpa.ProfileRepository;
+import org.miles2run.core.repositories.redis.CommunityRunLeaderboardRepository;
 import org.miles2run.core.repositories.redis.CommunityRunStatsRepository;
+import org.miles2run.core.repositories.redis.RedisUnavailableException;
+import org.miles2run.core.repositories.redis.TimelineRepository;
+import org.miles2run.core.repositories.redis.vo.Leaderboard;
 import org.miles2run.core.utils.SlugUtils;
 import org.miles2run.domain.entities.*;
+import org.miles2run.domain.kv_aggregates.TimelineAggregate;
 import org.miles2run.representations.CityRunnersRepresentation;
 import org.miles2run.representations.CommunityRunRepresentation;
+import org.miles2run.rest.api.activities.timeline.TimelinePages;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -42,6 +50,14 @@ public class CommunityRunResource {
     private GoalRepository goalRepository;
     @Inject
     private CityCoordinatesCache cityCache;
+    @Inject
+    private TimelineRepository timelineRepository;
+    @Inject
+    private CommunityRunTimelineCache communityRunTimelineCache;
+    @Inject
+    private ActivityRepository activityRepository;
+    @Inject
+    private CommunityRunLeaderboardRepository leaderboardRepository;
 
     @POST
     @Consumes("application/json")
@@ -84,13 +100,17 @@ public class CommunityRunResource {
         return communityRuns.stream().map(activeCommunityRun -> {
             CommunityRunRepresentation representation = toCommunityRunRepresentation(activeCommunityRun);
             String slug = activeCommunityRun.getSlug();
-            if (includeStats) {
-                representation.addStats(communityRunStatsRepository.getCurrentStatsForCommunityRun(slug));
-            }
-            if (includeParticipationDetail && username != null) {
-                if (communityRunStatsRepository.isUserAlreadyPartOfRun(slug, username)) {
-                    representation.addParticipationDetails(true);
+            try {
+                if (includeStats) {
+                    representation.addStats(communityRunStatsRepository.getCurrentStatsForCommunityRun(slug));
                 }
+                if (includeParticipationDetail && username != null) {
+                    if (communityRunStatsRepository.isUserAlreadyPartOfRun(slug, username)) {
+                        representation.addParticipationDetails(true);
+                    }
+                }
+            } catch (RedisUnavailableException e) {
+                logger.warn("Listing community run {} without stats : {}", slug, e.getMessage());
             }
             return representation;
         }).collect(Collectors.toList());
@@ -149,6 +169,88 @@ public class CommunityRunResource {
         return new CityRunnersRepresentation(cityRunners.size(), tuple.getCity(), tuple.getCountry(), latLng);
     }
 
+    /**
+     * Activities posted for a community run, newest first. The first page is served from a short lived in memory cache.
+     */
+    @Path("/{slug}/activities")
+    @GET
+    @Produces("application/json")
+    public Response communityRunTimeline(@NotNull @PathParam("slug") String slug, @QueryParam("page") int page, @QueryParam("count") int count, @QueryParam("max_id") String maxId, @QueryParam("since_id") String sinceId) {
+        if (!communityRunStatsRepository.communityRunExists(slug)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        count = count == 0 || count > 10 ? 10 : count;
+        TimelineAggregate timeline;
+        if (TimelinePages.isCursorOrOffsetRequest(page, maxId, sinceId)) {
+            timeline = timelineRepository.communityRunTimeline(slug, TimelinePages.cursor(maxId), TimelinePages.cursor(sinceId), TimelinePages.offset(page, count), count);
+        } else {
+            timeline = communityRunTimelineCache.firstPage(slug, count);
+        }
+        return Response.ok(TimelinePages.representation(timeline, activityRepository)).build();
+    }
+
+    /**
+     * Runners of a community run ranked by distance or duration, best first.
+     */
+    @Path("/{slug}/leaderboard")
+    @GET
+    @Produces("application/json")
+    public Response leaderboard(@NotNull @PathParam("slug") String slug, @QueryParam("metric") String metricName, @QueryParam("page") int page, @QueryParam("size") int size) {
+        CommunityRunLeaderboardRepository.Metric metric = metricName == null ? CommunityRunLeaderboardRepository.Metric.DISTANCE : CommunityRunLeaderboardRepository.Metric.fromName(metricName);
+        if (metric == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("Leaderboards rank runners by distance or duration").build();
+        }
+        if (!communityRunStatsRepository.communityRunExists(slug)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        size = size <= 0 || size > 100 ? 10 : size;
+        long offset = page <= 1 ? 0 : (long) (page - 1) * size;
+        Leaderboard leaderboard = leaderboardRepository.top(slug, metric, offset, size);
+        if (leaderboard == null) {
+            if (!buildLeaderboards(slug)) {
+                return leaderboardsNotBuilt();
+            }
+            leaderboard = leaderboardRepository.top(slug, metric, offset, size);
+        }
+        return Response.ok(leaderboard).build();
+    }
+
+    /**
+     * A runner's rank in a community run with the runners ranked just above and below.
+     */
+    @Path("/{slug}/leaderboard/{username}")
+    @GET
+    @Produces("application/json")
+    public Response runnerLeaderboard(@NotNull @PathParam("slug") String slug, @NotNull @PathParam("username") String username, @QueryParam("metric") String metricName, @QueryParam("neighbours") int neighbours) {
+        CommunityRunLeaderboardRepository.Metric metric = metricName == null ? CommunityRunLeaderboardRepository.Metric.DISTANCE : CommunityRunLeaderboardRepository.Metric.fromName(metricName);
+        if (metric == null) {
+            return Response.status(Response.Status.BAD_REQUEST).entity("Leaderboards rank runners by distance or duration").build();
+        }
+        if (!communityRunStatsRepository.communityRunExists(slug)) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        neighbours = neighbours <= 0 || neighbours > 50 ? 5 : neighbours;
+        Leaderboard leaderboard = leaderboardRepository.around(slug, metric, username, neighbours);
+        if (leaderboard == null) {
+            if (!buildLeaderboards(slug)) {
+                return leaderboardsNotBuilt();
+            }
+            leaderboard = leaderboardRepository.around(slug, metric, username, neighbours);
+        }
+        return Response.ok(leaderboard).build();
+    }
+
+    private boolean buildLeaderboards(final String slug) {
+        return leaderboardRepository.build(slug, () -> activityRepository.communityRunTotalsByRunner(slug));
+    }
+
+    /**
+     * The leaderboards are being built by another request.
+     */
+    private Response leaderboardsNotBuilt() {
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", 1).entity("Leaderboards of this community run are being built").build();
+    }
+
     // TODO : CODE COPIED FROM CommunityRunView
     @Path("/{slug}/join")
     @POST
@@ -7,6 +7,8 @@ import javax.inject.Inject;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.core.*;
+import java.util.concurrent.TimeUnit;
 
 @Path("counters")
 public class CounterResource {
@@ -14,9 +16,25 @@ public class CounterResource {
     @Inject
     private CounterStatsRepository counterStatsRepository;
 
+    /**
+     * Counters change at most once per snapshot, so browsers and proxies may cache them for as long and revalidate with
+     * the ETag afterwards.
+     */
     @GET
     @Produces("application/json")
-    public CounterAggregate appCounter() {
-        return counterStatsRepository.currentCounter();
+    public Response appCounter(@Context Request request) {
+        CounterAggregate counter = counterStatsRepository.currentCounter();
+        EntityTag entityTag = entityTag(counter);
+        CacheControl cacheControl = new CacheControl();
+        cacheControl.setMaxAge((int) TimeUnit.MILLISECONDS.toSeconds(counterStatsRepository.getSnapshotMillis()));
+        Response.ResponseBuilder builder = request.evaluatePreconditions(entityTag);
+        if (builder == null) {
+            builder = Response.ok(counter);
+        }
+        return builder.cacheControl(cacheControl).tag(entityTag).build();
+    }
+
+    static EntityTag entityTag(CounterAggregate counter) {
+        return new EntityTag(String.format("%d-%d-%d-%d-%d", counter.getRunners(), counter.getCountries(), Double.doubleToLongBits(counter.getDistance()), counter.getCities(), counter.getSeconds()));
     }
 }
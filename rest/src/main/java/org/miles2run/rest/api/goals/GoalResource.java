@@ -1,13 +1,18 @@
 package org.miles2run.rest.api.goals;
 
 import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTimeZone;
 import org.joda.time.Interval;
+import org.joda.time.LocalDate;
 import org.jug.filters.LoggedIn;
 import org.miles2run.core.repositories.jpa.ActivityRepository;
 import org.miles2run.core.repositories.jpa.GoalRepository;
 import org.miles2run.core.repositories.jpa.ProfileRepository;
 import org.miles2run.core.repositories.jpa.vo.Progress;
+import org.miles2run.core.repositories.redis.GoalDaysRepository;
 import org.miles2run.core.repositories.redis.GoalStatsRepository;
+import org.miles2run.core.repositories.redis.vo.GoalStreak;
+import org.miles2run.core.utils.DateUtils;
 import org.miles2run.domain.entities.*;
 import org.miles2run.representations.GoalRepresentation;
 import org.miles2run.representations.GoalRepresentationFactory;
@@ -40,6 +45,8 @@ public class GoalResource {
     @Inject
     private GoalStatsRepository goalStatsRepository;
     @Inject
+    private GoalDaysRepository goalDaysRepository;
+    @Inject
     private ActivityRepository activityRepository;
 
     @GET
@@ -183,10 +190,15 @@ public class GoalResource {
         if (goalType(goal) == GoalType.DISTANCE_GOAL) {
             return Response.status(Response.Status.OK).entity(progress).build();
         }
-        Map<String, Object> goalProgress = goalStatsRepository.getDurationGoalProgress(username, goalId, new Interval(goal.getDuration().getStartDate().getTime(), goal.getDuration().getEndDate().getTime()), timezoneOffset);
+        Map<String, Object> goalProgress = goalStatsRepository.getDurationGoalProgress(username, goal, new Interval(goal.getDuration().getStartDate().getTime(), goal.getDuration().getEndDate().getTime()), timezoneOffset);
         goalProgress.put("activityCount", progress.getActivityCount());
         goalProgress.put("totalDistanceCovered", progress.getTotalDistanceCovered());
         goalProgress.put("goalUnit", progress.getGoalUnit());
+        DateTimeZone dateTimeZone = DateUtils.toDateTimeZone(timezoneOffset);
+        GoalStreak streak = goalDaysRepository.streak(username, goal, new LocalDate(goal.getDuration().getStartDate().getTime(), dateTimeZone), new LocalDate(goal.getDuration().getEndDate().getTime(), dateTimeZone), dateTimeZone);
+        goalProgress.put("currentStreak", streak.currentOn(new LocalDate(dateTimeZone)));
+        goalProgress.put("longestStreak", streak.getLongest());
+        goalProgress.put("lastActiveDay", streak.getLastActiveDay() == null ? null : streak.getLastActiveDay().toString());
         return Response.status(Response.Status.OK).entity(goalProgress).build();
     }
 
@@ -64,7 +64,7 @@ public class GoalAggregateResource {
     @GET
     @Produces("application/json")
     @LoggedIn
-    public Response activityCalendar(@PathParam("goalId") Long goalId, @QueryParam("months") int nMonths) {
+    public Response activityCalendar(@PathParam("goalId") Long goalId, @QueryParam("months") int nMonths, @CookieParam("timezoneoffset") int timezoneOffset) {
         String loggedInUser = securityContext.getUserPrincipal().getName();
         Profile profile = profileRepository.findByUsername(loggedInUser);
         Goal goal = goalRepository.find(profile, goalId);
@@ -72,7 +72,7 @@ public class GoalAggregateResource {
             return Response.status(Response.Status.NOT_FOUND).entity("No goal exists with id " + goalId).build();
         }
         nMonths = nMonths == 0 || nMonths > 12 ? 3 : nMonths;
-        Map<String, Double> data = goalAggregationRepository.getActivitiesPerformedInLastNMonthsForGoal(profile.getUsername(), goal, nMonths);
+        Map<String, Double> data = goalAggregationRepository.getActivitiesPerformedInLastNMonthsForGoal(profile.getUsername(), goal, nMonths, timezoneOffset);
         return Response.status(Response.Status.OK).entity(data).build();
     }
 }
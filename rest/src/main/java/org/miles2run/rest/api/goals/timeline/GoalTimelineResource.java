@@ -5,18 +5,16 @@ import org.miles2run.core.repositories.jpa.ActivityRepository;
 import org.miles2run.core.repositories.jpa.GoalRepository;
 import org.miles2run.core.repositories.jpa.ProfileRepository;
 import org.miles2run.core.repositories.redis.TimelineRepository;
-import org.miles2run.domain.entities.Activity;
+import org.miles2run.rest.api.activities.timeline.TimelinePages;
 import org.miles2run.domain.entities.Goal;
 import org.miles2run.domain.entities.Profile;
+import org.miles2run.domain.kv_aggregates.TimelineAggregate;
 import org.miles2run.representations.TimelineRepresentation;
 
 import javax.inject.Inject;
 import javax.ws.rs.*;
 import javax.ws.rs.core.Context;
 import javax.ws.rs.core.SecurityContext;
-import java.util.List;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 @Path("goals/{goalId}/activities")
 public class GoalTimelineResource {
@@ -36,46 +34,33 @@ public class GoalTimelineResource {
     @GET
     @Produces("application/json")
     @LoggedIn
-    public TimelineRepresentation goalTimeline(@PathParam("goalId") Long goalId, @QueryParam("page") int page, @QueryParam("count") int count) {
+    public TimelineRepresentation goalTimeline(@PathParam("goalId") Long goalId, @QueryParam("page") int page, @QueryParam("count") int count, @QueryParam("max_id") String maxId, @QueryParam("since_id") String sinceId) {
         String loggedInUser = securityContext.getUserPrincipal().getName();
         Profile profile = profileRepository.findByUsername(loggedInUser);
         Goal goal = goalRepository.find(profile, goalId);
         if (goal == null) {
             return TimelineRepresentation.empty();
         }
-        page = page == 0 ? 1 : page;
         count = count == 0 || count > 50 ? 10 : count;
-        Set<String> timelineIds = timelineRepository.getGoalTimelineIds(loggedInUser, goal.getId(), page, count);
-        if (timelineIds.isEmpty()) {
-            return TimelineRepresentation.empty();
-        }
-        return toTimelineRepresentation(loggedInUser, timelineIds, goal);
+        return goalTimeline(loggedInUser, goal, page, count, maxId, sinceId);
     }
 
-
-    private TimelineRepresentation toTimelineRepresentation(String loggedInUser, Set<String> homeTimelineIds, Goal goal) {
-        List<Long> activityIds = homeTimelineIds.stream().map(Long::valueOf).collect(Collectors.toList());
-        List<Activity> activities = activityRepository.findAllActivitiesWithIds(activityIds);
-        Long activityCount = timelineRepository.goalTimelineActivityCount(loggedInUser, goal.getId());
-        return TimelineRepresentation.with(activityCount, activities);
+    private TimelineRepresentation goalTimeline(String username, Goal goal, int page, int count, String maxId, String sinceId) {
+        TimelineAggregate timeline = timelineRepository.goalTimeline(username, goal.getId(), TimelinePages.cursor(maxId), TimelinePages.cursor(sinceId), TimelinePages.offset(page, count), count);
+        return TimelinePages.representation(timeline, activityRepository);
     }
 
     @Path("/user_goal_timeline")
     @GET
     @Produces("application/json")
-    public TimelineRepresentation getUserGoalTimeline(@PathParam("goalId") Long goalId, @QueryParam("username") String username, @QueryParam("page") int page, @QueryParam("count") int count) {
+    public TimelineRepresentation getUserGoalTimeline(@PathParam("goalId") Long goalId, @QueryParam("username") String username, @QueryParam("page") int page, @QueryParam("count") int count, @QueryParam("max_id") String maxId, @QueryParam("since_id") String sinceId) {
         Profile profile = profileRepository.findByUsername(username);
         Goal goal = goalRepository.find(profile, goalId);
         if (goal == null) {
             return TimelineRepresentation.empty();
         }
-        page = page == 0 ? 1 : page;
         count = count == 0 || count > 50 ? 10 : count;
-        Set<String> timelineIds = timelineRepository.getGoalTimelineIds(username, goal.getId(), page, count);
-        if (timelineIds.isEmpty()) {
-            return TimelineRepresentation.empty();
-        }
-        return toTimelineRepresentation(username, timelineIds, goal);
+        return goalTimeline(username, goal, page, count, maxId, sinceId);
     }
 
 }
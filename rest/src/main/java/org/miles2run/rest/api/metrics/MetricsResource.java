@@ -0,0 +1,38 @@
+package org.miles2run.rest.api.metrics;
+
+import org.jug.filters.LoggedIn;
+import org.miles2run.core.fanout.FollowerFanoutService;
+import org.miles2run.core.repositories.redis.JedisExecution;
+import org.miles2run.rest.api.admin.AdminOnly;
+
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import java.util.Map;
+
+@AdminOnly
+@Path("metrics")
+public class MetricsResource {
+
+    @Inject
+    private FollowerFanoutService followerFanoutService;
+    @Inject
+    private JedisExecution jedisExecution;
+
+    @GET
+    @Path("/fanout")
+    @Produces("application/json")
+    @LoggedIn
+    public Map<String, Object> fanout() {
+        return followerFanoutService.metrics();
+    }
+
+    @GET
+    @Path("/redis")
+    @Produces("application/json")
+    @LoggedIn
+    public Map<String, Object> redis() {
+        return jedisExecution.metrics();
+    }
+}
@@ -0,0 +1,40 @@
+package org.miles2run.rest.config;
+
+import org.miles2run.core.repositories.redis.JedisExecution;
+import org.miles2run.core.repositories.redis.RedisUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerRequestFilter;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.ext.Provider;
+import java.io.IOException;
+
+/**
+ * Sends the Redis operations batched while a request is handled in one pipeline once the resource method returns.
+ */
+@Provider
+public class RedisBatchFilter implements ContainerRequestFilter, ContainerResponseFilter {
+
+    private Logger logger = LoggerFactory.getLogger(RedisBatchFilter.class);
+
+    @Inject
+    private JedisExecution jedisExecution;
+
+    @Override
+    public void filter(ContainerRequestContext requestContext) throws IOException {
+        jedisExecution.beginBatch();
+    }
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext) throws IOException {
+        try {
+            jedisExecution.flushBatch();
+        } catch (RedisUnavailableException e) {
+            logger.error("Redis operations batched by {} {} are lost : {}", requestContext.getMethod(), requestContext.getUriInfo().getPath(), e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package org.miles2run.rest.config;
+
+import org.miles2run.core.repositories.redis.JedisExecution;
+import org.miles2run.core.repositories.redis.RedisUnavailableException;
+
+import javax.inject.Inject;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * Answers requests that needed Redis while it is unavailable with 503, asking clients to retry once the circuit breaker
+ * probes Redis again.
+ */
+@Provider
+public class RedisUnavailableExceptionMapper implements ExceptionMapper<RedisUnavailableException> {
+
+    @Inject
+    private JedisExecution jedisExecution;
+
+    @Override
+    public Response toResponse(RedisUnavailableException exception) {
+        long retryAfterSeconds = Math.max(1, jedisExecution.getBreakerOpenMillis() / 1000);
+        return Response.status(Response.Status.SERVICE_UNAVAILABLE).header("Retry-After", retryAfterSeconds).build();
+    }
+}
@@ -0,0 +1,143 @@
+package org.miles2run.rest.api.activities;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.miles2run.core.repositories.jpa.ActivityRepository;
+import org.miles2run.core.repositories.jpa.GoalRepository;
+import org.miles2run.core.repositories.jpa.ProfileRepository;
+import org.miles2run.core.repositories.redis.CommunityRunLeaderboardRepository;
+import org.miles2run.core.repositories.redis.CommunityRunStatsRepository;
+import org.miles2run.core.repositories.redis.CounterStatsRepository;
+import org.miles2run.core.repositories.redis.GoalDaysRepository;
+import org.miles2run.core.repositories.redis.GoalRollupRepository;
+import org.miles2run.core.repositories.redis.GoalStatsRepository;
+import org.miles2run.core.repositories.redis.RedisUnavailableException;
+import org.miles2run.core.repositories.redis.TimelineRepository;
+import org.miles2run.domain.entities.Activity;
+import org.miles2run.domain.entities.ActivityBuilder;
+import org.miles2run.domain.entities.CommunityRun;
+import org.miles2run.domain.entities.CommunityRunGoal;
+import org.miles2run.domain.entities.GoalUnit;
+import org.miles2run.domain.entities.Profile;
+import org.mockito.InOrder;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import java.security.Principal;
+import java.util.Date;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class ActivityResourceTest {
+
+    @Mock
+    private ActivityRepository activityRepository;
+    @Mock
+    private ProfileRepository profileRepository;
+    @Mock
+    private CounterStatsRepository counterStatsRepository;
+    @Mock
+    private TimelineRepository timelineRepository;
+    @Mock
+    private SecurityContext securityContext;
+    @Mock
+    private GoalRepository goalRepository;
+    @Mock
+    private CommunityRunStatsRepository communityRunStatsRepository;
+    @Mock
+    private GoalStatsRepository goalStatsRepository;
+    @Mock
+    private GoalRollupRepository goalRollupRepository;
+    @Mock
+    private GoalDaysRepository goalDaysRepository;
+    @Mock
+    private CommunityRunLeaderboardRepository leaderboardRepository;
+    @InjectMocks
+    private ActivityResource activityResource;
+
+    private Profile profile;
+    private CommunityRunGoal goal;
+    private Activity activity;
+
+    @Before
+    public void setUp() throws Exception {
+        Principal principal = mock(Principal.class);
+        when(principal.getName()).thenReturn("shekhar");
+        when(securityContext.getUserPrincipal()).thenReturn(principal);
+        profile = mock(Profile.class);
+        when(profile.getUsername()).thenReturn("shekhar");
+        when(profileRepository.findByUsername("shekhar")).thenReturn(profile);
+        CommunityRun communityRun = mock(CommunityRun.class);
+        when(communityRun.getSlug()).thenReturn("50k-in-june");
+        goal = mock(CommunityRunGoal.class);
+        when(goal.getId()).thenReturn(1L);
+        when(goal.getProfile()).thenReturn(profile);
+        when(goal.getCommunityRun()).thenReturn(communityRun);
+        when(goalRepository.find(profile, 1L)).thenReturn(goal);
+        activity = spy(new ActivityBuilder().setPostedBy(profile).setGoal(goal).setGoalUnit(GoalUnit.KM).setDistanceCovered(5).setActivityDate(new Date()).setDuration(1800).createActivity());
+        doReturn(new Date()).when(activity).getCreatedAt();
+        when(activityRepository.get(7L)).thenReturn(activity);
+        when(activityRepository.update(activity)).thenReturn(activity);
+    }
+
+    @Test
+    public void updateActivity_DistanceAndDurationIncreased_PositiveDeltas() throws Exception {
+        ActivityRequest activityRequest = mock(ActivityRequest.class);
+        when(activityRequest.getGoalUnit()).thenReturn(GoalUnit.KM);
+        when(activityRequest.getDistanceCovered()).thenReturn(10.0d);
+        when(activityRequest.getActivityDate()).thenReturn(new Date());
+        when(activityRequest.getDuration()).thenReturn(3600L);
+
+        activityResource.updateActivity(1L, 7L, activityRequest);
+
+        verify(counterStatsRepository).updateDistanceCount(5000.0d);
+        verify(counterStatsRepository).updateActivitySecondsCount(1800L);
+        verify(goalStatsRepository).updateTotalDistanceCoveredForAGoal(1L, 5000.0d);
+        verify(communityRunStatsRepository).updateCommunityRunDistanceAndDurationStats("50k-in-june", 5000.0d, 1800L);
+        verify(leaderboardRepository).updateRunner("50k-in-june", "shekhar", 5000.0d, 1800L);
+    }
+
+    @Test
+    public void postActivity_RedisUnavailable_CreatedWithoutStats() throws Exception {
+        ActivityRequest activityRequest = mock(ActivityRequest.class);
+        when(activityRequest.toActivity(profile, goal)).thenReturn(activity);
+        when(activityRepository.save(activity)).thenReturn(activity);
+        doThrow(new RedisUnavailableException("Redis circuit breaker is open")).when(goalStatsRepository).updateTotalDistanceCoveredForAGoal(1L, 5000.0d);
+
+        Response response = activityResource.postActivity(1L, 0, activityRequest);
+
+        assertThat(response.getStatus(), is(equalTo(Response.Status.CREATED.getStatusCode())));
+    }
+
+    @Test
+    public void deleteActivity_Activity_NegativeDeltas() throws Exception {
+        activityResource.deleteActivity(1L, 7L);
+
+        verify(counterStatsRepository).updateDistanceCount(-5000.0d);
+        verify(counterStatsRepository).updateActivitySecondsCount(-1800L);
+        verify(goalStatsRepository).updateTotalDistanceCoveredForAGoal(1L, -5000.0d);
+        verify(leaderboardRepository).updateRunner("50k-in-june", "shekhar", -5000.0d, -1800L);
+    }
+
+    @Test
+    public void updateActivity_CommunityRunGoal_MarkedBeforeWrittenToTheDatabase() throws Exception {
+        ActivityRequest activityRequest = mock(ActivityRequest.class);
+        when(activityRequest.getGoalUnit()).thenReturn(GoalUnit.KM);
+        when(activityRequest.getActivityDate()).thenReturn(new Date());
+
+        activityResource.updateActivity(1L, 7L, activityRequest);
+
+        InOrder inOrder = inOrder(leaderboardRepository, activityRepository);
+        inOrder.verify(leaderboardRepository).activityChanging("50k-in-june");
+        inOrder.verify(activityRepository).update(activity);
+        inOrder.verify(leaderboardRepository).updateRunner(eq("50k-in-june"), eq("shekhar"), anyDouble(), anyLong());
+    }
+}
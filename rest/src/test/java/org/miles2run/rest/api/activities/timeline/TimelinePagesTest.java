@@ -0,0 +1,57 @@
+package org.miles2run.rest.api.activities.timeline;
+
+import org.junit.Test;
+import org.miles2run.core.repositories.jpa.ActivityRepository;
+import org.miles2run.domain.entities.Activity;
+import org.miles2run.domain.kv_aggregates.ActivityAggregate;
+import org.miles2run.domain.kv_aggregates.TimelineAggregate;
+
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.Response;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.*;
+
+public class TimelinePagesTest {
+
+    @Test
+    public void cursor_MalformedCursor_BadRequest() throws Exception {
+        try {
+            TimelinePages.cursor("100:2:3");
+            fail("A malformed cursor should be rejected");
+        } catch (WebApplicationException e) {
+            assertThat(e.getResponse().getStatus(), is(equalTo(Response.Status.BAD_REQUEST.getStatusCode())));
+        }
+    }
+
+    @Test
+    public void cursor_NoCursor_Null() throws Exception {
+        assertThat(TimelinePages.cursor(null), is(nullValue()));
+    }
+
+    @Test
+    public void representation_ActivitiesMissingFromRedis_OnlyThoseLoadedFromDatabase() throws Exception {
+        ActivityRepository activityRepository = mock(ActivityRepository.class);
+        when(activityRepository.findAllActivitiesWithIds(Arrays.asList(2L))).thenReturn(Collections.<Activity>emptyList());
+        TimelineAggregate timeline = new TimelineAggregate(Arrays.asList(1L, 2L), Collections.singletonMap(1L, mock(ActivityAggregate.class)), 2, null);
+
+        TimelinePages.representation(timeline, activityRepository);
+
+        verify(activityRepository).findAllActivitiesWithIds(Arrays.asList(2L));
+    }
+
+    @Test
+    public void representation_EmptyTimeline_DatabaseNotRead() throws Exception {
+        ActivityRepository activityRepository = mock(ActivityRepository.class);
+
+        TimelinePages.representation(TimelineAggregate.empty(), activityRepository);
+
+        verifyZeroInteractions(activityRepository);
+    }
+}
@@ -0,0 +1,82 @@
+package org.miles2run.rest.api.admin;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.miles2run.core.repositories.jpa.ProfileRepository;
+import org.miles2run.domain.entities.Profile;
+import org.miles2run.domain.entities.Role;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.SecurityContext;
+import java.security.Principal;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class AdminOnlyFilterTest {
+
+    @Mock
+    private ProfileRepository profileRepository;
+    @Mock
+    private ContainerRequestContext requestContext;
+    @Mock
+    private SecurityContext securityContext;
+    @InjectMocks
+    private AdminOnlyFilter filter;
+
+    @Before
+    public void setUp() throws Exception {
+        when(requestContext.getSecurityContext()).thenReturn(securityContext);
+    }
+
+    @Test
+    public void filter_Admin_RequestPassesThrough() throws Exception {
+        loggedInAs("shekhar", Role.ADMIN);
+
+        filter.filter(requestContext);
+
+        verify(requestContext, never()).abortWith(any(Response.class));
+    }
+
+    @Test
+    public void filter_NotAdmin_Forbidden() throws Exception {
+        loggedInAs("alice", Role.USER);
+
+        filter.filter(requestContext);
+
+        assertThat(abortStatus(), is(equalTo(Response.Status.FORBIDDEN.getStatusCode())));
+    }
+
+    @Test
+    public void filter_NotLoggedIn_Unauthorized() throws Exception {
+        filter.filter(requestContext);
+
+        assertThat(abortStatus(), is(equalTo(Response.Status.UNAUTHORIZED.getStatusCode())));
+        verifyZeroInteractions(profileRepository);
+    }
+
+    private void loggedInAs(String username, Role role) {
+        Principal principal = mock(Principal.class);
+        when(principal.getName()).thenReturn(username);
+        when(securityContext.getUserPrincipal()).thenReturn(principal);
+        Profile profile = mock(Profile.class);
+        when(profile.getRole()).thenReturn(role);
+        when(profileRepository.findByUsername(username)).thenReturn(profile);
+    }
+
+    private int abortStatus() {
+        ArgumentCaptor<Response> response = ArgumentCaptor.forClass(Response.class);
+        verify(requestContext).abortWith(response.capture());
+        return response.getValue().getStatus();
+    }
+}
@@ -0,0 +1,75 @@
+package org.miles2run.rest.api.community_runs;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.miles2run.core.repositories.jpa.ActivityRepository;
+import org.miles2run.core.repositories.redis.CommunityRunLeaderboardRepository;
+import org.miles2run.core.repositories.redis.CommunityRunStatsRepository;
+import org.miles2run.core.repositories.redis.vo.Leaderboard;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.ws.rs.core.Response;
+import java.util.Collections;
+import java.util.function.Supplier;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.*;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CommunityRunResourceTest {
+
+    @Mock
+    private CommunityRunStatsRepository communityRunStatsRepository;
+    @Mock
+    private ActivityRepository activityRepository;
+    @Mock
+    private CommunityRunLeaderboardRepository leaderboardRepository;
+    @InjectMocks
+    private CommunityRunResource communityRunResource;
+
+    @Before
+    public void setUp() throws Exception {
+        when(communityRunStatsRepository.communityRunExists("50k-in-june")).thenReturn(true);
+    }
+
+    @Test
+    public void leaderboard_NeverBuilt_BuiltThenRead() throws Exception {
+        Leaderboard leaderboard = new Leaderboard("distance", 0, Collections.emptyList());
+        when(leaderboardRepository.top("50k-in-june", CommunityRunLeaderboardRepository.Metric.DISTANCE, 0, 10)).thenReturn(null, leaderboard);
+        when(leaderboardRepository.build(eq("50k-in-june"), any(Supplier.class))).thenReturn(true);
+
+        Response response = communityRunResource.leaderboard("50k-in-june", null, 1, 10);
+
+        assertThat(response.getStatus(), is(equalTo(Response.Status.OK.getStatusCode())));
+        assertThat(response.getEntity(), is(sameInstance((Object) leaderboard)));
+    }
+
+    @Test
+    public void leaderboard_BuiltByAnotherRequest_ServiceUnavailable() throws Exception {
+        when(leaderboardRepository.top("50k-in-june", CommunityRunLeaderboardRepository.Metric.DISTANCE, 0, 10)).thenReturn(null);
+        when(leaderboardRepository.build(eq("50k-in-june"), any(Supplier.class))).thenReturn(false);
+
+        Response response = communityRunResource.leaderboard("50k-in-june", null, 1, 10);
+
+        assertThat(response.getStatus(), is(equalTo(Response.Status.SERVICE_UNAVAILABLE.getStatusCode())));
+        verify(leaderboardRepository, times(1)).top("50k-in-june", CommunityRunLeaderboardRepository.Metric.DISTANCE, 0, 10);
+    }
+
+    @Test
+    public void runnerLeaderboard_BuiltByAnotherRequest_ServiceUnavailable() throws Exception {
+        when(leaderboardRepository.around("50k-in-june", CommunityRunLeaderboardRepository.Metric.DISTANCE, "shekhar", 5)).thenReturn(null);
+        when(leaderboardRepository.build(eq("50k-in-june"), any(Supplier.class))).thenReturn(false);
+
+        Response response = communityRunResource.runnerLeaderboard("50k-in-june", "shekhar", null, 0);
+
+        assertThat(response.getStatus(), is(equalTo(Response.Status.SERVICE_UNAVAILABLE.getStatusCode())));
+    }
+}